@@ -4,6 +4,8 @@ import com.atlassian.bitbucket.jenkins.internal.client.supply.BitbucketCapabilit
 import com.atlassian.bitbucket.jenkins.internal.credentials.BitbucketCredentials;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import javax.annotation.CheckForNull;
+
 public class BitbucketClientFactoryImpl implements BitbucketClientFactory {
 
     private final BitbucketRequestExecutor bitbucketRequestExecutor;
@@ -11,9 +13,15 @@ public class BitbucketClientFactoryImpl implements BitbucketClientFactory {
 
     BitbucketClientFactoryImpl(String serverUrl, BitbucketCredentials credentials, ObjectMapper objectMapper,
                                HttpRequestExecutor httpRequestExecutor) {
+        this(serverUrl, credentials, objectMapper, httpRequestExecutor, null);
+    }
+
+    BitbucketClientFactoryImpl(String serverUrl, BitbucketCredentials credentials, ObjectMapper objectMapper,
+                               HttpRequestExecutor httpRequestExecutor,
+                               @CheckForNull BitbucketLastKnownGoodCache lastKnownGoodCache) {
         bitbucketRequestExecutor = new BitbucketRequestExecutor(serverUrl, httpRequestExecutor, objectMapper,
                 credentials);
-        capabilitiesSupplier = new BitbucketCapabilitiesSupplier(bitbucketRequestExecutor);
+        capabilitiesSupplier = new BitbucketCapabilitiesSupplier(bitbucketRequestExecutor, lastKnownGoodCache);
     }
 
     @Override
@@ -3,6 +3,7 @@ package com.atlassian.bitbucket.jenkins.internal.client;
 import com.atlassian.bitbucket.jenkins.internal.credentials.BitbucketCredentials;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -19,10 +20,17 @@ public class BitbucketClientFactoryProvider {
     private static final ObjectMapper objectMapper = new ObjectMapper();
 
     private final HttpRequestExecutor httpRequestExecutor;
+    private final BitbucketLastKnownGoodCache lastKnownGoodCache;
 
-    @Inject
     public BitbucketClientFactoryProvider(HttpRequestExecutor httpRequestExecutor) {
+        this(httpRequestExecutor, null);
+    }
+
+    @Inject
+    public BitbucketClientFactoryProvider(HttpRequestExecutor httpRequestExecutor,
+                                          @CheckForNull BitbucketLastKnownGoodCache lastKnownGoodCache) {
         this.httpRequestExecutor = httpRequestExecutor;
+        this.lastKnownGoodCache = lastKnownGoodCache;
     }
 
     /**
@@ -39,6 +47,7 @@ public class BitbucketClientFactoryProvider {
                 baseUrl,
                 credentials,
                 objectMapper,
-                httpRequestExecutor);
+                httpRequestExecutor,
+                lastKnownGoodCache);
     }
 }
@@ -0,0 +1,400 @@
+package com.atlassian.bitbucket.jenkins.internal.client;
+
+import com.atlassian.bitbucket.jenkins.internal.client.exception.BitbucketClientException;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.ConnectionFailureException;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.ServerErrorException;
+import hudson.XmlFile;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.security.HMACConfidentialKey;
+
+import javax.annotation.CheckForNull;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parsePositiveLongFromSystemProperty;
+import static java.util.Objects.requireNonNull;
+import static org.apache.commons.codec.digest.DigestUtils.sha256Hex;
+
+/**
+ * Keeps the last known good copy of metadata read from Bitbucket (capabilities, default branches, mirrors and the
+ * like), so that a short Bitbucket outage doesn't make every page, SCM and build that needs it fail as well.
+ * <p>
+ * Values are read in a stale-while-revalidate fashion: a value loaded less than {@link #REVALIDATE_AFTER} ms ago is
+ * returned as is. An older value is returned straight away, marked as {@link LastKnownGood#isStale() stale}, while it
+ * is loaded again in the background. Only when there is no value at all (or it is older than
+ * {@link #MAX_STALENESS} ms) do callers wait for Bitbucket. If revalidating fails because Bitbucket is unavailable,
+ * the old value keeps being served; if it fails for any other reason (such as the repository having been deleted or
+ * the credentials no longer having access) the value is dropped, so the next caller sees the error.
+ * <p>
+ * Values are kept apart by the credentials they are read with (see
+ * {@link com.atlassian.bitbucket.jenkins.internal.credentials.CredentialUtils#toCacheKey}), as what Bitbucket returns
+ * depends on what the credentials can see.
+ * <p>
+ * When running in Jenkins the values are saved to disk, one file per value, so they are also available straight after
+ * a restart and saving a changed value doesn't rewrite all the others. The credentials key is an unsalted digest of
+ * the credentials, so the keys of saved values use an HMAC of it instead, with a secret that is kept in Jenkins'
+ * confidential store.
+ *
+ * @since 3.2.0
+ */
+@Singleton
+public class BitbucketLastKnownGoodCache {
+
+    /**
+     * How long a value is used before it is loaded again in the background. Defaults to 5 minutes in ms.
+     */
+    public static final long REVALIDATE_AFTER =
+            parsePositiveLongFromSystemProperty("bitbucket.lastknowngood.revalidate.after", TimeUnit.MINUTES.toMillis(5));
+    /**
+     * How long a value can be served while Bitbucket is unavailable. Defaults to 7 days in ms.
+     */
+    public static final long MAX_STALENESS =
+            parsePositiveLongFromSystemProperty("bitbucket.lastknowngood.max.staleness", TimeUnit.DAYS.toMillis(7));
+    private static final HMACConfidentialKey CREDENTIALS_KEY_MAC =
+            new HMACConfidentialKey(BitbucketLastKnownGoodCache.class, "credentialsKey");
+    private static final int THREADS = (int) parsePositiveLongFromSystemProperty("bitbucket.lastknowngood.threads", 2);
+    private static final Executor DEFAULT_EXECUTOR = createDefaultExecutor();
+    private static final Logger LOGGER = Logger.getLogger(BitbucketLastKnownGoodCache.class.getName());
+
+    private final Clock clock;
+    private final UnaryOperator<String> credentialsKeyDigest;
+    private final Map<String, CacheEntry> entries = new ConcurrentHashMap<>();
+    // The keys of the values that have changed or been removed since they were last saved
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private final File directory;
+    private final Executor executor;
+    private final Set<String> revalidating = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean saveQueued = new AtomicBoolean();
+
+    @Inject
+    public BitbucketLastKnownGoodCache(Clock clock) {
+        this(clock, DEFAULT_EXECUTOR, getDefaultDirectory());
+    }
+
+    /**
+     * @param directory the directory the values are saved in, or {@code null} to keep them in memory only
+     */
+    BitbucketLastKnownGoodCache(Clock clock, Executor executor, @CheckForNull File directory) {
+        this(clock, executor, directory, directory == null ? UnaryOperator.identity() : CREDENTIALS_KEY_MAC::mac);
+    }
+
+    /**
+     * @param credentialsKeyDigest replaces the credentials keys in the keys of the values, which are saved to disk
+     */
+    BitbucketLastKnownGoodCache(Clock clock, Executor executor, @CheckForNull File directory,
+                                UnaryOperator<String> credentialsKeyDigest) {
+        this.clock = requireNonNull(clock, "clock");
+        this.credentialsKeyDigest = requireNonNull(credentialsKeyDigest, "credentialsKeyDigest");
+        this.executor = requireNonNull(executor, "executor");
+        this.directory = directory;
+        load();
+    }
+
+    /**
+     * Returns the value for the given key, loading it if there is no usable value yet, or loading it again in the
+     * background if the value is older than {@link #REVALIDATE_AFTER} ms.
+     *
+     * @param type           the type of value, such as {@code "capabilities"}
+     * @param baseUrl        the base URL of the Bitbucket instance the value is read from
+     * @param credentialsKey the {@link com.atlassian.bitbucket.jenkins.internal.credentials.CredentialUtils#toCacheKey
+     *                       key} of the credentials the value is read with
+     * @param name           identifies the value within the type and instance, such as the project key and repository
+     *                       slug
+     * @param loader         loads the value from Bitbucket
+     * @param <T>            the type of the value, which must be serializable by XStream
+     * @return the value, and whether it is stale
+     * @throws BitbucketClientException if there is no usable value and loading it failed
+     */
+    public <T> LastKnownGood<T> get(String type, String baseUrl, String credentialsKey, String name,
+                                    Supplier<T> loader) {
+        String key = toKey(type, baseUrl, credentialsKey, name);
+        Optional<LastKnownGood<T>> cached = getEntry(key);
+        if (cached.isPresent()) {
+            if (cached.get().isStale()) {
+                revalidate(key, loader);
+            }
+            return cached.get();
+        }
+        return new LastKnownGood<>(load(key, loader), false, clock.millis());
+    }
+
+    /**
+     * Returns the last known good value, if there is one, without loading it. This is intended for values that are
+     * loaded in some other way, and {@link #put} here once they have been.
+     *
+     * @return the value, or {@link Optional#empty()} if there is none or it is older than {@link #MAX_STALENESS} ms
+     */
+    public <T> Optional<LastKnownGood<T>> getIfPresent(String type, String baseUrl, String credentialsKey,
+                                                       String name) {
+        return getEntry(toKey(type, baseUrl, credentialsKey, name));
+    }
+
+    public void put(String type, String baseUrl, String credentialsKey, String name, Object value) {
+        store(toKey(type, baseUrl, credentialsKey, name), requireNonNull(value, "value"));
+    }
+
+    public void invalidateAll() {
+        for (String key : new ArrayList<>(entries.keySet())) {
+            remove(key);
+        }
+    }
+
+    /**
+     * Whether the error means Bitbucket could not be reached or could not answer, rather than that what was asked for
+     * is wrong or not allowed. Only errors of this kind are masked by the cache.
+     */
+    public static boolean isUnavailable(BitbucketClientException e) {
+        return e instanceof ConnectionFailureException || e instanceof ServerErrorException;
+    }
+
+    private static Executor createDefaultExecutor() {
+        // Revalidations are coalesced by key, so a few threads are enough even when many values go stale at once
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "BitbucketLastKnownGoodCache"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @CheckForNull
+    private static File getDefaultDirectory() {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return null;
+        }
+        return new File(jenkins.getRootDir(), BitbucketLastKnownGoodCache.class.getName());
+    }
+
+    private String toKey(String type, String baseUrl, String credentialsKey, String name) {
+        return type + ':' + baseUrl.toLowerCase(Locale.ROOT) + ':' + credentialsKeyDigest.apply(credentialsKey) + ':' +
+               name;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> Optional<LastKnownGood<T>> getEntry(String key) {
+        CacheEntry entry = entries.get(key);
+        if (entry == null) {
+            return Optional.empty();
+        }
+        long age = clock.millis() - entry.loadedAt;
+        if (age >= MAX_STALENESS) {
+            if (entries.remove(key, entry)) {
+                dirty.add(key);
+                queueSave();
+            }
+            return Optional.empty();
+        }
+        return Optional.of(new LastKnownGood<>((T) entry.value, age >= REVALIDATE_AFTER, entry.loadedAt));
+    }
+
+    private <T> T load(String key, Supplier<T> loader) {
+        T value = loader.get();
+        if (value != null) {
+            store(key, value);
+        }
+        return value;
+    }
+
+    private void store(String key, Object value) {
+        long now = clock.millis();
+        CacheEntry previous = entries.put(key, new CacheEntry(value, now));
+        // Values read on every build would otherwise be saved on every build, and it doesn't matter much if the time
+        // saved for an unchanged value is a few minutes out
+        if (previous == null || !previous.value.equals(value) || now - previous.loadedAt >= REVALIDATE_AFTER) {
+            dirty.add(key);
+            queueSave();
+        }
+    }
+
+    private void remove(String key) {
+        if (entries.remove(key) != null) {
+            dirty.add(key);
+            queueSave();
+        }
+    }
+
+    private <T> void revalidate(String key, Supplier<T> loader) {
+        if (!revalidating.add(key)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    load(key, loader);
+                } catch (BitbucketClientException e) {
+                    if (isUnavailable(e)) {
+                        LOGGER.log(Level.FINE, "Bitbucket is unavailable, continuing to use the last known " + key, e);
+                    } else {
+                        LOGGER.log(Level.FINE, "Dropping the last known " + key, e);
+                        remove(key);
+                    }
+                } finally {
+                    revalidating.remove(key);
+                }
+            });
+        } catch (RuntimeException e) {
+            revalidating.remove(key);
+            throw e;
+        }
+    }
+
+    private void load() {
+        File[] files = directory == null ? null : directory.listFiles((dir, name) -> name.endsWith(".xml"));
+        if (files == null) {
+            return;
+        }
+        long now = clock.millis();
+        for (File file : files) {
+            try {
+                Object saved = new XmlFile(Jenkins.XSTREAM2, file).read();
+                if (saved instanceof SavedEntry && now - ((SavedEntry) saved).loadedAt < MAX_STALENESS) {
+                    SavedEntry entry = (SavedEntry) saved;
+                    entries.put(entry.key, new CacheEntry(entry.value, entry.loadedAt));
+                    continue;
+                }
+            } catch (IOException | RuntimeException e) {
+                // The values are only a fallback, so do without this one rather than failing
+                LOGGER.log(Level.WARNING, "Failed to load the last known good Bitbucket metadata from " + file, e);
+            }
+            deleteFile(file);
+        }
+    }
+
+    /**
+     * Saves are done in the background and coalesced, as values are loaded far more often than they could
+     * reasonably be written to disk. Only the values that have changed since the last save are written.
+     */
+    private void queueSave() {
+        if (directory == null || !saveQueued.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(() -> {
+            saveQueued.set(false);
+            save();
+        });
+    }
+
+    private synchronized void save() {
+        long now = clock.millis();
+        entries.forEach((key, entry) -> {
+            if (now - entry.loadedAt >= MAX_STALENESS && entries.remove(key, entry)) {
+                dirty.add(key);
+            }
+        });
+        List<String> keys = new ArrayList<>(dirty);
+        dirty.removeAll(keys);
+        if (!keys.isEmpty() && !directory.isDirectory() && !directory.mkdirs()) {
+            LOGGER.warning("Failed to create " + directory + " to save the last known good Bitbucket metadata in");
+            return;
+        }
+        for (String key : keys) {
+            File file = getFile(key);
+            CacheEntry entry = entries.get(key);
+            if (entry == null) {
+                deleteFile(file);
+                continue;
+            }
+            try {
+                new XmlFile(Jenkins.XSTREAM2, file).write(new SavedEntry(key, entry));
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to save the last known good Bitbucket metadata to " + file, e);
+            }
+        }
+    }
+
+    private File getFile(String key) {
+        // The key contains URLs and names, which can't be used as a file name as they are
+        return new File(directory, sha256Hex(key) + ".xml");
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            LOGGER.warning("Failed to delete the last known good Bitbucket metadata in " + file);
+        }
+    }
+
+    /**
+     * A value read through the cache, with a marker saying whether it may be out of date.
+     *
+     * @param <T> the type of the value
+     */
+    public static final class LastKnownGood<T> {
+
+        private final long loadedAt;
+        private final boolean stale;
+        private final T value;
+
+        LastKnownGood(T value, boolean stale, long loadedAt) {
+            this.loadedAt = loadedAt;
+            this.stale = stale;
+            this.value = value;
+        }
+
+        /**
+         * @return when the value was loaded from Bitbucket, in ms since the epoch
+         */
+        public long getLoadedAt() {
+            return loadedAt;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        /**
+         * @return {@code true} if the value was not loaded from Bitbucket just now and may be out of date
+         */
+        public boolean isStale() {
+            return stale;
+        }
+    }
+
+    private static final class CacheEntry {
+
+        private final long loadedAt;
+        private final Object value;
+
+        private CacheEntry(Object value, long loadedAt) {
+            this.loadedAt = loadedAt;
+            this.value = value;
+        }
+    }
+
+    /**
+     * What is saved to disk for each value, which unlike {@link CacheEntry} includes the key, as the file name is a
+     * digest of it.
+     */
+    private static final class SavedEntry {
+
+        private final String key;
+        private final long loadedAt;
+        private final Object value;
+
+        private SavedEntry(String key, CacheEntry entry) {
+            this.key = key;
+            loadedAt = entry.loadedAt;
+            value = entry.value;
+        }
+    }
+}
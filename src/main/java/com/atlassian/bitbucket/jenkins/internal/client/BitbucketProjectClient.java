@@ -2,6 +2,9 @@ package com.atlassian.bitbucket.jenkins.internal.client;
 
 import com.atlassian.bitbucket.jenkins.internal.client.exception.*;
 import com.atlassian.bitbucket.jenkins.internal.model.BitbucketProject;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRepository;
+
+import java.util.stream.Stream;
 
 /**
  * Client to get a project from the Bitbucket server.
@@ -22,6 +25,15 @@ public interface BitbucketProjectClient {
      */
     BitbucketProject getProject();
 
+    /**
+     * Gets all repositories in the project that are visible to the current user. The returned stream will make paged
+     * calls to Bitbucket to ensure that all repositories are returned.
+     *
+     * @return a stream of all repositories in the project
+     * @since 3.2.0
+     */
+    Stream<BitbucketRepository> getRepositories();
+
     /**
      * Return a repository search client
      *
@@ -1,8 +1,17 @@
 package com.atlassian.bitbucket.jenkins.internal.client;
 
+import com.atlassian.bitbucket.jenkins.internal.client.paging.BitbucketPageStreamUtil;
+import com.atlassian.bitbucket.jenkins.internal.client.paging.NextPageFetcher;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketPage;
 import com.atlassian.bitbucket.jenkins.internal.model.BitbucketProject;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRepository;
+import com.fasterxml.jackson.core.type.TypeReference;
 import okhttp3.HttpUrl;
 
+import java.util.Collection;
+import java.util.stream.Stream;
+
+import static java.lang.String.valueOf;
 import static java.util.Objects.requireNonNull;
 import static org.apache.commons.lang3.StringUtils.stripToNull;
 
@@ -24,8 +33,47 @@ public class BitbucketProjectClientImpl implements BitbucketProjectClient {
         return bitbucketRequestExecutor.makeGetRequest(urlBuilder.build(), BitbucketProject.class).getBody();
     }
 
+    @Override
+    public Stream<BitbucketRepository> getRepositories() {
+        HttpUrl url = bitbucketRequestExecutor.getCoreRestPath().newBuilder()
+                .addPathSegment("projects")
+                .addPathSegment(projectKey)
+                .addPathSegment("repos")
+                .build();
+        BitbucketPage<BitbucketRepository> firstPage = bitbucketRequestExecutor.makeGetRequest(url,
+                new TypeReference<BitbucketPage<BitbucketRepository>>() {}).getBody();
+        return BitbucketPageStreamUtil.toStream(firstPage, new NextPageFetcherImpl(url, bitbucketRequestExecutor))
+                .map(BitbucketPage::getValues).flatMap(Collection::stream);
+    }
+
     @Override
     public BitbucketRepositoryClient getRepositoryClient(String repositorySlug) {
         return new BitbucketRepositoryClientImpl(bitbucketRequestExecutor, projectKey, repositorySlug);
     }
+
+    static class NextPageFetcherImpl implements NextPageFetcher<BitbucketRepository> {
+
+        private final HttpUrl url;
+        private final BitbucketRequestExecutor bitbucketRequestExecutor;
+
+        NextPageFetcherImpl(HttpUrl url,
+                            BitbucketRequestExecutor bitbucketRequestExecutor) {
+            this.url = url;
+            this.bitbucketRequestExecutor = bitbucketRequestExecutor;
+        }
+
+        @Override
+        public BitbucketPage<BitbucketRepository> next(BitbucketPage<BitbucketRepository> previous) {
+            if (previous.isLastPage()) {
+                throw new IllegalArgumentException("Last page does not have next page");
+            }
+            return bitbucketRequestExecutor.makeGetRequest(
+                    nextPageUrl(previous),
+                    new TypeReference<BitbucketPage<BitbucketRepository>>() {}).getBody();
+        }
+
+        private HttpUrl nextPageUrl(BitbucketPage<BitbucketRepository> previous) {
+            return url.newBuilder().addQueryParameter("start", valueOf(previous.getNextPageStart())).build();
+        }
+    }
 }
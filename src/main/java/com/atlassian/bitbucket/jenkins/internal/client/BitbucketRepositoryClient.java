@@ -2,6 +2,8 @@ package com.atlassian.bitbucket.jenkins.internal.client;
 
 import com.atlassian.bitbucket.jenkins.internal.client.exception.*;
 
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketChange;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketCommit;
 import com.atlassian.bitbucket.jenkins.internal.model.BitbucketDefaultBranch;
 import com.atlassian.bitbucket.jenkins.internal.model.BitbucketCICapabilities;
 import com.atlassian.bitbucket.jenkins.internal.model.BitbucketPullRequest;
@@ -16,6 +18,37 @@ import java.util.stream.Stream;
  */
 public interface BitbucketRepositoryClient {
 
+    /**
+     * Gets all branches in the repository, with the commit each of them is at. The returned stream will make paged
+     * calls to Bitbucket to ensure that all branches are returned.
+     *
+     * @return a stream of all branches in the repository
+     * @since 3.2.0
+     */
+    Stream<BitbucketDefaultBranch> getBranches();
+
+    /**
+     * Gets the files changed between two commits. The returned stream will make paged calls to Bitbucket to ensure
+     * that all changes are returned.
+     *
+     * @param since the commit to compare from
+     * @param until the commit to compare to
+     * @return a stream of the files changed
+     * @since 3.2.0
+     */
+    Stream<BitbucketChange> getChanges(String since, String until);
+
+    /**
+     * Gets the commits reachable from one commit but not from another, newest first. The returned stream will make
+     * paged calls to Bitbucket to ensure that all commits are returned.
+     *
+     * @param since the commit to leave out, with the commits reachable from it
+     * @param until the commit to list the commits reachable from
+     * @return a stream of the commits
+     * @since 3.2.0
+     */
+    Stream<BitbucketCommit> getCommits(String since, String until);
+
     /**
      * Returns a client for getting file content and directory information on paths in a repository.
      *
@@ -3,6 +3,8 @@ package com.atlassian.bitbucket.jenkins.internal.client;
 import com.atlassian.bitbucket.jenkins.internal.model.BitbucketCICapabilities;
 import com.atlassian.bitbucket.jenkins.internal.client.paging.BitbucketPageStreamUtil;
 import com.atlassian.bitbucket.jenkins.internal.client.paging.NextPageFetcher;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketChange;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketCommit;
 import com.atlassian.bitbucket.jenkins.internal.model.BitbucketDefaultBranch;
 import com.atlassian.bitbucket.jenkins.internal.model.BitbucketPage;
 import com.atlassian.bitbucket.jenkins.internal.model.BitbucketPullRequest;
@@ -34,6 +36,44 @@ public class BitbucketRepositoryClientImpl implements BitbucketRepositoryClient
         this.repositorySlug = requireNonNull(stripToNull(repositorySlug), "repositorySlug");
     }
 
+    @Override
+    public Stream<BitbucketDefaultBranch> getBranches() {
+        HttpUrl url = getRepositoryUrl()
+                .addPathSegment("branches")
+                .addQueryParameter("details", "false")
+                .build();
+        BitbucketPage<BitbucketDefaultBranch> firstPage = bitbucketRequestExecutor.makeGetRequest(url,
+                new TypeReference<BitbucketPage<BitbucketDefaultBranch>>() {}).getBody();
+        return BitbucketPageStreamUtil.toStream(firstPage, new BranchNextPageFetcherImpl(url, bitbucketRequestExecutor))
+                .map(BitbucketPage::getValues).flatMap(Collection::stream);
+    }
+
+    @Override
+    public Stream<BitbucketChange> getChanges(String since, String until) {
+        HttpUrl url = getRepositoryUrl()
+                .addPathSegment("changes")
+                .addQueryParameter("since", since)
+                .addQueryParameter("until", until)
+                .build();
+        BitbucketPage<BitbucketChange> firstPage = bitbucketRequestExecutor.makeGetRequest(url,
+                new TypeReference<BitbucketPage<BitbucketChange>>() {}).getBody();
+        return BitbucketPageStreamUtil.toStream(firstPage, new ChangeNextPageFetcherImpl(url, bitbucketRequestExecutor))
+                .map(BitbucketPage::getValues).flatMap(Collection::stream);
+    }
+
+    @Override
+    public Stream<BitbucketCommit> getCommits(String since, String until) {
+        HttpUrl url = getRepositoryUrl()
+                .addPathSegment("commits")
+                .addQueryParameter("since", since)
+                .addQueryParameter("until", until)
+                .build();
+        BitbucketPage<BitbucketCommit> firstPage = bitbucketRequestExecutor.makeGetRequest(url,
+                new TypeReference<BitbucketPage<BitbucketCommit>>() {}).getBody();
+        return BitbucketPageStreamUtil.toStream(firstPage, new CommitNextPageFetcherImpl(url, bitbucketRequestExecutor))
+                .map(BitbucketPage::getValues).flatMap(Collection::stream);
+    }
+
     public BitbucketBuildStatusClient getBuildStatusClient(String revisionSha,
                                                            BitbucketSCMRepository bitbucketSCMRepo,
                                                            BitbucketCICapabilities ciCapabilities,
@@ -120,6 +160,84 @@ public class BitbucketRepositoryClientImpl implements BitbucketRepositoryClient
                 .addPathSegment("default-branch");
     }
 
+    static class BranchNextPageFetcherImpl implements NextPageFetcher<BitbucketDefaultBranch> {
+
+        private final BitbucketRequestExecutor bitbucketRequestExecutor;
+        private final HttpUrl url;
+
+        BranchNextPageFetcherImpl(HttpUrl url,
+                                  BitbucketRequestExecutor bitbucketRequestExecutor) {
+            this.url = url;
+            this.bitbucketRequestExecutor = bitbucketRequestExecutor;
+        }
+
+        @Override
+        public BitbucketPage<BitbucketDefaultBranch> next(BitbucketPage<BitbucketDefaultBranch> previous) {
+            if (previous.isLastPage()) {
+                throw new IllegalArgumentException("Last page does not have next page");
+            }
+            return bitbucketRequestExecutor.makeGetRequest(
+                    nextPageUrl(previous),
+                    new TypeReference<BitbucketPage<BitbucketDefaultBranch>>() {}).getBody();
+        }
+
+        private HttpUrl nextPageUrl(BitbucketPage<BitbucketDefaultBranch> previous) {
+            return url.newBuilder().addQueryParameter("start", valueOf(previous.getNextPageStart())).build();
+        }
+    }
+
+    static class ChangeNextPageFetcherImpl implements NextPageFetcher<BitbucketChange> {
+
+        private final BitbucketRequestExecutor bitbucketRequestExecutor;
+        private final HttpUrl url;
+
+        ChangeNextPageFetcherImpl(HttpUrl url,
+                                  BitbucketRequestExecutor bitbucketRequestExecutor) {
+            this.url = url;
+            this.bitbucketRequestExecutor = bitbucketRequestExecutor;
+        }
+
+        @Override
+        public BitbucketPage<BitbucketChange> next(BitbucketPage<BitbucketChange> previous) {
+            if (previous.isLastPage()) {
+                throw new IllegalArgumentException("Last page does not have next page");
+            }
+            return bitbucketRequestExecutor.makeGetRequest(
+                    nextPageUrl(previous),
+                    new TypeReference<BitbucketPage<BitbucketChange>>() {}).getBody();
+        }
+
+        private HttpUrl nextPageUrl(BitbucketPage<BitbucketChange> previous) {
+            return url.newBuilder().addQueryParameter("start", valueOf(previous.getNextPageStart())).build();
+        }
+    }
+
+    static class CommitNextPageFetcherImpl implements NextPageFetcher<BitbucketCommit> {
+
+        private final BitbucketRequestExecutor bitbucketRequestExecutor;
+        private final HttpUrl url;
+
+        CommitNextPageFetcherImpl(HttpUrl url,
+                                  BitbucketRequestExecutor bitbucketRequestExecutor) {
+            this.url = url;
+            this.bitbucketRequestExecutor = bitbucketRequestExecutor;
+        }
+
+        @Override
+        public BitbucketPage<BitbucketCommit> next(BitbucketPage<BitbucketCommit> previous) {
+            if (previous.isLastPage()) {
+                throw new IllegalArgumentException("Last page does not have next page");
+            }
+            return bitbucketRequestExecutor.makeGetRequest(
+                    nextPageUrl(previous),
+                    new TypeReference<BitbucketPage<BitbucketCommit>>() {}).getBody();
+        }
+
+        private HttpUrl nextPageUrl(BitbucketPage<BitbucketCommit> previous) {
+            return url.newBuilder().addQueryParameter("start", valueOf(previous.getNextPageStart())).build();
+        }
+    }
+
     static class NextPageFetcherImpl implements NextPageFetcher<BitbucketPullRequest> {
 
         private final BitbucketRequestExecutor bitbucketRequestExecutor;
@@ -4,6 +4,8 @@ import com.atlassian.bitbucket.jenkins.internal.model.BitbucketPage;
 import com.atlassian.bitbucket.jenkins.internal.model.BitbucketProject;
 import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRepository;
 
+import java.util.stream.Stream;
+
 public interface BitbucketSearchClient {
 
     /**
@@ -32,4 +34,22 @@ public interface BitbucketSearchClient {
      * @return a page of repositories matching the filter
      */
     BitbucketPage<BitbucketRepository> findRepositories(String repositoryName);
+
+    /**
+     * Pages through every project matching the provided value, or every (accessible) project if the value is blank.
+     * Pages are only fetched as the stream is consumed.
+     *
+     * @return the matching projects
+     * @since 3.2.0
+     */
+    Stream<BitbucketProject> findAllProjects();
+
+    /**
+     * Pages through every (accessible) repository, within the provided project if one was given. Pages are only
+     * fetched as the stream is consumed.
+     *
+     * @return the repositories
+     * @since 3.2.0
+     */
+    Stream<BitbucketRepository> findAllRepositories();
 }
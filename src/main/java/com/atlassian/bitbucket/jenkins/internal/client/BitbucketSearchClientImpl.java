@@ -1,5 +1,7 @@
 package com.atlassian.bitbucket.jenkins.internal.client;
 
+import com.atlassian.bitbucket.jenkins.internal.client.paging.BitbucketPageStreamUtil;
+import com.atlassian.bitbucket.jenkins.internal.client.paging.NextPageFetcher;
 import com.atlassian.bitbucket.jenkins.internal.model.BitbucketPage;
 import com.atlassian.bitbucket.jenkins.internal.model.BitbucketProject;
 import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRepository;
@@ -7,7 +9,10 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import okhttp3.HttpUrl;
 
 import javax.annotation.CheckForNull;
+import java.util.Collection;
+import java.util.stream.Stream;
 
+import static java.lang.String.valueOf;
 import static java.util.Objects.requireNonNull;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.stripToEmpty;
@@ -47,4 +52,32 @@ public class BitbucketSearchClientImpl implements BitbucketSearchClient {
         return bitbucketRequestExecutor.makeGetRequest(url, new TypeReference<BitbucketPage<BitbucketRepository>>() {})
                 .getBody();
     }
+
+    @Override
+    public Stream<BitbucketProject> findAllProjects() {
+        HttpUrl.Builder urlBuilder = bitbucketRequestExecutor.getCoreRestPath().newBuilder().addPathSegment("projects");
+        if (!isBlank(projectName)) {
+            urlBuilder.addQueryParameter("name", projectName);
+        }
+        return findAll(urlBuilder.build(), new TypeReference<BitbucketPage<BitbucketProject>>() {});
+    }
+
+    @Override
+    public Stream<BitbucketRepository> findAllRepositories() {
+        HttpUrl.Builder urlBuilder = bitbucketRequestExecutor.getCoreRestPath().newBuilder().addPathSegment("repos");
+        if (!isBlank(projectName)) {
+            urlBuilder.addQueryParameter("projectname", projectName);
+        }
+        return findAll(urlBuilder.build(), new TypeReference<BitbucketPage<BitbucketRepository>>() {});
+    }
+
+    private <T> Stream<T> findAll(HttpUrl url, TypeReference<BitbucketPage<T>> type) {
+        BitbucketPage<T> firstPage = bitbucketRequestExecutor.makeGetRequest(url, type).getBody();
+        NextPageFetcher<T> nextPageFetcher = previous -> bitbucketRequestExecutor.makeGetRequest(
+                url.newBuilder().addQueryParameter("start", valueOf(previous.getNextPageStart())).build(), type)
+                .getBody();
+        return BitbucketPageStreamUtil.toStream(firstPage, nextPageFetcher)
+                .map(BitbucketPage::getValues)
+                .flatMap(Collection::stream);
+    }
 }
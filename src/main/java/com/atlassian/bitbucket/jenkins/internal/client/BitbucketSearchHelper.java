@@ -1,13 +1,25 @@
 package com.atlassian.bitbucket.jenkins.internal.client;
 
 import com.atlassian.bitbucket.jenkins.internal.client.exception.BitbucketClientException;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.NotFoundException;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.RepositoryNotFoundException;
 import com.atlassian.bitbucket.jenkins.internal.model.BitbucketProject;
 import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRepository;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 
 import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.*;
+
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parsePositiveLongFromSystemProperty;
 
 public final class BitbucketSearchHelper {
 
+    private static final int SPECULATIVE_THREADS =
+            (int) parsePositiveLongFromSystemProperty("bitbucket.repository.lookup.threads", 6);
+    private static final ExecutorService SPECULATIVE_EXECUTOR = createSpeculativeExecutor();
+
     public static Collection<BitbucketProject> findProjects(String projectName, BitbucketClientFactory clientFactory) throws BitbucketClientException {
         return clientFactory.getSearchClient(projectName).findProjects().getValues();
     }
@@ -41,4 +53,92 @@ public final class BitbucketSearchHelper {
                         .getRepositoryClient(repositoryNameOrSlug)
                         .getRepository());
     }
+
+    /**
+     * Finds a repository in the same way as {@link #getRepositoryByNameOrSlug}, but rather than trying each way of
+     * interpreting the project and repository one after the other, it starts them all at the same time. The results
+     * are still used in the same order of preference, so a repository matching by name wins over one matching by
+     * key and slug however quickly each request returns, and a lookup usually takes a single round trip to Bitbucket
+     * instead of up to four.
+     *
+     * @param projectNameOrKey     the project name or key
+     * @param repositoryNameOrSlug the repository name or slug
+     * @param clientFactory        the client factory to make the requests with
+     * @return the repository
+     * @throws RepositoryNotFoundException if the project exists, but the repository can't be found in it
+     * @throws NotFoundException           if the project can't be found
+     * @throws BitbucketClientException    if something went wrong when trying to contact Bitbucket
+     * @since 3.2.0
+     */
+    public static BitbucketRepository getRepositoryByNameOrSlugSpeculatively(String projectNameOrKey,
+                                                                             String repositoryNameOrSlug,
+                                                                             BitbucketClientFactory clientFactory) throws BitbucketClientException {
+        Future<Optional<BitbucketRepository>> nameLookup =
+                SPECULATIVE_EXECUTOR.submit(() -> findRepositories(repositoryNameOrSlug, projectNameOrKey, clientFactory)
+                        .stream()
+                        .filter(r -> projectNameOrKey.equalsIgnoreCase(r.getProject().getName()))
+                        .filter(r -> repositoryNameOrSlug.equalsIgnoreCase(r.getName()))
+                        .findAny());
+        // The project lookup tells us whether the project was given by name or by key, which decides whether the key
+        // and slug lookup started alongside it can be used
+        Future<BitbucketProject> projectLookup =
+                SPECULATIVE_EXECUTOR.submit(() -> getProjectByNameOrKey(projectNameOrKey, clientFactory));
+        Future<Optional<BitbucketRepository>> keyLookup = SPECULATIVE_EXECUTOR.submit(() ->
+                getRepositoryByKeyAndSlug(projectNameOrKey, repositoryNameOrSlug, clientFactory));
+        try {
+            Optional<BitbucketRepository> repository = getResult(nameLookup);
+            if (repository.isPresent()) {
+                return repository.get();
+            }
+            BitbucketProject project = getResult(projectLookup);
+            if (projectNameOrKey.equalsIgnoreCase(project.getKey())) {
+                repository = getResult(keyLookup);
+            } else {
+                // The project was given by name, so the key and slug lookup may have found a different project's
+                // repository
+                keyLookup.cancel(true);
+                repository = getRepositoryByKeyAndSlug(project.getKey(), repositoryNameOrSlug, clientFactory);
+            }
+            return repository.orElseThrow(() -> new RepositoryNotFoundException(
+                    "Cannot find the repository " + project.getName() + "/" + repositoryNameOrSlug, project));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BitbucketClientException("Interrupted while looking up the repository", e);
+        } finally {
+            nameLookup.cancel(true);
+            projectLookup.cancel(true);
+            keyLookup.cancel(true);
+        }
+    }
+
+    private static Optional<BitbucketRepository> getRepositoryByKeyAndSlug(String projectKey, String repositorySlug,
+                                                                           BitbucketClientFactory clientFactory) {
+        try {
+            return Optional.ofNullable(clientFactory.getProjectClient(projectKey)
+                    .getRepositoryClient(repositorySlug)
+                    .getRepository());
+        } catch (NotFoundException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static ExecutorService createSpeculativeExecutor() {
+        // Bounded, so lookups for many jobs at once queue up rather than each getting threads of their own
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(SPECULATIVE_THREADS, SPECULATIVE_THREADS, 60,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "BitbucketSpeculativeLookup"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static <T> T getResult(Future<T> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BitbucketClientException) {
+                throw (BitbucketClientException) e.getCause();
+            }
+            throw new BitbucketClientException("Unexpected error looking up the repository", e.getCause());
+        }
+    }
 }
@@ -0,0 +1,25 @@
+package com.atlassian.bitbucket.jenkins.internal.client.exception;
+
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketProject;
+
+/**
+ * The project exists, but the repository does not exist in it.
+ *
+ * @since 3.2.0
+ */
+public class RepositoryNotFoundException extends NotFoundException {
+
+    private final BitbucketProject project;
+
+    public RepositoryNotFoundException(String message, BitbucketProject project) {
+        super(message, null);
+        this.project = project;
+    }
+
+    /**
+     * @return the project the repository was looked for in
+     */
+    public BitbucketProject getProject() {
+        return project;
+    }
+}
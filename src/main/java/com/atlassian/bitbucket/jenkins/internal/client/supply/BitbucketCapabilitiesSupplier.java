@@ -1,20 +1,45 @@
 package com.atlassian.bitbucket.jenkins.internal.client.supply;
 
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketLastKnownGoodCache;
 import com.atlassian.bitbucket.jenkins.internal.client.BitbucketRequestExecutor;
 import com.atlassian.bitbucket.jenkins.internal.model.AtlassianServerCapabilities;
 import com.google.common.base.Supplier;
 import okhttp3.HttpUrl;
 
+import javax.annotation.CheckForNull;
+
 public class BitbucketCapabilitiesSupplier implements Supplier<AtlassianServerCapabilities> {
 
     private final BitbucketRequestExecutor bitbucketRequestExecutor;
+    private final BitbucketLastKnownGoodCache lastKnownGoodCache;
 
     public BitbucketCapabilitiesSupplier(BitbucketRequestExecutor bitbucketRequestExecutor) {
+        this(bitbucketRequestExecutor, null);
+    }
+
+    /**
+     * @param lastKnownGoodCache if given, the capabilities last read from Bitbucket are used while Bitbucket is
+     *                           unavailable
+     * @since 3.2.0
+     */
+    public BitbucketCapabilitiesSupplier(BitbucketRequestExecutor bitbucketRequestExecutor,
+                                         @CheckForNull BitbucketLastKnownGoodCache lastKnownGoodCache) {
         this.bitbucketRequestExecutor = bitbucketRequestExecutor;
+        this.lastKnownGoodCache = lastKnownGoodCache;
     }
 
     @Override
     public AtlassianServerCapabilities get() {
+        if (lastKnownGoodCache == null) {
+            return fetch();
+        }
+        // Capabilities are the same whichever credentials are used, so they are cached per server rather than
+        // per credentials
+        return lastKnownGoodCache.get("capabilities", bitbucketRequestExecutor.getBaseUrl().toString(), "", "",
+                this::fetch).getValue();
+    }
+
+    private AtlassianServerCapabilities fetch() {
         HttpUrl url =
                 bitbucketRequestExecutor.getBaseUrl().newBuilder()
                         .addPathSegment("rest")
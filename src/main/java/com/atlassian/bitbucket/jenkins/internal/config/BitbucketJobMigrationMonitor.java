@@ -0,0 +1,372 @@
+package com.atlassian.bitbucket.jenkins.internal.config;
+
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketBulkRepositoryResolver.RepositoryReference;
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCM;
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCMSource;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.AbstractProject;
+import hudson.model.AdministrativeMonitor;
+import hudson.model.Item;
+import hudson.model.Saveable;
+import hudson.scm.SCM;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.branch.BranchSource;
+import jenkins.branch.MultiBranchProject;
+import jenkins.model.Jenkins;
+import jenkins.model.ParameterizedJobMixIn;
+import jenkins.scm.api.SCMSource;
+import org.jenkinsci.plugins.workflow.cps.CpsScmFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import javax.annotation.CheckForNull;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parsePositiveLongFromSystemProperty;
+import static java.lang.String.format;
+
+/**
+ * Recreates the SCMs of every job using a Bitbucket Server instance whose base URL has changed, so they pick up the
+ * new clone and browse URLs. On a controller with thousands of jobs this takes a long time, so it runs in the
+ * background on up to {@link #THREADS} threads, and its progress (and any jobs that could not be updated) is shown to
+ * administrators.
+ * <p>
+ * The servers still to be migrated and the jobs already updated are saved to disk as the migration runs, so if Jenkins
+ * is restarted part way through it carries on where it left off.
+ *
+ * @since 3.2.0
+ */
+@Extension
+public class BitbucketJobMigrationMonitor extends AdministrativeMonitor implements Saveable {
+
+    /**
+     * The maximum number of jobs updated at the same time.
+     */
+    public static final int THREADS = (int) parsePositiveLongFromSystemProperty("bitbucket.job.migration.threads", 4);
+    private static final Logger LOGGER = Logger.getLogger(BitbucketJobMigrationMonitor.class.getName());
+    // The number of jobs updated between saving progress to disk
+    private static final int SAVE_INTERVAL = 50;
+
+    private List<String> failures = new ArrayList<>();
+    private Set<String> migratedJobs = new HashSet<>();
+    private Set<String> pendingServerIds = new HashSet<>();
+    private transient ExecutorService coordinator;
+    private transient volatile Future<?> currentRun;
+    private transient int generation;
+    // The number of runs submitted to the coordinator that haven't finished, so it can be shut down after the last
+    private transient int queuedRuns;
+    private transient volatile int processed;
+    private transient volatile int total;
+
+    public BitbucketJobMigrationMonitor() {
+        load();
+    }
+
+    public static BitbucketJobMigrationMonitor get() {
+        return all().get(BitbucketJobMigrationMonitor.class);
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Bitbucket Server job migration";
+    }
+
+    public synchronized List<String> getFailures() {
+        return new ArrayList<>(failures);
+    }
+
+    public int getProcessed() {
+        return processed;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    @Override
+    public boolean isActivated() {
+        return isRunning() || !getFailures().isEmpty();
+    }
+
+    public boolean isRunning() {
+        Future<?> run = currentRun;
+        return run != null && !run.isDone();
+    }
+
+    @RequirePOST
+    public HttpResponse doDismiss() {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        synchronized (this) {
+            failures.clear();
+            save();
+        }
+        return HttpResponses.redirectViaContextPath("/manage");
+    }
+
+    /**
+     * Continues a migration that was interrupted by Jenkins being restarted.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public synchronized void resume() {
+        if (!pendingServerIds.isEmpty()) {
+            LOGGER.info("Resuming the update of jobs for Bitbucket Server instances " + pendingServerIds);
+            submitRun();
+        }
+    }
+
+    @Override
+    public synchronized void save() {
+        try {
+            getConfigFile().write(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save the progress of the Bitbucket Server job migration", e);
+        }
+    }
+
+    /**
+     * Starts updating every job using one of the given servers. If a migration is already running, the servers are
+     * added to it and every job is checked again once the current run has finished.
+     *
+     * @param changedServerIds the IDs of the servers whose base URL has changed
+     */
+    public synchronized void start(Set<String> changedServerIds) {
+        pendingServerIds.addAll(changedServerIds);
+        // The servers may have changed again, so jobs updated by an earlier run need updating again
+        migratedJobs.clear();
+        failures.clear();
+        generation++;
+        save();
+        submitRun();
+    }
+
+    synchronized Set<String> getPendingServerIds() {
+        return new HashSet<>(pendingServerIds);
+    }
+
+    boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        Future<?> run = currentRun;
+        if (run == null) {
+            return true;
+        }
+        try {
+            run.get(timeout, unit);
+            return true;
+        } catch (ExecutionException e) {
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        }
+    }
+
+    private static void addReference(Map<String, Set<RepositoryReference>> referencesByServer,
+                                     Set<String> serverIds, @CheckForNull String serverId,
+                                     String projectName, String repositoryName) {
+        if (serverId != null && serverIds.contains(serverId)) {
+            referencesByServer.computeIfAbsent(serverId, id -> new HashSet<>())
+                    .add(new RepositoryReference(projectName, repositoryName));
+        }
+    }
+
+    @CheckForNull
+    private static BitbucketSCM getBitbucketSCM(Item item) {
+        SCM scm = null;
+        if (item instanceof AbstractProject) {
+            scm = ((AbstractProject<?, ?>) item).getScm();
+        } else if (item instanceof WorkflowJob && ((WorkflowJob) item).getDefinition() instanceof CpsScmFlowDefinition) {
+            scm = ((CpsScmFlowDefinition) ((WorkflowJob) item).getDefinition()).getScm();
+        }
+        return scm instanceof BitbucketSCM ? (BitbucketSCM) scm : null;
+    }
+
+    private static boolean usesServer(MultiBranchProject<?, ?> project, Set<String> serverIds) {
+        return project.getSources().stream()
+                .map(BranchSource::getSource)
+                .filter(BitbucketSCMSource.class::isInstance)
+                .anyMatch(source -> serverIds.contains(((BitbucketSCMSource) source).getServerId()));
+    }
+
+    private XmlFile getConfigFile() {
+        return new XmlFile(Jenkins.XSTREAM2, new File(Jenkins.get().getRootDir(), getClass().getName() + ".xml"));
+    }
+
+    private synchronized void load() {
+        XmlFile configFile = getConfigFile();
+        if (configFile.exists()) {
+            try {
+                configFile.unmarshal(this);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load the progress of the Bitbucket Server job migration", e);
+            }
+        }
+    }
+
+    private void runMigration() {
+        try {
+            migrate();
+        } finally {
+            synchronized (this) {
+                if (--queuedRuns == 0) {
+                    // Nothing else to migrate, so don't keep the thread around until the next base URL change
+                    coordinator.shutdown();
+                    coordinator = null;
+                }
+            }
+        }
+    }
+
+    private void migrate() {
+        Set<String> serverIds;
+        int runGeneration;
+        Set<String> alreadyMigrated;
+        synchronized (this) {
+            serverIds = new HashSet<>(pendingServerIds);
+            runGeneration = generation;
+            alreadyMigrated = new HashSet<>(migratedJobs);
+        }
+        if (serverIds.isEmpty()) {
+            return;
+        }
+        List<Item> items;
+        try (ACLContext ctx = ACL.as(ACL.SYSTEM)) {
+            items = Jenkins.get().getAllItems(Item.class).stream()
+                    .filter(item -> !alreadyMigrated.contains(item.getFullName()))
+                    .filter(item -> needsMigration(item, serverIds))
+                    .collect(Collectors.toList());
+            preloadRepositories(items, serverIds);
+        }
+        total = items.size();
+        processed = 0;
+        LOGGER.info(format("Updating %d jobs for Bitbucket Server instances %s", items.size(), serverIds));
+
+        ExecutorService workers = Executors.newFixedThreadPool(THREADS,
+                new NamingThreadFactory(new DaemonThreadFactory(), "BitbucketJobMigration"));
+        try {
+            List<Future<?>> futures = new ArrayList<>(items.size());
+            for (Item item : items) {
+                futures.add(workers.submit(() -> migrateItem(item, serverIds)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            // Jenkins is shutting down, the migration carries on from where it got to on the next start
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Unexpected error updating jobs for Bitbucket Server", e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+
+        synchronized (this) {
+            if (runGeneration == generation) {
+                pendingServerIds.removeAll(serverIds);
+                migratedJobs.clear();
+            }
+            save();
+        }
+        LOGGER.info(format("Finished updating jobs for Bitbucket Server instances %s", serverIds));
+    }
+
+    private void migrateItem(Item item, Set<String> serverIds) {
+        try (ACLContext ctx = ACL.as(ACL.SYSTEM)) {
+            if (item instanceof AbstractProject) {
+                // This server has had its base URL updated so we need to recalculate the clone URL
+                ((AbstractProject<?, ?>) item).setScm(new BitbucketSCM(getBitbucketSCM(item)));
+            } else if (item instanceof WorkflowJob) {
+                WorkflowJob workflowJob = (WorkflowJob) item;
+                CpsScmFlowDefinition definition = (CpsScmFlowDefinition) workflowJob.getDefinition();
+                workflowJob.setDefinition(new CpsScmFlowDefinition(new BitbucketSCM(getBitbucketSCM(item)),
+                        definition.getScriptPath()));
+            } else if (item instanceof MultiBranchProject) {
+                MultiBranchProject<?, ?> project = (MultiBranchProject<?, ?>) item;
+                List<BranchSource> sources = project.getSources().stream()
+                        .map(branchSource -> {
+                            SCMSource source = branchSource.getSource();
+                            if (source instanceof BitbucketSCMSource &&
+                                serverIds.contains(((BitbucketSCMSource) source).getServerId())) {
+                                BranchSource updated =
+                                        new BranchSource(new BitbucketSCMSource((BitbucketSCMSource) source));
+                                updated.setStrategy(branchSource.getStrategy());
+                                return updated;
+                            }
+                            return branchSource;
+                        })
+                        .collect(Collectors.toList());
+                project.getSourcesList().replaceBy(sources);
+            }
+            recordMigrated(item);
+        } catch (IOException | RuntimeException e) {
+            recordFailure(item, e);
+        }
+    }
+
+    private boolean needsMigration(Item item, Set<String> serverIds) {
+        if (item instanceof ParameterizedJobMixIn.ParameterizedJob) {
+            BitbucketSCM bitbucketSCM = getBitbucketSCM(item);
+            return bitbucketSCM != null && serverIds.contains(bitbucketSCM.getServerId());
+        }
+        return item instanceof MultiBranchProject && usesServer((MultiBranchProject<?, ?>) item, serverIds);
+    }
+
+    /**
+     * Every job being migrated has its repository resolved again. Resolving them all up front, one project at a time,
+     * means each repository is only looked up once, no matter how many jobs use it.
+     */
+    private void preloadRepositories(List<Item> items, Set<String> serverIds) {
+        Map<String, Set<RepositoryReference>> referencesByServer = new HashMap<>();
+        for (Item item : items) {
+            BitbucketSCM bitbucketSCM = getBitbucketSCM(item);
+            if (bitbucketSCM != null) {
+                addReference(referencesByServer, serverIds, bitbucketSCM.getServerId(),
+                        bitbucketSCM.getProjectName(), bitbucketSCM.getRepositoryName());
+            } else if (item instanceof MultiBranchProject) {
+                ((MultiBranchProject<?, ?>) item).getSources().stream()
+                        .map(BranchSource::getSource)
+                        .filter(BitbucketSCMSource.class::isInstance)
+                        .map(BitbucketSCMSource.class::cast)
+                        .forEach(source -> addReference(referencesByServer, serverIds, source.getServerId(),
+                                source.getProjectName(), source.getRepositoryName()));
+            }
+        }
+        BitbucketSCM.DescriptorImpl descriptor = Jenkins.get().getDescriptorByType(BitbucketSCM.DescriptorImpl.class);
+        referencesByServer.forEach(descriptor::preloadRepositories);
+    }
+
+    private synchronized void recordFailure(Item item, Exception e) {
+        LOGGER.log(Level.SEVERE, format("Error updating configuration for Job %s.", item.getFullName()), e);
+        failures.add(item.getFullName() + ": " + e.getMessage());
+        processed++;
+    }
+
+    private synchronized void recordMigrated(Item item) {
+        migratedJobs.add(item.getFullName());
+        processed++;
+        if (processed % SAVE_INTERVAL == 0) {
+            save();
+        }
+    }
+
+    private synchronized void submitRun() {
+        if (coordinator == null) {
+            coordinator = Executors.newSingleThreadExecutor(
+                    new NamingThreadFactory(new DaemonThreadFactory(), "BitbucketJobMigrationCoordinator"));
+        }
+        queuedRuns++;
+        currentRun = coordinator.submit(this::runMigration);
+    }
+}
@@ -1,28 +1,14 @@
 package com.atlassian.bitbucket.jenkins.internal.config;
 
-import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCM;
-import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCMSource;
 import hudson.Extension;
-import hudson.model.AbstractProject;
-import hudson.security.ACL;
-import hudson.security.ACLContext;
 import hudson.util.FormValidation;
 import hudson.util.FormValidation.Kind;
-import jenkins.branch.MultiBranchProject;
 import jenkins.model.GlobalConfiguration;
-import jenkins.model.Jenkins;
-import jenkins.model.ParameterizedJobMixIn;
-import jenkins.scm.api.SCMSource;
 import net.sf.json.JSONObject;
-import org.jenkinsci.plugins.workflow.cps.CpsScmFlowDefinition;
-import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.kohsuke.stapler.StaplerRequest;
 
 import javax.annotation.CheckForNull;
-import java.io.IOException;
 import java.util.*;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 import static java.util.Objects.requireNonNull;
@@ -35,8 +21,6 @@ import static org.apache.commons.lang3.StringUtils.isBlank;
         "unused") // Stapler calls many of the methods via reflection (such as the setServerList)
 public class BitbucketPluginConfiguration extends GlobalConfiguration {
 
-    private static final Logger LOGGER = Logger.getLogger(BitbucketPluginConfiguration.class.getName());
-
     private List<BitbucketServerConfiguration> serverList = new ArrayList<>();
 
     public BitbucketPluginConfiguration() {
@@ -113,55 +97,8 @@ public class BitbucketPluginConfiguration extends GlobalConfiguration {
                 .map(BitbucketServerConfiguration::getId)
                 .collect(toSet());
         if (!changedServerIds.isEmpty()) {
-            try (ACLContext ctx = ACL.as(ACL.SYSTEM)) {
-                Jenkins.get().getAllItems(ParameterizedJobMixIn.ParameterizedJob.class)
-                        .forEach(job -> {
-                            if (job instanceof AbstractProject && ((AbstractProject) job).getScm() instanceof BitbucketSCM) {
-                                AbstractProject<?, ?> project = (AbstractProject<?, ?>) job;
-                                BitbucketSCM bitbucketSCM = (BitbucketSCM) project.getScm();
-                                if (changedServerIds.contains(bitbucketSCM.getServerId())) {
-                                    try {
-                                        // This server has had its base URL updated so we need to recalculate the clone URL
-                                        project.setScm(new BitbucketSCM(bitbucketSCM));
-                                    } catch (IOException e) {
-                                        LOGGER.log(Level.SEVERE, String.format("Error updating configuration for Job %s.",
-                                                project.getName()), e);
-                                    }
-                                }
-                            } else if (job instanceof WorkflowJob &&
-                                       ((WorkflowJob) job).getDefinition() instanceof CpsScmFlowDefinition &&
-                                       ((CpsScmFlowDefinition) ((WorkflowJob) job).getDefinition()).getScm() instanceof BitbucketSCM) {
-                                WorkflowJob workflowJob = (WorkflowJob) job;
-                                CpsScmFlowDefinition definition = (CpsScmFlowDefinition) workflowJob.getDefinition();
-                                BitbucketSCM bitbucketSCM = (BitbucketSCM) definition.getScm();
-                                if (changedServerIds.contains(bitbucketSCM.getServerId())) {
-                                    // This server has had its base URL updated so we need to recalculate the clone URL
-                                    workflowJob.setDefinition(new CpsScmFlowDefinition(new BitbucketSCM(bitbucketSCM), definition.getScriptPath()));
-                                }
-                            }
-                        });
-                Jenkins.get().getAllItems(MultiBranchProject.class)
-                        .forEach(project -> processMultiBranchProject(project, changedServerIds));
-            }
-        }
-    }
-
-    @SuppressWarnings("unchecked")
-    private void processMultiBranchProject(MultiBranchProject project, Set<String> changedServerIds) {
-        List<SCMSource> sources = (List<SCMSource>) project.getSources().stream().map(scm -> {
-            if (scm instanceof BitbucketSCMSource) {
-                BitbucketSCMSource src = (BitbucketSCMSource) scm;
-                if (changedServerIds.contains(src.getServerId())) {
-                    return new BitbucketSCMSource(src);
-                }
-            }
-            return scm;
-        }).collect(Collectors.toList());
-        try {
-            project.setSourcesList(sources);
-        } catch (IOException e) {
-            LOGGER.log(Level.SEVERE, String.format("Error updating configuration for MultiBranchProject %s.",
-                    project.getName()), e);
+            // These servers have had their base URL updated so the clone URLs of their jobs need recalculating
+            BitbucketJobMigrationMonitor.get().start(changedServerIds);
         }
     }
 }
@@ -13,6 +13,7 @@ import java.util.*;
 import static com.cloudbees.plugins.credentials.CredentialsMatchers.firstOrNull;
 import static com.cloudbees.plugins.credentials.CredentialsMatchers.withId;
 import static com.cloudbees.plugins.credentials.CredentialsProvider.lookupCredentials;
+import static org.apache.commons.codec.digest.DigestUtils.sha256Hex;
 import static org.apache.commons.lang3.StringUtils.trimToEmpty;
 
 public final class CredentialUtils {
@@ -33,4 +34,19 @@ public final class CredentialUtils {
                 .filter(Objects::nonNull)
                 .findAny();
     }
+
+    /**
+     * Identifies the credentials requests to Bitbucket are sent with, for keying anything cached from the responses.
+     * What Bitbucket returns depends on what the credentials can see, so results must only be shared between requests
+     * sent with the same credentials. Credential IDs can't be used for that, as the same ID can refer to different
+     * credentials in different folders or user stores.
+     *
+     * @param credentials the credentials sent to Bitbucket
+     * @return an unsalted digest of the credentials, which must not be saved or shown anywhere, as it can be matched
+     * against guessed credentials
+     * @since 3.2.0
+     */
+    public static String toCacheKey(BitbucketCredentials credentials) {
+        return sha256Hex(credentials.toHeaderValue());
+    }
 }
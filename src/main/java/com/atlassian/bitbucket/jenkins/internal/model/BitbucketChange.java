@@ -0,0 +1,46 @@
+package com.atlassian.bitbucket.jenkins.internal.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * A file changed between two commits.
+ *
+ * @since 3.2.0
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class BitbucketChange {
+
+    private final BitbucketDirectoryPath path;
+    private final BitbucketDirectoryPath srcPath;
+    private final String type;
+
+    @JsonCreator
+    public BitbucketChange(
+            @JsonProperty(value = "path") BitbucketDirectoryPath path,
+            @JsonProperty(value = "srcPath") @CheckForNull BitbucketDirectoryPath srcPath,
+            @JsonProperty(value = "type") String type) {
+        this.path = path;
+        this.srcPath = srcPath;
+        this.type = type;
+    }
+
+    public BitbucketDirectoryPath getPath() {
+        return path;
+    }
+
+    /**
+     * @return the path the file was moved or copied from, if it was moved or copied
+     */
+    @CheckForNull
+    public BitbucketDirectoryPath getSrcPath() {
+        return srcPath;
+    }
+
+    public String getType() {
+        return type;
+    }
+}
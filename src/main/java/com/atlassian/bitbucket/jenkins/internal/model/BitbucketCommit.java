@@ -0,0 +1,40 @@
+package com.atlassian.bitbucket.jenkins.internal.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.annotation.CheckForNull;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A commit, with the IDs of its parents.
+ *
+ * @since 3.2.0
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class BitbucketCommit {
+
+    private final String id;
+    private final List<BitbucketCommit> parents;
+
+    @JsonCreator
+    public BitbucketCommit(
+            @JsonProperty(value = "id") String id,
+            @JsonProperty(value = "parents") @CheckForNull List<BitbucketCommit> parents) {
+        this.id = id;
+        this.parents = parents == null ? Collections.emptyList() : Collections.unmodifiableList(parents);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the parents of the commit, with only their IDs, or an empty list if they weren't included
+     */
+    public List<BitbucketCommit> getParents() {
+        return parents;
+    }
+}
@@ -0,0 +1,216 @@
+package com.atlassian.bitbucket.jenkins.internal.scm;
+
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactory;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.BitbucketClientException;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.ConnectionFailureException;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.NotFoundException;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.ServerErrorException;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketProject;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRepository;
+import com.atlassian.bitbucket.jenkins.internal.model.RepositoryState;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.atlassian.bitbucket.jenkins.internal.client.BitbucketSearchHelper.getProjectByNameOrKey;
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parsePositiveLongFromSystemProperty;
+import static java.util.Objects.requireNonNull;
+import static java.util.stream.Collectors.groupingBy;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * Resolves many project and repository references in one go, for when a large number of jobs are created or
+ * reconfigured at the same time (for example by Job DSL, JCasC or after the base URL of a server is changed).
+ * <p>
+ * Rather than searching for every repository separately, the references are grouped by project and the repositories
+ * of each project are listed once. Projects are processed in parallel, up to {@link #PARALLELISM} at a time. Every
+ * repository that is resolved is added to the {@link BitbucketRepositoryMetadataCache} for the credentials it was
+ * resolved with, so that the SCMs constructed afterwards with the same credentials don't need to contact Bitbucket
+ * again.
+ *
+ * @since 3.2.0
+ */
+public class BitbucketBulkRepositoryResolver {
+
+    /**
+     * The maximum number of projects that are resolved at the same time.
+     */
+    public static final int PARALLELISM =
+            (int) parsePositiveLongFromSystemProperty("bitbucket.repository.bulk.parallelism", 4);
+    private static final Logger LOGGER = Logger.getLogger(BitbucketBulkRepositoryResolver.class.getName());
+
+    private final String bitbucketBaseUrl;
+    private final BitbucketClientFactory clientFactory;
+    private final String credentialsKey;
+    private final BitbucketRepositoryMetadataCache repositoryMetadataCache;
+
+    /**
+     * @param credentialsKey identifies the credentials the client factory sends, so resolved repositories are only
+     *                       cached for those credentials
+     */
+    BitbucketBulkRepositoryResolver(String bitbucketBaseUrl, String credentialsKey,
+                                    BitbucketClientFactory clientFactory,
+                                    BitbucketRepositoryMetadataCache repositoryMetadataCache) {
+        this.bitbucketBaseUrl = requireNonNull(bitbucketBaseUrl, "bitbucketBaseUrl");
+        this.clientFactory = requireNonNull(clientFactory, "clientFactory");
+        this.credentialsKey = requireNonNull(credentialsKey, "credentialsKey");
+        this.repositoryMetadataCache = requireNonNull(repositoryMetadataCache, "repositoryMetadataCache");
+    }
+
+    /**
+     * Resolves all the given references. References that could not be resolved are mapped to a placeholder
+     * repository with an ID of -1, in the same way as {@link BitbucketScmHelper#getRepository(String, String)}.
+     *
+     * @param references the project and repository names (or keys and slugs) to resolve
+     * @return the resolved repository for every reference
+     */
+    public Map<RepositoryReference, BitbucketRepository> resolve(Collection<RepositoryReference> references) {
+        Map<RepositoryReference, BitbucketRepository> result = new ConcurrentHashMap<>();
+        Set<RepositoryReference> unresolved = new HashSet<>();
+        for (RepositoryReference reference : references) {
+            if (isBlank(reference.getProjectName()) || isBlank(reference.getRepositoryName())) {
+                result.put(reference, placeholder(reference, null));
+                continue;
+            }
+            Optional<BitbucketRepository> cachedRepository = repositoryMetadataCache.getIfFresh(bitbucketBaseUrl,
+                    credentialsKey, reference.getProjectName(), reference.getRepositoryName());
+            if (cachedRepository.isPresent()) {
+                result.put(reference, cachedRepository.get());
+            } else {
+                unresolved.add(reference);
+            }
+        }
+        if (unresolved.isEmpty()) {
+            return result;
+        }
+
+        Collection<List<RepositoryReference>> byProject = unresolved.stream()
+                .collect(groupingBy(reference -> reference.getProjectName().toLowerCase(Locale.ROOT)))
+                .values();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(PARALLELISM, byProject.size()),
+                new NamingThreadFactory(new DaemonThreadFactory(), "BitbucketBulkRepositoryResolver"));
+        try {
+            List<Future<?>> futures = new ArrayList<>(byProject.size());
+            for (List<RepositoryReference> projectReferences : byProject) {
+                futures.add(executor.submit(() -> resolveProject(projectReferences, result)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Unexpected error resolving Bitbucket repositories", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        // Anything left over was interrupted or failed unexpectedly
+        unresolved.forEach(reference -> result.computeIfAbsent(reference, r -> placeholder(r, null)));
+        return result;
+    }
+
+    private static BitbucketRepository placeholder(RepositoryReference reference, BitbucketProject project) {
+        BitbucketProject placeholderProject = project != null ? project :
+                new BitbucketProject(reference.getProjectName(), null, reference.getProjectName());
+        return new BitbucketRepository(-1, reference.getRepositoryName(), null, placeholderProject,
+                reference.getRepositoryName(), RepositoryState.AVAILABLE);
+    }
+
+    private void resolveProject(List<RepositoryReference> references,
+                                Map<RepositoryReference, BitbucketRepository> result) {
+        String projectName = references.get(0).getProjectName();
+        BitbucketProject project = null;
+        try {
+            project = getProjectByNameOrKey(projectName, clientFactory);
+            Map<String, BitbucketRepository> byName = new HashMap<>();
+            Map<String, BitbucketRepository> bySlug = new HashMap<>();
+            clientFactory.getProjectClient(project.getKey()).getRepositories().forEach(repository -> {
+                byName.put(repository.getName().toLowerCase(Locale.ROOT), repository);
+                bySlug.put(repository.getSlug().toLowerCase(Locale.ROOT), repository);
+            });
+            for (RepositoryReference reference : references) {
+                String repositoryName = reference.getRepositoryName().toLowerCase(Locale.ROOT);
+                BitbucketRepository repository = byName.getOrDefault(repositoryName, bySlug.get(repositoryName));
+                if (repository == null) {
+                    LOGGER.info("Error creating the Bitbucket SCM: Cannot find the repository " + project.getName() +
+                                "/" + reference.getRepositoryName());
+                    repositoryMetadataCache.invalidate(bitbucketBaseUrl, credentialsKey, reference.getProjectName(),
+                            reference.getRepositoryName());
+                    result.put(reference, placeholder(reference, project));
+                } else {
+                    repositoryMetadataCache.put(bitbucketBaseUrl, credentialsKey, reference.getProjectName(),
+                            reference.getRepositoryName(), repository);
+                    result.put(reference, repository);
+                }
+            }
+        } catch (NotFoundException e) {
+            LOGGER.info("Error creating the Bitbucket SCM: Cannot find the project " + projectName);
+            for (RepositoryReference reference : references) {
+                repositoryMetadataCache.invalidate(bitbucketBaseUrl, credentialsKey, reference.getProjectName(),
+                        reference.getRepositoryName());
+                result.put(reference, placeholder(reference, null));
+            }
+        } catch (BitbucketClientException e) {
+            // Something went wrong with the request to Bitbucket
+            LOGGER.info("Error creating the Bitbucket SCM: Something went wrong when trying to contact Bitbucket Server: " +
+                        e.getMessage());
+            boolean unavailable = e instanceof ConnectionFailureException || e instanceof ServerErrorException;
+            for (RepositoryReference reference : references) {
+                Optional<BitbucketRepository> staleRepository = unavailable ?
+                        repositoryMetadataCache.getIfPresent(bitbucketBaseUrl, credentialsKey,
+                                reference.getProjectName(), reference.getRepositoryName()) :
+                        Optional.empty();
+                result.put(reference, staleRepository.orElse(placeholder(reference, project)));
+            }
+        }
+    }
+
+    /**
+     * A project and repository as entered by the user, either of which can be a name or a key/slug.
+     */
+    public static final class RepositoryReference {
+
+        private final String projectName;
+        private final String repositoryName;
+
+        public RepositoryReference(String projectName, String repositoryName) {
+            this.projectName = projectName;
+            this.repositoryName = repositoryName;
+        }
+
+        public String getProjectName() {
+            return projectName;
+        }
+
+        public String getRepositoryName() {
+            return repositoryName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            RepositoryReference that = (RepositoryReference) o;
+            return Objects.equals(projectName, that.projectName) &&
+                   Objects.equals(repositoryName, that.repositoryName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(projectName, repositoryName);
+        }
+
+        @Override
+        public String toString() {
+            return projectName + "/" + repositoryName;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.atlassian.bitbucket.jenkins.internal.scm;
+
+/**
+ * Something configured with a Bitbucket repository that is only looked up in Bitbucket once it is needed, so saving it
+ * doesn't have to wait for Bitbucket. If Bitbucket can't be reached, looking it up is retried after a delay.
+ *
+ * @see BitbucketRepositoryResolutionExecutor
+ * @since 3.2.0
+ */
+public interface BitbucketLazyRepository {
+
+    /**
+     * @return true if the repository has not been looked up in Bitbucket yet
+     */
+    boolean isRepositoryResolutionPending();
+
+    /**
+     * @return when the repository will next be looked up in Bitbucket, if looking it up failed, in milliseconds since
+     * the epoch
+     */
+    long getNextResolutionAttempt();
+
+    /**
+     * Looks up the repository in Bitbucket, if that hasn't happened yet and isn't waiting to be retried after failing.
+     */
+    void resolveRepository();
+}
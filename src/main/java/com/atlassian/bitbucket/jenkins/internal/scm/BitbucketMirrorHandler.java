@@ -2,6 +2,7 @@ package com.atlassian.bitbucket.jenkins.internal.scm;
 
 import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactory;
 import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactoryProvider;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketLastKnownGoodCache;
 import com.atlassian.bitbucket.jenkins.internal.client.BitbucketMirrorClient;
 import com.atlassian.bitbucket.jenkins.internal.client.exception.BitbucketClientException;
 import com.atlassian.bitbucket.jenkins.internal.credentials.BitbucketCredentials;
@@ -13,11 +14,14 @@ import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRepository;
 import hudson.util.ListBoxModel;
 import hudson.util.ListBoxModel.Option;
 
+import javax.annotation.CheckForNull;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
+import static com.atlassian.bitbucket.jenkins.internal.credentials.CredentialUtils.toCacheKey;
 import static java.lang.String.format;
 import static java.util.Collections.emptyMap;
 import static java.util.Objects.requireNonNull;
@@ -32,15 +36,30 @@ public class BitbucketMirrorHandler {
 
     private final BitbucketClientFactoryProvider bitbucketClientFactoryProvider;
     private final JenkinsToBitbucketCredentials jenkinsToBitbucketCredentials;
+    private final BitbucketLastKnownGoodCache lastKnownGoodCache;
     private final BitbucketRepoFetcher bitbucketRepoFetcher;
 
     public BitbucketMirrorHandler(
             BitbucketClientFactoryProvider bitbucketClientFactoryProvider,
             JenkinsToBitbucketCredentials jenkinsToBitbucketCredentials,
             BitbucketRepoFetcher bitbucketRepoFetcher) {
+        this(bitbucketClientFactoryProvider, jenkinsToBitbucketCredentials, bitbucketRepoFetcher, null);
+    }
+
+    /**
+     * @param lastKnownGoodCache if given, the mirrors last read from Bitbucket are used while Bitbucket is
+     *                           unavailable
+     * @since 3.2.0
+     */
+    public BitbucketMirrorHandler(
+            BitbucketClientFactoryProvider bitbucketClientFactoryProvider,
+            JenkinsToBitbucketCredentials jenkinsToBitbucketCredentials,
+            BitbucketRepoFetcher bitbucketRepoFetcher,
+            @CheckForNull BitbucketLastKnownGoodCache lastKnownGoodCache) {
         this.bitbucketClientFactoryProvider = bitbucketClientFactoryProvider;
         this.jenkinsToBitbucketCredentials = jenkinsToBitbucketCredentials;
         this.bitbucketRepoFetcher = bitbucketRepoFetcher;
+        this.lastKnownGoodCache = lastKnownGoodCache;
     }
 
     public EnrichedBitbucketMirroredRepository fetchRepository(MirrorFetchRequest mirrorFetchRequest) {
@@ -91,9 +110,21 @@ public class BitbucketMirrorHandler {
     private List<EnrichedBitbucketMirroredRepository> fetchRepositories(MirrorFetchRequest mirrorFetchRequest) {
         String bitbucketBaseUrl =
                 requireNonNull(mirrorFetchRequest.getBitbucketServerBaseUrl(), "Bitbucket base Url not found");
-
         BitbucketCredentials jobOrGlobalConf =
                 jenkinsToBitbucketCredentials.toBitbucketCredentials(mirrorFetchRequest.getCredentialsId());
+        if (lastKnownGoodCache == null) {
+            return fetchRepositories(bitbucketBaseUrl, jobOrGlobalConf, mirrorFetchRequest);
+        }
+        // Project and repository names and keys are case-insensitive in Bitbucket
+        String repositoryName = (mirrorFetchRequest.getProjectNameOrKey() + "/" +
+                                 mirrorFetchRequest.getRepoNameOrSlug()).toLowerCase(Locale.ROOT);
+        return lastKnownGoodCache.get("mirrors", bitbucketBaseUrl, toCacheKey(jobOrGlobalConf), repositoryName,
+                () -> fetchRepositories(bitbucketBaseUrl, jobOrGlobalConf, mirrorFetchRequest)).getValue();
+    }
+
+    private List<EnrichedBitbucketMirroredRepository> fetchRepositories(String bitbucketBaseUrl,
+                                                                        BitbucketCredentials jobOrGlobalConf,
+                                                                        MirrorFetchRequest mirrorFetchRequest) {
         BitbucketClientFactory client = bitbucketClientFactoryProvider.getClient(bitbucketBaseUrl, jobOrGlobalConf);
         BitbucketRepository repository =
                 bitbucketRepoFetcher.fetchRepo(client, mirrorFetchRequest.getProjectNameOrKey(), mirrorFetchRequest.getRepoNameOrSlug());
@@ -0,0 +1,288 @@
+package com.atlassian.bitbucket.jenkins.internal.scm;
+
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactoryProvider;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.BitbucketClientException;
+import com.atlassian.bitbucket.jenkins.internal.config.BitbucketPluginConfiguration;
+import com.atlassian.bitbucket.jenkins.internal.config.BitbucketServerConfiguration;
+import com.atlassian.bitbucket.jenkins.internal.credentials.BitbucketCredentials;
+import com.atlassian.bitbucket.jenkins.internal.credentials.JenkinsToBitbucketCredentials;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.plugins.git.BranchSpec;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.UserRemoteConfig;
+import hudson.plugins.git.util.Build;
+import hudson.plugins.git.util.BuildData;
+import hudson.scm.PollingResult;
+import org.eclipse.jgit.lib.ObjectId;
+
+import javax.annotation.CheckForNull;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.atlassian.bitbucket.jenkins.internal.credentials.CredentialUtils.toCacheKey;
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parsePositiveLongFromSystemProperty;
+import static java.lang.String.format;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * Shares the branches of a repository between the jobs polled for the same webhook. When a push matches many jobs
+ * building the same repository, each would otherwise list the branches of the repository itself. Instead, the first
+ * poll fetches them from Bitbucket, polls that start while the fetch is in flight wait for it, and polls that start
+ * within {@link #WINDOW} ms of it use the same snapshot.
+ * <p>
+ * A snapshot is only used by polls for webhooks received before it was fetched, so it always includes the push the
+ * webhook was for. Polls that aren't for a webhook, such as from the SCM polling trigger, aren't affected. Jobs are
+ * polled with git as usual if they build from a mirror, poll more than the branches (such as tags), use branch
+ * specifiers with variables, or need a workspace to poll, such as to check included or excluded regions.
+ * <p>
+ * This is disabled by default.
+ *
+ * @since 3.2.0
+ */
+@Singleton
+public class BitbucketRemoteHeads {
+
+    /**
+     * How long a snapshot of the branches of a repository is shared for, in ms. Defaults to 0, which disables
+     * sharing.
+     */
+    public static final long WINDOW = parsePositiveLongFromSystemProperty("bitbucket.trigger.heads.window", 0);
+    private static final Logger LOGGER = Logger.getLogger(BitbucketRemoteHeads.class.getName());
+    private static final ThreadLocal<Long> NOT_BEFORE = new ThreadLocal<>();
+    private static final String REF_PREFIX = "refs/heads/";
+
+    private final LongSupplier clock;
+    private final AtomicLong fetched = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+    private final ConcurrentMap<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+    private final long window;
+    @Inject
+    private BitbucketClientFactoryProvider clientFactoryProvider;
+    @Inject
+    private JenkinsToBitbucketCredentials jenkinsToBitbucketCredentials;
+    @Inject
+    private BitbucketPluginConfiguration pluginConfiguration;
+
+    public BitbucketRemoteHeads() {
+        this(WINDOW, System::currentTimeMillis);
+    }
+
+    BitbucketRemoteHeads(long window, LongSupplier clock) {
+        this.clock = clock;
+        this.window = window;
+    }
+
+    /**
+     * Polls for a webhook, so the polls may share snapshots of the branches fetched after the webhook was received.
+     *
+     * @param receivedAt when the webhook was received, in ms since the epoch
+     * @param poll       polls the job
+     * @return the result of the poll
+     */
+    public static <T> T pollForWebhook(long receivedAt, Supplier<T> poll) {
+        Long previous = NOT_BEFORE.get();
+        NOT_BEFORE.set(receivedAt);
+        try {
+            return poll.get();
+        } finally {
+            if (previous == null) {
+                NOT_BEFORE.remove();
+            } else {
+                NOT_BEFORE.set(previous);
+            }
+        }
+    }
+
+    /**
+     * @return the number of times the branches of a repository were fetched
+     */
+    public long getFetched() {
+        return fetched.get();
+    }
+
+    /**
+     * @return the number of polls that used branches fetched for another poll
+     */
+    public long getShared() {
+        return shared.get();
+    }
+
+    public boolean isEnabled() {
+        return window > 0;
+    }
+
+    /**
+     * Polls the job by comparing the branches of the repository with the commits the job has built, in the same way
+     * as git does, if it's being polled for a webhook.
+     *
+     * @param scm      the SCM of the job
+     * @param gitSCM   the git SCM it builds with
+     * @param project  the job
+     * @param listener the listener for the polling log
+     * @return the result of the poll, or {@code null} if the job needs to be polled with git
+     */
+    @CheckForNull
+    public PollingResult poll(BitbucketSCM scm, GitSCM gitSCM, Job<?, ?> project, TaskListener listener) {
+        Long notBefore = NOT_BEFORE.get();
+        if (window <= 0 || notBefore == null || !canPoll(scm, gitSCM)) {
+            return null;
+        }
+        Run<?, ?> lastBuild = project.getLastBuild();
+        BuildData buildData = lastBuild == null ? null : gitSCM.getBuildData(lastBuild);
+        if (buildData == null || buildData.lastBuild == null) {
+            // Git builds straight away without listing the branches
+            return null;
+        }
+        BitbucketSCMRepository repository = scm.getRepositories().get(0);
+        Optional<BitbucketServerConfiguration> server = pluginConfiguration.getServerById(repository.getServerId());
+        if (!server.isPresent()) {
+            return null;
+        }
+        // The same credentials ID can resolve to different credentials in different folders, so the snapshot is
+        // only shared between jobs using the same credentials
+        BitbucketCredentials credentials =
+                jenkinsToBitbucketCredentials.toBitbucketCredentials(repository.getCredentialsId(), project);
+        Map<String, String> heads;
+        try {
+            heads = getHeads(getKey(server.get().getBaseUrl(), credentials, repository), notBefore,
+                    () -> fetch(server.get().getBaseUrl(), repository, credentials));
+        } catch (BitbucketClientException e) {
+            LOGGER.log(Level.FINE, "Failed to fetch the branches of " + repository.getRepositorySlug(), e);
+            listener.getLogger().println("[poll] Failed to fetch the branches from Bitbucket, polling with git");
+            return null;
+        }
+        String remoteName = getRemoteName(gitSCM, repository);
+        for (BranchSpec branchSpec : gitSCM.getBranches()) {
+            for (Map.Entry<String, String> head : heads.entrySet()) {
+                String branch = head.getKey();
+                if (!branchSpec.matches(REF_PREFIX + branch) && !branchSpec.matches(remoteName + '/' + branch)) {
+                    continue;
+                }
+                Build built = buildData.getLastBuild(ObjectId.fromString(head.getValue()));
+                if (built != null) {
+                    listener.getLogger().println(format("[poll] Latest head of %s is %s - already built by %d",
+                            branch, head.getValue(), built.getBuildNumber()));
+                    continue;
+                }
+                listener.getLogger().println(format("[poll] Latest head of %s is %s", branch, head.getValue()));
+                return PollingResult.BUILD_NOW;
+            }
+        }
+        return PollingResult.NO_CHANGES;
+    }
+
+    /**
+     * Returns the branches of a repository, from a snapshot fetched since {@code notBefore} if there's one from
+     * within the window, or fetching them otherwise. If they're being fetched already, this waits for them.
+     *
+     * @param key       identifies the repository and the credentials it's fetched with
+     * @param notBefore the earliest time, in ms since the epoch, a snapshot can have been started to be used
+     * @param fetch     fetches the latest commit of each branch, by the name of the branch
+     * @return the latest commit of each branch, by the name of the branch
+     */
+    Map<String, String> getHeads(String key, long notBefore, Supplier<Map<String, String>> fetch) {
+        long now = clock.getAsLong();
+        Snapshot fresh = new Snapshot(now);
+        Snapshot snapshot = snapshots.compute(key, (k, existing) ->
+                existing != null && existing.startedAt >= notBefore && now - existing.startedAt <= window ?
+                        existing : fresh);
+        if (snapshot != fresh) {
+            shared.incrementAndGet();
+            try {
+                return snapshot.heads.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        fetched.incrementAndGet();
+        try {
+            Map<String, String> heads = fetch.get();
+            fresh.heads.complete(heads);
+            return heads;
+        } catch (RuntimeException e) {
+            fresh.heads.completeExceptionally(e);
+            // Later polls shouldn't get the same failure
+            snapshots.remove(key, fresh);
+            throw e;
+        }
+    }
+
+    /**
+     * Checks whether the branches from Bitbucket are enough to poll the job, in which case it builds a single
+     * repository, not from a mirror, and doesn't need a workspace or any variables to poll.
+     */
+    private static boolean canPoll(BitbucketSCM scm, GitSCM gitSCM) {
+        if (scm.getRepositories().size() != 1 || !isBlank(scm.getMirrorName()) ||
+            gitSCM.getUserRemoteConfigs().size() != 1 || gitSCM.requiresWorkspaceForPolling()) {
+            return false;
+        }
+        List<BranchSpec> branches = gitSCM.getBranches();
+        if (branches.isEmpty()) {
+            return false;
+        }
+        for (BranchSpec branchSpec : branches) {
+            String name = branchSpec.getName();
+            // Only the branches are fetched, so specifiers for other refs (such as tags) need git
+            if (name.contains("$") || (name.startsWith("refs/") && !name.startsWith(REF_PREFIX))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String getKey(String baseUrl, BitbucketCredentials credentials,
+                                 BitbucketSCMRepository repository) {
+        return baseUrl + '/' + toCacheKey(credentials) + '/' +
+               String.valueOf(repository.getProjectKey()).toLowerCase(Locale.ROOT) + '/' +
+               String.valueOf(repository.getRepositorySlug()).toLowerCase(Locale.ROOT);
+    }
+
+    private static String getRemoteName(GitSCM gitSCM, BitbucketSCMRepository repository) {
+        UserRemoteConfig remoteConfig = gitSCM.getUserRemoteConfigs().get(0);
+        return isBlank(remoteConfig.getName()) ? repository.getRepositorySlug() : remoteConfig.getName();
+    }
+
+    private Map<String, String> fetch(String baseUrl, BitbucketSCMRepository repository,
+                                      BitbucketCredentials credentials) {
+        Map<String, String> heads = new HashMap<>();
+        clientFactoryProvider.getClient(baseUrl, credentials)
+                .getProjectClient(repository.getProjectKey())
+                .getRepositoryClient(repository.getRepositorySlug())
+                .getBranches()
+                .filter(branch -> branch.getLatestCommit() != null)
+                .forEach(branch -> heads.put(branch.getDisplayId(), branch.getLatestCommit()));
+        return heads;
+    }
+
+    /**
+     * The branches of a repository, fetched or being fetched.
+     */
+    private static final class Snapshot {
+
+        private final CompletableFuture<Map<String, String>> heads = new CompletableFuture<>();
+        private final long startedAt;
+
+        private Snapshot(long startedAt) {
+            this.startedAt = startedAt;
+        }
+    }
+}
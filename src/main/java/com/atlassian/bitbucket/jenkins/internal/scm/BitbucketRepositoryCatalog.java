@@ -0,0 +1,301 @@
+package com.atlassian.bitbucket.jenkins.internal.scm;
+
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactory;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.BitbucketClientException;
+import com.atlassian.bitbucket.jenkins.internal.credentials.BitbucketCredentials;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketProject;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRepository;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import javax.annotation.CheckForNull;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.time.Clock;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import static com.atlassian.bitbucket.jenkins.internal.credentials.CredentialUtils.toCacheKey;
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parseBooleanFromSystemProperty;
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parsePositiveLongFromSystemProperty;
+import static java.util.Objects.requireNonNull;
+import static org.apache.commons.lang3.StringUtils.stripToEmpty;
+
+/**
+ * An optional, in-memory catalog of every project and repository on a Bitbucket Server instance, so the project and
+ * repository autocomplete can be answered without any calls to Bitbucket. It is enabled by setting the
+ * {@code bitbucket.catalog.enabled} system property to {@code true}.
+ * <p>
+ * A separate catalog is kept for each server and set of credentials, so users are only offered the projects and
+ * repositories the credentials they chose can see. Catalogs are kept apart by the credentials the requests are sent
+ * with rather than by credentials ID, as the same ID can refer to different credentials in different folders or user
+ * stores. A catalog is loaded in the background the first time it is asked
+ * for (until then callers should search Bitbucket as usual), and reloaded in the background once it is older than
+ * {@link #REFRESH_INTERVAL} ms. In between, webhooks keep the repositories already in the catalog up to date; new
+ * repositories are only picked up by the next reload, as their visibility to each set of credentials isn't known.
+ * <p>
+ * A query matches any project or repository with the query anywhere in its name, ignoring case, as it does when
+ * searching Bitbucket, so users are offered the same choices whether or not the catalog has been loaded.
+ *
+ * @since 3.2.0
+ */
+@Singleton
+public class BitbucketRepositoryCatalog {
+
+    public static final boolean ENABLED = parseBooleanFromSystemProperty("bitbucket.catalog.enabled", false);
+    /**
+     * How long a catalog is used before it is reloaded in the background. Defaults to 15 minutes in ms.
+     */
+    public static final long REFRESH_INTERVAL =
+            parsePositiveLongFromSystemProperty("bitbucket.catalog.refresh.interval", TimeUnit.MINUTES.toMillis(15));
+    private static final Logger LOGGER = Logger.getLogger(BitbucketRepositoryCatalog.class.getName());
+
+    private final Map<CatalogKey, Catalog> catalogs = new ConcurrentHashMap<>();
+    private final Clock clock;
+    private final boolean enabled;
+    private final Executor executor;
+
+    @Inject
+    public BitbucketRepositoryCatalog(Clock clock) {
+        this(clock, ENABLED, Executors.newFixedThreadPool(2,
+                new NamingThreadFactory(new DaemonThreadFactory(), "BitbucketRepositoryCatalog")));
+    }
+
+    BitbucketRepositoryCatalog(Clock clock, boolean enabled, Executor executor) {
+        this.clock = requireNonNull(clock, "clock");
+        this.enabled = enabled;
+        this.executor = requireNonNull(executor, "executor");
+    }
+
+    /**
+     * Finds the projects whose name contains the query.
+     *
+     * @param baseUrl       the base URL of the Bitbucket instance
+     * @param credentials   the credentials the catalog is loaded with
+     * @param projectName   the query
+     * @param clientFactory the client factory to load the catalog with, if it needs loading
+     * @return the matching projects, or {@link Optional#empty()} if the catalog is disabled or not loaded yet
+     */
+    public Optional<Collection<BitbucketProject>> findProjects(String baseUrl, BitbucketCredentials credentials,
+                                                               String projectName,
+                                                               BitbucketClientFactory clientFactory) {
+        return getSnapshot(baseUrl, credentials, clientFactory)
+                .map(snapshot -> snapshot.projectNames.find(projectName));
+    }
+
+    /**
+     * Finds the repositories in a project whose name contains the query.
+     *
+     * @param baseUrl        the base URL of the Bitbucket instance
+     * @param credentials    the credentials the catalog is loaded with
+     * @param projectName    the name of the project to search in
+     * @param repositoryName the query
+     * @param clientFactory  the client factory to load the catalog with, if it needs loading
+     * @return the matching repositories, or {@link Optional#empty()} if the catalog is disabled or not loaded yet
+     */
+    public Optional<Collection<BitbucketRepository>> findRepositories(String baseUrl,
+                                                                      BitbucketCredentials credentials,
+                                                                      String projectName, String repositoryName,
+                                                                      BitbucketClientFactory clientFactory) {
+        return getSnapshot(baseUrl, credentials, clientFactory)
+                .map(snapshot -> snapshot.repositoryNames
+                        .getOrDefault(normalize(projectName), NameMatcher.empty())
+                        .find(repositoryName));
+    }
+
+    /**
+     * Called for every repository a webhook is received for, to update the repository in every catalog for the same
+     * server that already contains it.
+     *
+     * @param repository the repository from the webhook payload
+     */
+    public void onRepositoryEvent(BitbucketRepository repository) {
+        if (repository.getProject() == null) {
+            return;
+        }
+        catalogs.forEach((key, catalog) -> {
+            if (key.matchesServer(repository.getSelfLink())) {
+                catalog.update(repository);
+            }
+        });
+    }
+
+    public void invalidateAll() {
+        catalogs.clear();
+    }
+
+    private static String normalize(@CheckForNull String name) {
+        return stripToEmpty(name).toLowerCase(Locale.ROOT);
+    }
+
+    private Optional<Snapshot> getSnapshot(String baseUrl, BitbucketCredentials credentials,
+                                           BitbucketClientFactory clientFactory) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        Catalog catalog = catalogs.computeIfAbsent(new CatalogKey(baseUrl, credentials), key -> new Catalog());
+        Snapshot snapshot = catalog.snapshot;
+        if (snapshot == null || clock.millis() - snapshot.loadedAt >= REFRESH_INTERVAL) {
+            catalog.reload(clientFactory);
+        }
+        // Until the reload finishes this is still the previous snapshot, if there was one
+        return Optional.ofNullable(catalog.snapshot);
+    }
+
+    private final class Catalog {
+
+        private final AtomicBoolean loading = new AtomicBoolean();
+        private volatile Snapshot snapshot;
+
+        private void reload(BitbucketClientFactory clientFactory) {
+            if (!loading.compareAndSet(false, true)) {
+                return;
+            }
+            executor.execute(() -> {
+                try {
+                    List<BitbucketProject> projects = clientFactory.getSearchClient("")
+                            .findAllProjects()
+                            .collect(Collectors.toList());
+                    List<BitbucketRepository> repositories = clientFactory.getSearchClient("")
+                            .findAllRepositories()
+                            .collect(Collectors.toList());
+                    snapshot = new Snapshot(projects, repositories, clock.millis());
+                } catch (BitbucketClientException e) {
+                    // Keep using the catalog we have (if any) and try again the next time it is used
+                    LOGGER.log(Level.INFO, "Failed to load the Bitbucket project and repository catalog", e);
+                } finally {
+                    loading.set(false);
+                }
+            });
+        }
+
+        private synchronized void update(BitbucketRepository repository) {
+            Snapshot current = snapshot;
+            if (current == null) {
+                return;
+            }
+            boolean changed = false;
+            List<BitbucketRepository> repositories = new ArrayList<>(current.repositories.size());
+            for (BitbucketRepository existing : current.repositories) {
+                if (existing.getId() == repository.getId() && !isSameLocation(existing, repository)) {
+                    repositories.add(repository);
+                    changed = true;
+                } else {
+                    repositories.add(existing);
+                }
+            }
+            if (changed) {
+                snapshot = new Snapshot(current.projects, repositories, current.loadedAt);
+            }
+        }
+
+        private boolean isSameLocation(BitbucketRepository cached, BitbucketRepository current) {
+            return Objects.equals(cached.getSlug(), current.getSlug()) &&
+                   Objects.equals(cached.getName(), current.getName()) &&
+                   Objects.equals(cached.getProject().getKey(), current.getProject().getKey()) &&
+                   Objects.equals(cached.getProject().getName(), current.getProject().getName());
+        }
+    }
+
+    private static final class CatalogKey {
+
+        private final String baseUrl;
+        private final String credentialsKey;
+
+        private CatalogKey(String baseUrl, BitbucketCredentials credentials) {
+            this.baseUrl = baseUrl.toLowerCase(Locale.ROOT);
+            this.credentialsKey = toCacheKey(credentials);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            CatalogKey that = (CatalogKey) o;
+            return baseUrl.equals(that.baseUrl) && credentialsKey.equals(that.credentialsKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(baseUrl, credentialsKey);
+        }
+
+        /**
+         * The self link on webhook events was only introduced in Bitbucket Server 5.14, if it is missing we assume
+         * the event came from the same server.
+         */
+        private boolean matchesServer(String selfLink) {
+            return selfLink.isEmpty() || selfLink.toLowerCase(Locale.ROOT).startsWith(baseUrl);
+        }
+    }
+
+    /**
+     * Matches names containing a query, ignoring case, with the names normalized once up front rather than on every
+     * keystroke.
+     */
+    private static final class NameMatcher<T> {
+
+        private static final NameMatcher<?> EMPTY = new NameMatcher<>(Collections.emptyList(), Object::toString);
+
+        private final List<String> names;
+        private final List<T> values;
+
+        private NameMatcher(Collection<T> values, Function<T, String> name) {
+            names = new ArrayList<>(values.size());
+            this.values = new ArrayList<>(values);
+            for (T value : this.values) {
+                names.add(normalize(name.apply(value)));
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> NameMatcher<T> empty() {
+            return (NameMatcher<T>) EMPTY;
+        }
+
+        private Collection<T> find(String query) {
+            String normalized = normalize(query);
+            List<T> result = new ArrayList<>();
+            for (int i = 0; i < names.size(); i++) {
+                if (names.get(i).contains(normalized)) {
+                    result.add(values.get(i));
+                }
+            }
+            return result;
+        }
+    }
+
+    private static final class Snapshot {
+
+        private final long loadedAt;
+        private final NameMatcher<BitbucketProject> projectNames;
+        private final List<BitbucketProject> projects;
+        private final Map<String, NameMatcher<BitbucketRepository>> repositoryNames;
+        private final List<BitbucketRepository> repositories;
+
+        private Snapshot(List<BitbucketProject> projects, List<BitbucketRepository> repositories, long loadedAt) {
+            this.loadedAt = loadedAt;
+            this.projects = projects;
+            this.repositories = repositories;
+            projectNames = new NameMatcher<>(projects, BitbucketProject::getName);
+            repositoryNames = repositories.stream()
+                    .collect(Collectors.groupingBy(repository -> normalize(repository.getProject().getName())))
+                    .entrySet()
+                    .stream()
+                    .collect(Collectors.toMap(Map.Entry::getKey,
+                            entry -> new NameMatcher<>(entry.getValue(), BitbucketRepository::getName)));
+        }
+    }
+}
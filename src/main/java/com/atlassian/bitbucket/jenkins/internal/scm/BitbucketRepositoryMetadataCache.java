@@ -0,0 +1,267 @@
+package com.atlassian.bitbucket.jenkins.internal.scm;
+
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRepository;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.time.Clock;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parsePositiveLongFromSystemProperty;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Caches the repositories resolved from the project and repository names (or keys and slugs) users enter when
+ * configuring a job. Resolving a repository takes up to four REST calls to Bitbucket, while the result (project key,
+ * repository slug, clone and self links) almost never changes.
+ * <p>
+ * Entries are fresh for {@link #CACHE_TTL} ms. After that callers should look the repository up again, but they may
+ * still fall back to the stale entry for up to {@link #STALE_TTL} ms if Bitbucket cannot be reached. Webhooks received
+ * for a repository confirm (or evict, if the repository was renamed or moved) the matching entries.
+ * <p>
+ * Entries are kept separately for the credentials they were resolved with, as a repository that can be resolved with
+ * one set of credentials may not be visible with another. At most {@link #MAX_SIZE} entries are kept, the least
+ * recently used being evicted first.
+ *
+ * @since 3.2.0
+ */
+@Singleton
+public class BitbucketRepositoryMetadataCache {
+
+    /**
+     * How long a resolved repository is used without asking Bitbucket again. Defaults to 10 minutes in ms.
+     */
+    public static final long CACHE_TTL =
+            parsePositiveLongFromSystemProperty("bitbucket.repository.cache.ttl", TimeUnit.MINUTES.toMillis(10));
+    /**
+     * How long a resolved repository can still be used if Bitbucket is unavailable. Defaults to 24 hours in ms.
+     */
+    public static final long STALE_TTL =
+            parsePositiveLongFromSystemProperty("bitbucket.repository.cache.stale.ttl", TimeUnit.HOURS.toMillis(24));
+    /**
+     * The most repositories kept. Defaults to 10000.
+     */
+    public static final int MAX_SIZE =
+            (int) parsePositiveLongFromSystemProperty("bitbucket.repository.cache.maxSize", 10000);
+    private static final Logger LOGGER = Logger.getLogger(BitbucketRepositoryMetadataCache.class.getName());
+
+    private final Clock clock;
+    // Guarded by itself, as are the keys by repository ID
+    private final Map<CacheKey, CacheEntry> entries;
+    // The keys of the entries for each repository, so webhooks only look at the entries for their repository
+    private final Map<Integer, Set<CacheKey>> keysByRepositoryId = new HashMap<>();
+
+    @Inject
+    public BitbucketRepositoryMetadataCache(Clock clock) {
+        this(clock, MAX_SIZE);
+    }
+
+    BitbucketRepositoryMetadataCache(Clock clock, int maxSize) {
+        this.clock = requireNonNull(clock, "clock");
+        entries = new LinkedHashMap<CacheKey, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, CacheEntry> eldest) {
+                if (size() > maxSize) {
+                    unindex(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached repository if it was resolved less than {@link #CACHE_TTL} ms ago.
+     *
+     * @param baseUrl        the base URL of the Bitbucket instance
+     * @param credentialsKey identifies the credentials the repository is resolved with, see
+     *                       {@link com.atlassian.bitbucket.jenkins.internal.credentials.CredentialUtils#toCacheKey}
+     * @param projectName    the project name or key, as entered by the user
+     * @param repositoryName the repository name or slug, as entered by the user
+     * @return the cached repository, or {@link Optional#empty()} if there is no fresh entry
+     */
+    public Optional<BitbucketRepository> getIfFresh(String baseUrl, String credentialsKey, String projectName,
+                                                    String repositoryName) {
+        return get(new CacheKey(baseUrl, credentialsKey, projectName, repositoryName), CACHE_TTL);
+    }
+
+    /**
+     * Returns the cached repository, even if it is no longer fresh, as long as it was resolved less than
+     * {@link #STALE_TTL} ms ago. This is intended for when Bitbucket can't be reached to resolve it again.
+     *
+     * @param baseUrl        the base URL of the Bitbucket instance
+     * @param credentialsKey identifies the credentials the repository is resolved with, see
+     *                       {@link com.atlassian.bitbucket.jenkins.internal.credentials.CredentialUtils#toCacheKey}
+     * @param projectName    the project name or key, as entered by the user
+     * @param repositoryName the repository name or slug, as entered by the user
+     * @return the cached repository, or {@link Optional#empty()} if there is no usable entry
+     */
+    public Optional<BitbucketRepository> getIfPresent(String baseUrl, String credentialsKey, String projectName,
+                                                      String repositoryName) {
+        return get(new CacheKey(baseUrl, credentialsKey, projectName, repositoryName), STALE_TTL);
+    }
+
+    public void invalidate(String baseUrl, String credentialsKey, String projectName, String repositoryName) {
+        CacheKey key = new CacheKey(baseUrl, credentialsKey, projectName, repositoryName);
+        synchronized (entries) {
+            remove(key);
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+            keysByRepositoryId.clear();
+        }
+    }
+
+    /**
+     * Called for every repository a webhook is received for. The webhook shows the current state of the repository,
+     * so cached entries for the same repository are either confirmed as fresh, or evicted if the project or
+     * repository has since been renamed or moved.
+     *
+     * @param repository the repository from the webhook payload
+     */
+    public void onRepositoryEvent(BitbucketRepository repository) {
+        if (repository.getProject() == null) {
+            return;
+        }
+        long now = clock.millis();
+        synchronized (entries) {
+            // Renaming or moving a repository keeps its ID, so that's what the entries are found by
+            Set<CacheKey> keys = keysByRepositoryId.get(repository.getId());
+            if (keys == null) {
+                return;
+            }
+            for (CacheKey key : new ArrayList<>(keys)) {
+                if (!key.matchesServer(repository.getSelfLink())) {
+                    continue;
+                }
+                BitbucketRepository cached = entries.get(key).repository;
+                if (isSameLocation(cached, repository)) {
+                    entries.put(key, new CacheEntry(cached, now));
+                } else {
+                    LOGGER.fine("Evicting cached repository " + cached.getProject().getKey() + "/" +
+                                cached.getSlug() + " as it was renamed or moved");
+                    remove(key);
+                }
+            }
+        }
+    }
+
+    public void put(String baseUrl, String credentialsKey, String projectName, String repositoryName,
+                    BitbucketRepository repository) {
+        CacheKey key = new CacheKey(baseUrl, credentialsKey, projectName, repositoryName);
+        CacheEntry entry = new CacheEntry(repository, clock.millis());
+        synchronized (entries) {
+            CacheEntry previous = entries.put(key, entry);
+            if (previous != null) {
+                unindex(key, previous);
+            }
+            keysByRepositoryId.computeIfAbsent(repository.getId(), id -> new HashSet<>()).add(key);
+        }
+    }
+
+    /**
+     * @return the number of repositories cached
+     */
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static boolean isSameLocation(BitbucketRepository cached, BitbucketRepository current) {
+        return Objects.equals(cached.getSlug(), current.getSlug()) &&
+               Objects.equals(cached.getName(), current.getName()) &&
+               Objects.equals(cached.getProject().getKey(), current.getProject().getKey()) &&
+               Objects.equals(cached.getProject().getName(), current.getProject().getName());
+    }
+
+    private Optional<BitbucketRepository> get(CacheKey key, long maxAge) {
+        synchronized (entries) {
+            CacheEntry entry = entries.get(key);
+            if (entry == null) {
+                return Optional.empty();
+            }
+            long age = clock.millis() - entry.resolvedAt;
+            if (age >= STALE_TTL) {
+                remove(key);
+                return Optional.empty();
+            }
+            return age < maxAge ? Optional.of(entry.repository) : Optional.empty();
+        }
+    }
+
+    private void remove(CacheKey key) {
+        CacheEntry entry = entries.remove(key);
+        if (entry != null) {
+            unindex(key, entry);
+        }
+    }
+
+    private void unindex(CacheKey key, CacheEntry entry) {
+        int repositoryId = entry.repository.getId();
+        Set<CacheKey> keys = keysByRepositoryId.get(repositoryId);
+        if (keys != null && keys.remove(key) && keys.isEmpty()) {
+            keysByRepositoryId.remove(repositoryId);
+        }
+    }
+
+    private static final class CacheEntry {
+
+        private final BitbucketRepository repository;
+        private final long resolvedAt;
+
+        private CacheEntry(BitbucketRepository repository, long resolvedAt) {
+            this.repository = repository;
+            this.resolvedAt = resolvedAt;
+        }
+    }
+
+    private static final class CacheKey {
+
+        private final String baseUrl;
+        private final String credentialsKey;
+        private final String projectName;
+        private final String repositoryName;
+
+        private CacheKey(String baseUrl, String credentialsKey, String projectName, String repositoryName) {
+            this.baseUrl = baseUrl.toLowerCase(Locale.ROOT);
+            this.credentialsKey = requireNonNull(credentialsKey, "credentialsKey");
+            // Project and repository names and keys are case-insensitive in Bitbucket
+            this.projectName = projectName.toLowerCase(Locale.ROOT);
+            this.repositoryName = repositoryName.toLowerCase(Locale.ROOT);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            CacheKey that = (CacheKey) o;
+            return baseUrl.equals(that.baseUrl) &&
+                   credentialsKey.equals(that.credentialsKey) &&
+                   projectName.equals(that.projectName) &&
+                   repositoryName.equals(that.repositoryName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(baseUrl, credentialsKey, projectName, repositoryName);
+        }
+
+        /**
+         * The self link on webhook events was only introduced in Bitbucket Server 5.14, if it is missing we assume
+         * the event came from the same server, as repository IDs are only unique within a single server.
+         */
+        private boolean matchesServer(String selfLink) {
+            return selfLink.isEmpty() || selfLink.toLowerCase(Locale.ROOT).startsWith(baseUrl);
+        }
+    }
+}
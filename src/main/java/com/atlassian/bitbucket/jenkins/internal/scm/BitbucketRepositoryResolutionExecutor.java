@@ -0,0 +1,206 @@
+package com.atlassian.bitbucket.jenkins.internal.scm;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.scm.SCM;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.scm.api.SCMSource;
+import jenkins.scm.api.SCMSourceOwner;
+import jenkins.triggers.SCMTriggerItem;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.workflow.cps.CpsScmFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parsePositiveLongFromSystemProperty;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Resolves the repositories of newly configured SCMs and SCM sources in the background once their job or project has
+ * been saved, so saving doesn't have to wait for Bitbucket, and saves the job or project again once they have been so
+ * the resolved details are kept. If Bitbucket can't be reached, resolving the repository is retried with an increasing
+ * delay. The SCMs and SCM sources resolve themselves on first use if this hasn't happened yet.
+ *
+ * @since 3.2.0
+ */
+@Singleton
+public class BitbucketRepositoryResolutionExecutor {
+
+    private static final Logger LOGGER = Logger.getLogger(BitbucketRepositoryResolutionExecutor.class.getName());
+    private static final long MAX_RETRY_DELAY = MINUTES.toMillis(
+            parsePositiveLongFromSystemProperty("bitbucket.repository.resolution.maxRetryDelayMinutes", 30));
+    private static final long RETRY_DELAY = SECONDS.toMillis(
+            parsePositiveLongFromSystemProperty("bitbucket.repository.resolution.retryDelaySeconds", 30));
+    private static final int THREADS =
+            (int) parsePositiveLongFromSystemProperty("bitbucket.repository.resolution.threads", 2);
+
+    private final ExecutorService executor;
+    // The SCMs and SCM sources waiting to be resolved, by identity, so saving a job again doesn't resolve them twice
+    private final Set<BitbucketLazyRepository> scheduled = Collections.newSetFromMap(new WeakHashMap<>());
+
+    public BitbucketRepositoryResolutionExecutor() {
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "BitbucketRepositoryResolution"));
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        executor = threadPoolExecutor;
+    }
+
+    public void submit(Runnable resolution) {
+        executor.execute(() -> {
+            try {
+                resolution.run();
+            } catch (RuntimeException e) {
+                // The SCM will try again when it is first used
+                LOGGER.log(Level.WARNING, "Failed to resolve Bitbucket repository in the background", e);
+            }
+        });
+    }
+
+    /**
+     * @param failedAttempts the number of times in a row looking up a repository has failed
+     * @return how long to wait before looking it up again, in milliseconds
+     */
+    static long getRetryDelay(int failedAttempts) {
+        int doublings = min(max(failedAttempts - 1, 0), 20);
+        return min(RETRY_DELAY << doublings, MAX_RETRY_DELAY);
+    }
+
+    /**
+     * Resolves the repositories of the item's {@link BitbucketSCM SCMs} and {@link BitbucketSCMSource SCM sources}
+     * that haven't been resolved yet, and saves the item once they have been.
+     */
+    void resolve(Item item) {
+        for (BitbucketLazyRepository repository : getRepositories(item)) {
+            if (repository.isRepositoryResolutionPending()) {
+                schedule(item, repository, 0);
+            }
+        }
+    }
+
+    private void schedule(Item item, BitbucketLazyRepository repository, long delay) {
+        synchronized (scheduled) {
+            if (!scheduled.add(repository)) {
+                return;
+            }
+        }
+        Runnable resolution = () -> submit(() -> resolve(item, repository));
+        if (delay > 0) {
+            Timer.get().schedule(resolution, delay, MILLISECONDS);
+        } else {
+            resolution.run();
+        }
+    }
+
+    private void resolve(Item item, BitbucketLazyRepository repository) {
+        synchronized (scheduled) {
+            scheduled.remove(repository);
+        }
+        if (!isCurrent(item, repository)) {
+            // The job has been reconfigured or deleted since
+            return;
+        }
+        repository.resolveRepository();
+        if (repository.isRepositoryResolutionPending()) {
+            schedule(item, repository, max(repository.getNextResolutionAttempt() - System.currentTimeMillis(), 0));
+        } else if (item instanceof Saveable && isCurrent(item, repository)) {
+            try {
+                ((Saveable) item).save();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save " + item.getFullName() +
+                                          " after resolving its Bitbucket repository", e);
+            }
+        }
+    }
+
+    private static List<BitbucketLazyRepository> getRepositories(Item item) {
+        List<BitbucketLazyRepository> repositories = new ArrayList<>();
+        if (item instanceof SCMSourceOwner) {
+            for (SCMSource source : ((SCMSourceOwner) item).getSCMSources()) {
+                if (source instanceof BitbucketSCMSource) {
+                    repositories.add((BitbucketSCMSource) source);
+                }
+            }
+        }
+        for (SCM scm : getScms(item)) {
+            if (scm instanceof BitbucketSCM) {
+                repositories.add((BitbucketSCM) scm);
+            }
+        }
+        return repositories;
+    }
+
+    private static Collection<? extends SCM> getScms(Item item) {
+        if (item instanceof WorkflowJob) {
+            WorkflowJob workflowJob = (WorkflowJob) item;
+            if (workflowJob.getDefinition() instanceof CpsScmFlowDefinition) {
+                return singleton(((CpsScmFlowDefinition) workflowJob.getDefinition()).getScm());
+            }
+            return emptySet();
+        }
+        SCMTriggerItem triggerItem = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(item);
+        return triggerItem == null ? emptySet() : triggerItem.getSCMs();
+    }
+
+    private static boolean isCurrent(Item item, BitbucketLazyRepository repository) {
+        try (ACLContext ignored = ACL.as(ACL.SYSTEM)) {
+            return Jenkins.get().getItemByFullName(item.getFullName()) == item &&
+                   getRepositories(item).stream().anyMatch(r -> r == repository);
+        }
+    }
+
+    /**
+     * Resolves the repositories of jobs that were saved before they could be resolved, when Jenkins starts.
+     */
+    @Extension
+    public static class JobLoadedListener extends ItemListener {
+
+        @Inject
+        private BitbucketRepositoryResolutionExecutor resolutionExecutor;
+
+        @Override
+        public void onLoaded() {
+            try (ACLContext ignored = ACL.as(ACL.SYSTEM)) {
+                Jenkins.get().getAllItems().forEach(resolutionExecutor::resolve);
+            }
+        }
+    }
+
+    /**
+     * Resolves the repositories of jobs once they have been saved, however they were configured.
+     */
+    @Extension
+    public static class JobSaveListener extends SaveableListener {
+
+        @Inject
+        private BitbucketRepositoryResolutionExecutor resolutionExecutor;
+
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Item) {
+                resolutionExecutor.resolve((Item) o);
+            }
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.atlassian.bitbucket.jenkins.internal.scm;
 
 import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactoryProvider;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketLastKnownGoodCache;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.BitbucketClientException;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.NotFoundException;
 import com.atlassian.bitbucket.jenkins.internal.config.BitbucketPluginConfiguration;
 import com.atlassian.bitbucket.jenkins.internal.config.BitbucketServerConfiguration;
 import com.atlassian.bitbucket.jenkins.internal.config.BitbucketTokenCredentials;
@@ -10,8 +13,10 @@ import com.atlassian.bitbucket.jenkins.internal.credentials.JenkinsToBitbucketCr
 import com.atlassian.bitbucket.jenkins.internal.model.BitbucketNamedLink;
 import com.atlassian.bitbucket.jenkins.internal.model.BitbucketProject;
 import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRepository;
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketBulkRepositoryResolver.RepositoryReference;
 import com.google.inject.Guice;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.AbortException;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
@@ -50,9 +55,10 @@ import static java.lang.Math.max;
 import static java.lang.String.format;
 import static java.util.Collections.emptyList;
 import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 
-public class BitbucketSCM extends SCM {
+public class BitbucketSCM extends SCM implements BitbucketLazyRepository {
 
     private static final Logger LOGGER = Logger.getLogger(BitbucketSCM.class.getName());
 
@@ -65,6 +71,10 @@ public class BitbucketSCM extends SCM {
     // this is to enable us to support future multiple repositories
     private final List<BitbucketSCMRepository> repositories;
     private volatile boolean isWebhookRegistered;
+    private volatile boolean repositoryResolutionPending;
+    private transient volatile long nextResolutionAttempt;
+    private transient int failedResolutions;
+    private transient List<Runnable> resolvedActions;
 
     @DataBoundConstructor
     public BitbucketSCM(
@@ -80,55 +90,11 @@ public class BitbucketSCM extends SCM {
             @CheckForNull String serverId,
             @CheckForNull String mirrorName) {
         this(id, branches, extensions, gitTool, serverId, repositoryName);
-
-        DescriptorImpl descriptor = (DescriptorImpl) getDescriptor();
-        Optional<BitbucketServerConfiguration> mayBeServerConf = descriptor.getConfiguration(serverId);
-        if (!mayBeServerConf.isPresent()) {
-            LOGGER.info("No Bitbucket Server configuration for serverId " + serverId);
-            setEmptyRepository(credentialsId, sshCredentialsId, projectName, repositoryName, serverId, mirrorName);
-            return;
-        }
-
-        BitbucketServerConfiguration serverConfiguration = mayBeServerConf.get();
-        GlobalCredentialsProvider globalCredentialsProvider = serverConfiguration.getGlobalCredentialsProvider(
-                format("Bitbucket SCM: Query Bitbucket for project [%s] repo [%s] mirror[%s]",
-                        projectName,
-                        repositoryName,
-                        mirrorName));
-        BitbucketScmHelper scmHelper =
-                descriptor.getBitbucketScmHelper(serverConfiguration.getBaseUrl(),
-                        globalCredentialsProvider.getGlobalAdminCredentials().orElse(null));
-        if (isBlank(projectName)) {
-            LOGGER.info("Error creating the Bitbucket SCM: The project name is blank");
-            setEmptyRepository(credentialsId, sshCredentialsId, projectName, repositoryName, serverId, mirrorName);
-            return;
-        }
-        if (isBlank(repositoryName)) {
-            LOGGER.info("Error creating the Bitbucket SCM: The repository name is blank");
-            setEmptyRepository(credentialsId, sshCredentialsId, projectName, repositoryName, serverId, mirrorName);
-            return;
-        }
-
-        if (!isBlank(mirrorName)) {
-            try {
-                EnrichedBitbucketMirroredRepository mirroredRepository =
-                        descriptor.createMirrorHandler(scmHelper)
-                                .fetchRepository(
-                                        new MirrorFetchRequest(
-                                                serverConfiguration.getBaseUrl(),
-                                                credentialsId,
-                                                globalCredentialsProvider,
-                                                projectName,
-                                                repositoryName,
-                                                mirrorName));
-                setRepositoryDetails(credentialsId, sshCredentialsId, serverId, mirroredRepository);
-            } catch (MirrorFetchException ex) {
-                setEmptyRepository(credentialsId, sshCredentialsId, projectName, repositoryName, serverId, mirrorName);
-            }
-        } else {
-            BitbucketRepository repository = scmHelper.getRepository(projectName, repositoryName);
-            setRepositoryDetails(credentialsId, sshCredentialsId, serverId, mirrorName, repository);
-        }
+        // Only the user's input is stored until the repository has been looked up in Bitbucket, which happens in the
+        // background once the job has been saved or on first use, so saving the job doesn't have to wait for
+        // Bitbucket. See BitbucketRepositoryResolutionExecutor.
+        setEmptyRepository(credentialsId, sshCredentialsId, projectName, repositoryName, serverId, mirrorName);
+        repositoryResolutionPending = true;
     }
 
     public BitbucketSCM(
@@ -183,6 +149,7 @@ public class BitbucketSCM extends SCM {
 
     @Override
     public void buildEnvironment(Run<?, ?> build, Map<String, String> env) {
+        resolveRepository();
         gitSCM.buildEnvironment(build, env);
     }
 
@@ -194,6 +161,7 @@ public class BitbucketSCM extends SCM {
             @Nullable Launcher launcher,
             TaskListener listener)
             throws IOException, InterruptedException {
+        resolveRepository();
         return gitSCM.calcRevisionsFromBuild(build, workspace, launcher, listener);
     }
 
@@ -206,6 +174,7 @@ public class BitbucketSCM extends SCM {
             @CheckForNull File changelogFile,
             @CheckForNull SCMRevisionState baseline)
             throws IOException, InterruptedException {
+        resolveRepositoryOrAbort();
         gitSCM.checkout(build, launcher, workspace, listener, changelogFile, baseline);
     }
 
@@ -217,11 +186,17 @@ public class BitbucketSCM extends SCM {
             TaskListener listener,
             SCMRevisionState baseline)
             throws IOException, InterruptedException {
+        resolveRepositoryOrAbort();
+        PollingResult result = ((DescriptorImpl) getDescriptor()).pollRemoteHeads(this, gitSCM, project, listener);
+        if (result != null) {
+            return result;
+        }
         return gitSCM.compareRemoteRevisionWith(project, launcher, workspace, listener, baseline);
     }
 
     @Override
     public ChangeLogParser createChangeLogParser() {
+        resolveRepository();
         return gitSCM.createChangeLogParser();
     }
 
@@ -235,22 +210,24 @@ public class BitbucketSCM extends SCM {
     @CheckForNull
     @Override
     public RepositoryBrowser<?> getBrowser() {
+        resolveRepository();
         return gitSCM.getBrowser();
     }
 
     @CheckForNull
     public GitSCM getGitSCM() {
+        resolveRepository();
         return gitSCM;
     }
 
     @CheckForNull
     public String getCredentialsId() {
-        return getBitbucketSCMRepository().getCredentialsId();
+        return getConfiguredRepository().getCredentialsId();
     }
 
     @CheckForNull
     public String getSshCredentialsId() {
-        return getBitbucketSCMRepository().getSshCredentialsId();
+        return getConfiguredRepository().getSshCredentialsId();
     }
 
     public List<GitSCMExtension> getExtensions() {
@@ -266,11 +243,12 @@ public class BitbucketSCM extends SCM {
     }
 
     public String getProjectName() {
-        BitbucketSCMRepository repository = getBitbucketSCMRepository();
+        BitbucketSCMRepository repository = getConfiguredRepository();
         return repository.isPersonal() ? repository.getProjectKey() : repository.getProjectName();
     }
 
     public List<BitbucketSCMRepository> getRepositories() {
+        resolveRepository();
         return repositories;
     }
 
@@ -279,16 +257,16 @@ public class BitbucketSCM extends SCM {
     }
 
     public String getRepositoryName() {
-        return getBitbucketSCMRepository().getRepositoryName();
+        return getConfiguredRepository().getRepositoryName();
     }
 
     public String getMirrorName() {
-        return getBitbucketSCMRepository().getMirrorName();
+        return getConfiguredRepository().getMirrorName();
     }
 
     @CheckForNull
     public String getServerId() {
-        return getBitbucketSCMRepository().getServerId();
+        return getConfiguredRepository().getServerId();
     }
 
     public Collection<SubmoduleConfig> getSubmoduleCfg() {
@@ -299,6 +277,7 @@ public class BitbucketSCM extends SCM {
     }
 
     public List<UserRemoteConfig> getUserRemoteConfigs() {
+        resolveRepository();
         if (gitSCM == null) {
             return emptyList();
         }
@@ -313,10 +292,83 @@ public class BitbucketSCM extends SCM {
         return isWebhookRegistered;
     }
 
+    /**
+     * @return true if the repository has not been looked up in Bitbucket yet
+     * @since 3.2.0
+     */
+    @Override
+    public boolean isRepositoryResolutionPending() {
+        return repositoryResolutionPending;
+    }
+
+    /**
+     * Runs the action once the repository has been looked up in Bitbucket, in the background if that hasn't happened
+     * yet, or straight away if it has.
+     *
+     * @param action the action to run
+     * @since 3.2.0
+     */
+    public void whenRepositoryResolved(Runnable action) {
+        synchronized (repositories) {
+            if (repositoryResolutionPending) {
+                if (resolvedActions == null) {
+                    resolvedActions = new ArrayList<>();
+                }
+                resolvedActions.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
     public BitbucketSCMRepository getBitbucketSCMRepository() {
+        resolveRepository();
         return repositories.get(0);
     }
 
+    @Override
+    public long getNextResolutionAttempt() {
+        return nextResolutionAttempt;
+    }
+
+    /**
+     * Looks up the repository the user configured in Bitbucket, if that hasn't happened yet and isn't waiting to be
+     * retried after failing. This is called in the background after the job has been saved, and before anything that
+     * needs the repository details.
+     */
+    @Override
+    public void resolveRepository() {
+        if (repositoryResolutionPending && System.currentTimeMillis() >= nextResolutionAttempt) {
+            resolvePendingRepository();
+        }
+    }
+
+    /**
+     * Looks up the repository in Bitbucket if that hasn't happened yet, even if it is waiting to be retried, because
+     * checking out and polling can't be done without its clone URL.
+     *
+     * @throws AbortException if Bitbucket still can't be reached
+     */
+    private void resolveRepositoryOrAbort() throws AbortException {
+        if (repositoryResolutionPending) {
+            resolvePendingRepository();
+            if (repositoryResolutionPending) {
+                BitbucketSCMRepository input = repositories.get(0);
+                throw new AbortException(format("The Bitbucket repository %s/%s has not been resolved yet because " +
+                                                "Bitbucket couldn't be reached. It will be looked up again next time.",
+                        input.getProjectName(), input.getRepositoryName()));
+            }
+        }
+    }
+
+    /**
+     * Returns the repository without looking it up in Bitbucket, for the getters of what the user configured, which
+     * are called when the job configuration is shown and saved.
+     */
+    private BitbucketSCMRepository getConfiguredRepository() {
+        return isRepositoryResolutionPending() ? repositories.get(0) : getBitbucketSCMRepository();
+    }
+
     private String getCloneUrl(List<BitbucketNamedLink> cloneUrls, CloneProtocol protocol) {
         return cloneUrls.stream()
                 .filter(link -> Objects.equals(protocol.name, link.getName()))
@@ -326,7 +378,12 @@ public class BitbucketSCM extends SCM {
     }
 
     private void initialize(String cloneUrl, String selfLink, BitbucketSCMRepository bitbucketSCMRepository) {
-        repositories.add(bitbucketSCMRepository);
+        if (repositories.isEmpty()) {
+            repositories.add(bitbucketSCMRepository);
+        } else {
+            // Replace the unresolved repository now that it has been looked up
+            repositories.set(0, bitbucketSCMRepository);
+        }
         String credentialsId = isBlank(bitbucketSCMRepository.getSshCredentialsId()) ?
                 bitbucketSCMRepository.getCredentialsId() : bitbucketSCMRepository.getSshCredentialsId();
 
@@ -338,6 +395,96 @@ public class BitbucketSCM extends SCM {
                 gitTool, extensions);
     }
 
+    private synchronized void resolvePendingRepository() {
+        if (!repositoryResolutionPending) {
+            // Already resolved by another thread
+            return;
+        }
+        BitbucketSCMRepository input = repositories.get(0);
+        String credentialsId = input.getCredentialsId();
+        String sshCredentialsId = input.getSshCredentialsId();
+        String projectName = input.getProjectName();
+        String repositoryName = input.getRepositoryName();
+        String serverId = input.getServerId();
+        String mirrorName = input.getMirrorName();
+
+        DescriptorImpl descriptor = (DescriptorImpl) getDescriptor();
+        Optional<BitbucketServerConfiguration> mayBeServerConf = descriptor.getConfiguration(serverId);
+        if (!mayBeServerConf.isPresent()) {
+            LOGGER.info("No Bitbucket Server configuration for serverId " + serverId);
+            setRepositoryResolved();
+            return;
+        }
+
+        BitbucketServerConfiguration serverConfiguration = mayBeServerConf.get();
+        GlobalCredentialsProvider globalCredentialsProvider = serverConfiguration.getGlobalCredentialsProvider(
+                format("Bitbucket SCM: Query Bitbucket for project [%s] repo [%s] mirror[%s]",
+                        projectName,
+                        repositoryName,
+                        mirrorName));
+        BitbucketScmHelper scmHelper =
+                descriptor.getBitbucketScmHelper(serverConfiguration.getBaseUrl(),
+                        globalCredentialsProvider.getGlobalAdminCredentials().orElse(null));
+        if (isBlank(projectName)) {
+            LOGGER.info("Error creating the Bitbucket SCM: The project name is blank");
+            setRepositoryResolved();
+            return;
+        }
+        if (isBlank(repositoryName)) {
+            LOGGER.info("Error creating the Bitbucket SCM: The repository name is blank");
+            setRepositoryResolved();
+            return;
+        }
+
+        try {
+            if (!isBlank(mirrorName)) {
+                try {
+                    EnrichedBitbucketMirroredRepository mirroredRepository =
+                            descriptor.createMirrorHandler(scmHelper)
+                                    .fetchRepository(
+                                            new MirrorFetchRequest(
+                                                    serverConfiguration.getBaseUrl(),
+                                                    credentialsId,
+                                                    globalCredentialsProvider,
+                                                    projectName,
+                                                    repositoryName,
+                                                    mirrorName));
+                    setRepositoryDetails(credentialsId, sshCredentialsId, serverId, mirroredRepository);
+                } catch (MirrorFetchException | NotFoundException ex) {
+                    // Keep the unresolved repository
+                }
+            } else {
+                BitbucketRepository repository = scmHelper.resolveRepository(projectName, repositoryName);
+                setRepositoryDetails(credentialsId, sshCredentialsId, serverId, mirrorName, repository);
+            }
+        } catch (BitbucketClientException e) {
+            // Bitbucket couldn't be asked, so keep the unresolved repository and try again later rather than using a
+            // placeholder for good
+            failedResolutions++;
+            long retryDelay = BitbucketRepositoryResolutionExecutor.getRetryDelay(failedResolutions);
+            nextResolutionAttempt = System.currentTimeMillis() + retryDelay;
+            LOGGER.info(format("Failed to look up the repository %s/%s in Bitbucket, trying again in %d seconds: %s",
+                    projectName, repositoryName, MILLISECONDS.toSeconds(retryDelay), e.getMessage()));
+            return;
+        }
+        setRepositoryResolved();
+    }
+
+    private void setRepositoryResolved() {
+        List<Runnable> actions;
+        synchronized (repositories) {
+            repositoryResolutionPending = false;
+            failedResolutions = 0;
+            nextResolutionAttempt = 0;
+            actions = resolvedActions;
+            resolvedActions = null;
+        }
+        if (actions != null) {
+            DescriptorImpl descriptor = (DescriptorImpl) getDescriptor();
+            actions.forEach(descriptor::resolveInBackground);
+        }
+    }
+
     private void setEmptyRepository(@CheckForNull String credentialsId,
                                     @CheckForNull String sshCredentialsId,
                                     @CheckForNull String projectName,
@@ -394,6 +541,14 @@ public class BitbucketSCM extends SCM {
         private BitbucketClientFactoryProvider bitbucketClientFactoryProvider;
         @Inject
         private BitbucketPluginConfiguration bitbucketPluginConfiguration;
+        @Inject
+        private BitbucketLastKnownGoodCache lastKnownGoodCache;
+        @Inject
+        private BitbucketRepositoryMetadataCache repositoryMetadataCache;
+        @Inject
+        private BitbucketRemoteHeads remoteHeads;
+        @Inject
+        private BitbucketRepositoryResolutionExecutor repositoryResolutionExecutor;
         private transient JenkinsToBitbucketCredentials jenkinsToBitbucketCredentials;
 
         public DescriptorImpl() {
@@ -547,14 +702,53 @@ public class BitbucketSCM extends SCM {
                                                  @Nullable BitbucketTokenCredentials tokenCredentials) {
             return new BitbucketScmHelper(bitbucketUrl,
                     bitbucketClientFactoryProvider,
-                    jenkinsToBitbucketCredentials.toBitbucketCredentials(tokenCredentials));
+                    jenkinsToBitbucketCredentials.toBitbucketCredentials(tokenCredentials),
+                    repositoryMetadataCache,
+                    lastKnownGoodCache);
+        }
+
+        /**
+         * Resolves the given repositories in bulk so the SCMs created for them afterwards, for this or any other job,
+         * can be constructed without contacting Bitbucket.
+         *
+         * @param serverId   the ID of the server the repositories are on
+         * @param references the project and repository names (or keys and slugs) to resolve
+         * @since 3.2.0
+         */
+        public void preloadRepositories(@Nullable String serverId, Collection<RepositoryReference> references) {
+            if (references.isEmpty()) {
+                return;
+            }
+            getConfiguration(serverId).ifPresent(serverConfiguration -> {
+                GlobalCredentialsProvider globalCredentialsProvider = serverConfiguration.getGlobalCredentialsProvider(
+                        format("Bitbucket SCM: Resolve %d repositories in bulk", references.size()));
+                getBitbucketScmHelper(serverConfiguration.getBaseUrl(),
+                        globalCredentialsProvider.getGlobalAdminCredentials().orElse(null))
+                        .getRepositories(references);
+            });
+        }
+
+        /**
+         * Polls the job using the branches shared with other jobs polled for the same webhook, if it can be.
+         *
+         * @return the result of the poll, or {@code null} if the job needs to be polled with git
+         */
+        @CheckForNull
+        PollingResult pollRemoteHeads(BitbucketSCM scm, GitSCM gitSCM, Job<?, ?> project, TaskListener listener) {
+            // Not set when created without injection
+            return remoteHeads == null ? null : remoteHeads.poll(scm, gitSCM, project, listener);
+        }
+
+        void resolveInBackground(Runnable resolution) {
+            repositoryResolutionExecutor.submit(resolution);
         }
 
         private BitbucketMirrorHandler createMirrorHandler(BitbucketScmHelper helper) {
             return new BitbucketMirrorHandler(
                     bitbucketClientFactoryProvider,
                     jenkinsToBitbucketCredentials,
-                    (client, project, repo) -> helper.getRepository(project, repo));
+                    (client, project, repo) -> helper.resolveRepository(project, repo),
+                    lastKnownGoodCache);
         }
 
         Optional<BitbucketServerConfiguration> getConfiguration(@Nullable String serverId) {
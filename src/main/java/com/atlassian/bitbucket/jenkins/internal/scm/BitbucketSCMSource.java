@@ -1,7 +1,9 @@
 package com.atlassian.bitbucket.jenkins.internal.scm;
 
 import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactoryProvider;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketLastKnownGoodCache;
 import com.atlassian.bitbucket.jenkins.internal.client.exception.BitbucketClientException;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.NotFoundException;
 import com.atlassian.bitbucket.jenkins.internal.config.BitbucketPluginConfiguration;
 import com.atlassian.bitbucket.jenkins.internal.config.BitbucketServerConfiguration;
 import com.atlassian.bitbucket.jenkins.internal.config.BitbucketTokenCredentials;
@@ -18,6 +20,7 @@ import com.atlassian.bitbucket.jenkins.internal.trigger.register.WebhookRegistra
 import com.cloudbees.hudson.plugins.folder.computed.ComputedFolder;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.AbortException;
 import hudson.Extension;
 import hudson.model.Action;
 import hudson.model.Actionable;
@@ -59,16 +62,21 @@ import java.util.stream.Collectors;
 import static com.atlassian.bitbucket.jenkins.internal.model.RepositoryState.AVAILABLE;
 import static java.lang.Math.max;
 import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
-public class BitbucketSCMSource extends SCMSource {
+public class BitbucketSCMSource extends SCMSource implements BitbucketLazyRepository {
 
     private static final Logger LOGGER = Logger.getLogger(BitbucketSCMSource.class.getName());
     private final List<SCMSourceTrait> traits;
     private CustomGitSCMSource gitSCMSource;
     private BitbucketSCMRepository repository;
     private volatile boolean webhookRegistered;
+    private volatile boolean repositoryResolutionPending;
+    private transient volatile long nextResolutionAttempt;
+    private transient int failedResolutions;
+    private transient List<Runnable> resolvedActions;
 
     @DataBoundConstructor
     public BitbucketSCMSource(
@@ -86,60 +94,11 @@ public class BitbucketSCMSource extends SCMSource {
             this.traits.addAll(traits);
         }
 
-        BitbucketSCMSource.DescriptorImpl descriptor = (BitbucketSCMSource.DescriptorImpl) getDescriptor();
-        Optional<BitbucketServerConfiguration> mayBeServerConf = descriptor.getConfiguration(serverId);
-        if (!mayBeServerConf.isPresent()) {
-            LOGGER.info("No Bitbucket Server configuration for serverId " + serverId);
-            setEmptyRepository(credentialsId, sshCredentialsId, projectName, repositoryName, serverId, mirrorName);
-            return;
-        }
-
-        BitbucketServerConfiguration serverConfiguration = mayBeServerConf.get();
-        GlobalCredentialsProvider globalCredentialsProvider = serverConfiguration.getGlobalCredentialsProvider(
-                format("Bitbucket SCM: Query Bitbucket for project [%s] repo [%s] mirror[%s]",
-                        projectName,
-                        repositoryName,
-                        mirrorName));
-        BitbucketScmHelper scmHelper =
-                descriptor.getBitbucketScmHelper(serverConfiguration.getBaseUrl(),
-                        globalCredentialsProvider.getGlobalAdminCredentials().orElse(null));
-        if (isBlank(projectName)) {
-            LOGGER.info("Error creating the Bitbucket SCM: The project name is blank");
-            setEmptyRepository(credentialsId, sshCredentialsId, projectName, repositoryName, serverId, mirrorName);
-            return;
-        }
-        if (isBlank(repositoryName)) {
-            LOGGER.info("Error creating the Bitbucket SCM: The repository name is blank");
-            setEmptyRepository(credentialsId, sshCredentialsId, projectName, repositoryName, serverId, mirrorName);
-            return;
-        }
-        String selfLink = "";
-        if (isNotBlank(mirrorName)) {
-            try {
-                EnrichedBitbucketMirroredRepository mirroredRepository =
-                        descriptor.createMirrorHandler(scmHelper)
-                                .fetchRepository(
-                                        new MirrorFetchRequest(
-                                                serverConfiguration.getBaseUrl(),
-                                                credentialsId,
-                                                globalCredentialsProvider,
-                                                projectName,
-                                                repositoryName,
-                                                mirrorName));
-                setRepositoryDetails(credentialsId, sshCredentialsId, serverId, mirroredRepository);
-                selfLink = mirroredRepository.getRepository().getSelfLink();
-            } catch (MirrorFetchException ex) {
-                setEmptyRepository(credentialsId, sshCredentialsId, projectName, repositoryName, serverId, mirrorName);
-            }
-        } else {
-            BitbucketRepository localRepo = scmHelper.getRepository(projectName, repositoryName);
-            setRepositoryDetails(credentialsId, sshCredentialsId, serverId, "", localRepo);
-            selfLink = localRepo.getSelfLink();
-        }
-        //self link contains `/browse` which we must trim off.
-        String repositoryUrl = selfLink.substring(0, max(selfLink.lastIndexOf("/browse"), 0));
-        gitSCMSource.setBrowser(new Stash(repositoryUrl));
-        gitSCMSource.setId(getId() + "-git-scm");
+        // Only the user's input is stored until the repository has been looked up in Bitbucket, which happens in the
+        // background once the project has been saved or on first use, so saving the project doesn't have to wait for
+        // Bitbucket. See BitbucketRepositoryResolutionExecutor.
+        setEmptyRepository(credentialsId, sshCredentialsId, projectName, repositoryName, serverId, mirrorName);
+        repositoryResolutionPending = true;
     }
 
     /**
@@ -163,6 +122,7 @@ public class BitbucketSCMSource extends SCMSource {
     @Override
     protected List<Action> retrieveActions(SCMSourceEvent event, 
                                            TaskListener listener) throws IOException, InterruptedException {
+        resolveRepository();
         List<Action> result = new ArrayList<>();
         BitbucketSCMSource.DescriptorImpl descriptor = (BitbucketSCMSource.DescriptorImpl) getDescriptor();
         Optional<BitbucketServerConfiguration> mayBeServerConf = descriptor.getConfiguration(getServerId());
@@ -189,6 +149,7 @@ public class BitbucketSCMSource extends SCMSource {
     protected List<Action> retrieveActions(SCMHead head, 
                                            @CheckForNull SCMHeadEvent event,
                                            TaskListener listener) throws IOException, InterruptedException {       
+        resolveRepository();
         List<Action> result = new ArrayList<>();
         SCMSourceOwner owner = getOwner();
         if (owner instanceof Actionable) {
@@ -205,6 +166,11 @@ public class BitbucketSCMSource extends SCMSource {
     @Override
     public void afterSave() {
         super.afterSave();
+        // Don't make the save wait for Bitbucket, the webhook is registered once the repository is resolved
+        whenRepositoryResolved(this::registerWebhook);
+    }
+
+    private void registerWebhook() {
         // The git scm needs an owner set to resolve non-global credentials
         getGitSCMSource().setOwner(getOwner());
 
@@ -235,20 +201,22 @@ public class BitbucketSCMSource extends SCMSource {
     }
 
     public BitbucketSCMRepository getBitbucketSCMRepository() {
+        resolveRepository();
         return repository;
     }
 
     CustomGitSCMSource getGitSCMSource() {
+        resolveRepository();
         return gitSCMSource;
     }
 
     @CheckForNull
     public String getCredentialsId() {
-        return getBitbucketSCMRepository().getCredentialsId();
+        return getConfiguredRepository().getCredentialsId();
     }
 
     public String getMirrorName() {
-        return getBitbucketSCMRepository().getMirrorName();
+        return getConfiguredRepository().getMirrorName();
     }
 
     public String getProjectKey() {
@@ -256,7 +224,7 @@ public class BitbucketSCMSource extends SCMSource {
     }
 
     public String getProjectName() {
-        BitbucketSCMRepository repository = getBitbucketSCMRepository();
+        BitbucketSCMRepository repository = getConfiguredRepository();
         return repository.isPersonal() ? repository.getProjectKey() : repository.getProjectName();
     }
 
@@ -265,7 +233,7 @@ public class BitbucketSCMSource extends SCMSource {
     }
 
     public String getRepositoryName() {
-        return getBitbucketSCMRepository().getRepositoryName();
+        return getConfiguredRepository().getRepositoryName();
     }
 
     public String getRepositorySlug() {
@@ -274,12 +242,12 @@ public class BitbucketSCMSource extends SCMSource {
 
     @CheckForNull
     public String getServerId() {
-        return getBitbucketSCMRepository().getServerId();
+        return getConfiguredRepository().getServerId();
     }
 
     @CheckForNull
     public String getSshCredentialsId() {
-        return getBitbucketSCMRepository().getSshCredentialsId();
+        return getConfiguredRepository().getSshCredentialsId();
     }
 
     public boolean isEventApplicable(@CheckForNull SCMHeadEvent<?> event) {
@@ -316,6 +284,40 @@ public class BitbucketSCMSource extends SCMSource {
         return webhookRegistered;
     }
 
+    /**
+     * @return true if the repository has not been looked up in Bitbucket yet
+     * @since 3.2.0
+     */
+    @Override
+    public boolean isRepositoryResolutionPending() {
+        return repositoryResolutionPending;
+    }
+
+    /**
+     * Runs the action once the repository has been looked up in Bitbucket, in the background if that hasn't happened
+     * yet, or straight away if it has.
+     *
+     * @param action the action to run
+     * @since 3.2.0
+     */
+    public void whenRepositoryResolved(Runnable action) {
+        synchronized (traits) {
+            if (repositoryResolutionPending) {
+                if (resolvedActions == null) {
+                    resolvedActions = new ArrayList<>();
+                }
+                resolvedActions.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    @Override
+    public long getNextResolutionAttempt() {
+        return nextResolutionAttempt;
+    }
+
     public void setWebhookRegistered(boolean webhookRegistered) {
         this.webhookRegistered = webhookRegistered;
     }
@@ -332,6 +334,7 @@ public class BitbucketSCMSource extends SCMSource {
                             @CheckForNull SCMHeadEvent<?> event,
                             TaskListener listener) throws IOException, InterruptedException {
         if (event == null || isEventApplicable(event)) {
+            resolveRepositoryOrAbort();
             getGitSCMSource().accessibleRetrieve(criteria, observer, event, listener);
         }
     }
@@ -352,10 +355,147 @@ public class BitbucketSCMSource extends SCMSource {
         UserRemoteConfig remoteConfig =
                 new UserRemoteConfig(cloneUrl, bitbucketSCMRepository.getRepositorySlug(), null, credentialsId);
         gitSCMSource = new CustomGitSCMSource(remoteConfig.getUrl(), repository);
+        SCMSourceOwner owner = getOwner();
+        if (owner != null) {
+            // The repository was resolved after the owner was set
+            gitSCMSource.setOwner(owner);
+        }
         getGitSCMSource().setTraits(traits);
         getGitSCMSource().setCredentialsId(credentialsId);
     }
 
+    /**
+     * Looks up the repository the user configured in Bitbucket, if that hasn't happened yet and isn't waiting to be
+     * retried after failing. This is called in the background after the project has been saved, and before anything
+     * that needs the repository details.
+     */
+    @Override
+    public void resolveRepository() {
+        if (repositoryResolutionPending && System.currentTimeMillis() >= nextResolutionAttempt) {
+            resolvePendingRepository();
+        }
+    }
+
+    /**
+     * Looks up the repository in Bitbucket if that hasn't happened yet, even if it is waiting to be retried, because
+     * the branches can't be retrieved without its clone URL.
+     *
+     * @throws AbortException if Bitbucket still can't be reached
+     */
+    private void resolveRepositoryOrAbort() throws AbortException {
+        if (repositoryResolutionPending) {
+            resolvePendingRepository();
+            if (repositoryResolutionPending) {
+                throw new AbortException(format("The Bitbucket repository %s/%s has not been resolved yet because " +
+                                                "Bitbucket couldn't be reached. It will be looked up again next time.",
+                        repository.getProjectName(), repository.getRepositoryName()));
+            }
+        }
+    }
+
+    /**
+     * Returns the repository without looking it up in Bitbucket, for the getters of what the user configured, which
+     * are called when the project configuration is shown and saved.
+     */
+    private BitbucketSCMRepository getConfiguredRepository() {
+        return isRepositoryResolutionPending() ? repository : getBitbucketSCMRepository();
+    }
+
+    private synchronized void resolvePendingRepository() {
+        if (!repositoryResolutionPending) {
+            // Already resolved by another thread
+            return;
+        }
+        String credentialsId = repository.getCredentialsId();
+        String sshCredentialsId = repository.getSshCredentialsId();
+        String projectName = repository.getProjectName();
+        String repositoryName = repository.getRepositoryName();
+        String serverId = repository.getServerId();
+        String mirrorName = repository.getMirrorName();
+
+        BitbucketSCMSource.DescriptorImpl descriptor = (BitbucketSCMSource.DescriptorImpl) getDescriptor();
+        Optional<BitbucketServerConfiguration> mayBeServerConf = descriptor.getConfiguration(serverId);
+        if (!mayBeServerConf.isPresent()) {
+            LOGGER.info("No Bitbucket Server configuration for serverId " + serverId);
+            setRepositoryResolved();
+            return;
+        }
+
+        BitbucketServerConfiguration serverConfiguration = mayBeServerConf.get();
+        GlobalCredentialsProvider globalCredentialsProvider = serverConfiguration.getGlobalCredentialsProvider(
+                format("Bitbucket SCM: Query Bitbucket for project [%s] repo [%s] mirror[%s]",
+                        projectName,
+                        repositoryName,
+                        mirrorName));
+        BitbucketScmHelper scmHelper =
+                descriptor.getBitbucketScmHelper(serverConfiguration.getBaseUrl(),
+                        globalCredentialsProvider.getGlobalAdminCredentials().orElse(null));
+        if (isBlank(projectName)) {
+            LOGGER.info("Error creating the Bitbucket SCM: The project name is blank");
+            setRepositoryResolved();
+            return;
+        }
+        if (isBlank(repositoryName)) {
+            LOGGER.info("Error creating the Bitbucket SCM: The repository name is blank");
+            setRepositoryResolved();
+            return;
+        }
+        String selfLink = "";
+        try {
+            if (isNotBlank(mirrorName)) {
+                try {
+                    EnrichedBitbucketMirroredRepository mirroredRepository =
+                            descriptor.createMirrorHandler(scmHelper)
+                                    .fetchRepository(
+                                            new MirrorFetchRequest(
+                                                    serverConfiguration.getBaseUrl(),
+                                                    credentialsId,
+                                                    globalCredentialsProvider,
+                                                    projectName,
+                                                    repositoryName,
+                                                    mirrorName));
+                    setRepositoryDetails(credentialsId, sshCredentialsId, serverId, mirroredRepository);
+                    selfLink = mirroredRepository.getRepository().getSelfLink();
+                } catch (MirrorFetchException | NotFoundException ex) {
+                    // Keep the unresolved repository
+                }
+            } else {
+                BitbucketRepository localRepo = scmHelper.resolveRepository(projectName, repositoryName);
+                setRepositoryDetails(credentialsId, sshCredentialsId, serverId, "", localRepo);
+                selfLink = localRepo.getSelfLink();
+            }
+        } catch (BitbucketClientException e) {
+            // Bitbucket couldn't be asked, so keep the unresolved repository and try again later rather than using a
+            // placeholder for good
+            failedResolutions++;
+            long retryDelay = BitbucketRepositoryResolutionExecutor.getRetryDelay(failedResolutions);
+            nextResolutionAttempt = System.currentTimeMillis() + retryDelay;
+            LOGGER.info(format("Failed to look up the repository %s/%s in Bitbucket, trying again in %d seconds: %s",
+                    projectName, repositoryName, MILLISECONDS.toSeconds(retryDelay), e.getMessage()));
+            return;
+        }
+        //self link contains `/browse` which we must trim off.
+        String repositoryUrl = selfLink.substring(0, max(selfLink.lastIndexOf("/browse"), 0));
+        gitSCMSource.setBrowser(new Stash(repositoryUrl));
+        gitSCMSource.setId(getId() + "-git-scm");
+        setRepositoryResolved();
+    }
+
+    private void setRepositoryResolved() {
+        List<Runnable> actions;
+        synchronized (traits) {
+            repositoryResolutionPending = false;
+            failedResolutions = 0;
+            nextResolutionAttempt = 0;
+            actions = resolvedActions;
+            resolvedActions = null;
+        }
+        if (actions != null) {
+            DescriptorImpl descriptor = (DescriptorImpl) getDescriptor();
+            actions.forEach(descriptor::resolveInBackground);
+        }
+    }
+
     @SuppressWarnings("Duplicates")
     private void setEmptyRepository(@Nullable String credentialsId,
                                     @Nullable String sshCredentialsId,
@@ -417,6 +557,12 @@ public class BitbucketSCMSource extends SCMSource {
         @Inject
         private BitbucketPluginConfiguration bitbucketPluginConfiguration;
         @Inject
+        private BitbucketLastKnownGoodCache lastKnownGoodCache;
+        @Inject
+        private BitbucketRepositoryMetadataCache repositoryMetadataCache;
+        @Inject
+        private BitbucketRepositoryResolutionExecutor repositoryResolutionExecutor;
+        @Inject
         private BitbucketScmFormFillDelegate formFill;
         @Inject
         private BitbucketScmFormValidationDelegate formValidation;
@@ -580,18 +726,25 @@ public class BitbucketSCMSource extends SCMSource {
                                                  @Nullable BitbucketTokenCredentials tokenCredentials) {
             return new BitbucketScmHelper(bitbucketUrl,
                     bitbucketClientFactoryProvider,
-                    jenkinsToBitbucketCredentials.toBitbucketCredentials(tokenCredentials));
+                    jenkinsToBitbucketCredentials.toBitbucketCredentials(tokenCredentials),
+                    repositoryMetadataCache,
+                    lastKnownGoodCache);
         }
 
         Optional<BitbucketServerConfiguration> getConfiguration(@Nullable String serverId) {
             return bitbucketPluginConfiguration.getServerById(serverId);
         }
 
+        void resolveInBackground(Runnable resolution) {
+            repositoryResolutionExecutor.submit(resolution);
+        }
+
         private BitbucketMirrorHandler createMirrorHandler(BitbucketScmHelper helper) {
             return new BitbucketMirrorHandler(
                     bitbucketClientFactoryProvider,
                     jenkinsToBitbucketCredentials,
-                    (client, project, repo) -> helper.getRepository(project, repo));
+                    (client, project, repo) -> helper.getRepository(project, repo),
+                    lastKnownGoodCache);
         }
     }
 }
@@ -1,6 +1,7 @@
 package com.atlassian.bitbucket.jenkins.internal.scm;
 
 import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactoryProvider;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketLastKnownGoodCache;
 import com.atlassian.bitbucket.jenkins.internal.config.BitbucketPluginConfiguration;
 import com.atlassian.bitbucket.jenkins.internal.config.BitbucketServerConfiguration;
 import com.atlassian.bitbucket.jenkins.internal.config.BitbucketTokenCredentials;
@@ -229,6 +230,10 @@ public class BitbucketSCMStep extends SCMStep {
         @Inject
         private BitbucketPluginConfiguration bitbucketPluginConfiguration;
         @Inject
+        private BitbucketLastKnownGoodCache lastKnownGoodCache;
+        @Inject
+        private BitbucketRepositoryMetadataCache repositoryMetadataCache;
+        @Inject
         private BitbucketScmFormFillDelegate formFill;
         @Inject
         private BitbucketScmFormValidationDelegate formValidation;
@@ -366,14 +371,17 @@ public class BitbucketSCMStep extends SCMStep {
             return new BitbucketMirrorHandler(
                     bitbucketClientFactoryProvider,
                     jenkinsToBitbucketCredentials,
-                    (client, project, repo) -> helper.getRepository(project, repo));
+                    (client, project, repo) -> helper.getRepository(project, repo),
+                    lastKnownGoodCache);
         }
 
         BitbucketScmHelper getBitbucketScmHelper(String bitbucketUrl,
                                                  @Nullable BitbucketTokenCredentials tokenCredentials) {
             return new BitbucketScmHelper(bitbucketUrl,
                     bitbucketClientFactoryProvider,
-                    jenkinsToBitbucketCredentials.toBitbucketCredentials(tokenCredentials));
+                    jenkinsToBitbucketCredentials.toBitbucketCredentials(tokenCredentials),
+                    repositoryMetadataCache,
+                    lastKnownGoodCache);
         }
 
         private Optional<BitbucketServerConfiguration> getConfiguration(@Nullable String serverId) {
@@ -1,7 +1,7 @@
 package com.atlassian.bitbucket.jenkins.internal.scm;
 
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactory;
 import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactoryProvider;
-import com.atlassian.bitbucket.jenkins.internal.client.BitbucketSearchHelper;
 import com.atlassian.bitbucket.jenkins.internal.client.exception.BitbucketClientException;
 import com.atlassian.bitbucket.jenkins.internal.config.BitbucketPluginConfiguration;
 import com.atlassian.bitbucket.jenkins.internal.credentials.BitbucketCredentials;
@@ -36,8 +36,6 @@ import java.util.Optional;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
-import static com.atlassian.bitbucket.jenkins.internal.client.BitbucketSearchHelper.findProjects;
-import static com.atlassian.bitbucket.jenkins.internal.client.BitbucketSearchHelper.findRepositories;
 import static hudson.util.HttpResponses.okJSON;
 import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
 import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
@@ -57,12 +55,16 @@ public class BitbucketScmFormFillDelegate implements BitbucketScmFormFill {
     private final BitbucketPluginConfiguration bitbucketPluginConfiguration;
     private final JenkinsToBitbucketCredentials jenkinsToBitbucketCredentials;
     private final JenkinsProvider jenkinsProvider;
+    private final BitbucketRepositoryCatalog repositoryCatalog;
+    private final BitbucketSearchResultCache searchResultCache;
 
     @Inject
     public BitbucketScmFormFillDelegate(BitbucketClientFactoryProvider bitbucketClientFactoryProvider,
                                         BitbucketPluginConfiguration bitbucketPluginConfiguration,
                                         JenkinsToBitbucketCredentials jenkinsToBitbucketCredentials,
-                                        JenkinsProvider jenkinsProvider) {
+                                        JenkinsProvider jenkinsProvider,
+                                        BitbucketRepositoryCatalog repositoryCatalog,
+                                        BitbucketSearchResultCache searchResultCache) {
         this.bitbucketClientFactoryProvider =
                 requireNonNull(bitbucketClientFactoryProvider, "bitbucketClientFactoryProvider");
         this.bitbucketPluginConfiguration =
@@ -71,6 +73,8 @@ public class BitbucketScmFormFillDelegate implements BitbucketScmFormFill {
                 requireNonNull(jenkinsToBitbucketCredentials, "jenkinsToBitbucketCredentils");
         this.jenkinsProvider =
                 requireNonNull(jenkinsProvider, "jenkinsProvider");
+        this.repositoryCatalog = requireNonNull(repositoryCatalog, "repositoryCatalog");
+        this.searchResultCache = requireNonNull(searchResultCache, "searchResultCache");
     }
 
     @Override
@@ -130,8 +134,12 @@ public class BitbucketScmFormFillDelegate implements BitbucketScmFormFill {
                         BitbucketCredentials credentials =
                                 jenkinsToBitbucketCredentials.toBitbucketCredentials(
                                         providedCredentials.orElse(null));
-                        Collection<BitbucketProject> projects = findProjects(projectName,
-                                bitbucketClientFactoryProvider.getClient(serverConf.getBaseUrl(), credentials));
+                        BitbucketClientFactory clientFactory =
+                                bitbucketClientFactoryProvider.getClient(serverConf.getBaseUrl(), credentials);
+                        Collection<BitbucketProject> projects = repositoryCatalog
+                                .findProjects(serverConf.getBaseUrl(), credentials, projectName, clientFactory)
+                                .orElseGet(() -> searchResultCache.findProjects(serverConf.getBaseUrl(),
+                                        credentials, projectName, clientFactory));
                         return okJSON(JSONArray.fromObject(projects));
                     } catch (BitbucketClientException e) {
                         // Something went wrong with the request to Bitbucket
@@ -167,8 +175,13 @@ public class BitbucketScmFormFillDelegate implements BitbucketScmFormFill {
                             jenkinsToBitbucketCredentials.toBitbucketCredentials(
                                     providedCredentials.orElse(null));
                     try {
-                        Collection<BitbucketRepository> repositories = findRepositories(repositoryName, projectName,
-                                bitbucketClientFactoryProvider.getClient(serverConf.getBaseUrl(), credentials))
+                        BitbucketClientFactory clientFactory =
+                                bitbucketClientFactoryProvider.getClient(serverConf.getBaseUrl(), credentials);
+                        Collection<BitbucketRepository> repositories = repositoryCatalog
+                                .findRepositories(serverConf.getBaseUrl(), credentials, projectName, repositoryName,
+                                        clientFactory)
+                                .orElseGet(() -> searchResultCache.findRepositories(serverConf.getBaseUrl(),
+                                        credentials, projectName, repositoryName, clientFactory))
                                 .stream()
                                 .filter(repository -> repository.getProject().getName().equals(projectName))
                                 .collect(Collectors.toList());
@@ -207,10 +220,10 @@ public class BitbucketScmFormFillDelegate implements BitbucketScmFormFill {
     public ListBoxModel doFillMirrorNameItems(@Nullable Item context, String serverId, String credentialsId,
                                               String projectName, String repositoryName, String mirrorName) {
         checkPermissions(context);
-        BitbucketMirrorHandler bitbucketMirrorHandler = createMirrorHandlerUsingRepoSearch();
         return bitbucketPluginConfiguration.getServerById(serverId)
                 .map(serverConfiguration ->
-                        bitbucketMirrorHandler.fetchAsListBox(
+                        createMirrorHandlerUsingRepoSearch(serverConfiguration.getBaseUrl(), credentialsId)
+                                .fetchAsListBox(
                                 new MirrorFetchRequest(
                                         serverConfiguration.getBaseUrl(),
                                         credentialsId,
@@ -218,7 +231,7 @@ public class BitbucketScmFormFillDelegate implements BitbucketScmFormFill {
                                         projectName,
                                         repositoryName,
                                         mirrorName)))
-                .orElseGet(() -> bitbucketMirrorHandler.getDefaultListBox());
+                .orElseGet(() -> createMirrorHandlerUsingRepoSearch("", credentialsId).getDefaultListBox());
     }
 
     @Override
@@ -244,8 +257,10 @@ public class BitbucketScmFormFillDelegate implements BitbucketScmFormFill {
         }
     }
 
-    private BitbucketMirrorHandler createMirrorHandlerUsingRepoSearch() {
+    private BitbucketMirrorHandler createMirrorHandlerUsingRepoSearch(String baseUrl, String credentialsId) {
         return new BitbucketMirrorHandler(bitbucketClientFactoryProvider, jenkinsToBitbucketCredentials,
-                (client, project, repo) -> BitbucketSearchHelper.getRepositoryByNameOrSlug(project, repo, client));
+                // The mirror handler sends its requests with the credentials for this ID
+                (client, project, repo) -> searchResultCache.getRepositoryByNameOrSlug(baseUrl,
+                        jenkinsToBitbucketCredentials.toBitbucketCredentials(credentialsId), project, repo, client));
     }
 }
@@ -6,6 +6,7 @@ import com.atlassian.bitbucket.jenkins.internal.client.exception.BitbucketClient
 import com.atlassian.bitbucket.jenkins.internal.client.exception.NotFoundException;
 import com.atlassian.bitbucket.jenkins.internal.config.BitbucketPluginConfiguration;
 import com.atlassian.bitbucket.jenkins.internal.config.BitbucketServerConfiguration;
+import com.atlassian.bitbucket.jenkins.internal.credentials.BitbucketCredentials;
 import com.atlassian.bitbucket.jenkins.internal.credentials.CredentialUtils;
 import com.atlassian.bitbucket.jenkins.internal.credentials.JenkinsToBitbucketCredentials;
 import com.atlassian.bitbucket.jenkins.internal.model.BitbucketProject;
@@ -22,8 +23,6 @@ import javax.inject.Singleton;
 
 import java.util.Optional;
 
-import static com.atlassian.bitbucket.jenkins.internal.client.BitbucketSearchHelper.getProjectByNameOrKey;
-import static com.atlassian.bitbucket.jenkins.internal.client.BitbucketSearchHelper.getRepositoryByNameOrSlug;
 import static hudson.util.FormValidation.Kind.ERROR;
 import static java.lang.String.format;
 import static java.util.Objects.requireNonNull;
@@ -37,12 +36,14 @@ public class BitbucketScmFormValidationDelegate implements BitbucketScmFormValid
     private final BitbucketPluginConfiguration bitbucketPluginConfiguration;
     private final JenkinsToBitbucketCredentials jenkinsToBitbucketCredentials;
     private final JenkinsProvider jenkinsProvider;
+    private final BitbucketSearchResultCache searchResultCache;
 
     @Inject
     public BitbucketScmFormValidationDelegate(BitbucketClientFactoryProvider bitbucketClientFactoryProvider,
                                               BitbucketPluginConfiguration bitbucketPluginConfiguration,
                                               JenkinsToBitbucketCredentials jenkinsToBitbucketCredentials,
-                                              JenkinsProvider jenkinsProvider) {
+                                              JenkinsProvider jenkinsProvider,
+                                              BitbucketSearchResultCache searchResultCache) {
         this.bitbucketClientFactoryProvider =
                 requireNonNull(bitbucketClientFactoryProvider, "bitbucketClientFactoryProvider");
         this.bitbucketPluginConfiguration =
@@ -51,6 +52,7 @@ public class BitbucketScmFormValidationDelegate implements BitbucketScmFormValid
                 requireNonNull(jenkinsToBitbucketCredentials, "jenkinsToBitbucketCredentials");
         this.jenkinsProvider =
                 requireNonNull(jenkinsProvider, "jenkinsProvider");
+        this.searchResultCache = requireNonNull(searchResultCache, "searchResultCache");
     }
 
     @Override
@@ -94,13 +96,13 @@ public class BitbucketScmFormValidationDelegate implements BitbucketScmFormValid
         return bitbucketPluginConfiguration.getServerById(serverId)
                 .map(serverConf -> {
                     try {
+                        BitbucketCredentials credentials = jenkinsToBitbucketCredentials.toBitbucketCredentials(
+                                // already checked providedCredentials is present above
+                                providedCredentials.get());
                         BitbucketClientFactory clientFactory = bitbucketClientFactoryProvider
-                                .getClient(
-                                        serverConf.getBaseUrl(),
-                                        jenkinsToBitbucketCredentials.toBitbucketCredentials(
-                                                // already checked providedCredentials is present above
-                                                providedCredentials.get()));
-                        BitbucketProject project = getProjectByNameOrKey(projectName, clientFactory);
+                                .getClient(serverConf.getBaseUrl(), credentials);
+                        BitbucketProject project = searchResultCache.getProjectByNameOrKey(serverConf.getBaseUrl(),
+                                credentials, projectName, clientFactory);
                         return FormValidation.ok("Using '" + project.getName() + "' at " + project.getSelfLink());
                     } catch (NotFoundException e) {
                         return FormValidation.error("The project '" + projectName + "' does not exist or " +
@@ -134,13 +136,12 @@ public class BitbucketScmFormValidationDelegate implements BitbucketScmFormValid
         return bitbucketPluginConfiguration.getServerById(serverId)
                 .map(serverConf -> {
                     try {
+                        BitbucketCredentials credentials =
+                                jenkinsToBitbucketCredentials.toBitbucketCredentials(providedCredentials.get());
                         BitbucketClientFactory clientFactory = bitbucketClientFactoryProvider
-                                .getClient(
-                                        serverConf.getBaseUrl(),
-                                        jenkinsToBitbucketCredentials.toBitbucketCredentials(
-                                                providedCredentials.get()));
-                        BitbucketRepository repository =
-                                getRepositoryByNameOrSlug(projectName, repositoryName, clientFactory);
+                                .getClient(serverConf.getBaseUrl(), credentials);
+                        BitbucketRepository repository = searchResultCache.getRepositoryByNameOrSlug(
+                                serverConf.getBaseUrl(), credentials, projectName, repositoryName, clientFactory);
                         return FormValidation.ok("Using '" + repository.getName() + "' at " +
                                                  (isBlank(repository.getSelfLink()) ? serverConf.getBaseUrl() :
                                                          repository.getSelfLink()));
@@ -228,7 +229,12 @@ public class BitbucketScmFormValidationDelegate implements BitbucketScmFormValid
         return bitbucketPluginConfiguration.getServerById(serverId)
                 .flatMap(serverConfiguration ->
                         new BitbucketMirrorHandler(bitbucketClientFactoryProvider, jenkinsToBitbucketCredentials,
-                                (client, project, repo) -> getRepositoryByNameOrSlug(project, repo, client)).fetchAsListBox(
+                                // The mirror handler sends its requests with the credentials for this ID
+                                (client, project, repo) -> searchResultCache.getRepositoryByNameOrSlug(
+                                        serverConfiguration.getBaseUrl(),
+                                        jenkinsToBitbucketCredentials.toBitbucketCredentials(credentialsId), project,
+                                        repo, client))
+                                .fetchAsListBox(
                                 new MirrorFetchRequest(
                                         serverConfiguration.getBaseUrl(),
                                         credentialsId,
@@ -2,98 +2,278 @@ package com.atlassian.bitbucket.jenkins.internal.scm;
 
 import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactory;
 import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactoryProvider;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketLastKnownGoodCache;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketLastKnownGoodCache.LastKnownGood;
 import com.atlassian.bitbucket.jenkins.internal.client.exception.BitbucketClientException;
 import com.atlassian.bitbucket.jenkins.internal.client.exception.NotFoundException;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.RepositoryNotFoundException;
 import com.atlassian.bitbucket.jenkins.internal.credentials.BitbucketCredentials;
 import com.atlassian.bitbucket.jenkins.internal.model.BitbucketDefaultBranch;
 import com.atlassian.bitbucket.jenkins.internal.model.BitbucketProject;
 import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRepository;
 import com.atlassian.bitbucket.jenkins.internal.model.RepositoryState;
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketBulkRepositoryResolver.RepositoryReference;
 
+import javax.annotation.CheckForNull;
+import java.time.Clock;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
+import static com.atlassian.bitbucket.jenkins.internal.client.BitbucketLastKnownGoodCache.isUnavailable;
 import static com.atlassian.bitbucket.jenkins.internal.client.BitbucketSearchHelper.getProjectByNameOrKey;
 import static com.atlassian.bitbucket.jenkins.internal.client.BitbucketSearchHelper.getRepositoryByNameOrSlug;
+import static com.atlassian.bitbucket.jenkins.internal.client.BitbucketSearchHelper.getRepositoryByNameOrSlugSpeculatively;
+import static com.atlassian.bitbucket.jenkins.internal.credentials.CredentialUtils.toCacheKey;
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parseBooleanFromSystemProperty;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 
 public class BitbucketScmHelper {
 
+    /**
+     * Whether the ways of interpreting the project and repository names are all tried at the same time when looking
+     * up a repository, rather than one after the other. This usually takes a single round trip to Bitbucket instead
+     * of up to four, but makes more requests. Defaults to false.
+     *
+     * @since 3.2.0
+     */
+    public static final boolean SPECULATIVE_LOOKUP_ENABLED =
+            parseBooleanFromSystemProperty("bitbucket.repository.lookup.speculative.enabled", false);
     private static final Logger LOGGER = Logger.getLogger(BitbucketScmHelper.class.getName());
+    private final String bitbucketBaseUrl;
     private final BitbucketClientFactory clientFactory;
+    private final String credentialsKey;
+    private final BitbucketLastKnownGoodCache lastKnownGoodCache;
+    private final BitbucketRepositoryMetadataCache repositoryMetadataCache;
+    private final boolean speculativeLookup;
 
     public BitbucketScmHelper(String bitbucketBaseUrl,
                               BitbucketClientFactoryProvider bitbucketClientFactoryProvider,
                               BitbucketCredentials credentials) {
+        this(bitbucketBaseUrl, bitbucketClientFactoryProvider, credentials,
+                new BitbucketRepositoryMetadataCache(Clock.systemUTC()));
+    }
+
+    public BitbucketScmHelper(String bitbucketBaseUrl,
+                              BitbucketClientFactoryProvider bitbucketClientFactoryProvider,
+                              BitbucketCredentials credentials,
+                              BitbucketRepositoryMetadataCache repositoryMetadataCache) {
+        this(bitbucketBaseUrl, bitbucketClientFactoryProvider, credentials, repositoryMetadataCache, null);
+    }
+
+    /**
+     * @param lastKnownGoodCache if given, the repository details and default branches last read from Bitbucket are
+     *                           used while Bitbucket is unavailable, even after a restart
+     * @since 3.2.0
+     */
+    public BitbucketScmHelper(String bitbucketBaseUrl,
+                              BitbucketClientFactoryProvider bitbucketClientFactoryProvider,
+                              BitbucketCredentials credentials,
+                              BitbucketRepositoryMetadataCache repositoryMetadataCache,
+                              @CheckForNull BitbucketLastKnownGoodCache lastKnownGoodCache) {
+        this(bitbucketBaseUrl, bitbucketClientFactoryProvider, credentials, repositoryMetadataCache,
+                lastKnownGoodCache, SPECULATIVE_LOOKUP_ENABLED);
+    }
+
+    BitbucketScmHelper(String bitbucketBaseUrl,
+                       BitbucketClientFactoryProvider bitbucketClientFactoryProvider,
+                       BitbucketCredentials credentials,
+                       BitbucketRepositoryMetadataCache repositoryMetadataCache,
+                       @CheckForNull BitbucketLastKnownGoodCache lastKnownGoodCache,
+                       boolean speculativeLookup) {
+        this.bitbucketBaseUrl = bitbucketBaseUrl;
+        this.lastKnownGoodCache = lastKnownGoodCache;
+        this.repositoryMetadataCache = repositoryMetadataCache;
+        this.speculativeLookup = speculativeLookup;
         clientFactory = bitbucketClientFactoryProvider.getClient(bitbucketBaseUrl, credentials);
+        credentialsKey = toCacheKey(credentials);
     }
 
     public BitbucketRepository getRepository(String projectName, String repositoryName) {
+        return getRepository(projectName, repositoryName, false);
+    }
+
+    /**
+     * Looks up the repository like {@link #getRepository(String, String)}, but if Bitbucket couldn't be asked and
+     * there's no previously resolved repository to use instead, throws rather than returning a placeholder. This
+     * lets the caller tell a repository that doesn't exist from one that couldn't be looked up, and try again later.
+     *
+     * @param projectName    the project name or key
+     * @param repositoryName the repository name or slug
+     * @return the repository, or a placeholder with an ID of -1 if it doesn't exist
+     * @throws BitbucketClientException if Bitbucket couldn't be asked for the repository
+     * @since 3.2.0
+     */
+    public BitbucketRepository resolveRepository(String projectName, String repositoryName) {
+        return getRepository(projectName, repositoryName, true);
+    }
+
+    private BitbucketRepository getRepository(String projectName, String repositoryName,
+                                              boolean throwIfUnavailable) {
         if (isBlank(projectName) || isBlank(repositoryName)) {
             LOGGER.info("Error creating the Bitbucket SCM: The projectName and repositoryName must not be blank");
             return new BitbucketRepository(-1, repositoryName, null, new BitbucketProject(projectName, null, projectName),
                     repositoryName, RepositoryState.AVAILABLE);
         }
+        Optional<BitbucketRepository> cachedRepository =
+                repositoryMetadataCache.getIfFresh(bitbucketBaseUrl, credentialsKey, projectName, repositoryName);
+        if (cachedRepository.isPresent()) {
+            return cachedRepository.get();
+        }
+        if (speculativeLookup) {
+            return getRepositorySpeculatively(projectName, repositoryName, throwIfUnavailable);
+        }
+        BitbucketProject project;
         try {
-            BitbucketProject project = getProjectByNameOrKey(projectName, clientFactory);
-            try {
-                return getRepositoryByNameOrSlug(projectName, repositoryName, clientFactory);
-            } catch (NotFoundException e) {
-                LOGGER.info("Error creating the Bitbucket SCM: Cannot find the repository " + project.getName() + "/" +
-                            repositoryName);
-                return new BitbucketRepository(-1, repositoryName, null, project, repositoryName, RepositoryState.AVAILABLE);
-            } catch (BitbucketClientException e) {
-                // Something went wrong with the request to Bitbucket
-                LOGGER.info(
-                        "Error creating the Bitbucket SCM: Something went wrong when trying to contact Bitbucket Server: " +
-                        e.getMessage());
-                return new BitbucketRepository(-1, repositoryName, null, project, repositoryName, RepositoryState.AVAILABLE);
-            }
+            project = getProjectByNameOrKey(projectName, clientFactory);
         } catch (NotFoundException e) {
             LOGGER.info("Error creating the Bitbucket SCM: Cannot find the project " + projectName);
+            repositoryMetadataCache.invalidate(bitbucketBaseUrl, credentialsKey, projectName, repositoryName);
             return new BitbucketRepository(-1, repositoryName, null, new BitbucketProject(projectName, null, projectName), repositoryName, RepositoryState.AVAILABLE);
         } catch (BitbucketClientException e) {
-            // Something went wrong with the request to Bitbucket
-            LOGGER.info(
-                    "Error creating the Bitbucket SCM: Something went wrong when trying to contact Bitbucket Server: " +
-                    e.getMessage());
-            return new BitbucketRepository(-1, repositoryName, null, new BitbucketProject(projectName, null, projectName), repositoryName, RepositoryState.AVAILABLE);
+            return getUnavailableRepository(projectName, repositoryName,
+                    new BitbucketProject(projectName, null, projectName), e, throwIfUnavailable);
+        }
+        try {
+            BitbucketRepository repository = getRepositoryByNameOrSlug(projectName, repositoryName, clientFactory);
+            putRepository(projectName, repositoryName, repository);
+            return repository;
+        } catch (NotFoundException e) {
+            LOGGER.info("Error creating the Bitbucket SCM: Cannot find the repository " + project.getName() + "/" +
+                        repositoryName);
+            repositoryMetadataCache.invalidate(bitbucketBaseUrl, credentialsKey, projectName, repositoryName);
+            return new BitbucketRepository(-1, repositoryName, null, project, repositoryName, RepositoryState.AVAILABLE);
+        } catch (BitbucketClientException e) {
+            return getUnavailableRepository(projectName, repositoryName, project, e, throwIfUnavailable);
         }
     }
+
+    private BitbucketRepository getRepositorySpeculatively(String projectName, String repositoryName,
+                                                           boolean throwIfUnavailable) {
+        BitbucketProject project = new BitbucketProject(projectName, null, projectName);
+        try {
+            BitbucketRepository repository =
+                    getRepositoryByNameOrSlugSpeculatively(projectName, repositoryName, clientFactory);
+            putRepository(projectName, repositoryName, repository);
+            return repository;
+        } catch (RepositoryNotFoundException e) {
+            LOGGER.info("Error creating the Bitbucket SCM: " + e.getMessage());
+            project = e.getProject();
+        } catch (NotFoundException e) {
+            LOGGER.info("Error creating the Bitbucket SCM: Cannot find the project " + projectName);
+        } catch (BitbucketClientException e) {
+            return getUnavailableRepository(projectName, repositoryName, project, e, throwIfUnavailable);
+        }
+        // Every way of looking the repository up has already been tried, so there's no point asking again
+        repositoryMetadataCache.invalidate(bitbucketBaseUrl, credentialsKey, projectName, repositoryName);
+        return new BitbucketRepository(-1, repositoryName, null, project, repositoryName, RepositoryState.AVAILABLE);
+    }
+
+    /**
+     * Returns the repository to use when something went wrong with the request to Bitbucket: the one last resolved,
+     * if there is one, or otherwise a placeholder, unless the caller wants the exception instead.
+     */
+    private BitbucketRepository getUnavailableRepository(String projectName, String repositoryName,
+                                                         BitbucketProject project, BitbucketClientException e,
+                                                         boolean throwIfUnavailable) {
+        LOGGER.info(
+                "Error creating the Bitbucket SCM: Something went wrong when trying to contact Bitbucket Server: " +
+                e.getMessage());
+        Optional<BitbucketRepository> staleRepository = getStaleRepository(projectName, repositoryName, e);
+        if (!staleRepository.isPresent() && throwIfUnavailable) {
+            throw e;
+        }
+        return staleRepository.orElseGet(() -> new BitbucketRepository(-1, repositoryName, null, project,
+                repositoryName, RepositoryState.AVAILABLE));
+    }
     
+    /**
+     * Resolves many repositories at once, listing the repositories of each project only once. This should be preferred
+     * over {@link #getRepository(String, String)} when creating or updating a large number of jobs.
+     *
+     * @param references the project and repository names (or keys and slugs) to resolve
+     * @return the resolved repository for every reference
+     * @since 3.2.0
+     */
+    public Map<RepositoryReference, BitbucketRepository> getRepositories(Collection<RepositoryReference> references) {
+        return new BitbucketBulkRepositoryResolver(bitbucketBaseUrl, credentialsKey, clientFactory,
+                repositoryMetadataCache)
+                .resolve(references);
+    }
+
     public Optional<BitbucketDefaultBranch> getDefaultBranch(String projectName, String repositoryName) {
         if (isBlank(projectName) || isBlank(repositoryName)) {
             LOGGER.info("Error creating the Bitbucket SCM: The projectName and repositoryName must not be blank");
             return Optional.empty();
         }
+        BitbucketRepository repository = getRepository(projectName, repositoryName);
+        if (repository.getId() == -1) {
+            // The reason the repository could not be resolved has already been logged
+            return Optional.empty();
+        }
+        Supplier<BitbucketDefaultBranch> loader = () -> clientFactory
+                .getProjectClient(repository.getProject().getKey())
+                .getRepositoryClient(repository.getSlug())
+                .getDefaultBranch();
         try {
-            BitbucketProject project = getProjectByNameOrKey(projectName, clientFactory);
-            try {
-                BitbucketRepository repository = getRepositoryByNameOrSlug(project.getName(), repositoryName, clientFactory);
-                return Optional.of(clientFactory
-                            .getProjectClient(project.getKey())
-                            .getRepositoryClient(repository.getSlug())
-                            .getDefaultBranch());
-            } catch (NotFoundException e) {
-                LOGGER.info("Error creating the Bitbucket SCM: Cannot find the default branch for " + projectName + "/"
-                        + repositoryName);
-                return Optional.empty();
-            } catch (BitbucketClientException e) {
-                // Something went wrong with the request to Bitbucket
-                LOGGER.info(
-                        "Error creating the Bitbucket SCM: Something went wrong when trying to contact Bitbucket Server: "
-                                + e.getMessage());
-                return Optional.empty();
-            }   
+            if (lastKnownGoodCache == null) {
+                return Optional.of(loader.get());
+            }
+            LastKnownGood<BitbucketDefaultBranch> defaultBranch = lastKnownGoodCache.get("default-branch",
+                    bitbucketBaseUrl, credentialsKey, repository.getProject().getKey() + "/" + repository.getSlug(),
+                    loader);
+            if (defaultBranch.isStale()) {
+                LOGGER.fine("Using the default branch for " + projectName + "/" + repositoryName + " loaded at " +
+                            defaultBranch.getLoadedAt() + " while it is checked again");
+            }
+            return Optional.of(defaultBranch.getValue());
         } catch (NotFoundException e) {
-            LOGGER.info("Error creating the Bitbucket SCM: Cannot find the project " + projectName);
+            LOGGER.info("Error creating the Bitbucket SCM: Cannot find the default branch for " + projectName + "/"
+                    + repositoryName);
             return Optional.empty();
         } catch (BitbucketClientException e) {
             // Something went wrong with the request to Bitbucket
             LOGGER.info(
-                    "Error creating the Bitbucket SCM: Something went wrong when trying to contact Bitbucket Server: " +
-                    e.getMessage());
+                    "Error creating the Bitbucket SCM: Something went wrong when trying to contact Bitbucket Server: "
+                            + e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Only falls back to a previously resolved repository if Bitbucket is unavailable. Other errors (such as the
+     * credentials no longer having access) are not masked by the cache.
+     */
+    private Optional<BitbucketRepository> getStaleRepository(String projectName, String repositoryName,
+                                                             BitbucketClientException e) {
+        if (!isUnavailable(e)) {
             return Optional.empty();
         }
+        Optional<BitbucketRepository> staleRepository =
+                repositoryMetadataCache.getIfPresent(bitbucketBaseUrl, credentialsKey, projectName, repositoryName);
+        if (!staleRepository.isPresent() && lastKnownGoodCache != null) {
+            // Not in memory (such as straight after a restart), but it may have been resolved before
+            staleRepository = lastKnownGoodCache.<BitbucketRepository>getIfPresent("repository", bitbucketBaseUrl,
+                    credentialsKey, toRepositoryName(projectName, repositoryName)).map(LastKnownGood::getValue);
+        }
+        staleRepository.ifPresent(repository -> LOGGER.info("Using previously resolved details for the repository " +
+                                                           projectName + "/" + repositoryName));
+        return staleRepository;
+    }
+
+    private void putRepository(String projectName, String repositoryName, BitbucketRepository repository) {
+        repositoryMetadataCache.put(bitbucketBaseUrl, credentialsKey, projectName, repositoryName, repository);
+        if (lastKnownGoodCache != null) {
+            lastKnownGoodCache.put("repository", bitbucketBaseUrl, credentialsKey,
+                    toRepositoryName(projectName, repositoryName), repository);
+        }
+    }
+
+    private static String toRepositoryName(String projectName, String repositoryName) {
+        // Project and repository names and keys are case-insensitive in Bitbucket
+        return (projectName + "/" + repositoryName).toLowerCase(Locale.ROOT);
     }
 }
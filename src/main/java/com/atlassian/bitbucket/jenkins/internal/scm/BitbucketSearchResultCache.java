@@ -0,0 +1,274 @@
+package com.atlassian.bitbucket.jenkins.internal.scm;
+
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactory;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketSearchHelper;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.BitbucketClientException;
+import com.atlassian.bitbucket.jenkins.internal.credentials.BitbucketCredentials;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketPage;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketProject;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRepository;
+
+import javax.annotation.CheckForNull;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.time.Clock;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static com.atlassian.bitbucket.jenkins.internal.credentials.CredentialUtils.toCacheKey;
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parsePositiveLongFromSystemProperty;
+import static java.util.Objects.requireNonNull;
+import static org.apache.commons.lang3.StringUtils.containsIgnoreCase;
+import static org.apache.commons.lang3.StringUtils.stripToEmpty;
+
+/**
+ * Caches the results of the searches and lookups made while users fill in and validate the Bitbucket SCM forms. These
+ * run on every keystroke and every time a field loses focus, for every user editing a job, so without a cache they put
+ * a noticeable load on the Bitbucket search endpoints.
+ * <p>
+ * Results are cached per server, credentials and query for {@link #CACHE_TTL} ms. They are kept apart by the
+ * credentials the requests are sent with rather than by credentials ID, as the same ID can refer to different
+ * credentials in different folders or user stores, which can see different projects and repositories. If the results of a shorter query
+ * were complete (they all fit on one page), the results of a longer query starting with it are filtered from them
+ * rather than searching again. Identical requests made at the same time share a single call to Bitbucket. Failures
+ * are never cached.
+ *
+ * @since 3.2.0
+ */
+@Singleton
+public class BitbucketSearchResultCache {
+
+    /**
+     * How long search results are used without searching Bitbucket again. Defaults to 30 seconds in ms.
+     */
+    public static final long CACHE_TTL =
+            parsePositiveLongFromSystemProperty("bitbucket.search.cache.ttl", TimeUnit.SECONDS.toMillis(30));
+
+    private final Clock clock;
+    private final Map<CacheKey, CacheEntry> entries = new ConcurrentHashMap<>();
+    private final Map<CacheKey, CompletableFuture<CacheEntry>> inFlight = new ConcurrentHashMap<>();
+
+    @Inject
+    public BitbucketSearchResultCache(Clock clock) {
+        this.clock = requireNonNull(clock, "clock");
+    }
+
+    /**
+     * Searches for projects whose name contains the given query, as {@link BitbucketSearchHelper#findProjects} does.
+     *
+     * @param baseUrl       the base URL of the Bitbucket instance
+     * @param credentials   the credentials the search is made with
+     * @param projectName   the query
+     * @param clientFactory the client factory to search with if there are no cached results
+     * @return the matching projects
+     * @throws BitbucketClientException if the search failed
+     */
+    public Collection<BitbucketProject> findProjects(String baseUrl, BitbucketCredentials credentials,
+                                                     String projectName, BitbucketClientFactory clientFactory) {
+        return find(SearchType.PROJECTS, baseUrl, credentials, "", projectName,
+                () -> clientFactory.getSearchClient(projectName).findProjects(), BitbucketProject::getName);
+    }
+
+    /**
+     * Searches for repositories in a project whose name contains the given query, as
+     * {@link BitbucketSearchHelper#findRepositories} does.
+     *
+     * @param baseUrl        the base URL of the Bitbucket instance
+     * @param credentials    the credentials the search is made with
+     * @param projectName    the name of the project to search in
+     * @param repositoryName the query
+     * @param clientFactory  the client factory to search with if there are no cached results
+     * @return the matching repositories
+     * @throws BitbucketClientException if the search failed
+     */
+    public Collection<BitbucketRepository> findRepositories(String baseUrl, BitbucketCredentials credentials,
+                                                            String projectName, String repositoryName,
+                                                            BitbucketClientFactory clientFactory) {
+        return find(SearchType.REPOSITORIES, baseUrl, credentials, projectName, repositoryName,
+                () -> clientFactory.getSearchClient(projectName).findRepositories(repositoryName),
+                BitbucketRepository::getName);
+    }
+
+    /**
+     * Looks up a project as {@link BitbucketSearchHelper#getProjectByNameOrKey} does.
+     *
+     * @throws BitbucketClientException if the project could not be found or the lookup failed
+     */
+    public BitbucketProject getProjectByNameOrKey(String baseUrl, BitbucketCredentials credentials,
+                                                  String projectNameOrKey, BitbucketClientFactory clientFactory) {
+        return (BitbucketProject) loadValue(
+                new CacheKey(SearchType.PROJECT, baseUrl, credentials, "", projectNameOrKey),
+                () -> BitbucketSearchHelper.getProjectByNameOrKey(projectNameOrKey, clientFactory)).value;
+    }
+
+    /**
+     * Looks up a repository as {@link BitbucketSearchHelper#getRepositoryByNameOrSlug} does.
+     *
+     * @throws BitbucketClientException if the repository could not be found or the lookup failed
+     */
+    public BitbucketRepository getRepositoryByNameOrSlug(String baseUrl, BitbucketCredentials credentials,
+                                                         String projectNameOrKey, String repositoryNameOrSlug,
+                                                         BitbucketClientFactory clientFactory) {
+        return (BitbucketRepository) loadValue(
+                new CacheKey(SearchType.REPOSITORY, baseUrl, credentials, projectNameOrKey, repositoryNameOrSlug),
+                () -> BitbucketSearchHelper.getRepositoryByNameOrSlug(projectNameOrKey, repositoryNameOrSlug,
+                        clientFactory)).value;
+    }
+
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> Collection<T> find(SearchType type, String baseUrl, BitbucketCredentials credentials, String scope,
+                                   String query, Supplier<BitbucketPage<T>> search,
+                                   Function<T, String> name) {
+        String strippedQuery = stripToEmpty(query);
+        // Bitbucket matches anywhere in the name, so everything that matches this query also matches any shorter
+        // query it starts with
+        for (int length = strippedQuery.length() - 1; length > 0; length--) {
+            CacheEntry shorter = getIfFresh(
+                    new CacheKey(type, baseUrl, credentials, scope, strippedQuery.substring(0, length)));
+            if (shorter != null && shorter.complete) {
+                return ((Collection<T>) shorter.value).stream()
+                        .filter(result -> containsIgnoreCase(name.apply(result), strippedQuery))
+                        .collect(Collectors.toList());
+            }
+        }
+        CacheEntry entry = load(new CacheKey(type, baseUrl, credentials, scope, strippedQuery), () -> {
+            BitbucketPage<T> page = search.get();
+            return new CacheEntry(page.getValues(), page.isLastPage(), clock.millis());
+        });
+        return (Collection<T>) entry.value;
+    }
+
+    @CheckForNull
+    private CacheEntry getIfFresh(CacheKey key) {
+        CacheEntry entry = entries.get(key);
+        if (entry != null && clock.millis() - entry.loadedAt >= CACHE_TTL) {
+            entries.remove(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    private CacheEntry loadValue(CacheKey key, Supplier<Object> loader) {
+        return load(key, () -> new CacheEntry(loader.get(), true, clock.millis()));
+    }
+
+    private CacheEntry load(CacheKey key, Loader loader) {
+        CacheEntry entry = getIfFresh(key);
+        if (entry != null) {
+            return entry;
+        }
+        CompletableFuture<CacheEntry> future = new CompletableFuture<>();
+        CompletableFuture<CacheEntry> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            // Someone else is already asking Bitbucket the same thing, so wait for their answer
+            return join(existing);
+        }
+        try {
+            entry = loader.load();
+            purgeExpired();
+            entries.put(key, entry);
+            future.complete(entry);
+            return entry;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    private static CacheEntry join(CompletableFuture<CacheEntry> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BitbucketClientException("Interrupted while waiting for Bitbucket", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new BitbucketClientException("Unexpected error searching Bitbucket", e.getCause());
+        }
+    }
+
+    private void purgeExpired() {
+        long now = clock.millis();
+        entries.values().removeIf(entry -> now - entry.loadedAt >= CACHE_TTL);
+    }
+
+    private enum SearchType {
+        PROJECT,
+        PROJECTS,
+        REPOSITORIES,
+        REPOSITORY
+    }
+
+    @FunctionalInterface
+    private interface Loader {
+
+        CacheEntry load();
+    }
+
+    private static final class CacheEntry {
+
+        private final boolean complete;
+        private final long loadedAt;
+        private final Object value;
+
+        private CacheEntry(Object value, boolean complete, long loadedAt) {
+            this.complete = complete;
+            this.loadedAt = loadedAt;
+            this.value = value;
+        }
+    }
+
+    private static final class CacheKey {
+
+        private final String baseUrl;
+        private final String credentialsKey;
+        private final String query;
+        private final String scope;
+        private final SearchType type;
+
+        private CacheKey(SearchType type, String baseUrl, BitbucketCredentials credentials, String scope,
+                         String query) {
+            this.baseUrl = baseUrl.toLowerCase(Locale.ROOT);
+            this.credentialsKey = toCacheKey(credentials);
+            // Project and repository names are case-insensitive in Bitbucket
+            this.query = stripToEmpty(query).toLowerCase(Locale.ROOT);
+            this.scope = stripToEmpty(scope).toLowerCase(Locale.ROOT);
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            CacheKey that = (CacheKey) o;
+            return type == that.type &&
+                   baseUrl.equals(that.baseUrl) &&
+                   credentialsKey.equals(that.credentialsKey) &&
+                   scope.equals(that.scope) &&
+                   query.equals(that.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, baseUrl, credentialsKey, scope, query);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.atlassian.bitbucket.jenkins.internal.scm.filesystem;
+
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketFilePathClient;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketLastKnownGoodCache;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketLastKnownGoodCache.LastKnownGood;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.BitbucketClientException;
+import hudson.model.Executor;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import jenkins.scm.api.SCMFile;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.atlassian.bitbucket.jenkins.internal.client.BitbucketLastKnownGoodCache.isUnavailable;
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parseBooleanFromSystemProperty;
+import static java.lang.String.format;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Reads files from Bitbucket as usual, but if Bitbucket is unavailable serves the contents the file had the last time
+ * it was read, so pipelines (whose Jenkinsfile is read through a lightweight checkout) can still start during a short
+ * Bitbucket outage. Files are always read from Bitbucket while it is up, so their contents are never out of date then.
+ * <p>
+ * When the commit being built is known, files are kept by commit, so a build only ever gets the contents the file had
+ * at that commit. Otherwise they are kept by branch or tag, and a warning that the contents may be out of date is
+ * written to the build log when they are used.
+ * <p>
+ * Only small files are kept, as the files read this way are normally just the Jenkinsfile and the files it loads.
+ * Directory listings are not kept.
+ *
+ * @since 3.2.0
+ */
+class BitbucketLastKnownGoodFilePathClient implements BitbucketFilePathClient {
+
+    /**
+     * Whether files are kept for when Bitbucket is unavailable. Defaults to true.
+     */
+    static final boolean ENABLED = parseBooleanFromSystemProperty("bitbucket.lastknowngood.files.enabled", true);
+    /**
+     * Files longer than this (in characters) are not kept for when Bitbucket is unavailable.
+     */
+    static final int MAX_CACHED_FILE_LENGTH = 64 * 1024;
+    private static final Logger LOGGER = Logger.getLogger(BitbucketLastKnownGoodFilePathClient.class.getName());
+
+    private final String baseUrl;
+    private final Supplier<TaskListener> buildListener;
+    private final String commitId;
+    private final String credentialsKey;
+    private final BitbucketFilePathClient delegate;
+    private final BitbucketLastKnownGoodCache lastKnownGoodCache;
+    private final String repositoryName;
+
+    /**
+     * @param commitId the commit being built, or {@code null} if it isn't known
+     */
+    BitbucketLastKnownGoodFilePathClient(BitbucketFilePathClient delegate,
+                                         BitbucketLastKnownGoodCache lastKnownGoodCache, String baseUrl,
+                                         String credentialsKey, String projectKey, String repositorySlug,
+                                         @CheckForNull String commitId) {
+        this(delegate, lastKnownGoodCache, baseUrl, credentialsKey, projectKey, repositorySlug, commitId,
+                BitbucketLastKnownGoodFilePathClient::getBuildListener);
+    }
+
+    /**
+     * @param buildListener the listener of the build reading the files, which returns {@code null} outside a build
+     */
+    BitbucketLastKnownGoodFilePathClient(BitbucketFilePathClient delegate,
+                                         BitbucketLastKnownGoodCache lastKnownGoodCache, String baseUrl,
+                                         String credentialsKey, String projectKey, String repositorySlug,
+                                         @CheckForNull String commitId, Supplier<TaskListener> buildListener) {
+        this.baseUrl = requireNonNull(baseUrl, "baseUrl");
+        this.buildListener = requireNonNull(buildListener, "buildListener");
+        this.commitId = commitId;
+        this.credentialsKey = requireNonNull(credentialsKey, "credentialsKey");
+        this.delegate = requireNonNull(delegate, "delegate");
+        this.lastKnownGoodCache = requireNonNull(lastKnownGoodCache, "lastKnownGoodCache");
+        repositoryName = projectKey + "/" + repositorySlug;
+    }
+
+    @Override
+    public List<SCMFile> getDirectoryContent(BitbucketSCMFile scmFile) {
+        return delegate.getDirectoryContent(scmFile);
+    }
+
+    @Override
+    public String getFileContent(BitbucketSCMFile scmFile) {
+        String name = repositoryName + "/" + scmFile.getFilePath() + "@" +
+                      (commitId == null ? scmFile.getRef().orElse("") : commitId);
+        try {
+            String content = delegate.getFileContent(scmFile);
+            if (content.length() <= MAX_CACHED_FILE_LENGTH) {
+                lastKnownGoodCache.put("file", baseUrl, credentialsKey, name, content);
+            }
+            return content;
+        } catch (BitbucketClientException e) {
+            if (!isUnavailable(e)) {
+                throw e;
+            }
+            Optional<LastKnownGood<String>> content = lastKnownGoodCache.getIfPresent("file", baseUrl,
+                    credentialsKey, name);
+            if (!content.isPresent()) {
+                throw e;
+            }
+            String message = format("Bitbucket Server is unavailable, using the contents of %s last read at %s",
+                    name, new Date(content.get().getLoadedAt()));
+            if (commitId == null) {
+                message += ". The commit being built isn't known, so they may be out of date";
+            }
+            LOGGER.info(message);
+            TaskListener listener = buildListener.get();
+            if (listener != null) {
+                listener.getLogger().println("WARNING: " + message);
+            }
+            return content.get().getValue();
+        }
+    }
+
+    @CheckForNull
+    private static TaskListener getBuildListener() {
+        Executor executor = Executor.currentExecutor();
+        Queue.Executable executable = executor == null ? null : executor.getCurrentExecutable();
+        if (executable instanceof FlowExecutionOwner.Executable) {
+            try {
+                FlowExecutionOwner owner = ((FlowExecutionOwner.Executable) executable).asFlowExecutionOwner();
+                return owner == null ? null : owner.getListener();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to get the listener of " + executable, e);
+            }
+        }
+        return null;
+    }
+}
@@ -2,8 +2,10 @@ package com.atlassian.bitbucket.jenkins.internal.scm.filesystem;
 
 import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactoryProvider;
 import com.atlassian.bitbucket.jenkins.internal.client.BitbucketFilePathClient;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketLastKnownGoodCache;
 import com.atlassian.bitbucket.jenkins.internal.config.BitbucketPluginConfiguration;
 import com.atlassian.bitbucket.jenkins.internal.config.BitbucketServerConfiguration;
+import com.atlassian.bitbucket.jenkins.internal.credentials.BitbucketCredentials;
 import com.atlassian.bitbucket.jenkins.internal.credentials.JenkinsToBitbucketCredentials;
 import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCM;
 import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCMRepository;
@@ -15,6 +17,7 @@ import hudson.plugins.git.BranchSpec;
 import hudson.scm.SCM;
 import hudson.scm.SCMDescriptor;
 import hudson.util.FormValidation.Kind;
+import jenkins.plugins.git.AbstractGitSCMSource.SCMRevisionImpl;
 import jenkins.plugins.git.GitBranchSCMHead;
 import jenkins.scm.api.*;
 
@@ -25,6 +28,7 @@ import java.util.List;
 import java.util.Optional;
 import java.util.logging.Logger;
 
+import static com.atlassian.bitbucket.jenkins.internal.credentials.CredentialUtils.toCacheKey;
 import static org.eclipse.jgit.lib.Constants.*;
 
 /**
@@ -63,6 +67,8 @@ public class BitbucketSCMFileSystem extends SCMFileSystem {
         @Inject
         JenkinsToBitbucketCredentials jenkinsToBitbucketCredentials;
         @Inject
+        BitbucketLastKnownGoodCache lastKnownGoodCache;
+        @Inject
         BitbucketPluginConfiguration pluginConfiguration;
 
         // Pipeline SCM jobs will only build on lightweight if the branch selector points to a specific branch or tag
@@ -84,12 +90,15 @@ public class BitbucketSCMFileSystem extends SCMFileSystem {
 
             BitbucketSCMRepository repository = bitbucketSCM.getBitbucketSCMRepository();
 
+            BitbucketCredentials credentials =
+                    jenkinsToBitbucketCredentials.toBitbucketCredentials(repository.getCredentialsId(), item);
             BitbucketFilePathClient filePathClient =
-                    clientFactoryProvider.getClient(maybeServerConfiguration.get().getBaseUrl(),
-                            jenkinsToBitbucketCredentials.toBitbucketCredentials(repository.getCredentialsId(), item))
+                    clientFactoryProvider.getClient(maybeServerConfiguration.get().getBaseUrl(), credentials)
                             .getProjectClient(repository.getProjectKey())
                             .getRepositoryClient(repository.getRepositorySlug())
                             .getFilePathClient();
+            filePathClient = withLastKnownGood(filePathClient, maybeServerConfiguration.get().getBaseUrl(),
+                    credentials, repository, scmRevision);
 
             return new BitbucketSCMFileSystem(filePathClient, null, bitbucketSCM.getBranches().get(0).toString());
         }
@@ -115,12 +124,15 @@ public class BitbucketSCMFileSystem extends SCMFileSystem {
             }
             BitbucketSCMRepository repository = bitbucketSCMSource.getBitbucketSCMRepository();
 
+            BitbucketCredentials credentials = jenkinsToBitbucketCredentials.toBitbucketCredentials(
+                    repository.getCredentialsId(), bitbucketSCMSource.getOwner());
             BitbucketFilePathClient filePathClient =
-                    clientFactoryProvider.getClient(maybeServerConfiguration.get().getBaseUrl(),
-                            jenkinsToBitbucketCredentials.toBitbucketCredentials(repository.getCredentialsId(), bitbucketSCMSource.getOwner()))
+                    clientFactoryProvider.getClient(maybeServerConfiguration.get().getBaseUrl(), credentials)
                             .getProjectClient(repository.getProjectKey())
                             .getRepositoryClient(repository.getRepositorySlug())
                             .getFilePathClient();
+            filePathClient = withLastKnownGood(filePathClient, maybeServerConfiguration.get().getBaseUrl(),
+                    credentials, repository, scmRevision);
 
             if (scmRevision != null && scmRevision.getHead() instanceof GitBranchSCMHead) {
                 return new BitbucketSCMFileSystem(filePathClient, scmRevision, ((GitBranchSCMHead) scmRevision.getHead()).getRef());
@@ -131,6 +143,18 @@ public class BitbucketSCMFileSystem extends SCMFileSystem {
             return null;
         }
 
+        private BitbucketFilePathClient withLastKnownGood(BitbucketFilePathClient filePathClient, String baseUrl,
+                                                          BitbucketCredentials credentials,
+                                                          BitbucketSCMRepository repository,
+                                                          @CheckForNull SCMRevision scmRevision) {
+            if (lastKnownGoodCache == null || !BitbucketLastKnownGoodFilePathClient.ENABLED) {
+                return filePathClient;
+            }
+            String commitId = scmRevision instanceof SCMRevisionImpl ? ((SCMRevisionImpl) scmRevision).getHash() : null;
+            return new BitbucketLastKnownGoodFilePathClient(filePathClient, lastKnownGoodCache, baseUrl,
+                    toCacheKey(credentials), repository.getProjectKey(), repository.getRepositorySlug(), commitId);
+        }
+
         @Override
         public boolean supports(SCM scm) {
             if (scm instanceof BitbucketSCM) {
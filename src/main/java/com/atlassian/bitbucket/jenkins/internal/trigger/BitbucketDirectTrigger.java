@@ -0,0 +1,234 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCM;
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCMRepository;
+import hudson.model.Job;
+import hudson.plugins.git.BranchSpec;
+import hudson.plugins.git.extensions.GitSCMExtension;
+import hudson.plugins.git.extensions.impl.MessageExclusion;
+import hudson.plugins.git.extensions.impl.PathRestriction;
+import hudson.plugins.git.extensions.impl.UserExclusion;
+import hudson.scm.SCM;
+import jenkins.triggers.SCMTriggerItem;
+import org.eclipse.jgit.lib.ObjectId;
+
+import javax.annotation.CheckForNull;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.atlassian.bitbucket.jenkins.internal.status.BitbucketRevisionAction.REF_PREFIX;
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parseBooleanFromSystemProperty;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * Decides whether to build a job from the ref and commit in a webhook, rather than polling Bitbucket for them. A push
+ * webhook already says which branch was pushed to and which commit it now points at, so for a job building a single
+ * repository that can be checked against the job's branch specifiers and the commit it last built. If the job should
+ * be built, it's built with that commit pinned, and Bitbucket isn't asked for its branches at all.
+ * <p>
+ * Whenever the webhook isn't enough to go on, the job is polled as usual. That's the case for pull requests (the
+ * branch may be in a fork), pushes to several refs at once, pushes to tags, jobs with more than one repository or
+ * cloning from a mirror, branch specifiers using variables, and jobs with extensions that look at the changes
+ * themselves, such as included or excluded regions. A job triggered again before it has been dealt with is polled
+ * too, as the webhook it would be built from may no longer be the latest.
+ * <p>
+ * This is disabled by default.
+ *
+ * @since 3.2.0
+ */
+@Singleton
+public class BitbucketDirectTrigger {
+
+    /**
+     * Whether to decide whether to build jobs from webhooks without polling. Defaults to {@code false}.
+     */
+    public static final boolean ENABLED = parseBooleanFromSystemProperty("bitbucket.trigger.direct.enabled", false);
+
+    private final boolean enabled;
+    private final AtomicLong built = new AtomicLong();
+    private final AtomicLong polled = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    @Inject
+    public BitbucketDirectTrigger() {
+        this(ENABLED);
+    }
+
+    BitbucketDirectTrigger(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Decides whether the job should be built for the request without polling.
+     *
+     * @param job         the job
+     * @param triggerItem the job as a trigger item
+     * @param request     the latest request to trigger the job
+     * @return what to do, or {@code null} if the job needs polling
+     */
+    @CheckForNull
+    public Decision decide(Job<?, ?> job, SCMTriggerItem triggerItem,
+                           @CheckForNull BitbucketWebhookTriggerRequest request) {
+        if (!enabled) {
+            return null;
+        }
+        String branch = getBranch(request);
+        BitbucketSCM scm = getBitbucketSCM(triggerItem);
+        if (branch == null || scm == null) {
+            polled.incrementAndGet();
+            return null;
+        }
+        BitbucketSCMRepository repository = scm.getRepositories().get(0);
+        String commit = request.getCommit().get();
+        if (!ObjectId.isId(commit)) {
+            polled.incrementAndGet();
+            return null;
+        }
+        // The remote is named after the repository, see BitbucketSCM
+        String remoteName = repository.getRepositorySlug();
+        if (!matches(scm.getBranches(), remoteName, branch)) {
+            skipped.incrementAndGet();
+            return new Decision(remoteName, branch, commit, false);
+        }
+        String builtCommit = BitbucketStartupReconciler.getLastBuiltRevisions(job.getLastBuild(), repository)
+                .get(branch);
+        if (commit.equalsIgnoreCase(builtCommit)) {
+            skipped.incrementAndGet();
+            return new Decision(remoteName, branch, commit, false);
+        }
+        built.incrementAndGet();
+        return new Decision(remoteName, branch, commit, true);
+    }
+
+    /**
+     * @return the number of jobs built without polling
+     */
+    public long getBuilt() {
+        return built.get();
+    }
+
+    /**
+     * @return the number of jobs that were polled, as the webhook wasn't enough to decide whether to build them
+     */
+    public long getPolled() {
+        return polled.get();
+    }
+
+    /**
+     * @return the number of jobs not built, without polling, as the branch isn't one they build or they've already
+     * built the commit
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the SCM of the job, if it has a single {@link BitbucketSCM} for a single repository that isn't cloned
+     * from a mirror, and nothing that needs variables expanded or to look at the changes
+     */
+    @CheckForNull
+    private static BitbucketSCM getBitbucketSCM(SCMTriggerItem triggerItem) {
+        Collection<? extends SCM> scms = triggerItem.getSCMs();
+        if (scms.size() != 1) {
+            return null;
+        }
+        SCM scm = scms.iterator().next();
+        if (!(scm instanceof BitbucketSCM)) {
+            return null;
+        }
+        BitbucketSCM bitbucketSCM = (BitbucketSCM) scm;
+        // Mirrors may not have the commit yet, so they're polled like any other job
+        if (bitbucketSCM.getRepositories().size() != 1 || !isBlank(bitbucketSCM.getMirrorName()) ||
+            bitbucketSCM.getBranches().isEmpty()) {
+            return null;
+        }
+        for (BranchSpec branchSpec : bitbucketSCM.getBranches()) {
+            if (branchSpec.getName().contains("$")) {
+                return null;
+            }
+        }
+        for (GitSCMExtension extension : bitbucketSCM.getExtensions()) {
+            if (extension instanceof PathRestriction || extension instanceof UserExclusion ||
+                extension instanceof MessageExclusion) {
+                return null;
+            }
+        }
+        return bitbucketSCM;
+    }
+
+    /**
+     * @return the name of the branch the request is for, if it's for a push of a single branch
+     */
+    @CheckForNull
+    private static String getBranch(@CheckForNull BitbucketWebhookTriggerRequest request) {
+        if (request == null || request.isPullRequest() || !request.getCommit().isPresent()) {
+            return null;
+        }
+        String refId = request.getRefId().orElse("");
+        // Several refs pushed at once are separated by commas
+        if (!refId.startsWith(REF_PREFIX) || refId.indexOf(',') >= 0) {
+            return null;
+        }
+        return refId.substring(REF_PREFIX.length());
+    }
+
+    /**
+     * Checks whether any of the branch specifiers match the branch. Like polling, both the full name of the ref and
+     * the name of the remote branch are tried, the remote being named after the repository.
+     */
+    private static boolean matches(List<BranchSpec> branchSpecs, String remoteName, String branch) {
+        for (BranchSpec branchSpec : branchSpecs) {
+            if (branchSpec.matches(REF_PREFIX + branch) || branchSpec.matches(remoteName + '/' + branch)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether to build a job for a webhook, and which commit to build.
+     */
+    public static final class Decision {
+
+        private final String branch;
+        private final boolean build;
+        private final String commit;
+        private final String remoteName;
+
+        Decision(String remoteName, String branch, String commit, boolean build) {
+            this.branch = branch;
+            this.build = build;
+            this.commit = commit;
+            this.remoteName = remoteName;
+        }
+
+        public String getBranch() {
+            return branch;
+        }
+
+        /**
+         * @return the name of the branch as the job's clone knows it, such as {@code repo/master}
+         */
+        public String getRemoteBranch() {
+            return remoteName + '/' + branch;
+        }
+
+        public String getCommit() {
+            return commit;
+        }
+
+        /**
+         * @return {@code true} if the job should be built for the commit, or {@code false} if it shouldn't be built
+         */
+        public boolean isBuild() {
+            return build;
+        }
+    }
+}
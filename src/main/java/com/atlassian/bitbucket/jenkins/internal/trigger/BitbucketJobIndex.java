@@ -0,0 +1,352 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketNamedLink;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRepository;
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCM;
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCMRepository;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.plugins.git.GitSCM;
+import hudson.scm.SCM;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import jenkins.model.Jenkins;
+import jenkins.model.ParameterizedJobMixIn.ParameterizedJob;
+import jenkins.triggers.SCMTriggerItem;
+import jenkins.util.Timer;
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.URIish;
+import org.jenkinsci.plugins.workflow.cps.CpsScmFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+
+import javax.annotation.CheckForNull;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
+
+/**
+ * An index from Bitbucket repositories (by project key and repository slug) and clone URLs to the jobs with a
+ * {@link BitbucketWebhookTriggerImpl Bitbucket webhook trigger} building them, so a webhook only has to look at the
+ * jobs for its repository rather than every job in Jenkins.
+ * <p>
+ * The index is built when Jenkins has loaded its jobs (or in the background when it is first used, if that is sooner)
+ * and kept up to date as jobs are created, saved, moved and deleted. Until it has been built, every job with a webhook
+ * trigger is returned. It is only used to narrow down the jobs a webhook could trigger; the webhook consumer still
+ * checks each of them, so a job indexed under a repository it no longer builds is harmless. Clone URLs are indexed
+ * {@link BitbucketWebhookConsumer#normalizeCloneUrl normalised} the same way the consumer matches them.
+ * Jobs whose {@link BitbucketSCM} hasn't been looked up in Bitbucket yet can't be indexed by repository, and are
+ * returned for every webhook until they have been.
+ *
+ * @since 3.2.0
+ */
+@Singleton
+public class BitbucketJobIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(BitbucketJobIndex.class.getName());
+
+    private final Map<String, Set<String>> jobsByKey = new HashMap<>();
+    private final Map<String, Set<String>> keysByJob = new HashMap<>();
+    private final AtomicBoolean rebuildQueued = new AtomicBoolean();
+    private final Set<String> unresolvedJobs = new HashSet<>();
+    private volatile boolean built;
+
+    /**
+     * Returns the jobs with a webhook trigger that may build the repository. The caller is expected to check whether
+     * they actually do.
+     *
+     * @param repository the repository from the webhook
+     * @return the jobs that may build the repository
+     */
+    public Collection<ParameterizedJob<?, ?>> getJobs(BitbucketRepository repository) {
+        return getJobs(getRepositoryKeys(repository));
+    }
+
+    /**
+     * Returns the jobs with a webhook trigger that may use a {@link BitbucketSCM} for the repository. The caller is
+     * expected to check whether they actually do, and on which server.
+     *
+     * @param projectKey     the key of the project the repository is in
+     * @param repositorySlug the slug of the repository
+     * @return the jobs that may use the repository
+     */
+    public Collection<ParameterizedJob<?, ?>> getJobs(String projectKey, String repositorySlug) {
+        return getJobs(singleton(bitbucketKey(projectKey, repositorySlug)));
+    }
+
+    /**
+     * Indexes every job in Jenkins again.
+     */
+    public void rebuild() {
+        Map<String, Set<String>> keys = new HashMap<>();
+        Set<String> unresolved = new HashSet<>();
+        try (ACLContext ignored = ACL.as(ACL.SYSTEM)) {
+            for (ParameterizedJob<?, ?> job : Jenkins.get().getAllItems(ParameterizedJob.class)) {
+                Optional<Set<String>> jobKeys = getJobKeys(job);
+                if (jobKeys.isPresent()) {
+                    if (!jobKeys.get().isEmpty()) {
+                        keys.put(job.getFullName(), jobKeys.get());
+                    }
+                } else {
+                    unresolved.add(job.getFullName());
+                }
+            }
+        }
+        synchronized (this) {
+            jobsByKey.clear();
+            keysByJob.clear();
+            unresolvedJobs.clear();
+            keys.forEach(this::put);
+            unresolvedJobs.addAll(unresolved);
+            built = true;
+        }
+        LOGGER.fine(() -> "Indexed " + keys.size() + " jobs with a Bitbucket webhook trigger");
+    }
+
+    void update(Item item) {
+        if (!(item instanceof ParameterizedJob)) {
+            return;
+        }
+        String name = item.getFullName();
+        Optional<Set<String>> keys = getJobKeys((ParameterizedJob<?, ?>) item);
+        synchronized (this) {
+            removeKeys(name);
+            if (keys.isPresent()) {
+                put(name, keys.get());
+            } else {
+                unresolvedJobs.add(name);
+            }
+        }
+    }
+
+    /**
+     * Removes the item, and anything in it if it is a folder.
+     */
+    synchronized void remove(String fullName) {
+        String prefix = fullName + "/";
+        Set<String> names = new HashSet<>(keysByJob.keySet());
+        names.addAll(unresolvedJobs);
+        names.stream()
+                .filter(name -> name.equals(fullName) || name.startsWith(prefix))
+                .forEach(this::removeKeys);
+    }
+
+    private Collection<ParameterizedJob<?, ?>> getJobs(Set<String> keys) {
+        if (!built) {
+            // Indexing every job can take a while, so rather than hold up the webhook it is done in the background
+            queueRebuild();
+            try (ACLContext ignored = ACL.as(ACL.SYSTEM)) {
+                return Jenkins.get().getAllItems(ParameterizedJob.class).stream()
+                        .filter(job -> getTrigger(job) != null)
+                        .collect(Collectors.toList());
+            }
+        }
+        Set<String> names = new LinkedHashSet<>();
+        Set<String> unresolved;
+        synchronized (this) {
+            for (String key : keys) {
+                names.addAll(jobsByKey.getOrDefault(key, emptySet()));
+            }
+            unresolved = new HashSet<>(unresolvedJobs);
+        }
+        names.addAll(unresolved);
+
+        Jenkins jenkins = Jenkins.get();
+        List<ParameterizedJob<?, ?>> jobs = new ArrayList<>(names.size());
+        try (ACLContext ignored = ACL.as(ACL.SYSTEM)) {
+            for (String name : names) {
+                ParameterizedJob<?, ?> job = jenkins.getItemByFullName(name, ParameterizedJob.class);
+                if (job == null) {
+                    remove(name);
+                    continue;
+                }
+                if (unresolved.contains(name)) {
+                    // The repository may have been looked up since the job was indexed
+                    update(job);
+                }
+                jobs.add(job);
+            }
+        }
+        return jobs;
+    }
+
+    private void queueRebuild() {
+        if (!rebuildQueued.compareAndSet(false, true)) {
+            return;
+        }
+        Timer.get().submit(() -> {
+            try {
+                if (!built) {
+                    rebuild();
+                }
+            } finally {
+                rebuildQueued.set(false);
+            }
+        });
+    }
+
+    @CheckForNull
+    static BitbucketWebhookTriggerImpl getTrigger(ParameterizedJob<?, ?> job) {
+        return job.getTriggers().values().stream()
+                .filter(BitbucketWebhookTriggerImpl.class::isInstance)
+                .map(BitbucketWebhookTriggerImpl.class::cast)
+                .findFirst()
+                .orElse(null);
+    }
+
+    static Collection<? extends SCM> getScms(ParameterizedJob<?, ?> job) {
+        SCMTriggerItem triggerItem = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(job);
+        if (triggerItem instanceof WorkflowJob) {
+            // The SCMs of a pipeline are only known once it has run, except for the one the Jenkinsfile is read from
+            WorkflowJob workflowJob = (WorkflowJob) triggerItem;
+            if (workflowJob.getDefinition() instanceof CpsScmFlowDefinition) {
+                return singleton(((CpsScmFlowDefinition) workflowJob.getDefinition()).getScm());
+            }
+            return emptySet();
+        } else if (triggerItem != null) {
+            return triggerItem.getSCMs();
+        }
+        return emptySet();
+    }
+
+    private static String bitbucketKey(String projectKey, String repositorySlug) {
+        return "bitbucket:" + projectKey.toLowerCase(Locale.ROOT) + '/' + repositorySlug.toLowerCase(Locale.ROOT);
+    }
+
+    private static String cloneUrlKey(String cloneUrl) {
+        return "clone:" + BitbucketWebhookConsumer.normalizeCloneUrl(cloneUrl);
+    }
+
+    private static Set<String> getRepositoryKeys(BitbucketRepository repository) {
+        Set<String> keys = new HashSet<>();
+        keys.add(bitbucketKey(repository.getProject().getKey(), repository.getSlug()));
+        for (BitbucketNamedLink link : repository.getCloneUrls()) {
+            keys.add(cloneUrlKey(link.getHref()));
+        }
+        return keys;
+    }
+
+    /**
+     * @return the keys to index the job by, which are empty if it has no webhook trigger, or
+     * {@link Optional#empty()} if they aren't known yet
+     */
+    private static Optional<Set<String>> getJobKeys(ParameterizedJob<?, ?> job) {
+        if (getTrigger(job) == null) {
+            return Optional.of(emptySet());
+        }
+        Set<String> keys = new HashSet<>();
+        for (SCM scm : getScms(job)) {
+            if (scm instanceof BitbucketSCM) {
+                BitbucketSCM bitbucketSCM = (BitbucketSCM) scm;
+                if (bitbucketSCM.isRepositoryResolutionPending()) {
+                    return Optional.empty();
+                }
+                for (BitbucketSCMRepository repository : bitbucketSCM.getRepositories()) {
+                    if (repository.getProjectKey() != null && repository.getRepositorySlug() != null) {
+                        keys.add(bitbucketKey(repository.getProjectKey(), repository.getRepositorySlug()));
+                    }
+                }
+            } else if (scm instanceof GitSCM) {
+                for (RemoteConfig remoteConfig : ((GitSCM) scm).getRepositories()) {
+                    for (URIish uri : remoteConfig.getURIs()) {
+                        keys.add(cloneUrlKey(uri.toString()));
+                    }
+                }
+            }
+        }
+        return Optional.of(keys);
+    }
+
+    private void put(String name, Set<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        keysByJob.put(name, keys);
+        for (String key : keys) {
+            jobsByKey.computeIfAbsent(key, k -> new HashSet<>()).add(name);
+        }
+    }
+
+    private void removeKeys(String name) {
+        unresolvedJobs.remove(name);
+        Set<String> keys = keysByJob.remove(name);
+        if (keys == null) {
+            return;
+        }
+        for (String key : keys) {
+            Set<String> names = jobsByKey.get(key);
+            if (names != null) {
+                names.remove(name);
+                if (names.isEmpty()) {
+                    jobsByKey.remove(key);
+                }
+            }
+        }
+    }
+
+    @Extension
+    public static class JobListener extends ItemListener {
+
+        @Inject
+        private BitbucketJobIndex jobIndex;
+
+        @Override
+        public void onCopied(Item src, Item item) {
+            jobIndex.update(item);
+        }
+
+        @Override
+        public void onCreated(Item item) {
+            jobIndex.update(item);
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            jobIndex.remove(item.getFullName());
+        }
+
+        @Override
+        public void onLoaded() {
+            jobIndex.rebuild();
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            // Called for the item that was renamed or moved, and for everything in it
+            jobIndex.remove(oldFullName);
+            jobIndex.update(item);
+        }
+
+        @Override
+        public void onUpdated(Item item) {
+            jobIndex.update(item);
+        }
+    }
+
+    /**
+     * Picks up triggers and SCMs changed without going through the job configuration page, such as by the job DSL
+     * or the REST API.
+     */
+    @Extension
+    public static class JobSaveListener extends SaveableListener {
+
+        @Inject
+        private BitbucketJobIndex jobIndex;
+
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Item) {
+                jobIndex.update((Item) o);
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactoryProvider;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.BitbucketClientException;
+import com.atlassian.bitbucket.jenkins.internal.config.BitbucketPluginConfiguration;
+import com.atlassian.bitbucket.jenkins.internal.config.BitbucketServerConfiguration;
+import com.atlassian.bitbucket.jenkins.internal.credentials.BitbucketCredentials;
+import com.atlassian.bitbucket.jenkins.internal.credentials.JenkinsToBitbucketCredentials;
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCM;
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCMRepository;
+import com.atlassian.bitbucket.jenkins.internal.status.BitbucketRevisionAction;
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.plugins.git.Revision;
+import hudson.plugins.git.util.Build;
+import hudson.plugins.git.util.BuildData;
+import hudson.scm.SCM;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.model.ParameterizedJobMixIn.ParameterizedJob;
+
+import javax.annotation.CheckForNull;
+import javax.inject.Inject;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.atlassian.bitbucket.jenkins.internal.credentials.CredentialUtils.toCacheKey;
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parseBooleanFromSystemProperty;
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parsePositiveLongFromSystemProperty;
+import static java.lang.String.format;
+
+/**
+ * Triggers the jobs that missed a push while Jenkins was down, as jobs that are only triggered by webhooks would
+ * otherwise not build the changes until the next push. It is enabled by setting the
+ * {@code bitbucket.trigger.reconcile.enabled} system property to {@code true}.
+ * <p>
+ * Once Jenkins has loaded its jobs, the branches of every repository built by a job with a
+ * {@link BitbucketWebhookTriggerImpl Bitbucket webhook trigger} are fetched, once per repository and credentials
+ * however many jobs build it with them. A job is triggered if a branch it last built has moved on since. Only
+ * {@link #CONCURRENCY} repositories are fetched at a time, with a pause of {@link #DELAY} ms between them, so a
+ * restart doesn't flood Bitbucket with requests, and the jobs are triggered with
+ * {@link BitbucketTriggerPriority#LOW low priority} so they don't hold up webhooks for new pushes.
+ *
+ * @since 3.2.0
+ */
+@Extension
+public class BitbucketStartupReconciler {
+
+    public static final boolean ENABLED =
+            parseBooleanFromSystemProperty("bitbucket.trigger.reconcile.enabled", false);
+    /**
+     * The number of repositories whose branches are fetched at the same time. Defaults to 2.
+     */
+    public static final int CONCURRENCY =
+            (int) parsePositiveLongFromSystemProperty("bitbucket.trigger.reconcile.concurrency", 2);
+    /**
+     * How long each thread waits after fetching the branches of a repository, in ms. Defaults to 200 ms.
+     */
+    public static final long DELAY = parsePositiveLongFromSystemProperty("bitbucket.trigger.reconcile.delay", 200);
+    private static final Logger LOGGER = Logger.getLogger(BitbucketStartupReconciler.class.getName());
+
+    @Inject
+    private BitbucketClientFactoryProvider clientFactoryProvider;
+    @Inject
+    private JenkinsToBitbucketCredentials jenkinsToBitbucketCredentials;
+    @Inject
+    private BitbucketPluginConfiguration pluginConfiguration;
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public void reconcileOnStartup() {
+        if (!ENABLED) {
+            return;
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor(
+                new NamingThreadFactory(new DaemonThreadFactory(), "BitbucketStartupReconciler"));
+        executor.execute(() -> {
+            List<ParameterizedJob<?, ?>> jobs = new ArrayList<>();
+            try (ACLContext ignored = ACL.as(ACL.SYSTEM)) {
+                for (ParameterizedJob<?, ?> job : Jenkins.get().getAllItems(ParameterizedJob.class)) {
+                    jobs.add(job);
+                }
+                reconcile(jobs, CONCURRENCY, DELAY);
+            }
+        });
+        executor.shutdown();
+    }
+
+    /**
+     * Triggers the jobs that haven't built the latest commit on the branches they last built, and waits for all of
+     * the repositories to have been checked.
+     *
+     * @return the number of jobs triggered
+     */
+    int reconcile(Collection<? extends ParameterizedJob<?, ?>> jobs, int concurrency, long delay) {
+        Map<String, List<JobRepository>> jobsByRepository = new LinkedHashMap<>();
+        for (ParameterizedJob<?, ?> job : jobs) {
+            BitbucketWebhookTriggerImpl trigger = BitbucketJobIndex.getTrigger(job);
+            if (trigger == null || !(job instanceof Job)) {
+                continue;
+            }
+            for (SCM scm : BitbucketJobIndex.getScms(job)) {
+                if (!(scm instanceof BitbucketSCM)) {
+                    continue;
+                }
+                for (BitbucketSCMRepository repository : ((BitbucketSCM) scm).getRepositories()) {
+                    if (repository.getServerId() != null && repository.getProjectKey() != null &&
+                        repository.getRepositorySlug() != null) {
+                        // Jobs building the same repository with different credentials may see different branches
+                        BitbucketCredentials credentials = jenkinsToBitbucketCredentials.toBitbucketCredentials(
+                                repository.getCredentialsId(), job);
+                        jobsByRepository.computeIfAbsent(
+                                getRepositoryKey(repository) + '/' + toCacheKey(credentials), key -> new ArrayList<>())
+                                .add(new JobRepository(job, trigger, repository, credentials));
+                    }
+                }
+            }
+        }
+        LOGGER.info(format("Checking %d repositories for changes pushed while Jenkins was down",
+                jobsByRepository.size()));
+
+        Set<String> triggered = ConcurrentHashMap.newKeySet();
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, concurrency),
+                new NamingThreadFactory(new DaemonThreadFactory(), "BitbucketStartupReconciler-worker"));
+        try {
+            List<Future<?>> futures = new ArrayList<>(jobsByRepository.size());
+            for (List<JobRepository> jobRepositories : jobsByRepository.values()) {
+                futures.add(workers.submit(() -> {
+                    try (ACLContext ignored = ACL.as(ACL.SYSTEM)) {
+                        if (!reconcile(jobRepositories, triggered)) {
+                            failed.incrementAndGet();
+                        }
+                    }
+                    pause(delay);
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    failed.incrementAndGet();
+                    LOGGER.log(Level.WARNING, "Failed to check for changes pushed while Jenkins was down",
+                            e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            // Jenkins is shutting down
+            Thread.currentThread().interrupt();
+        } finally {
+            workers.shutdownNow();
+        }
+        LOGGER.info(format("Triggered %d jobs for changes pushed while Jenkins was down (%d repositories couldn't " +
+                           "be checked)", triggered.size(), failed.get()));
+        return triggered.size();
+    }
+
+    /**
+     * @return the name of the first branch last built by the job that has since moved on, if any
+     */
+    static Optional<String> findMissedChange(Map<String, String> builtRevisions, Map<String, String> heads) {
+        return builtRevisions.entrySet().stream()
+                .filter(built -> {
+                    String head = heads.get(built.getKey());
+                    // Branches that have been deleted since don't need building
+                    return head != null && !head.equalsIgnoreCase(built.getValue());
+                })
+                .map(Map.Entry::getKey)
+                .findFirst();
+    }
+
+    /**
+     * Returns the commit each branch of the repository was at when it was last built, by the short name of the
+     * branch. These are taken from the {@link BitbucketRevisionAction}s of the build, or from the git plugin's build
+     * data for builds without them.
+     */
+    static Map<String, String> getLastBuiltRevisions(@CheckForNull Run<?, ?> run, BitbucketSCMRepository repository) {
+        Map<String, String> revisions = new HashMap<>();
+        if (run == null) {
+            return revisions;
+        }
+        for (BitbucketRevisionAction action : run.getActions(BitbucketRevisionAction.class)) {
+            if (action.getBranchName() != null && action.getRevisionSha1() != null &&
+                getRepositoryKey(repository).equals(getRepositoryKey(action.getBitbucketSCMRepo()))) {
+                revisions.put(action.getBranchName(), action.getRevisionSha1());
+            }
+        }
+        if (revisions.isEmpty()) {
+            for (BuildData buildData : run.getActions(BuildData.class)) {
+                for (Map.Entry<String, Build> build : buildData.getBuildsByBranchName().entrySet()) {
+                    Revision marked = build.getValue().getMarked();
+                    if (marked != null) {
+                        revisions.put(stripRemoteName(build.getKey()), marked.getSha1String());
+                    }
+                }
+            }
+        }
+        return revisions;
+    }
+
+    private static String getRepositoryKey(BitbucketSCMRepository repository) {
+        return repository.getServerId() + '/' + String.valueOf(repository.getProjectKey()).toLowerCase(Locale.ROOT) +
+               '/' + String.valueOf(repository.getRepositorySlug()).toLowerCase(Locale.ROOT);
+    }
+
+    private static void pause(long delay) {
+        if (delay <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Removes the name of the remote from a branch name from the git plugin, such as {@code origin/main}.
+     */
+    private static String stripRemoteName(String branchName) {
+        int slash = branchName.indexOf('/');
+        return slash < 0 ? branchName : branchName.substring(slash + 1);
+    }
+
+    /**
+     * Fetches the branches of a repository and triggers the jobs building it that missed changes to them.
+     *
+     * @return {@code false} if the branches couldn't be fetched
+     */
+    private boolean reconcile(List<JobRepository> jobRepositories, Set<String> triggered) {
+        JobRepository first = jobRepositories.get(0);
+        BitbucketSCMRepository repository = first.repository;
+        Optional<BitbucketServerConfiguration> server = pluginConfiguration.getServerById(repository.getServerId());
+        if (!server.isPresent()) {
+            return false;
+        }
+        Map<String, String> heads = new HashMap<>();
+        try {
+            clientFactoryProvider.getClient(server.get().getBaseUrl(), first.credentials)
+                    .getProjectClient(repository.getProjectKey())
+                    .getRepositoryClient(repository.getRepositorySlug())
+                    .getBranches()
+                    .filter(branch -> branch.getLatestCommit() != null)
+                    .forEach(branch -> heads.put(branch.getDisplayId(), branch.getLatestCommit()));
+        } catch (BitbucketClientException e) {
+            LOGGER.log(Level.INFO, format("Failed to fetch the branches of %s/%s to check for missed changes",
+                    repository.getProjectKey(), repository.getRepositorySlug()), e);
+            return false;
+        }
+        for (JobRepository jobRepository : jobRepositories) {
+            String jobName = jobRepository.job.getFullName();
+            if (triggered.contains(jobName)) {
+                continue;
+            }
+            Map<String, String> builtRevisions =
+                    getLastBuiltRevisions(((Job<?, ?>) jobRepository.job).getLastBuild(), repository);
+            Optional<String> branch = findMissedChange(builtRevisions, heads);
+            if (branch.isPresent() && triggered.add(jobName)) {
+                LOGGER.fine(() -> format("Triggering %s, as %s moved on to %s while Jenkins was down", jobName,
+                        branch.get(), heads.get(branch.get())));
+                jobRepository.trigger.trigger(BitbucketWebhookTriggerRequest.builder()
+                        .refId(BitbucketRevisionAction.REF_PREFIX + branch.get())
+                        .commit(heads.get(branch.get()))
+                        .priority(BitbucketTriggerPriority.LOW)
+                        .build());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A job building a repository, with the credentials it uses for it. A job building several repositories has one
+     * for each of them.
+     */
+    private static final class JobRepository {
+
+        private final BitbucketCredentials credentials;
+        private final ParameterizedJob<?, ?> job;
+        private final BitbucketSCMRepository repository;
+        private final BitbucketWebhookTriggerImpl trigger;
+
+        private JobRepository(ParameterizedJob<?, ?> job, BitbucketWebhookTriggerImpl trigger,
+                              BitbucketSCMRepository repository, BitbucketCredentials credentials) {
+            this.credentials = credentials;
+            this.job = job;
+            this.repository = repository;
+            this.trigger = trigger;
+        }
+    }
+}
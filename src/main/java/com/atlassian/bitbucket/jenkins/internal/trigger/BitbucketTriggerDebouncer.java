@@ -0,0 +1,128 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import javax.annotation.CheckForNull;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parsePositiveLongFromSystemProperty;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Holds back webhook triggers for a job and ref for {@link #WINDOW} ms after the first one, so a burst of pushes to
+ * the same branch (such as a merge train, or a force push followed by a fix) polls and builds the job once rather than
+ * once per push. Triggers received during the window are combined, and the job is triggered with all of them once the
+ * window has passed, so the build is for the latest commit and its cause lists every webhook.
+ * <p>
+ * This is disabled by default. Triggers that are still waiting when Jenkins stops are lost, in the same way as
+ * triggers waiting in the trigger queue.
+ *
+ * @since 3.2.0
+ */
+@Singleton
+public class BitbucketTriggerDebouncer {
+
+    /**
+     * How long to wait for more webhooks for the same job and ref before triggering it, in ms. Defaults to 0, which
+     * triggers the job straight away.
+     */
+    public static final long WINDOW = parsePositiveLongFromSystemProperty("bitbucket.trigger.debounce.window", 0);
+    private static final Logger LOGGER = Logger.getLogger(BitbucketTriggerDebouncer.class.getName());
+
+    private final AtomicLong coalesced = new AtomicLong();
+    @CheckForNull
+    private final ScheduledExecutorService executor;
+    private final Map<String, List<BitbucketWebhookTriggerRequest>> pending = new HashMap<>();
+    private final long window;
+
+    @Inject
+    public BitbucketTriggerDebouncer() {
+        this(WINDOW, WINDOW > 0 ? Executors.newSingleThreadScheduledExecutor(
+                new NamingThreadFactory(new DaemonThreadFactory(), "BitbucketTriggerDebouncer")) : null);
+    }
+
+    BitbucketTriggerDebouncer(long window, @CheckForNull ScheduledExecutorService executor) {
+        this.executor = executor;
+        this.window = window;
+    }
+
+    /**
+     * Triggers the job once the window for the job and the request's ref has passed, along with any other requests
+     * for the same job and ref received in the meantime. If the debouncer is disabled, the job is triggered
+     * straight away.
+     *
+     * @param jobName the full name of the job
+     * @param request the trigger request
+     * @param trigger triggers the job with the requests, oldest first
+     */
+    public void debounce(String jobName, BitbucketWebhookTriggerRequest request,
+                         Consumer<List<BitbucketWebhookTriggerRequest>> trigger) {
+        requireNonNull(trigger, "trigger");
+        ScheduledExecutorService scheduler = executor;
+        if (window <= 0 || scheduler == null) {
+            trigger.accept(Collections.singletonList(request));
+            return;
+        }
+        String key = jobName + '@' + request.getRefId().orElse("");
+        synchronized (pending) {
+            List<BitbucketWebhookTriggerRequest> requests = pending.get(key);
+            if (requests != null) {
+                // The window is from the first request, so a steady stream of pushes can't hold the job back forever
+                requests.add(request);
+                coalesced.incrementAndGet();
+                LOGGER.fine(() -> "Combining trigger for " + key + " with " + (requests.size() - 1) +
+                                  " earlier triggers");
+                return;
+            }
+            pending.put(key, new ArrayList<>(Collections.singletonList(request)));
+        }
+        scheduler.schedule(() -> fire(key, trigger), window, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the number of triggers that have been combined with an earlier trigger since Jenkins started
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the triggers waiting for their window to pass, by job and ref, oldest first
+     */
+    public Map<String, List<BitbucketWebhookTriggerRequest>> getPending() {
+        Map<String, List<BitbucketWebhookTriggerRequest>> snapshot = new TreeMap<>();
+        synchronized (pending) {
+            pending.forEach((key, requests) -> snapshot.put(key, new ArrayList<>(requests)));
+        }
+        return snapshot;
+    }
+
+    public boolean isEnabled() {
+        return window > 0 && executor != null;
+    }
+
+    private void fire(String key, Consumer<List<BitbucketWebhookTriggerRequest>> trigger) {
+        List<BitbucketWebhookTriggerRequest> requests;
+        synchronized (pending) {
+            requests = pending.remove(key);
+        }
+        if (requests == null) {
+            return;
+        }
+        try {
+            trigger.accept(requests);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to trigger " + key, e);
+        }
+    }
+}
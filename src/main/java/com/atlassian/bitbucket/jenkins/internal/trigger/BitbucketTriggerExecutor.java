@@ -0,0 +1,312 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import hudson.util.NamingThreadFactory;
+
+import javax.annotation.CheckForNull;
+import java.lang.reflect.Method;
+import java.time.Clock;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parseBooleanFromSystemProperty;
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parsePositiveLongFromSystemProperty;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Runs the {@link BitbucketTriggerWorker trigger workers} that poll jobs after a webhook. Polling can take a long time
+ * for a slow or large remote, and every thread polling one is unavailable to every other job, so this can be
+ * configured with the following system properties:
+ * <ul>
+ *     <li>{@code bitbucket.trigger.executor.threads}: the number of threads polling jobs. Defaults to 10.</li>
+ *     <li>{@code bitbucket.trigger.executor.max.threads}: if more than the number of threads, more threads are
+ *     started (up to this many) while there is a backlog, and stopped again once it has cleared. Defaults to the
+ *     number of threads.</li>
+ *     <li>{@code bitbucket.trigger.executor.backlog}: the number of waiting triggers for each extra thread.
+ *     Defaults to 10.</li>
+ *     <li>{@code bitbucket.trigger.executor.virtual.threads}: if {@code true}, virtual threads are used instead of
+ *     platform threads when Jenkins runs on Java 21 or later. Defaults to {@code false}.</li>
+ * </ul>
+ * Waiting triggers are polled in order of their {@link BitbucketTriggerPriority priority}, as set by
+ * {@link #executeWithPriority(BitbucketTriggerPriority, Runnable)}. How long triggers wait and how long they take to
+ * poll is recorded, and reported by {@link #getStatistics()}.
+ *
+ * @since 3.2.0
+ */
+public class BitbucketTriggerExecutor extends ThreadPoolExecutor {
+
+    public static final int THREADS =
+            Math.max(1, (int) parsePositiveLongFromSystemProperty("bitbucket.trigger.executor.threads", 10));
+    public static final int MAX_THREADS =
+            Math.max(THREADS, (int) parsePositiveLongFromSystemProperty("bitbucket.trigger.executor.max.threads", 0));
+    public static final int BACKLOG =
+            Math.max(1, (int) parsePositiveLongFromSystemProperty("bitbucket.trigger.executor.backlog", 10));
+    public static final boolean VIRTUAL_THREADS =
+            parseBooleanFromSystemProperty("bitbucket.trigger.executor.virtual.threads", false);
+    /**
+     * Orders the waiting tasks by deadline, and tasks with the same deadline in the order they were submitted.
+     */
+    private static final Comparator<Runnable> BY_DEADLINE =
+            Comparator.comparingLong((Runnable task) -> ((TimedTask) task).deadline)
+                    .thenComparingLong(task -> ((TimedTask) task).sequence);
+    private static final Logger LOGGER = Logger.getLogger(BitbucketTriggerExecutor.class.getName());
+    /**
+     * The priority of the tasks submitted by this thread. {@link hudson.util.SequentialExecutionQueue} submits a job
+     * again from the thread that polled it if it was triggered while being polled, so the thread running a task has
+     * the priority of that task.
+     */
+    private static final ThreadLocal<BitbucketTriggerPriority> PRIORITY = new ThreadLocal<>();
+    private static final String THREAD_NAME = "BitbucketWebhookTrigger";
+
+    private final int backlog;
+    private final Clock clock;
+    private final AtomicLong completed = new AtomicLong();
+    private final int maxThreads;
+    private final AtomicLong maxRunTime = new AtomicLong();
+    private final AtomicLong maxWait = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+    private final int threads;
+    private final AtomicLong totalRunTime = new AtomicLong();
+    private final AtomicLong totalWait = new AtomicLong();
+
+    public BitbucketTriggerExecutor() {
+        this(THREADS, MAX_THREADS, BACKLOG, createThreadFactory(VIRTUAL_THREADS), Clock.systemUTC());
+    }
+
+    BitbucketTriggerExecutor(int threads, int maxThreads, int backlog, ThreadFactory threadFactory, Clock clock) {
+        super(threads, Math.max(threads, maxThreads), 60, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(11, BY_DEADLINE), threadFactory);
+        this.backlog = backlog;
+        this.clock = requireNonNull(clock, "clock");
+        this.maxThreads = Math.max(threads, maxThreads);
+        this.threads = threads;
+    }
+
+    /**
+     * Runs the action, giving the tasks it submits to any {@code BitbucketTriggerExecutor} the priority.
+     *
+     * @param priority the priority
+     * @param action   submits the tasks, such as by adding them to a queue backed by this executor
+     */
+    public static void executeWithPriority(BitbucketTriggerPriority priority, Runnable action) {
+        BitbucketTriggerPriority previous = PRIORITY.get();
+        PRIORITY.set(requireNonNull(priority, "priority"));
+        try {
+            action.run();
+        } finally {
+            setPriority(previous);
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        BitbucketTriggerPriority priority = PRIORITY.get();
+        super.execute(new TimedTask(command, priority == null ? BitbucketTriggerPriority.NORMAL : priority,
+                clock.millis(), sequence.getAndIncrement()));
+        if (maxThreads > threads) {
+            // Only the core threads take tasks from an unbounded queue, so grow the core to work through the backlog
+            int wanted = Math.min(maxThreads, threads + getQueue().size() / backlog);
+            if (wanted > getCorePoolSize()) {
+                LOGGER.fine(() -> "Increasing the number of trigger threads to " + wanted + " as there are " +
+                                  getQueue().size() + " triggers waiting");
+                setCorePoolSize(wanted);
+            }
+        }
+    }
+
+    public Statistics getStatistics() {
+        long completedCount = completed.get();
+        long now = clock.millis();
+        long oldestAge = 0;
+        Map<BitbucketTriggerPriority, Integer> queueLengths = new EnumMap<>(BitbucketTriggerPriority.class);
+        for (BitbucketTriggerPriority priority : BitbucketTriggerPriority.values()) {
+            queueLengths.put(priority, 0);
+        }
+        // The head of the queue is the most urgent task rather than the oldest, so look at all of them
+        for (Runnable task : getQueue()) {
+            if (task instanceof TimedTask) {
+                TimedTask timedTask = (TimedTask) task;
+                oldestAge = Math.max(oldestAge, now - timedTask.queuedAt);
+                queueLengths.merge(timedTask.priority, 1, Integer::sum);
+            }
+        }
+        return new Statistics(getPoolSize(), getActiveCount(), getQueue().size(), queueLengths, oldestAge,
+                completedCount == 0 ? 0 : totalWait.get() / completedCount, maxWait.get(),
+                completedCount == 0 ? 0 : totalRunTime.get() / completedCount, maxRunTime.get(), completedCount);
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
+        if (getCorePoolSize() > threads && getQueue().isEmpty()) {
+            // Extra threads stop once they are idle
+            setCorePoolSize(threads);
+        }
+    }
+
+    /**
+     * Creates a factory for virtual threads if requested and running on Java 21 or later, or platform threads
+     * otherwise. This plugin is built for Java 8, so virtual threads can only be created through reflection.
+     */
+    static ThreadFactory createThreadFactory(boolean virtualThreads) {
+        if (virtualThreads) {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                Method name = builderClass.getMethod("name", String.class, long.class);
+                Method factory = builderClass.getMethod("factory");
+                return (ThreadFactory) factory.invoke(name.invoke(builder, THREAD_NAME + "-", 1L));
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOGGER.warning("Virtual threads are not available on Java " + System.getProperty("java.version") +
+                               ", using platform threads instead");
+                LOGGER.log(Level.FINE, "Failed to create a virtual thread factory", e);
+            }
+        }
+        return new NamingThreadFactory(Executors.defaultThreadFactory(), THREAD_NAME);
+    }
+
+    private static void setPriority(@CheckForNull BitbucketTriggerPriority priority) {
+        if (priority == null) {
+            PRIORITY.remove();
+        } else {
+            PRIORITY.set(priority);
+        }
+    }
+
+    private void record(AtomicLong total, AtomicLong max, long value) {
+        total.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    public static final class Statistics {
+
+        private final int activeThreads;
+        private final long averageRunTime;
+        private final long averageWait;
+        private final long completed;
+        private final long maxRunTime;
+        private final long maxWait;
+        private final long oldestTaskAge;
+        private final int queueLength;
+        private final Map<BitbucketTriggerPriority, Integer> queueLengths;
+        private final int threads;
+
+        Statistics(int threads, int activeThreads, int queueLength, Map<BitbucketTriggerPriority, Integer> queueLengths,
+                   long oldestTaskAge, long averageWait, long maxWait, long averageRunTime, long maxRunTime,
+                   long completed) {
+            this.activeThreads = activeThreads;
+            this.averageRunTime = averageRunTime;
+            this.averageWait = averageWait;
+            this.completed = completed;
+            this.maxRunTime = maxRunTime;
+            this.maxWait = maxWait;
+            this.oldestTaskAge = oldestTaskAge;
+            this.queueLength = queueLength;
+            this.queueLengths = queueLengths;
+            this.threads = threads;
+        }
+
+        /**
+         * @return the number of threads polling a job
+         */
+        public int getActiveThreads() {
+            return activeThreads;
+        }
+
+        /**
+         * @return the average time it took to poll a job (and schedule a build if there were changes)
+         */
+        public long getAverageRunTime() {
+            return averageRunTime;
+        }
+
+        /**
+         * @return the average time triggers waited for a thread
+         */
+        public long getAverageWait() {
+            return averageWait;
+        }
+
+        public long getCompleted() {
+            return completed;
+        }
+
+        /**
+         * @return the longest time it took to poll a job
+         */
+        public long getMaxRunTime() {
+            return maxRunTime;
+        }
+
+        /**
+         * @return the longest time a trigger waited for a thread
+         */
+        public long getMaxWait() {
+            return maxWait;
+        }
+
+        /**
+         * @return how long the oldest waiting trigger has been waiting for, or 0 if there are none
+         */
+        public long getOldestTaskAge() {
+            return oldestTaskAge;
+        }
+
+        /**
+         * @return the number of triggers waiting for a thread
+         */
+        public int getQueueLength() {
+            return queueLength;
+        }
+
+        /**
+         * @return the number of triggers waiting for a thread, by priority
+         */
+        public Map<BitbucketTriggerPriority, Integer> getQueueLengths() {
+            return queueLengths;
+        }
+
+        /**
+         * @return the number of threads, including idle ones
+         */
+        public int getThreads() {
+            return threads;
+        }
+    }
+
+    private final class TimedTask implements Runnable {
+
+        private final long deadline;
+        private final Runnable delegate;
+        private final BitbucketTriggerPriority priority;
+        private final long queuedAt;
+        private final long sequence;
+
+        private TimedTask(Runnable delegate, BitbucketTriggerPriority priority, long queuedAt, long sequence) {
+            this.delegate = delegate;
+            this.priority = priority;
+            this.queuedAt = queuedAt;
+            this.sequence = sequence;
+            deadline = queuedAt + priority.getDelay();
+        }
+
+        @Override
+        public void run() {
+            long start = clock.millis();
+            record(totalWait, maxWait, start - queuedAt);
+            BitbucketTriggerPriority previous = PRIORITY.get();
+            PRIORITY.set(priority);
+            try {
+                delegate.run();
+            } finally {
+                setPriority(previous);
+                record(totalRunTime, maxRunTime, clock.millis() - start);
+                completed.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,489 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactoryProvider;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketRepositoryClient;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.BitbucketClientException;
+import com.atlassian.bitbucket.jenkins.internal.config.BitbucketPluginConfiguration;
+import com.atlassian.bitbucket.jenkins.internal.config.BitbucketServerConfiguration;
+import com.atlassian.bitbucket.jenkins.internal.credentials.JenkinsToBitbucketCredentials;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketChange;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketCommit;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRefChange;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRefChangeType;
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCM;
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCMRepository;
+import com.atlassian.bitbucket.jenkins.internal.trigger.events.RefsChangedWebhookEvent;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.plugins.git.BranchSpec;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.UserRemoteConfig;
+import hudson.plugins.git.extensions.GitSCMExtension;
+import hudson.plugins.git.extensions.impl.PathRestriction;
+import hudson.scm.SCM;
+import jenkins.model.ParameterizedJobMixIn.ParameterizedJob;
+import jenkins.triggers.SCMTriggerItem;
+
+import javax.annotation.CheckForNull;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parseBooleanFromSystemProperty;
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parsePositiveLongFromSystemProperty;
+import static java.lang.String.format;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * Works out from a push whether a job could be affected by it before the job is triggered, so jobs that can't be
+ * don't spend a poll finding that out. A job can't be affected by a push if:
+ * <ul>
+ *     <li>none of its branch specifiers match any of the refs pushed to, when {@link #BRANCHES} is enabled</li>
+ *     <li>none of the files changed by the commits pushed to the refs it builds are in its included regions, or all of
+ *     them are in its excluded regions, when {@link #PATHS} is enabled. Like git, the files changed by each commit
+ *     are checked, rather than the difference between the old and new commit of the ref. They are fetched from
+ *     Bitbucket once for each range of commits, however many jobs build the ref. As that means waiting for
+ *     Bitbucket, it is checked by the {@link BitbucketTriggerWorker trigger worker} just before it would poll the
+ *     job, rather than while the webhook is handled.</li>
+ * </ul>
+ * Whenever that can't be worked out, such as for jobs using SCMs other than git, branch specifiers with variables,
+ * pipelines that haven't run yet or new branches, the job is triggered as usual. The reason each job was skipped is
+ * logged, and the most recent ones are kept for the webhook endpoint to show.
+ * <p>
+ * Both are disabled by default.
+ *
+ * @since 3.2.0
+ */
+@Singleton
+public class BitbucketTriggerFilter {
+
+    /**
+     * Whether to skip jobs whose branch specifiers don't match any of the pushed refs. Defaults to {@code false}.
+     */
+    public static final boolean BRANCHES = parseBooleanFromSystemProperty("bitbucket.trigger.filter.branches", false);
+    /**
+     * Whether to skip jobs with included or excluded regions that no pushed file affects. Defaults to
+     * {@code false}.
+     */
+    public static final boolean PATHS = parseBooleanFromSystemProperty("bitbucket.trigger.filter.paths", false);
+    /**
+     * The most commits pushed to a ref that the changed files are fetched for, one at a time. Jobs are triggered as
+     * usual for pushes of more commits than this. Defaults to 25.
+     */
+    public static final int MAX_COMMITS =
+            (int) parsePositiveLongFromSystemProperty("bitbucket.trigger.filter.paths.maxCommits", 25);
+    private static final int CHANGES_CACHE_SIZE = 256;
+    private static final Pattern GIT_REF = Pattern.compile("^(refs/[^/]+)/(.+)");
+    private static final Logger LOGGER = Logger.getLogger(BitbucketTriggerFilter.class.getName());
+    private static final int RECENT_SKIPS = 50;
+    private static final String ZERO_HASH = "0000000000000000000000000000000000000000";
+
+    private final boolean branches;
+    private final Map<String, Set<String>> changesCache = new LinkedHashMap<String, Set<String>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Set<String>> eldest) {
+            return size() > CHANGES_CACHE_SIZE;
+        }
+    };
+    private final boolean paths;
+    private final Deque<Skip> recentSkips = new ArrayDeque<>();
+    private final AtomicLong skippedForBranches = new AtomicLong();
+    private final AtomicLong skippedForPaths = new AtomicLong();
+    @Inject
+    private BitbucketClientFactoryProvider clientFactoryProvider;
+    @Inject
+    private JenkinsToBitbucketCredentials jenkinsToBitbucketCredentials;
+    @Inject
+    private BitbucketPluginConfiguration pluginConfiguration;
+
+    public BitbucketTriggerFilter() {
+        this(BRANCHES, PATHS);
+    }
+
+    BitbucketTriggerFilter(boolean branches, boolean paths) {
+        this.branches = branches;
+        this.paths = paths;
+    }
+
+    /**
+     * Works out whether any of the job's branch specifiers match the push, and records why not if none do. This only
+     * looks at the job and the webhook, so it can be done while the webhook is handled.
+     *
+     * @param job   the job building the repository pushed to
+     * @param event the push
+     * @return why the job can't be affected by the push, or {@code null} if it may be and should be triggered
+     */
+    @CheckForNull
+    public String getSkipReason(ParameterizedJob<?, ?> job, RefsChangedWebhookEvent event) {
+        if (!branches) {
+            return null;
+        }
+        Collection<? extends SCM> scms = getScms(job);
+        List<BitbucketRefChange> changes = withoutDeletes(event.getChanges());
+        if (scms.isEmpty() || changes.isEmpty()) {
+            return null;
+        }
+        for (SCM scm : scms) {
+            List<BitbucketRefChange> matched = getMatchingChanges(scm, changes);
+            // Unless it can't be told which refs the SCM builds
+            if (matched == null || !matched.isEmpty()) {
+                return null;
+            }
+        }
+        skippedForBranches.incrementAndGet();
+        return recordSkip(job, event.getRepository().getSlug(), format("none of its branch specifiers match %s",
+                toRefIds(changes)));
+    }
+
+    /**
+     * Works out whether the files changed by the pushes a job is being triggered for could affect it, and records why
+     * not if they can't. This asks Bitbucket for the files changed, so it is left until the job is about to be polled.
+     *
+     * @param job      the job being triggered
+     * @param requests the requests the job is being triggered for
+     * @return why none of the pushes can affect the job, or {@code null} if any of them may and it should be polled
+     * @since 3.2.0
+     */
+    @CheckForNull
+    public String getPathSkipReason(Job<?, ?> job, Collection<BitbucketWebhookTriggerRequest> requests) {
+        if (!paths || requests.isEmpty()) {
+            return null;
+        }
+        Collection<? extends SCM> scms = getScms(job);
+        if (scms.isEmpty()) {
+            return null;
+        }
+        Set<String> refIds = new TreeSet<>();
+        for (BitbucketWebhookTriggerRequest request : requests) {
+            // Requests for pull requests, or read back from a build, don't have the changes
+            List<BitbucketRefChange> changes = withoutDeletes(request.getRefChanges());
+            if (changes.isEmpty()) {
+                return null;
+            }
+            boolean anyMatched = false;
+            for (SCM scm : scms) {
+                List<BitbucketRefChange> matched = getMatchingChanges(scm, changes);
+                if (matched == null) {
+                    // Can't tell which refs the SCM builds
+                    return null;
+                }
+                if (!matched.isEmpty()) {
+                    anyMatched = true;
+                    if (!isExcluded(scm, job, matched)) {
+                        return null;
+                    }
+                }
+            }
+            if (!anyMatched) {
+                return null;
+            }
+            changes.forEach(change -> refIds.add(change.getRefId()));
+        }
+        skippedForPaths.incrementAndGet();
+        return recordSkip(job, String.join(", ", refIds), "none of the changed files are in its included regions, " +
+                                                          "or all of them are in its excluded regions");
+    }
+
+    /**
+     * @return the most recently skipped jobs, and why they were skipped, most recent first
+     */
+    public List<Skip> getRecentSkips() {
+        synchronized (recentSkips) {
+            return new ArrayList<>(recentSkips);
+        }
+    }
+
+    /**
+     * @return the number of jobs skipped as their branch specifiers didn't match the pushed refs
+     */
+    public long getSkippedForBranches() {
+        return skippedForBranches.get();
+    }
+
+    /**
+     * @return the number of jobs skipped as none of the changed files were in their included regions, or all of
+     * them were in their excluded regions
+     */
+    public long getSkippedForPaths() {
+        return skippedForPaths.get();
+    }
+
+    public boolean isEnabled() {
+        return branches || paths;
+    }
+
+    /**
+     * Checks whether the files changed are excluded by the included and excluded regions, in the same way as git
+     * does for the files changed by each commit when polling.
+     *
+     * @return {@code true} if none of the files are included, or all of the included files are excluded
+     */
+    static boolean isExcluded(Collection<String> changedFiles, @CheckForNull String[] includedRegions,
+                              @CheckForNull String[] excludedRegions) {
+        List<Pattern> included = toPatterns(includedRegions);
+        List<Pattern> excluded = toPatterns(excludedRegions);
+        if (included.isEmpty() && excluded.isEmpty()) {
+            return false;
+        }
+        List<String> includedFiles = changedFiles.stream()
+                .filter(file -> included.isEmpty() || matchesAny(included, file))
+                .collect(Collectors.toList());
+        return includedFiles.stream().allMatch(file -> matchesAny(excluded, file));
+    }
+
+    /**
+     * @return the branch specifiers of the SCM, or {@code null} if they can't be checked without building
+     */
+    @CheckForNull
+    private static List<BranchSpec> getBranchSpecs(SCM scm) {
+        List<BranchSpec> branchSpecs;
+        if (scm instanceof BitbucketSCM) {
+            branchSpecs = ((BitbucketSCM) scm).getBranches();
+        } else if (scm instanceof GitSCM) {
+            branchSpecs = ((GitSCM) scm).getBranches();
+        } else {
+            return null;
+        }
+        if (branchSpecs == null || branchSpecs.isEmpty() ||
+            branchSpecs.stream().anyMatch(branchSpec -> branchSpec.getName().contains("$"))) {
+            return null;
+        }
+        return branchSpecs;
+    }
+
+    @CheckForNull
+    private static PathRestriction getPathRestriction(SCM scm) {
+        List<GitSCMExtension> extensions = scm instanceof BitbucketSCM ? ((BitbucketSCM) scm).getExtensions() :
+                scm instanceof GitSCM ? ((GitSCM) scm).getExtensions() : Collections.emptyList();
+        for (GitSCMExtension extension : extensions) {
+            if (extension instanceof PathRestriction) {
+                return (PathRestriction) extension;
+            }
+        }
+        return null;
+    }
+
+    private static List<String> getRemoteNames(SCM scm) {
+        if (scm instanceof BitbucketSCM) {
+            BitbucketSCM bitbucketSCM = (BitbucketSCM) scm;
+            // The remote is named after the repository
+            return bitbucketSCM.getRepositories()
+                    .stream()
+                    .map(BitbucketSCMRepository::getRepositorySlug)
+                    .collect(Collectors.toList());
+        }
+        return ((GitSCM) scm).getUserRemoteConfigs()
+                .stream()
+                .map(UserRemoteConfig::getName)
+                .map(name -> isBlank(name) ? "origin" : name)
+                .collect(Collectors.toList());
+    }
+
+    private static Collection<? extends SCM> getScms(Item job) {
+        SCMTriggerItem triggerItem = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(job);
+        return triggerItem == null ? Collections.emptyList() : triggerItem.getSCMs();
+    }
+
+    private static boolean matchesAny(List<Pattern> patterns, String file) {
+        return patterns.stream().anyMatch(pattern -> pattern.matcher(file).matches());
+    }
+
+    private static String toRefIds(List<BitbucketRefChange> changes) {
+        return changes.stream()
+                .map(BitbucketRefChange::getRefId)
+                .collect(Collectors.joining(", "));
+    }
+
+    private static List<BitbucketRefChange> withoutDeletes(List<BitbucketRefChange> changes) {
+        return changes.stream()
+                .filter(change -> change.getType() != BitbucketRefChangeType.DELETE)
+                .collect(Collectors.toList());
+    }
+
+    private static List<Pattern> toPatterns(@CheckForNull String[] regions) {
+        if (regions == null) {
+            return Collections.emptyList();
+        }
+        return Arrays.stream(regions)
+                .filter(region -> !isBlank(region))
+                .map(Pattern::compile)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Fetches the files changed by each of the commits between two commits, or gets them from the cache if they've
+     * been fetched already. Git checks the files changed by each commit separately when polling, and builds if any
+     * commit changed a file that isn't excluded. As a commit is only excluded if all of the files it changed are, that
+     * is the same as checking all of the files changed by the commits together, but not the same as checking the
+     * difference between the two commits: a file changed and then changed back would be left out of the difference.
+     * Git doesn't list any files for merge commits, so it always builds for them, and that can't be worked out from
+     * the files here.
+     *
+     * @return the paths of the files changed by the commits, or {@code null} if they couldn't be fetched, there are
+     * more than {@link #MAX_COMMITS} commits, or any of them is a merge or changed no files
+     */
+    @CheckForNull
+    private Set<String> getChangedFiles(BitbucketSCMRepository repository, Item context, String since,
+                                        String until) {
+        Optional<BitbucketServerConfiguration> server = pluginConfiguration.getServerById(repository.getServerId());
+        if (!server.isPresent()) {
+            return null;
+        }
+        String key = String.join("/", server.get().getBaseUrl(), repository.getProjectKey(),
+                repository.getRepositorySlug(), since + ".." + until);
+        synchronized (changesCache) {
+            // Ranges that can't be checked are cached as null, so they aren't fetched again for each job
+            if (changesCache.containsKey(key)) {
+                return changesCache.get(key);
+            }
+        }
+        Set<String> files;
+        try {
+            files = fetchChangedFiles(clientFactoryProvider.getClient(server.get().getBaseUrl(),
+                    jenkinsToBitbucketCredentials.toBitbucketCredentials(repository.getCredentialsId(), context))
+                    .getProjectClient(repository.getProjectKey())
+                    .getRepositoryClient(repository.getRepositorySlug()), since, until);
+        } catch (BitbucketClientException e) {
+            LOGGER.log(Level.FINE, format("Failed to fetch the changes from %s to %s", since, until), e);
+            return null;
+        }
+        synchronized (changesCache) {
+            changesCache.put(key, files);
+        }
+        return files;
+    }
+
+    @CheckForNull
+    private static Set<String> fetchChangedFiles(BitbucketRepositoryClient repositoryClient, String since,
+                                                 String until) {
+        List<BitbucketCommit> commits = repositoryClient.getCommits(since, until)
+                .limit(MAX_COMMITS + 1)
+                .collect(Collectors.toList());
+        if (commits.size() > MAX_COMMITS) {
+            return null;
+        }
+        Set<String> files = new HashSet<>();
+        for (BitbucketCommit commit : commits) {
+            if (commit.getParents().size() != 1) {
+                return null;
+            }
+            List<BitbucketChange> changes =
+                    repositoryClient.getChanges(commit.getParents().get(0).getId(), commit.getId())
+                            .collect(Collectors.toList());
+            if (changes.isEmpty()) {
+                return null;
+            }
+            for (BitbucketChange change : changes) {
+                files.add(change.getPath().getToString());
+                if (change.getSrcPath() != null) {
+                    files.add(change.getSrcPath().getToString());
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @return the ref changes the SCM's branch specifiers match, or {@code null} if that can't be worked out
+     */
+    @CheckForNull
+    private static List<BitbucketRefChange> getMatchingChanges(SCM scm, List<BitbucketRefChange> changes) {
+        List<BranchSpec> branchSpecs = getBranchSpecs(scm);
+        if (branchSpecs == null) {
+            return null;
+        }
+        List<String> remoteNames = getRemoteNames(scm);
+        return changes.stream()
+                .filter(change -> matches(branchSpecs, remoteNames, change.getRefId()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Checks whether all of the changes to the refs the SCM builds are excluded by its included and excluded regions.
+     * Changes that create a ref can't be checked, as it isn't known which of the commits are new, and neither can
+     * changes including merge commits or more than {@link #MAX_COMMITS} commits.
+     */
+    private boolean isExcluded(SCM scm, Item context, List<BitbucketRefChange> changes) {
+        PathRestriction pathRestriction = getPathRestriction(scm);
+        if (pathRestriction == null || !(scm instanceof BitbucketSCM) ||
+            ((BitbucketSCM) scm).getRepositories().size() != 1) {
+            return false;
+        }
+        BitbucketSCMRepository repository = ((BitbucketSCM) scm).getRepositories().get(0);
+        for (BitbucketRefChange change : changes) {
+            if (change.getType() == BitbucketRefChangeType.ADD || ZERO_HASH.equals(change.getFromHash())) {
+                return false;
+            }
+            Set<String> files = getChangedFiles(repository, context, change.getFromHash(), change.getToHash());
+            if (files == null || !isExcluded(files, pathRestriction.getIncludedRegionsNormalized(),
+                    pathRestriction.getExcludedRegionsNormalized())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether any of the branch specifiers match the ref, trying both its full name and its name on each of
+     * the remotes, in the same way as git does when polling.
+     */
+    private static boolean matches(List<BranchSpec> branchSpecs, List<String> remoteNames, String refId) {
+        List<String> names = new ArrayList<>();
+        names.add(refId);
+        Matcher matcher = GIT_REF.matcher(refId);
+        for (String remoteName : remoteNames) {
+            names.add(remoteName + '/' + (matcher.matches() ? matcher.group(2) : refId));
+        }
+        return branchSpecs.stream().anyMatch(branchSpec -> names.stream().anyMatch(branchSpec::matches));
+    }
+
+    private String recordSkip(Item job, String pushedTo, String reason) {
+        Skip skip = new Skip(job.getFullName(), reason, System.currentTimeMillis());
+        LOGGER.fine(() -> format("Not triggering %s for the push to %s, as %s", skip.getJobName(), pushedTo,
+                skip.getReason()));
+        synchronized (recentSkips) {
+            recentSkips.addFirst(skip);
+            if (recentSkips.size() > RECENT_SKIPS) {
+                recentSkips.removeLast();
+            }
+        }
+        return reason;
+    }
+
+    /**
+     * A job that wasn't triggered for a push, and why.
+     */
+    public static final class Skip {
+
+        private final String jobName;
+        private final String reason;
+        private final long time;
+
+        Skip(String jobName, String reason, long time) {
+            this.jobName = jobName;
+            this.reason = reason;
+            this.time = time;
+        }
+
+        public String getJobName() {
+            return jobName;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        /**
+         * @return when the job was skipped, in ms since the epoch
+         */
+        public long getTime() {
+            return time;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import hudson.Extension;
+import hudson.model.Cause;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records how long each stage took from a push to Bitbucket to the build it triggered leaving the build queue, so
+ * slow builds can be put down to Bitbucket sending the webhook, finding the jobs for it, waiting to poll, polling, or
+ * waiting for an executor. The stages of a build are kept in its {@link BitbucketWebhookTriggerCause}, and added to
+ * a histogram for each stage once the build has left the queue.
+ *
+ * @since 3.2.0
+ */
+@Singleton
+public class BitbucketTriggerLatency {
+
+    private final Map<Stage, Histogram> histograms = new EnumMap<>(Stage.class);
+
+    public BitbucketTriggerLatency() {
+        for (Stage stage : Stage.values()) {
+            histograms.put(stage, new Histogram());
+        }
+    }
+
+    /**
+     * @return the histogram of how long each stage took
+     */
+    public Map<Stage, Histogram> getHistograms() {
+        return new EnumMap<>(histograms);
+    }
+
+    /**
+     * Adds how long each stage took for a build to the histograms.
+     *
+     * @param durations how long each stage took, in ms
+     */
+    public void record(Map<Stage, Long> durations) {
+        durations.forEach((stage, duration) -> histograms.get(stage).record(duration));
+    }
+
+    public enum Stage {
+
+        /**
+         * From the event happening in Bitbucket to Jenkins receiving the webhook. This includes any difference
+         * between the clocks of Bitbucket and Jenkins.
+         */
+        DELIVERY,
+        /**
+         * From receiving the webhook to triggering the job, including the time spent waiting in the webhook queue.
+         */
+        DISPATCH,
+        /**
+         * From triggering the job to starting to poll it, including the time spent combining webhooks and waiting
+         * for a thread to poll on.
+         */
+        POLL_WAIT,
+        /**
+         * Polling the job for changes.
+         */
+        POLL,
+        /**
+         * From scheduling the build to it leaving the build queue, such as to wait for an executor.
+         */
+        BUILD_QUEUE,
+        /**
+         * From the event happening in Bitbucket to the build leaving the build queue.
+         */
+        TOTAL
+    }
+
+    /**
+     * A histogram of durations, in ms.
+     */
+    public static final class Histogram {
+
+        /**
+         * The upper bounds of the buckets, in ms. Longer durations go in a final bucket without an upper bound.
+         */
+        static final long[] BOUNDS = {100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000};
+
+        private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+        private final AtomicLong max = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+
+        public long getAverage() {
+            long count = getCount();
+            return count == 0 ? 0 : total.get() / count;
+        }
+
+        /**
+         * @return the number of durations in each bucket, by the upper bound of the bucket in ms. The last bucket
+         * has an upper bound of {@link Long#MAX_VALUE}.
+         */
+        public Map<Long, Long> getBuckets() {
+            Map<Long, Long> buckets = new LinkedHashMap<>();
+            for (int i = 0; i < counts.length(); i++) {
+                buckets.put(i < BOUNDS.length ? BOUNDS[i] : Long.MAX_VALUE, counts.get(i));
+            }
+            return buckets;
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        void record(long duration) {
+            int bucket = 0;
+            while (bucket < BOUNDS.length && duration > BOUNDS[bucket]) {
+                bucket++;
+            }
+            counts.incrementAndGet(bucket);
+            total.addAndGet(duration);
+            max.accumulateAndGet(duration, Math::max);
+        }
+    }
+
+    /**
+     * Records when builds triggered by webhooks leave the build queue.
+     */
+    @Extension
+    public static class LeftQueueListener extends QueueListener {
+
+        @Inject
+        private BitbucketTriggerLatency latency;
+
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            if (li.isCancelled()) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (Cause cause : li.getCauses()) {
+                if (cause instanceof BitbucketWebhookTriggerCause) {
+                    BitbucketWebhookTriggerCause webhookCause = (BitbucketWebhookTriggerCause) cause;
+                    webhookCause.setLeftQueueAt(now);
+                    latency.record(webhookCause.getStageDurations());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRefChange;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRefChangeType;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRefType;
+import com.atlassian.bitbucket.jenkins.internal.trigger.events.*;
+
+import javax.annotation.CheckForNull;
+import java.util.*;
+import java.util.logging.Logger;
+
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parsePositiveLongFromSystemProperty;
+
+/**
+ * How urgently a job should be polled after a webhook. Jobs waiting for a trigger thread are polled in order of their
+ * deadline, which is when they were triggered plus the {@link #getDelay() delay} for their priority, so a job with a
+ * higher priority goes ahead of jobs with a lower priority that were triggered less than the difference in delay
+ * before it. A job with a lower priority can only be overtaken for so long, so a steady stream of urgent triggers
+ * can't hold it back forever.
+ * <p>
+ * By default, opened pull requests and pushes to the branches in {@code bitbucket.trigger.priority.branches}
+ * (defaults to {@code master,main}) are {@link #HIGH}, pushes of only tags and mirror synchronizations are
+ * {@link #LOW}, and everything else is {@link #NORMAL}. This can be configured with the following system properties:
+ * <ul>
+ *     <li>{@code bitbucket.trigger.priority.events}: priorities by event key, such as
+ *     {@code pr:from_ref_updated=HIGH,mirror:repo_synchronized=NORMAL}.</li>
+ *     <li>{@code bitbucket.trigger.priority.folders}: priorities for the jobs in a folder, such as
+ *     {@code team-a=HIGH,sandbox=LOW}, which take precedence over the priority of the event. If a job is in nested
+ *     folders, the innermost folder configured is used.</li>
+ *     <li>{@code bitbucket.trigger.priority.normal.delay} and {@code bitbucket.trigger.priority.low.delay}: the delay
+ *     in ms for normal and low priority. Default to 30 seconds and 5 minutes.</li>
+ * </ul>
+ *
+ * @since 3.2.0
+ */
+public enum BitbucketTriggerPriority {
+
+    HIGH(0),
+    NORMAL(parsePositiveLongFromSystemProperty("bitbucket.trigger.priority.normal.delay", 30_000)),
+    LOW(parsePositiveLongFromSystemProperty("bitbucket.trigger.priority.low.delay", 300_000));
+
+    private static final Logger LOGGER = Logger.getLogger(BitbucketTriggerPriority.class.getName());
+    private static final Set<String> BRANCHES =
+            parseBranches(System.getProperty("bitbucket.trigger.priority.branches", "master,main"));
+    private static final Map<String, BitbucketTriggerPriority> EVENTS =
+            parse(System.getProperty("bitbucket.trigger.priority.events"));
+    private static final Map<String, BitbucketTriggerPriority> FOLDERS =
+            parse(System.getProperty("bitbucket.trigger.priority.folders"));
+
+    private final long delay;
+
+    BitbucketTriggerPriority(long delay) {
+        this.delay = delay;
+    }
+
+    /**
+     * @param event the webhook event
+     * @return the priority for the jobs triggered by the event
+     */
+    public static BitbucketTriggerPriority forEvent(AbstractWebhookEvent event) {
+        return forEvent(event, EVENTS, BRANCHES);
+    }
+
+    /**
+     * @param jobName  the full name of the job
+     * @param priority the priority for the event that triggered the job
+     * @return the priority for the job's folder if one is configured, otherwise the priority for the event
+     */
+    public static BitbucketTriggerPriority forJob(String jobName, BitbucketTriggerPriority priority) {
+        return forJob(jobName, priority, FOLDERS);
+    }
+
+    /**
+     * @return how long a trigger with this priority can be overtaken by triggers with a higher priority, in ms
+     */
+    public long getDelay() {
+        return delay;
+    }
+
+    static BitbucketTriggerPriority forEvent(AbstractWebhookEvent event, Map<String, BitbucketTriggerPriority> events,
+                                             Set<String> branches) {
+        BitbucketTriggerPriority configured = events.get(event.getEventKey());
+        if (configured != null) {
+            return configured;
+        }
+        if (event instanceof MirrorSynchronizedWebhookEvent) {
+            return LOW;
+        }
+        if (event instanceof RefsChangedWebhookEvent) {
+            return forChanges(((RefsChangedWebhookEvent) event).getChanges(), branches);
+        }
+        if (event instanceof PullRequestOpenedWebhookEvent) {
+            return HIGH;
+        }
+        return NORMAL;
+    }
+
+    static BitbucketTriggerPriority forJob(String jobName, BitbucketTriggerPriority priority,
+                                           Map<String, BitbucketTriggerPriority> folders) {
+        // The innermost folder wins, so look at the job's parents from the closest outwards
+        for (int end = jobName.lastIndexOf('/'); end > 0; end = jobName.lastIndexOf('/', end - 1)) {
+            BitbucketTriggerPriority configured = folders.get(jobName.substring(0, end));
+            if (configured != null) {
+                return configured;
+            }
+        }
+        return priority;
+    }
+
+    /**
+     * @param value comma separated {@code name=PRIORITY} pairs
+     * @return the priorities by name. Pairs with an unknown priority are logged and left out.
+     */
+    static Map<String, BitbucketTriggerPriority> parse(@CheckForNull String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, BitbucketTriggerPriority> priorities = new HashMap<>();
+        for (String pair : value.split(",")) {
+            int separator = pair.lastIndexOf('=');
+            String priority = separator < 0 ? "" : pair.substring(separator + 1).trim().toUpperCase(Locale.ROOT);
+            if (Arrays.stream(values()).noneMatch(candidate -> candidate.name().equals(priority))) {
+                LOGGER.warning("Ignoring trigger priority '" + pair.trim() + "', expected name=" +
+                               Arrays.toString(values()));
+                continue;
+            }
+            priorities.put(pair.substring(0, separator).trim(), valueOf(priority));
+        }
+        return priorities;
+    }
+
+    private static BitbucketTriggerPriority forChanges(List<BitbucketRefChange> changes, Set<String> branches) {
+        boolean onlyTags = true;
+        for (BitbucketRefChange change : changes) {
+            if (change.getType() == BitbucketRefChangeType.DELETE) {
+                continue;
+            }
+            if (change.getRef().getType() != BitbucketRefType.TAG) {
+                if (branches.contains(change.getRef().getDisplayId())) {
+                    return HIGH;
+                }
+                onlyTags = false;
+            }
+        }
+        return onlyTags ? LOW : NORMAL;
+    }
+
+    private static Set<String> parseBranches(String value) {
+        Set<String> branches = new HashSet<>();
+        for (String branch : value.split(",")) {
+            if (!branch.trim().isEmpty()) {
+                branches.add(branch.trim());
+            }
+        }
+        return branches;
+    }
+}
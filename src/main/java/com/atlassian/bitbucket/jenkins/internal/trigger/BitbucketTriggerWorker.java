@@ -1,11 +1,18 @@
 package com.atlassian.bitbucket.jenkins.internal.trigger;
 
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketRemoteHeads;
 import hudson.Util;
 import hudson.model.Action;
+import hudson.model.Cause;
+import hudson.model.CauseAction;
 import hudson.model.Job;
+import hudson.plugins.git.Branch;
+import hudson.plugins.git.Revision;
+import hudson.plugins.git.RevisionParameterAction;
 import hudson.scm.PollingResult;
 import hudson.util.StreamTaskListener;
 import jenkins.triggers.SCMTriggerItem;
+import org.eclipse.jgit.lib.ObjectId;
 
 import javax.annotation.CheckForNull;
 import java.io.File;
@@ -13,6 +20,7 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.text.DateFormat;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -22,7 +30,12 @@ public class BitbucketTriggerWorker implements Runnable {
     private static final Logger LOGGER = Logger.getLogger(BitbucketTriggerWorker.class.getName());
     private final List<Action> actions = new ArrayList<>();
     @CheckForNull
+    private final BitbucketDirectTrigger directTrigger;
+    @CheckForNull
     private final Job<?, ?> job;
+    private final AtomicBoolean pollingRequired = new AtomicBoolean();
+    @CheckForNull
+    private final BitbucketTriggerFilter triggerFilter;
     private final SCMTriggerItem triggerItem;
 
     public BitbucketTriggerWorker(
@@ -30,8 +43,39 @@ public class BitbucketTriggerWorker implements Runnable {
             SCMTriggerItem triggerItem,
             Action causeAction,
             List<Action> additionalActions) {
+        this(job, triggerItem, causeAction, additionalActions, null);
+    }
+
+    /**
+     * @param directTrigger decides whether to build the job from the webhook without polling, or {@code null} to
+     *                      always poll
+     * @since 3.2.0
+     */
+    public BitbucketTriggerWorker(
+            @CheckForNull Job<?, ?> job,
+            SCMTriggerItem triggerItem,
+            Action causeAction,
+            List<Action> additionalActions,
+            @CheckForNull BitbucketDirectTrigger directTrigger) {
+        this(job, triggerItem, causeAction, additionalActions, directTrigger, null);
+    }
+
+    /**
+     * @param triggerFilter checks whether the files pushed can affect the job before it is polled, or {@code null} to
+     *                      always poll
+     * @since 3.2.0
+     */
+    public BitbucketTriggerWorker(
+            @CheckForNull Job<?, ?> job,
+            SCMTriggerItem triggerItem,
+            Action causeAction,
+            List<Action> additionalActions,
+            @CheckForNull BitbucketDirectTrigger directTrigger,
+            @CheckForNull BitbucketTriggerFilter triggerFilter) {
         actions.add(causeAction);
         actions.addAll(additionalActions);
+        this.directTrigger = directTrigger;
+        this.triggerFilter = triggerFilter;
         this.triggerItem = triggerItem;
         this.job = job;
     }
@@ -62,17 +106,30 @@ public class BitbucketTriggerWorker implements Runnable {
         try (StreamTaskListener listener = new StreamTaskListener(logFile)) {
 
             long start = System.currentTimeMillis();
+            List<BitbucketWebhookTriggerCause> webhookCauses = getWebhookCauses();
             PrintStream logger = listener.getLogger();
+            if (pollingRequired.getAndSet(false)) {
+                logger.println("The job was triggered again while waiting, so polling for the latest changes");
+            } else if (triggerFilter != null && isUnaffected(logger, webhookCauses)) {
+                return;
+            } else if (directTrigger != null && triggerDirectly(logger, start, webhookCauses)) {
+                return;
+            }
             logger.println(
                     "Starting polling: "
                             + DateFormat.getDateTimeInstance().format(new Date(start)));
 
-            PollingResult result = triggerItem.poll(listener);
-            logger.println("Poll complete. Took " + Util.getTimeSpanString(System.currentTimeMillis() - start));
+            BitbucketWebhookTriggerRequest latest = getLatestRequest(webhookCauses);
+            long receivedAt = latest == null || latest.getReceivedAt() == 0 ? start : latest.getReceivedAt();
+            PollingResult result =
+                    BitbucketRemoteHeads.pollForWebhook(receivedAt, () -> triggerItem.poll(listener));
+            long finish = System.currentTimeMillis();
+            logger.println("Poll complete. Took " + Util.getTimeSpanString(finish - start));
 
             if (result.hasChanges()) {
                 logger.println("Changes since last build: " + result.change);
-                triggerItem.scheduleBuild2(0, actions.toArray(ACTION_ARRAY));
+                triggerItem.scheduleBuild2(0,
+                        withTriggerTimes(actions, start, finish, System.currentTimeMillis()).toArray(ACTION_ARRAY));
             }
         } catch (IOException | RuntimeException e) {
             LOGGER.log(Level.SEVERE, String.format(
@@ -95,5 +152,116 @@ public class BitbucketTriggerWorker implements Runnable {
     public SCMTriggerItem getTriggerItem() {
         return triggerItem;
     }
-}
 
+    /**
+     * Makes the worker poll the next time it runs, rather than build the job from the request it was created for.
+     * The queue runs a worker again when the job is triggered while it's waiting or running, and the request it was
+     * created for may not be the latest one by then.
+     */
+    void requirePolling() {
+        pollingRequired.set(true);
+    }
+
+    /**
+     * @return the latest request the job is being triggered for, if it was triggered by a webhook
+     */
+    @CheckForNull
+    private static BitbucketWebhookTriggerRequest getLatestRequest(List<BitbucketWebhookTriggerCause> causes) {
+        if (causes.isEmpty()) {
+            return null;
+        }
+        List<BitbucketWebhookTriggerRequest> requests = causes.get(causes.size() - 1).getTriggerRequests();
+        return requests.isEmpty() ? null : requests.get(requests.size() - 1);
+    }
+
+    /**
+     * @return the webhook causes the job is being triggered for
+     */
+    private List<BitbucketWebhookTriggerCause> getWebhookCauses() {
+        List<BitbucketWebhookTriggerCause> causes = new ArrayList<>(1);
+        for (Action action : actions) {
+            if (action instanceof CauseAction) {
+                for (Cause cause : ((CauseAction) action).getCauses()) {
+                    if (cause instanceof BitbucketWebhookTriggerCause) {
+                        causes.add((BitbucketWebhookTriggerCause) cause);
+                    }
+                }
+            }
+        }
+        return causes;
+    }
+
+    /**
+     * Checks whether none of the files changed by the pushes the job is being triggered for can affect it. This is
+     * done here rather than when the webhook is handled, as the files changed are fetched from Bitbucket.
+     *
+     * @return {@code true} if the job doesn't need polling
+     */
+    private boolean isUnaffected(PrintStream logger, List<BitbucketWebhookTriggerCause> webhookCauses) {
+        List<BitbucketWebhookTriggerRequest> requests = new ArrayList<>();
+        webhookCauses.forEach(cause -> requests.addAll(cause.getTriggerRequests()));
+        String reason = triggerFilter.getPathSkipReason(job, requests);
+        if (reason == null) {
+            return false;
+        }
+        logger.println("Not polling, as " + reason);
+        return true;
+    }
+
+    /**
+     * Builds the job for the commit in the webhook without polling, if the webhook is enough to go on.
+     *
+     * @return {@code true} if the job was dealt with, or {@code false} if it needs polling
+     */
+    private boolean triggerDirectly(PrintStream logger, long start, List<BitbucketWebhookTriggerCause> webhookCauses) {
+        BitbucketDirectTrigger.Decision decision =
+                directTrigger.decide(job, triggerItem, getLatestRequest(webhookCauses));
+        if (decision == null) {
+            return false;
+        }
+        if (!decision.isBuild()) {
+            logger.println(String.format("Not polling, and not building %s of %s, as the job doesn't build the " +
+                                         "branch or has already built the commit", decision.getCommit(),
+                    decision.getBranch()));
+            return true;
+        }
+        logger.println(String.format("Not polling, and building %s of %s from the webhook", decision.getCommit(),
+                decision.getBranch()));
+        long now = System.currentTimeMillis();
+        List<Action> directActions = withTriggerTimes(actions, start, now, now);
+        // Pin the branch as well as the commit, so the build knows which branch it is building, as it would from polling
+        ObjectId commit = ObjectId.fromString(decision.getCommit());
+        directActions.add(new RevisionParameterAction(
+                new Revision(commit, Collections.singleton(new Branch(decision.getRemoteBranch(), commit)))));
+        triggerItem.scheduleBuild2(0, directActions.toArray(ACTION_ARRAY));
+        return true;
+    }
+
+    /**
+     * The same webhook causes may already be attached to a build, if the worker ran before, so the times are recorded
+     * on copies of them rather than on the causes themselves.
+     *
+     * @return the actions to schedule the build with, with the webhook causes replaced by copies recording when the
+     * job was polled and the build scheduled
+     */
+    private static List<Action> withTriggerTimes(List<Action> actions, long pollStartedAt, long pollFinishedAt,
+                                                 long scheduledAt) {
+        List<Action> timedActions = new ArrayList<>(actions.size() + 1);
+        for (Action action : actions) {
+            if (action instanceof CauseAction &&
+                ((CauseAction) action).getCauses().stream().anyMatch(BitbucketWebhookTriggerCause.class::isInstance)) {
+                List<Cause> causes = new ArrayList<>();
+                for (Cause cause : ((CauseAction) action).getCauses()) {
+                    causes.add(cause instanceof BitbucketWebhookTriggerCause ?
+                            ((BitbucketWebhookTriggerCause) cause)
+                                    .withTriggerTimes(pollStartedAt, pollFinishedAt, scheduledAt) :
+                            cause);
+                }
+                timedActions.add(new CauseAction(causes));
+            } else {
+                timedActions.add(action);
+            }
+        }
+        return timedActions;
+    }
+}
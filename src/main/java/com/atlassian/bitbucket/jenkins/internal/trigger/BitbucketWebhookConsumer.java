@@ -2,6 +2,8 @@ package com.atlassian.bitbucket.jenkins.internal.trigger;
 
 import com.atlassian.bitbucket.jenkins.internal.config.BitbucketPluginConfiguration;
 import com.atlassian.bitbucket.jenkins.internal.model.*;
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketRepositoryCatalog;
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketRepositoryMetadataCache;
 import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCM;
 import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCMRepository;
 import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCMSource;
@@ -11,21 +13,16 @@ import hudson.plugins.git.GitSCM;
 import hudson.scm.SCM;
 import hudson.security.ACL;
 import hudson.security.ACLContext;
-import hudson.triggers.Trigger;
-import hudson.triggers.TriggerDescriptor;
-import jenkins.model.Jenkins;
 import jenkins.model.ParameterizedJobMixIn;
 import jenkins.plugins.git.GitBranchSCMHead;
 import jenkins.plugins.git.GitBranchSCMRevision;
 import jenkins.scm.api.*;
-import jenkins.triggers.SCMTriggerItem;
 import org.eclipse.jgit.transport.RemoteConfig;
-import org.jenkinsci.plugins.workflow.cps.CpsScmFlowDefinition;
-import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.eclipse.jgit.transport.URIish;
 
-import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import java.net.URISyntaxException;
 import java.util.*;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -40,11 +37,26 @@ import static org.apache.commons.lang3.StringUtils.isBlank;
 public class BitbucketWebhookConsumer {
 
     private static final Logger LOGGER = Logger.getLogger(BitbucketWebhookConsumer.class.getName());
+    /**
+     * When the webhook being processed on the current thread was received, in ms since the epoch.
+     */
+    private static final ThreadLocal<Long> RECEIVED_AT = new ThreadLocal<>();
 
     @Inject
     private BitbucketPluginConfiguration bitbucketPluginConfiguration;
+    @Inject
+    private BitbucketWebhookEventBus eventBus;
+    @Inject
+    private BitbucketJobIndex jobIndex;
+    @Inject
+    private BitbucketRepositoryCatalog repositoryCatalog;
+    @Inject
+    private BitbucketRepositoryMetadataCache repositoryMetadataCache;
+    @Inject
+    private BitbucketTriggerFilter triggerFilter;
 
     void process(AbstractWebhookEvent e) {
+        updateRepositoryMetadata(e);
         if (e instanceof MirrorSynchronizedWebhookEvent) {
             process((MirrorSynchronizedWebhookEvent) e);
         } else if (e instanceof RefsChangedWebhookEvent) {
@@ -52,6 +64,30 @@ public class BitbucketWebhookConsumer {
         } else if (e instanceof PullRequestWebhookEvent) {
             process((PullRequestWebhookEvent) e);
         }
+        // Listeners are given the event after the jobs have been triggered, so they can't hold them up
+        eventBus.publish(e);
+    }
+
+    /**
+     * Runs a task that processes a webhook, passing on when the webhook was received to the jobs it triggers. The
+     * time the task is run is used for webhooks processed without this.
+     *
+     * @param receivedAt when the webhook was received, in ms since the epoch
+     * @param task       the task processing the webhook
+     * @since 3.2.0
+     */
+    static void runReceivedAt(long receivedAt, Runnable task) {
+        Long previous = RECEIVED_AT.get();
+        RECEIVED_AT.set(receivedAt);
+        try {
+            task.run();
+        } finally {
+            if (previous == null) {
+                RECEIVED_AT.remove();
+            } else {
+                RECEIVED_AT.set(previous);
+            }
+        }
     }
 
     private void process(RefsChangedWebhookEvent event) {
@@ -92,28 +128,6 @@ public class BitbucketWebhookConsumer {
                 .collect(Collectors.toSet());
     }
 
-    private static Optional<? extends SCM> getScmFromWorkflowJob(WorkflowJob job) {
-        if (job.getDefinition() instanceof CpsScmFlowDefinition) {
-            CpsScmFlowDefinition scmFlowDefinition = (CpsScmFlowDefinition) job.getDefinition();
-            return of(scmFlowDefinition.getScm());
-        } else {
-            LOGGER.info(format("Webhook triggering job with no SCM: %s ", job.getFullDisplayName()));
-            return empty();
-        }
-    }
-
-    private static Collection<? extends SCM> getScms(ParameterizedJobMixIn.ParameterizedJob<?, ?> job) {
-        SCMTriggerItem triggerItem = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(job);
-        if (triggerItem instanceof WorkflowJob) {
-            return getScmFromWorkflowJob((WorkflowJob) triggerItem)
-                    .map(Collections::singleton)
-                    .orElse(Collections.emptySet());
-        } else if (triggerItem != null) {
-            return triggerItem.getSCMs();
-        }
-        return Collections.emptySet();
-    }
-
     private static boolean hasMatchingRepository(RefChangedDetails refChangedDetails,
                                                  GitSCM scm) {
         return scm.getRepositories().stream()
@@ -121,11 +135,29 @@ public class BitbucketWebhookConsumer {
     }
 
     private static boolean matchingRepo(Set<String> cloneLinks, RemoteConfig repo) {
-        return repo.getURIs().stream().anyMatch(uri -> {
-            String uriStr = uri.toString();
-            return cloneLinks.stream()
-                    .anyMatch(link -> link.equalsIgnoreCase(uriStr));
-        });
+        return repo.getURIs().stream().anyMatch(uri -> cloneLinks.contains(normalizeCloneUrl(uri.toString())));
+    }
+
+    /**
+     * Normalises a clone URL so the same repository matches however its URL is written: the case, any user name and
+     * password, and a trailing {@code /} or {@code .git} are ignored.
+     *
+     * @since 3.2.0
+     */
+    static String normalizeCloneUrl(String cloneUrl) {
+        String normalized = cloneUrl.trim().toLowerCase(Locale.ROOT);
+        try {
+            normalized = new URIish(normalized).setUser(null).setPass(null).toString();
+        } catch (URISyntaxException e) {
+            // Compared as it is
+        }
+        if (normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        if (normalized.endsWith(".git")) {
+            normalized = normalized.substring(0, normalized.length() - ".git".length());
+        }
+        return normalized;
     }
 
     private static boolean matchingRepo(BitbucketRepository repository, BitbucketSCMRepository scmRepo) {
@@ -133,28 +165,39 @@ public class BitbucketWebhookConsumer {
                scmRepo.getRepositorySlug().equalsIgnoreCase(repository.getSlug());
     }
 
+    private static void setRef(AbstractWebhookEvent event, BitbucketWebhookTriggerRequest.Builder requestBuilder) {
+        if (event instanceof RefsChangedWebhookEvent) {
+            List<BitbucketRefChange> changes = ((RefsChangedWebhookEvent) event).getChanges()
+                    .stream()
+                    .filter(refChange -> refChange.getType() != BitbucketRefChangeType.DELETE)
+                    .sorted(Comparator.comparing(refChange -> refChange.getRef().getId()))
+                    .collect(Collectors.toList());
+            if (!changes.isEmpty()) {
+                requestBuilder.refId(changes.stream()
+                        .map(refChange -> refChange.getRef().getId())
+                        .collect(Collectors.joining(",")));
+                requestBuilder.commit(changes.get(changes.size() - 1).getToHash());
+                requestBuilder.refChanges(changes);
+            }
+        } else if (event instanceof PullRequestWebhookEvent) {
+            BitbucketPullRequestRef fromRef = ((PullRequestWebhookEvent) event).getPullRequest().getFromRef();
+            requestBuilder.pullRequest(true);
+            requestBuilder.refId(fromRef.getId());
+            requestBuilder.commit(fromRef.getLatestCommit());
+        }
+    }
+
     private static Optional<TriggerDetails> toTriggerDetails(ParameterizedJobMixIn.ParameterizedJob<?, ?> job) {
-        BitbucketWebhookTriggerImpl trigger = triggerFrom(job);
+        BitbucketWebhookTriggerImpl trigger = BitbucketJobIndex.getTrigger(job);
         if (trigger != null) {
             return of(new TriggerDetails(job, trigger));
         }
         return empty();
     }
 
-    @Nullable
-    private static BitbucketWebhookTriggerImpl triggerFrom(ParameterizedJobMixIn.ParameterizedJob<?, ?> job) {
-        Map<TriggerDescriptor, Trigger<?>> triggers = job.getTriggers();
-        for (Trigger<?> candidate : triggers.values()) {
-            if (candidate instanceof BitbucketWebhookTriggerImpl) {
-                return (BitbucketWebhookTriggerImpl) candidate;
-            }
-        }
-        return null;
-    }
-
     private boolean hasMatchingRepository(RefChangedDetails refChangedDetails,
                                           ParameterizedJobMixIn.ParameterizedJob<?, ?> job) {
-        Collection<? extends SCM> scms = getScms(job);
+        Collection<? extends SCM> scms = BitbucketJobIndex.getScms(job);
         for (SCM scm : scms) {
             if (scm instanceof GitSCM) {
                 return hasMatchingRepository(refChangedDetails, (GitSCM) scm);
@@ -192,22 +235,65 @@ public class BitbucketWebhookConsumer {
         return true;
     }
 
+    /**
+     * Checks whether none of the job's branch specifiers match a push, so polling it would be a waste. Whether the
+     * files pushed can affect it is left to the trigger worker, as that means asking Bitbucket.
+     */
+    private boolean isUnaffected(AbstractWebhookEvent event, ParameterizedJobMixIn.ParameterizedJob<?, ?> job) {
+        return event instanceof RefsChangedWebhookEvent &&
+               triggerFilter.getSkipReason(job, (RefsChangedWebhookEvent) event) != null;
+    }
+
+    private void updateRepositoryMetadata(AbstractWebhookEvent event) {
+        if (event instanceof RefsChangedWebhookEvent) {
+            updateRepositoryMetadata(((RefsChangedWebhookEvent) event).getRepository());
+        } else if (event instanceof PullRequestWebhookEvent) {
+            BitbucketPullRequest pullRequest = ((PullRequestWebhookEvent) event).getPullRequest();
+            updateRepositoryMetadata(pullRequest.getToRef().getRepository());
+            updateRepositoryMetadata(pullRequest.getFromRef().getRepository());
+        }
+    }
+
+    private void updateRepositoryMetadata(BitbucketRepository repository) {
+        repositoryMetadataCache.onRepositoryEvent(repository);
+        repositoryCatalog.onRepositoryEvent(repository);
+    }
+
     private void processJobs(AbstractWebhookEvent event, RefChangedDetails refChangedDetails, BitbucketWebhookTriggerRequest.Builder requestBuilder) {
-        Jenkins.get().getAllItems(ParameterizedJobMixIn.ParameterizedJob.class)
+        jobIndex.getJobs(refChangedDetails.getRepository())
                 .stream()
                 .map(BitbucketWebhookConsumer::toTriggerDetails)
                 .filter(Optional::isPresent)
                 .map(Optional::get)
                 .filter(details -> details.getTrigger().isApplicableForEvent(event))
                 .filter(triggerDetails -> hasMatchingRepository(refChangedDetails, triggerDetails.getJob()))
+                .filter(triggerDetails -> !isUnaffected(event, triggerDetails.getJob()))
                 .peek(triggerDetails -> LOGGER.fine("Triggering " + triggerDetails.getJob().getFullDisplayName()))
-                .forEach(triggerDetails -> triggerDetails.getTrigger().trigger(requestBuilder.build()));
+                .forEach(triggerDetails -> triggerDetails.getTrigger()
+                        .trigger(requestBuilder.dispatchedAt(System.currentTimeMillis()).build()));
+    }
+
+    private static void fireHeadEvent(RefsChangedWebhookEvent event) {
+        BitbucketSCMHeadEvent headEvent = new BitbucketSCMHeadEvent(SCMEvent.Type.UPDATED, event,
+                event.getRepository().getSlug());
+        // Works out the heads before the event is handed to the listeners, which all share them
+        if (headEvent.getChangedHeads().isEmpty()) {
+            // Such as a push of only tags, which no multibranch project has a branch for
+            LOGGER.fine("Not notifying multibranch projects as no branches have been added or updated");
+            return;
+        }
+        BitbucketSCMHeadEvent.fireNow(headEvent);
     }
 
     private void triggerJob(AbstractWebhookEvent event, RefChangedDetails refChangedDetails) {
         try (ACLContext ignored = ACL.as(ACL.SYSTEM)) {
             BitbucketWebhookTriggerRequest.Builder requestBuilder = BitbucketWebhookTriggerRequest.builder();
             event.getActor().ifPresent(requestBuilder::actor);
+            requestBuilder.priority(BitbucketTriggerPriority.forEvent(event));
+            requestBuilder.eventDate(event.getDate());
+            Long receivedAt = RECEIVED_AT.get();
+            requestBuilder.receivedAt(receivedAt == null ? System.currentTimeMillis() : receivedAt);
+            setRef(event, requestBuilder);
 
             processJobs(event, refChangedDetails, requestBuilder);
             if (event instanceof PullRequestOpenedWebhookEvent || event instanceof PullRequestFromRefUpdatedWebhookEvent) {
@@ -219,9 +305,7 @@ public class BitbucketWebhookConsumer {
                 BitbucketSCMHeadPullRequestEvent.fireNow(new BitbucketSCMHeadPullRequestEvent(eventType,
                         prOpenEvent, prOpenEvent.getPullRequest().getToRef().getRepository().getSlug()));
             } else if (event instanceof RefsChangedWebhookEvent) {
-                RefsChangedWebhookEvent refsChangedEvent = (RefsChangedWebhookEvent) event;
-                BitbucketSCMHeadEvent.fireNow(new BitbucketSCMHeadEvent(SCMEvent.Type.UPDATED, refsChangedEvent,
-                        refsChangedEvent.getRepository().getSlug()));
+                fireHeadEvent((RefsChangedWebhookEvent) event);
             }
         }
     }
@@ -268,12 +352,49 @@ public class BitbucketWebhookConsumer {
         }
     }
 
+    /**
+     * Signals the branches added or updated by a push. There is one event for all of the changes in the push, however
+     * many there are, so each matching {@link BitbucketSCMSource} retrieves all of the affected heads at once.
+     */
     static class BitbucketSCMHeadEvent extends SCMHeadEvent<RefsChangedWebhookEvent> {
 
+        /**
+         * The heads for the changes, worked out the first time they are needed as every source in every multibranch
+         * project asks for them, and a push can have thousands of changes.
+         */
+        private volatile Map<SCMHead, SCMRevision> changedHeads;
+
         public BitbucketSCMHeadEvent(Type type, RefsChangedWebhookEvent payload, String origin) {
             super(type, payload, origin);
         }
 
+        /**
+         * @return the branches added or updated, and the commits they were changed to. Tags and deleted branches are
+         * left out, as they aren't branch heads that can be built.
+         * @since 3.2.0
+         */
+        Map<SCMHead, SCMRevision> getChangedHeads() {
+            Map<SCMHead, SCMRevision> heads = changedHeads;
+            if (heads == null) {
+                heads = toHeads(getPayload().getChanges());
+                changedHeads = heads;
+            }
+            return heads;
+        }
+
+        static Map<SCMHead, SCMRevision> toHeads(List<BitbucketRefChange> changes) {
+            Map<SCMHead, SCMRevision> heads = new LinkedHashMap<>();
+            for (BitbucketRefChange change : changes) {
+                if (change.getType() == BitbucketRefChangeType.DELETE ||
+                    change.getRef().getType() == BitbucketRefType.TAG) {
+                    continue;
+                }
+                GitBranchSCMHead head = new GitBranchSCMHead(change.getRef().getDisplayId());
+                heads.put(head, new GitBranchSCMRevision(head, change.getToHash()));
+            }
+            return Collections.unmodifiableMap(heads);
+        }
+
         @Override
         public String getSourceName() {
             return getPayload().getRepository().getName();
@@ -288,7 +409,7 @@ public class BitbucketWebhookConsumer {
             if (!matchingRepo(getPayload().getRepository(), src.getBitbucketSCMRepository())) {
                 return emptyMap();
             }
-            return getPayload().getChanges().stream().collect(Collectors.toMap(change -> new GitBranchSCMHead(change.getRef().getDisplayId()), change -> new GitBranchSCMRevision(new GitBranchSCMHead(change.getRef().getDisplayId()), change.getToHash())));
+            return getChangedHeads();
         }
 
         @Override
@@ -340,6 +461,9 @@ public class BitbucketWebhookConsumer {
 
         }
 
+        /**
+         * @return the clone URLs of the repository, {@link #normalizeCloneUrl normalised}
+         */
         public Set<String> getCloneLinks() {
             return cloneLinks;
         }
@@ -360,6 +484,7 @@ public class BitbucketWebhookConsumer {
             return repository.getCloneUrls()
                     .stream()
                     .map(BitbucketNamedLink::getHref)
+                    .map(BitbucketWebhookConsumer::normalizeCloneUrl)
                     .collect(Collectors.toSet());
         }
     }
@@ -13,18 +13,20 @@ import static com.atlassian.bitbucket.jenkins.internal.trigger.BitbucketWebhookE
 import static org.apache.commons.lang3.StringUtils.isEmpty;
 
 /**
- * Adds exception to the CSRF protection filter for {@link BitbucketWebhookEndpoint}.
+ * Adds exception to the CSRF protection filter for webhooks sent to {@link BitbucketWebhookEndpoint}. Only the
+ * webhook itself is excluded, as Bitbucket can't send a crumb; the endpoint's other actions (such as replaying webhooks)
+ * are used from a browser, and stay protected.
  */
 @Extension
 public class BitbucketWebhookCrumbExclusion extends CrumbExclusion {
 
-    private static final String EXCLUSION_PATH = '/' + BIBUCKET_WEBHOOK_URL + '/';
+    private static final String EXCLUSION_PATH = '/' + BIBUCKET_WEBHOOK_URL + "/trigger";
 
     @Override
     public boolean process(HttpServletRequest req, HttpServletResponse resp, FilterChain chain)
             throws IOException, ServletException {
         String pathInfo = req.getPathInfo();
-        if (isEmpty(pathInfo) || !pathInfo.startsWith(EXCLUSION_PATH)) {
+        if (isEmpty(pathInfo) || !(pathInfo.equals(EXCLUSION_PATH) || pathInfo.equals(EXCLUSION_PATH + '/'))) {
             return false;
         }
         chain.doFilter(req, resp);
@@ -0,0 +1,174 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketPullRequest;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRefChange;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRepository;
+import com.atlassian.bitbucket.jenkins.internal.trigger.events.AbstractWebhookEvent;
+import com.atlassian.bitbucket.jenkins.internal.trigger.events.MirrorSynchronizedWebhookEvent;
+import com.atlassian.bitbucket.jenkins.internal.trigger.events.PullRequestWebhookEvent;
+import com.atlassian.bitbucket.jenkins.internal.trigger.events.RefsChangedWebhookEvent;
+
+import javax.annotation.CheckForNull;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.time.Clock;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parseBooleanFromSystemProperty;
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parsePositiveLongFromSystemProperty;
+import static java.util.Comparator.comparing;
+import static java.util.Objects.requireNonNull;
+import static java.util.stream.Collectors.joining;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+/**
+ * Drops webhooks that have already been received, so the same push doesn't trigger the same jobs more than once.
+ * This happens when Bitbucket retries a delivery it thinks has failed (such as after a timeout), and when the same
+ * event is sent by more than one webhook, such as a repository webhook and a project webhook.
+ * <p>
+ * A webhook is a duplicate if a webhook with the same {@code X-Request-Id} header, or with the same contents (the
+ * event, when it happened, the repository and the refs or pull request it is about), has been received in the last
+ * {@link #WINDOW} ms. Deliveries from different webhooks have different request IDs, which is why the contents are
+ * always compared as well. At most {@link #MAX_ENTRIES} webhooks are remembered.
+ *
+ * @since 3.2.0
+ */
+@Singleton
+public class BitbucketWebhookDeduplicator {
+
+    public static final boolean ENABLED = parseBooleanFromSystemProperty("bitbucket.webhook.dedup.enabled", true);
+    /**
+     * How long a webhook is remembered for. Defaults to 10 minutes in ms.
+     */
+    public static final long WINDOW =
+            parsePositiveLongFromSystemProperty("bitbucket.webhook.dedup.window", TimeUnit.MINUTES.toMillis(10));
+    public static final long MAX_ENTRIES =
+            parsePositiveLongFromSystemProperty("bitbucket.webhook.dedup.max.entries", 10000);
+    private static final Logger LOGGER = Logger.getLogger(BitbucketWebhookDeduplicator.class.getName());
+
+    private final Clock clock;
+    private final AtomicLong duplicates = new AtomicLong();
+    private final boolean enabled;
+    private final long maxEntries;
+    private final Map<String, Long> seen = new LinkedHashMap<>();
+    private final long window;
+
+    @Inject
+    public BitbucketWebhookDeduplicator(Clock clock) {
+        this(clock, ENABLED, WINDOW, MAX_ENTRIES);
+    }
+
+    BitbucketWebhookDeduplicator(Clock clock, boolean enabled, long window, long maxEntries) {
+        this.clock = requireNonNull(clock, "clock");
+        this.enabled = enabled;
+        this.maxEntries = maxEntries;
+        this.window = window;
+    }
+
+    /**
+     * Records the webhook, and returns whether it has already been received.
+     *
+     * @param requestId the {@code X-Request-Id} header of the delivery, if there is one
+     * @param event     the webhook
+     * @return {@code true} if the webhook is a duplicate and should be dropped
+     */
+    public boolean isDuplicate(@CheckForNull String requestId, AbstractWebhookEvent event) {
+        if (!enabled) {
+            return false;
+        }
+        String eventKey = toKey(event);
+        long now = clock.millis();
+        boolean duplicate;
+        synchronized (seen) {
+            expire(now);
+            duplicate = seen.containsKey(eventKey);
+            // Entries aren't refreshed by duplicates, so they are always in the order they expire in
+            seen.putIfAbsent(eventKey, now);
+            if (isNotBlank(requestId)) {
+                String requestKey = "request:" + requestId;
+                duplicate |= seen.containsKey(requestKey);
+                seen.putIfAbsent(requestKey, now);
+            }
+            evict();
+        }
+        if (duplicate) {
+            duplicates.incrementAndGet();
+            LOGGER.fine(() -> "Dropping duplicate webhook " + eventKey +
+                              (isNotBlank(requestId) ? " with request ID " + requestId : ""));
+        }
+        return duplicate;
+    }
+
+    /**
+     * Forgets the webhook, so it isn't dropped if it is received again. This is for webhooks that could not be
+     * processed, which Bitbucket will retry.
+     *
+     * @param requestId the {@code X-Request-Id} header of the delivery, if there is one
+     * @param event     the webhook
+     */
+    public void forget(@CheckForNull String requestId, AbstractWebhookEvent event) {
+        synchronized (seen) {
+            seen.remove(toKey(event));
+            if (isNotBlank(requestId)) {
+                seen.remove("request:" + requestId);
+            }
+        }
+    }
+
+    /**
+     * @return the number of duplicate webhooks dropped since Jenkins started
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    static String toKey(AbstractWebhookEvent event) {
+        StringBuilder key = new StringBuilder(event.getEventKey())
+                .append('@').append(event.getDate().getTime());
+        if (event instanceof RefsChangedWebhookEvent) {
+            RefsChangedWebhookEvent refsChangedEvent = (RefsChangedWebhookEvent) event;
+            key.append(':').append(toKey(refsChangedEvent.getRepository()));
+            if (event instanceof MirrorSynchronizedWebhookEvent) {
+                ((MirrorSynchronizedWebhookEvent) event).getMirrorServer()
+                        .ifPresent(mirror -> key.append(":mirror=").append(mirror.getId()));
+            }
+            key.append(':').append(refsChangedEvent.getChanges().stream()
+                    .sorted(comparing(BitbucketRefChange::getRefId))
+                    .map(change -> change.getRefId() + '=' + change.getFromHash() + ".." + change.getToHash() +
+                                   '(' + change.getType() + ')')
+                    .collect(joining(",")));
+        } else if (event instanceof PullRequestWebhookEvent) {
+            BitbucketPullRequest pullRequest = ((PullRequestWebhookEvent) event).getPullRequest();
+            key.append(':').append(toKey(pullRequest.getToRef().getRepository()))
+                    .append(":pr=").append(pullRequest.getId())
+                    .append('@').append(pullRequest.getUpdatedDate())
+                    .append(':').append(pullRequest.getFromRef().getLatestCommit())
+                    .append("..").append(pullRequest.getToRef().getLatestCommit());
+        }
+        return key.toString();
+    }
+
+    private static String toKey(BitbucketRepository repository) {
+        return repository.getProject().getKey() + '/' + repository.getSlug() + '#' + repository.getId();
+    }
+
+    private void evict() {
+        Iterator<Long> iterator = seen.values().iterator();
+        while (seen.size() > maxEntries && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private void expire(long now) {
+        Iterator<Long> iterator = seen.values().iterator();
+        while (iterator.hasNext() && now - iterator.next() >= window) {
+            iterator.remove();
+        }
+    }
+}
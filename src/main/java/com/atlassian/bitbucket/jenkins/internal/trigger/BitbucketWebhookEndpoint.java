@@ -1,20 +1,33 @@
 package com.atlassian.bitbucket.jenkins.internal.trigger;
 
 import com.atlassian.bitbucket.jenkins.internal.trigger.events.*;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
 import hudson.model.UnprotectedRootAction;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.HttpResponses;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
 import org.apache.commons.lang3.StringUtils;
 import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 import org.kohsuke.stapler.verb.POST;
 
 import javax.annotation.CheckForNull;
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 @Extension
@@ -22,42 +35,92 @@ public class BitbucketWebhookEndpoint implements UnprotectedRootAction {
 
     public static final String BIBUCKET_WEBHOOK_URL = "bitbucket-server-webhook";
     public static final String X_EVENT_KEY = "X-Event-Key";
+    public static final String X_REQUEST_ID = "X-Request-Id";
 
     private static final String APPLICATION_JSON = "application/json";
     private static final Logger LOGGER = Logger.getLogger(BitbucketWebhookEndpoint.class.getName());
 
-    private final ObjectMapper objectMapper = new ObjectMapper();
-
+    @Inject
+    private BitbucketWebhookDeduplicator deduplicator;
+    @Inject
+    private BitbucketWebhookIntakeQueue intakeQueue;
+    @Inject
+    private BitbucketWebhookJournal journal;
+    @Inject
+    private BitbucketWebhookPayloadParser payloadParser;
     @Inject
     private BitbucketWebhookConsumer webhookConsumer;
+    private final ExecutorService replayExecutor = Executors.newSingleThreadExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "BitbucketWebhookJournalReplay"));
 
     @POST
     @SuppressWarnings("unused")
     public HttpResponse doTrigger(StaplerRequest request, StaplerResponse response) {
+        long receivedAt = System.currentTimeMillis();
         validateContentType(request);
+        validateContentLength(request);
 
         String eventKey = getEventKey(request);
+        BitbucketWebhookEvent webhookEvent = BitbucketWebhookEvent.findByEventId(eventKey);
+        if (webhookEvent == BitbucketWebhookEvent.DIAGNOSTICS_PING) {
+            return org.kohsuke.stapler.HttpResponses.ok();
+        }
+        Optional<Class<? extends AbstractWebhookEvent>> eventType = getEventType(webhookEvent);
+        if (!eventType.isPresent()) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return HttpResponses.errorJSON("Event is not supported: " + eventKey);
+        }
+        if (intakeQueue.isEnabled()) {
+            return queueEvent(request, response, eventKey, eventType.get());
+        }
+        return processEvent(request, response, eventKey, eventType.get(), receivedAt);
+    }
 
-        switch (BitbucketWebhookEvent.findByEventId(eventKey)) {
-            case DIAGNOSTICS_PING:
-                return org.kohsuke.stapler.HttpResponses.ok();
-            case REPO_REF_CHANGE:
-                return processEvent(request, RefsChangedWebhookEvent.class);
-            case MIRROR_SYNCHRONIZED:
-                return processEvent(request, MirrorSynchronizedWebhookEvent.class);
-            case PULL_REQUEST_DECLINED:
-                return processEvent(request, PullRequestDeclinedWebhookEvent.class);
-            case PULL_REQUEST_DELETED:
-                return processEvent(request, PullRequestDeletedWebhookEvent.class);
-            case PULL_REQUEST_FROM_REF_UPDATED:
-                return processEvent(request, PullRequestFromRefUpdatedWebhookEvent.class);
-            case PULL_REQUEST_MERGED:
-                return processEvent(request, PullRequestMergedWebhookEvent.class);
-            case PULL_REQUEST_OPENED:
-                return processEvent(request, PullRequestOpenedWebhookEvent.class);
-            default:
-                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                return HttpResponses.errorJSON("Event is not supported: " + eventKey);
+    /**
+     * Processes the webhooks in the journal received in a time range again, whether or not they were processed
+     * before. Only webhooks received since the retention period of the journal can be replayed.
+     *
+     * @param from the earliest time a webhook was received, in ms since the epoch
+     * @param to   the latest time a webhook was received, in ms since the epoch. Defaults to now.
+     * @since 3.2.0
+     */
+    @RequirePOST
+    @SuppressWarnings("unused")
+    public HttpResponse doReplay(@QueryParameter long from, @QueryParameter long to) {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        if (!journal.isEnabled()) {
+            return HttpResponses.errorJSON("The webhook journal is not enabled");
+        }
+        long until = to > 0 ? to : Long.MAX_VALUE;
+        LOGGER.info("Replaying the webhooks received between " + from + " and " + until);
+        // The journal is read as the webhooks are replayed, so how many there are is only known once it is done
+        replayExecutor.execute(() -> {
+            AtomicInteger replayed = new AtomicInteger();
+            journal.forEachEntry(from, until, entry -> {
+                replay(entry);
+                replayed.incrementAndGet();
+            });
+            LOGGER.info("Replayed " + replayed.get() + " webhooks received between " + from + " and " + until);
+        });
+        JSONObject json = new JSONObject();
+        json.put("replaying", true);
+        return HttpResponses.okJSON(json);
+    }
+
+    /**
+     * Processes the webhooks in the journal that were received before Jenkins stopped but hadn't been processed.
+     *
+     * @since 3.2.0
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public void replayUnfinished() {
+        if (!journal.isEnabled()) {
+            return;
+        }
+        int unfinished = journal.getStatistics().getUnfinished();
+        if (unfinished > 0) {
+            LOGGER.info("Replaying " + unfinished + " webhooks received before Jenkins was restarted");
+            replayExecutor.execute(() -> journal.forEachUnfinished(this::replay));
         }
     }
 
@@ -79,6 +142,27 @@ public class BitbucketWebhookEndpoint implements UnprotectedRootAction {
         return BIBUCKET_WEBHOOK_URL;
     }
 
+    static Optional<Class<? extends AbstractWebhookEvent>> getEventType(BitbucketWebhookEvent webhookEvent) {
+        switch (webhookEvent) {
+            case REPO_REF_CHANGE:
+                return Optional.of(RefsChangedWebhookEvent.class);
+            case MIRROR_SYNCHRONIZED:
+                return Optional.of(MirrorSynchronizedWebhookEvent.class);
+            case PULL_REQUEST_DECLINED:
+                return Optional.of(PullRequestDeclinedWebhookEvent.class);
+            case PULL_REQUEST_DELETED:
+                return Optional.of(PullRequestDeletedWebhookEvent.class);
+            case PULL_REQUEST_FROM_REF_UPDATED:
+                return Optional.of(PullRequestFromRefUpdatedWebhookEvent.class);
+            case PULL_REQUEST_MERGED:
+                return Optional.of(PullRequestMergedWebhookEvent.class);
+            case PULL_REQUEST_OPENED:
+                return Optional.of(PullRequestOpenedWebhookEvent.class);
+            default:
+                return Optional.empty();
+        }
+    }
+
     private String getEventKey(StaplerRequest request) {
         String eventKey = request.getHeader(X_EVENT_KEY);
         if (StringUtils.isEmpty(eventKey)) {
@@ -88,24 +172,147 @@ public class BitbucketWebhookEndpoint implements UnprotectedRootAction {
         return eventKey;
     }
 
-    private <T> T parse(StaplerRequest request, Class<T> type) {
+    /**
+     * Records the webhook in the journal, before it is acknowledged.
+     *
+     * @return the sequence number to complete the webhook with in the journal, or {@code null} if it couldn't be
+     * recorded and should be rejected, so Bitbucket retries it
+     */
+    @CheckForNull
+    private Long record(String eventKey, @CheckForNull byte[] body) {
+        if (body == null) {
+            return 0L;
+        }
         try {
-            T event = objectMapper.readValue(request.getInputStream(), type);
+            return journal.append(eventKey, body);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to record a " + eventKey + " webhook in the journal", e);
+            return null;
+        }
+    }
+
+    private <T extends AbstractWebhookEvent> T parse(StaplerRequest request, Class<T> type) {
+        try {
+            T event = payloadParser.parse(request.getInputStream(), type);
             LOGGER.fine(String.format("Payload: %s", event));
             return event;
         } catch (IOException e) {
-            String error = "Failed to parse the body: " + e.getMessage();
-            LOGGER.severe(error);
-            throw org.kohsuke.stapler.HttpResponses.errorWithoutStack(HttpServletResponse.SC_BAD_REQUEST, error);
+            throw parseFailure(e);
         }
     }
 
-    private <T extends AbstractWebhookEvent> HttpResponse processEvent(StaplerRequest request, Class<T> eventType) {
-        T event = parse(request, eventType);
-        webhookConsumer.process(event);
+    private static org.kohsuke.stapler.HttpResponses.HttpResponseException parseFailure(IOException e) {
+        String error = "Failed to parse the body: " + e.getMessage();
+        LOGGER.severe(error);
+        int status = e instanceof BitbucketWebhookPayloadParser.PayloadTooLargeException ?
+                HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE : HttpServletResponse.SC_BAD_REQUEST;
+        return org.kohsuke.stapler.HttpResponses.errorWithoutStack(status, error);
+    }
+
+    private <T extends AbstractWebhookEvent> HttpResponse processEvent(StaplerRequest request,
+                                                                       StaplerResponse response, String eventKey,
+                                                                       Class<T> eventType, long receivedAt) {
+        // The raw body is only needed to record it in the journal
+        byte[] body = null;
+        T event;
+        if (journal.isEnabled()) {
+            try {
+                body = payloadParser.read(request.getInputStream());
+                event = payloadParser.parse(new ByteArrayInputStream(body), eventType);
+            } catch (IOException e) {
+                throw parseFailure(e);
+            }
+            LOGGER.fine(String.format("Payload: %s", event));
+        } else {
+            event = parse(request, eventType);
+        }
+        String requestId = request.getHeader(X_REQUEST_ID);
+        if (deduplicator.isDuplicate(requestId, event)) {
+            return org.kohsuke.stapler.HttpResponses.ok();
+        }
+        Long sequence = record(eventKey, body);
+        if (sequence == null) {
+            deduplicator.forget(requestId, event);
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return HttpResponses.errorJSON("Failed to record the webhook, try again later");
+        }
+        try {
+            BitbucketWebhookConsumer.runReceivedAt(receivedAt, () -> webhookConsumer.process(event));
+        } catch (RuntimeException e) {
+            // Bitbucket will retry the webhook, which mustn't be dropped as a duplicate
+            deduplicator.forget(requestId, event);
+            throw e;
+        }
+        journal.complete(sequence);
         return org.kohsuke.stapler.HttpResponses.ok();
     }
 
+    /**
+     * Only validates the webhook before handing it over to the queue, so Bitbucket gets a response straight away.
+     */
+    private HttpResponse queueEvent(StaplerRequest request, StaplerResponse response, String eventKey,
+                                    Class<? extends AbstractWebhookEvent> eventType) {
+        byte[] body;
+        AbstractWebhookEvent event;
+        try {
+            body = payloadParser.read(request.getInputStream());
+            event = payloadParser.parse(new ByteArrayInputStream(body), eventType);
+        } catch (IOException e) {
+            throw parseFailure(e);
+        }
+        LOGGER.fine(String.format("Payload: %s", event));
+        String requestId = request.getHeader(X_REQUEST_ID);
+        if (deduplicator.isDuplicate(requestId, event)) {
+            return org.kohsuke.stapler.HttpResponses.ok();
+        }
+        Long sequence = record(eventKey, body);
+        if (sequence == null) {
+            deduplicator.forget(requestId, event);
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return HttpResponses.errorJSON("Failed to record the webhook, try again later");
+        }
+        if (!intakeQueue.submit(eventKey, body, event, sequence)) {
+            // Rejected before being acknowledged, so it's up to Bitbucket to retry it
+            journal.complete(sequence);
+            deduplicator.forget(requestId, event);
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return HttpResponses.errorJSON("Too many webhooks are waiting to be processed, try again later");
+        }
+        return org.kohsuke.stapler.HttpResponses.status(HttpServletResponse.SC_ACCEPTED);
+    }
+
+    private void replay(BitbucketWebhookJournal.Entry entry) {
+        Optional<Class<? extends AbstractWebhookEvent>> eventType =
+                getEventType(BitbucketWebhookEvent.findByEventId(entry.getEventKey()));
+        if (!eventType.isPresent()) {
+            journal.complete(entry.getSequence());
+            return;
+        }
+        try {
+            AbstractWebhookEvent event =
+                    payloadParser.parse(new ByteArrayInputStream(entry.getBody()), eventType.get());
+            BitbucketWebhookConsumer.runReceivedAt(entry.getReceivedAt(), () -> webhookConsumer.process(event));
+            journal.complete(entry.getSequence());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Discarding the unreadable webhook " + entry.getSequence() +
+                                      " in the journal", e);
+            journal.complete(entry.getSequence());
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to replay webhook " + entry.getSequence() + " from the journal", e);
+        }
+    }
+
+    private void validateContentLength(StaplerRequest request) {
+        // The body is also checked as it is read, as the length isn't always known up front
+        long contentLength = request.getContentLengthLong();
+        if (contentLength > payloadParser.getMaxPayloadSize()) {
+            LOGGER.severe(String.format("Webhook body of %d bytes is too large", contentLength));
+            throw org.kohsuke.stapler.HttpResponses.errorWithoutStack(
+                    HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                    "The body is larger than the maximum of " + payloadParser.getMaxPayloadSize() + " bytes");
+        }
+    }
+
     private void validateContentType(StaplerRequest request) {
         String contentType = request.getContentType();
         if (contentType != null && !contentType.startsWith(APPLICATION_JSON)) {
@@ -0,0 +1,173 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import com.atlassian.bitbucket.jenkins.internal.trigger.events.AbstractWebhookEvent;
+import hudson.ExtensionList;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Gives the webhook events received from Bitbucket to the {@link BitbucketWebhookListener listeners} registered in
+ * Jenkins. Each listener has its own thread and bounded buffer of events, so a listener that is slow or fails only
+ * affects itself.
+ *
+ * @since 3.2.0
+ */
+@Singleton
+public class BitbucketWebhookEventBus {
+
+    private static final Logger LOGGER = Logger.getLogger(BitbucketWebhookEventBus.class.getName());
+
+    private final Supplier<List<BitbucketWebhookListener<?>>> listeners;
+    private final Map<BitbucketWebhookListener<?>, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+    @Inject
+    public BitbucketWebhookEventBus() {
+        this(BitbucketWebhookEventBus::lookupListeners);
+    }
+
+    BitbucketWebhookEventBus(Supplier<List<BitbucketWebhookListener<?>>> listeners) {
+        this.listeners = requireNonNull(listeners, "listeners");
+    }
+
+    /**
+     * @return the number of events delivered, waiting and dropped for each listener, by the listener's class name
+     */
+    public Map<String, Statistics> getStatistics() {
+        Map<String, Statistics> statistics = new TreeMap<>();
+        subscriptions.forEach((listener, subscription) ->
+                statistics.put(listener.getClass().getName(), subscription.getStatistics()));
+        return statistics;
+    }
+
+    /**
+     * Queues the event for every listener for its type. This doesn't wait for the listeners.
+     *
+     * @param event the event
+     */
+    public void publish(AbstractWebhookEvent event) {
+        for (BitbucketWebhookListener<?> listener : listeners.get()) {
+            if (listener.getEventType().isInstance(event)) {
+                subscriptions.computeIfAbsent(listener, Subscription::new).publish(event);
+            }
+        }
+    }
+
+    /**
+     * Stops delivering events. Events still waiting for a listener are dropped.
+     */
+    public void shutdown() {
+        subscriptions.values().forEach(subscription -> subscription.executor.shutdownNow());
+        subscriptions.clear();
+    }
+
+    private static List<BitbucketWebhookListener<?>> lookupListeners() {
+        List<BitbucketWebhookListener<?>> listeners = new ArrayList<>();
+        for (BitbucketWebhookListener<?> listener : ExtensionList.lookup(BitbucketWebhookListener.class)) {
+            listeners.add(listener);
+        }
+        return listeners;
+    }
+
+    public static final class Statistics {
+
+        private final int backlog;
+        private final long delivered;
+        private final long dropped;
+        private final long failed;
+
+        Statistics(int backlog, long delivered, long dropped, long failed) {
+            this.backlog = backlog;
+            this.delivered = delivered;
+            this.dropped = dropped;
+            this.failed = failed;
+        }
+
+        /**
+         * @return the number of events waiting for the listener
+         */
+        public int getBacklog() {
+            return backlog;
+        }
+
+        /**
+         * @return the number of events given to the listener, including those it failed to handle
+         */
+        public long getDelivered() {
+            return delivered;
+        }
+
+        /**
+         * @return the number of events dropped because the listener's buffer was full
+         */
+        public long getDropped() {
+            return dropped;
+        }
+
+        /**
+         * @return the number of events the listener threw an exception for
+         */
+        public long getFailed() {
+            return failed;
+        }
+    }
+
+    private static final class Subscription {
+
+        private final AtomicLong delivered = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final ThreadPoolExecutor executor;
+        private final AtomicLong failed = new AtomicLong();
+        private final BitbucketWebhookListener<?> listener;
+
+        private Subscription(BitbucketWebhookListener<?> listener) {
+            this.listener = listener;
+            // A single thread delivers the events in order, and stops while there are none
+            executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, listener.getBufferSize())),
+                    new NamingThreadFactory(new DaemonThreadFactory(),
+                            "BitbucketWebhookListener-" + listener.getClass().getSimpleName()));
+            executor.allowCoreThreadTimeOut(true);
+        }
+
+        private Statistics getStatistics() {
+            return new Statistics(executor.getQueue().size(), delivered.get(), dropped.get(), failed.get());
+        }
+
+        private void publish(AbstractWebhookEvent event) {
+            try {
+                executor.execute(() -> deliver(listener, event));
+            } catch (RejectedExecutionException e) {
+                if (dropped.incrementAndGet() == 1) {
+                    LOGGER.warning("Dropping webhook events for " + listener.getClass().getName() +
+                                   " as it is not keeping up with them");
+                }
+            }
+        }
+
+        private <T extends AbstractWebhookEvent> void deliver(BitbucketWebhookListener<T> target,
+                                                              AbstractWebhookEvent event) {
+            delivered.incrementAndGet();
+            try {
+                target.onEvent(target.getEventType().cast(event));
+            } catch (RuntimeException e) {
+                failed.incrementAndGet();
+                LOGGER.log(Level.WARNING, target.getClass().getName() + " failed to handle webhook event " +
+                                          event.getEventKey(), e);
+            }
+        }
+    }
+}
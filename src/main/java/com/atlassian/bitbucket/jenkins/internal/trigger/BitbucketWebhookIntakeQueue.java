@@ -0,0 +1,486 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRepository;
+import com.atlassian.bitbucket.jenkins.internal.trigger.events.AbstractWebhookEvent;
+import com.atlassian.bitbucket.jenkins.internal.trigger.events.BitbucketWebhookEvent;
+import com.atlassian.bitbucket.jenkins.internal.trigger.events.PullRequestWebhookEvent;
+import com.atlassian.bitbucket.jenkins.internal.trigger.events.RefsChangedWebhookEvent;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import jenkins.model.Jenkins;
+
+import javax.annotation.CheckForNull;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Clock;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parseBooleanFromSystemProperty;
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parsePositiveLongFromSystemProperty;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Processes webhooks in the background, so the webhook endpoint can acknowledge them as soon as they have been
+ * validated instead of holding on to the request (and the Jetty thread serving it) while every job is checked and
+ * SCM events are fired. It is enabled by setting the {@code bitbucket.webhook.async.enabled} system property to
+ * {@code true}.
+ * <p>
+ * Webhooks are processed in {@link #WORKERS} lanes, each with a single thread. The webhooks for a repository always go
+ * to the same lane, so they are processed one at a time and in the order they were received, and a busy repository
+ * can't hold up the repositories in the other lanes. The lanes hold at most {@link #CAPACITY} webhooks between them,
+ * divided evenly. What happens when the lane for a webhook is full depends on the
+ * {@code bitbucket.webhook.queue.overflow} system property:
+ * <ul>
+ *     <li>{@code reject} (the default): the webhook is rejected, and the endpoint responds with a 503</li>
+ *     <li>{@code spill}: the webhook is written to disk (up to {@link #SPILL_CAPACITY} webhooks), and queued again
+ *     once there is room. Spilled webhooks are also picked up again after a restart, unless they are in the
+ *     {@link BitbucketWebhookJournal journal}, which replays them itself. While there are webhooks on disk, new
+ *     webhooks are written to disk after them, so they can't overtake them.</li>
+ * </ul>
+ * Webhooks recorded in the journal are {@link BitbucketWebhookJournal#complete completed} in it once they have been
+ * processed, whether they were spilled or not.
+ *
+ * @since 3.2.0
+ */
+@Singleton
+public class BitbucketWebhookIntakeQueue {
+
+    public static final boolean ENABLED = parseBooleanFromSystemProperty("bitbucket.webhook.async.enabled", false);
+    /**
+     * The maximum number of webhooks waiting to be processed in memory, across all of the lanes. Defaults to 1000.
+     */
+    public static final int CAPACITY = (int) parsePositiveLongFromSystemProperty("bitbucket.webhook.queue.capacity", 1000);
+    /**
+     * The maximum number of webhooks spilled to disk. Defaults to 10000.
+     */
+    public static final int SPILL_CAPACITY =
+            (int) parsePositiveLongFromSystemProperty("bitbucket.webhook.queue.spill.capacity", 10000);
+    /**
+     * The number of lanes (and threads) processing webhooks. Defaults to 2.
+     */
+    public static final int WORKERS = (int) parsePositiveLongFromSystemProperty("bitbucket.webhook.queue.workers", 2);
+    private static final Logger LOGGER = Logger.getLogger(BitbucketWebhookIntakeQueue.class.getName());
+    private static final String SPILL_DIRECTORY = "bitbucket-webhook-spill";
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final Clock clock;
+    private final boolean enabled;
+    private final BitbucketWebhookJournal journal;
+    private final PartitionedExecutor lanes;
+    private final AtomicLong maxWait = new AtomicLong();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final OverflowPolicy overflowPolicy;
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicBoolean requeueScheduled = new AtomicBoolean();
+    private final File spillDirectory;
+    private final AtomicInteger spilledDepth = new AtomicInteger();
+    private final AtomicLong spilled = new AtomicLong();
+    /**
+     * The webhooks on disk, oldest first, with the partition each is for, so they can be queued again without listing
+     * the spill directory or reading the webhooks that can't be queued yet.
+     */
+    private final ConcurrentSkipListMap<File, String> spilledWebhooks = new ConcurrentSkipListMap<>();
+    private final AtomicLong totalWait = new AtomicLong();
+    private final BitbucketWebhookConsumer webhookConsumer;
+
+    @Inject
+    public BitbucketWebhookIntakeQueue(BitbucketWebhookConsumer webhookConsumer, BitbucketWebhookJournal journal,
+                                       Clock clock) {
+        this(webhookConsumer, journal, clock, ENABLED,
+                OverflowPolicy.fromString(System.getProperty("bitbucket.webhook.queue.overflow")), CAPACITY, WORKERS,
+                getDefaultSpillDirectory());
+    }
+
+    BitbucketWebhookIntakeQueue(BitbucketWebhookConsumer webhookConsumer, BitbucketWebhookJournal journal,
+                                Clock clock, boolean enabled, OverflowPolicy overflowPolicy, int capacity,
+                                int workers, @CheckForNull File spillDirectory) {
+        this.webhookConsumer = requireNonNull(webhookConsumer, "webhookConsumer");
+        this.journal = requireNonNull(journal, "journal");
+        this.clock = requireNonNull(clock, "clock");
+        this.enabled = enabled;
+        this.overflowPolicy = requireNonNull(overflowPolicy, "overflowPolicy");
+        this.spillDirectory = spillDirectory;
+        lanes = new PartitionedExecutor(workers, Math.max(1, (capacity + workers - 1) / workers),
+                "BitbucketWebhookIntake");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queues the webhooks that were spilled to disk before Jenkins was restarted, once the jobs they may trigger have
+     * been loaded. Those that are in the journal are left to it to replay, so they aren't processed twice.
+     *
+     * @since 3.2.0
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public void requeueSpilledOnStartup() {
+        if (!enabled || spillDirectory == null) {
+            return;
+        }
+        File[] files = spillDirectory.listFiles((dir, name) -> name.endsWith(".json"));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            spilledDepth.incrementAndGet();
+            readSpilled(file).ifPresent(webhook -> {
+                if (journal.isEnabled() && webhook.journalSequence > 0) {
+                    LOGGER.fine(() -> "Leaving the spilled webhook " + file + " to be replayed from the journal");
+                    deleteSpilled(file);
+                } else {
+                    spilledWebhooks.put(file, getPartitionKey(webhook.event));
+                }
+            });
+        }
+        requeueSpilled();
+    }
+
+    /**
+     * Queues an already validated webhook to be processed in the background.
+     *
+     * @param eventKey the value of the {@code X-Event-Key} header of the webhook
+     * @param body     the raw body of the webhook, which is written to disk if the queue is full and webhooks are
+     *                 spilled
+     * @param event    the parsed body of the webhook
+     * @return {@code true} if the webhook will be processed, or {@code false} if it was rejected as the queue is full
+     */
+    public boolean submit(String eventKey, byte[] body, AbstractWebhookEvent event) {
+        return submit(eventKey, body, event, 0);
+    }
+
+    /**
+     * Queues an already validated webhook to be processed in the background, and {@link BitbucketWebhookJournal#complete
+     * completes} it in the journal once it has been, including when it was spilled to disk first. It isn't completed
+     * if processing it fails.
+     *
+     * @param eventKey        the value of the {@code X-Event-Key} header of the webhook
+     * @param body            the raw body of the webhook, which is written to disk if the queue is full and webhooks
+     *                        are spilled
+     * @param event           the parsed body of the webhook
+     * @param journalSequence the sequence number the webhook was {@link BitbucketWebhookJournal#append appended} to
+     *                        the journal with, or 0 if it wasn't
+     * @return {@code true} if the webhook will be processed, or {@code false} if it was rejected as the queue is full
+     * @since 3.2.0
+     */
+    public boolean submit(String eventKey, byte[] body, AbstractWebhookEvent event, long journalSequence) {
+        String partitionKey = getPartitionKey(event);
+        boolean spilling = overflowPolicy == OverflowPolicy.SPILL && spilledDepth.get() > 0;
+        if (!spilling) {
+            try {
+                lanes.execute(partitionKey, new QueuedWebhook(event, clock.millis(), journalSequence));
+                accepted.incrementAndGet();
+                return true;
+            } catch (RejectedExecutionException e) {
+                // The lane is full
+            }
+        }
+        if (overflowPolicy == OverflowPolicy.SPILL && spill(eventKey, body, journalSequence, partitionKey)) {
+            accepted.incrementAndGet();
+            scheduleRequeue(partitionKey);
+            return true;
+        }
+        rejected.incrementAndGet();
+        LOGGER.warning("Rejected a " + eventKey + " webhook, as there are already " + getDepth() +
+                       " webhooks waiting to be processed");
+        return false;
+    }
+
+    public Statistics getStatistics() {
+        long processedCount = processed.get();
+        return new Statistics(getDepth(), lanes.getBacklogs(), spilledDepth.get(), accepted.get(), rejected.get(),
+                spilled.get(), processedCount, processedCount == 0 ? 0 : totalWait.get() / processedCount,
+                maxWait.get());
+    }
+
+    int getDepth() {
+        return lanes.getBacklog();
+    }
+
+    /**
+     * Returns the key of the partition for the webhook, which is the repository it is for, so all the webhooks for a
+     * repository are processed in order.
+     */
+    static String getPartitionKey(AbstractWebhookEvent event) {
+        BitbucketRepository repository = null;
+        if (event instanceof RefsChangedWebhookEvent) {
+            repository = ((RefsChangedWebhookEvent) event).getRepository();
+        } else if (event instanceof PullRequestWebhookEvent) {
+            repository = ((PullRequestWebhookEvent) event).getPullRequest().getToRef().getRepository();
+        }
+        if (repository == null) {
+            return "";
+        }
+        return (repository.getProject().getKey() + '/' + repository.getSlug()).toLowerCase(Locale.ROOT);
+    }
+
+    @CheckForNull
+    private static File getDefaultSpillDirectory() {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        return jenkins == null ? null : new File(jenkins.getRootDir(), SPILL_DIRECTORY);
+    }
+
+    private boolean spill(String eventKey, byte[] body, long journalSequence, String partitionKey) {
+        if (spillDirectory == null) {
+            return false;
+        }
+        if (spilledDepth.incrementAndGet() > SPILL_CAPACITY) {
+            spilledDepth.decrementAndGet();
+            return false;
+        }
+        // Named so that listing the directory returns them (roughly) in the order they were received
+        File file = new File(spillDirectory, String.format("%019d-%s.json", clock.millis(), UUID.randomUUID()));
+        // The journal sequence number is kept so the webhook can be completed in the journal once it is processed
+        byte[] header = (eventKey + '\n' + journalSequence + '\n').getBytes(StandardCharsets.UTF_8);
+        byte[] content = Arrays.copyOf(header, header.length + body.length);
+        System.arraycopy(body, 0, content, header.length, body.length);
+        try {
+            Files.createDirectories(spillDirectory.toPath());
+            Files.write(file.toPath(), content);
+            spilledWebhooks.put(file, partitionKey);
+            spilled.incrementAndGet();
+            return true;
+        } catch (IOException e) {
+            spilledDepth.decrementAndGet();
+            LOGGER.log(Level.WARNING, "Failed to write a webhook to " + file, e);
+            return false;
+        }
+    }
+
+    /**
+     * Has a worker move spilled webhooks back into the queue, in case the workers finished processing the webhooks
+     * they had just before the webhook was spilled. The webhook endpoint doesn't do it itself, as that means reading
+     * webhooks from disk while Bitbucket waits for a response.
+     */
+    private void scheduleRequeue(String partitionKey) {
+        if (!requeueScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            lanes.execute(partitionKey, () -> {
+                requeueScheduled.set(false);
+                requeueSpilled();
+            });
+        } catch (RejectedExecutionException e) {
+            // The lane is full, so its worker will move the spilled webhooks once it has processed the next webhook
+            requeueScheduled.set(false);
+        }
+    }
+
+    /**
+     * Moves spilled webhooks back into the queue while there is room for them.
+     */
+    private synchronized void requeueSpilled() {
+        // Once a webhook can't be queued, later ones for the same lane have to wait for it to keep them in order
+        Set<Integer> fullLanes = new HashSet<>();
+        for (Map.Entry<File, String> spilledWebhook : spilledWebhooks.entrySet()) {
+            if (fullLanes.size() == lanes.getLaneCount() || lanes.isFull()) {
+                return;
+            }
+            File file = spilledWebhook.getKey();
+            String partitionKey = spilledWebhook.getValue();
+            int lane = lanes.getLane(partitionKey);
+            if (fullLanes.contains(lane)) {
+                continue;
+            }
+            Optional<QueuedWebhook> webhook = readSpilled(file);
+            if (!webhook.isPresent()) {
+                continue;
+            }
+            try {
+                lanes.execute(partitionKey, webhook.get());
+            } catch (RejectedExecutionException e) {
+                // Filled up in the meantime, it'll be picked up next time
+                fullLanes.add(lane);
+                continue;
+            }
+            deleteSpilled(file);
+        }
+    }
+
+    private Optional<QueuedWebhook> readSpilled(File file) {
+        try {
+            byte[] content = Files.readAllBytes(file.toPath());
+            int keyEnd = indexOfNewline(content, 0);
+            int sequenceEnd = indexOfNewline(content, keyEnd + 1);
+            String eventKey = new String(content, 0, keyEnd, StandardCharsets.UTF_8);
+            Optional<Class<? extends AbstractWebhookEvent>> eventType =
+                    BitbucketWebhookEndpoint.getEventType(BitbucketWebhookEvent.findByEventId(eventKey));
+            if (eventType.isPresent() && sequenceEnd < content.length) {
+                long journalSequence = Long.parseLong(
+                        new String(content, keyEnd + 1, sequenceEnd - keyEnd - 1, StandardCharsets.UTF_8));
+                AbstractWebhookEvent event = objectMapper.readValue(content, sequenceEnd + 1,
+                        content.length - sequenceEnd - 1, eventType.get());
+                return Optional.of(new QueuedWebhook(event, file.lastModified(), journalSequence));
+            }
+            LOGGER.warning("Discarding the unreadable spilled webhook " + file);
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Discarding the unreadable spilled webhook " + file, e);
+        }
+        deleteSpilled(file);
+        return Optional.empty();
+    }
+
+    private static int indexOfNewline(byte[] content, int from) {
+        int newline = Math.min(from, content.length);
+        while (newline < content.length && content[newline] != '\n') {
+            newline++;
+        }
+        return newline;
+    }
+
+    private void deleteSpilled(File file) {
+        spilledWebhooks.remove(file);
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to delete the spilled webhook " + file, e);
+        }
+        spilledDepth.decrementAndGet();
+    }
+
+    public enum OverflowPolicy {
+        REJECT,
+        SPILL;
+
+        static OverflowPolicy fromString(@CheckForNull String value) {
+            if (value == null || value.trim().isEmpty()) {
+                return REJECT;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                LOGGER.warning("Unknown webhook queue overflow policy '" + value + "', rejecting webhooks instead");
+                return REJECT;
+            }
+        }
+    }
+
+    /**
+     * A snapshot of how the queue is doing, with all times in ms.
+     */
+    public static final class Statistics {
+
+        private final long accepted;
+        private final long averageWait;
+        private final int depth;
+        private final int[] laneDepths;
+        private final long maxWait;
+        private final long processed;
+        private final long rejected;
+        private final long spilled;
+        private final int spilledDepth;
+
+        Statistics(int depth, int[] laneDepths, int spilledDepth, long accepted, long rejected, long spilled,
+                   long processed, long averageWait, long maxWait) {
+            this.accepted = accepted;
+            this.averageWait = averageWait;
+            this.depth = depth;
+            this.laneDepths = laneDepths.clone();
+            this.maxWait = maxWait;
+            this.processed = processed;
+            this.rejected = rejected;
+            this.spilled = spilled;
+            this.spilledDepth = spilledDepth;
+        }
+
+        public long getAccepted() {
+            return accepted;
+        }
+
+        /**
+         * @return the average time processed webhooks waited in the queue
+         */
+        public long getAverageWait() {
+            return averageWait;
+        }
+
+        /**
+         * @return the number of webhooks waiting in memory
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * @return the number of webhooks waiting in memory in each lane
+         */
+        public int[] getLaneDepths() {
+            return laneDepths.clone();
+        }
+
+        /**
+         * @return the longest time a processed webhook waited in the queue
+         */
+        public long getMaxWait() {
+            return maxWait;
+        }
+
+        public long getProcessed() {
+            return processed;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        /**
+         * @return the total number of webhooks that were spilled to disk
+         */
+        public long getSpilled() {
+            return spilled;
+        }
+
+        /**
+         * @return the number of webhooks currently waiting on disk
+         */
+        public int getSpilledDepth() {
+            return spilledDepth;
+        }
+    }
+
+    private final class QueuedWebhook implements Runnable {
+
+        private final AbstractWebhookEvent event;
+        private final long journalSequence;
+        private final long queuedAt;
+
+        private QueuedWebhook(AbstractWebhookEvent event, long queuedAt, long journalSequence) {
+            this.event = event;
+            this.journalSequence = journalSequence;
+            this.queuedAt = queuedAt;
+        }
+
+        @Override
+        public void run() {
+            long wait = Math.max(0, clock.millis() - queuedAt);
+            totalWait.addAndGet(wait);
+            maxWait.accumulateAndGet(wait, Math::max);
+            try {
+                BitbucketWebhookConsumer.runReceivedAt(queuedAt, () -> webhookConsumer.process(event));
+                journal.complete(journalSequence);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Failed to process a webhook", e);
+            } finally {
+                processed.incrementAndGet();
+            }
+            if (spilledDepth.get() > 0) {
+                requeueSpilled();
+            }
+        }
+    }
+}
@@ -0,0 +1,452 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import jenkins.model.Jenkins;
+import org.apache.commons.io.input.BoundedInputStream;
+
+import javax.annotation.CheckForNull;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parseBooleanFromSystemProperty;
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parsePositiveLongFromSystemProperty;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * An append-only record of the webhooks received, so webhooks that were received but not processed (because Jenkins
+ * stopped, or processing them failed) can be processed again. It is enabled by setting the
+ * {@code bitbucket.webhook.journal.enabled} system property to {@code true}.
+ * <p>
+ * Each webhook is {@link #append appended} before it is acknowledged, and {@link #complete completed} once its jobs
+ * have been triggered, so webhooks are processed at least once. The journal is written to segments in the
+ * {@code bitbucket-webhook-journal} directory of the Jenkins home, each holding records with a checksum so a record
+ * torn by a crash is detected and ignored. A new segment is started when the current one is larger than
+ * {@link #SEGMENT_SIZE} bytes, and every time Jenkins starts. Segments older than {@link #RETENTION} ms are deleted
+ * along with their records.
+ * <p>
+ * Reading the journal doesn't hold up webhooks being appended to it, and the webhooks read are handed over one at a
+ * time rather than all being loaded into memory.
+ *
+ * @since 3.2.0
+ */
+@Singleton
+public class BitbucketWebhookJournal {
+
+    public static final boolean ENABLED = parseBooleanFromSystemProperty("bitbucket.webhook.journal.enabled", false);
+    /**
+     * How long to keep records for, in ms. Defaults to 7 days.
+     */
+    public static final long RETENTION =
+            parsePositiveLongFromSystemProperty("bitbucket.webhook.journal.retention", 7L * 24 * 60 * 60 * 1000);
+    /**
+     * The size in bytes above which a new segment is started. Defaults to 16 MB.
+     */
+    public static final long SEGMENT_SIZE =
+            parsePositiveLongFromSystemProperty("bitbucket.webhook.journal.segment.size", 16L * 1024 * 1024);
+    /**
+     * Whether each record is flushed to the disk before the webhook is acknowledged. Defaults to {@code true}.
+     */
+    public static final boolean SYNC = parseBooleanFromSystemProperty("bitbucket.webhook.journal.sync", true);
+    private static final byte COMPLETED = 'C';
+    private static final String JOURNAL_DIRECTORY = "bitbucket-webhook-journal";
+    private static final Logger LOGGER = Logger.getLogger(BitbucketWebhookJournal.class.getName());
+    private static final byte RECEIVED = 'R';
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private final AtomicLong appended = new AtomicLong();
+    private final Clock clock;
+    private final AtomicLong completed = new AtomicLong();
+    @CheckForNull
+    private final File directory;
+    private final long retention;
+    private final long segmentSize;
+    private final boolean sync;
+    /**
+     * The sequence numbers of the webhooks appended but not completed.
+     */
+    private final NavigableSet<Long> unfinished = new ConcurrentSkipListSet<>();
+    private FileChannel segment;
+    private long sequence;
+
+    @Inject
+    public BitbucketWebhookJournal(Clock clock) {
+        this(ENABLED ? getDefaultDirectory() : null, SEGMENT_SIZE, RETENTION, SYNC, clock);
+    }
+
+    BitbucketWebhookJournal(@CheckForNull File directory, long segmentSize, long retention, boolean sync,
+                            Clock clock) {
+        this.clock = requireNonNull(clock, "clock");
+        this.directory = directory;
+        this.retention = retention;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+        if (directory != null) {
+            // Pick up where the journal left off before a restart, keeping only the sequence numbers
+            scan(record -> {
+                sequence = Math.max(sequence, record.sequence);
+                if (record.entry != null) {
+                    unfinished.add(record.sequence);
+                } else {
+                    unfinished.remove(record.sequence);
+                }
+            });
+        }
+    }
+
+    /**
+     * Records a webhook that has been received.
+     *
+     * @param eventKey the value of the {@code X-Event-Key} header of the webhook
+     * @param body     the raw body of the webhook
+     * @return the sequence number of the webhook, to {@link #complete} it with, or 0 if the journal is disabled
+     * @throws IOException if the webhook could not be recorded
+     */
+    public synchronized long append(String eventKey, byte[] body) throws IOException {
+        if (directory == null) {
+            return 0;
+        }
+        long entrySequence = ++sequence;
+        byte[] key = eventKey.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(1 + 8 + 8 + 4 + key.length + 4 + body.length);
+        payload.put(RECEIVED).putLong(entrySequence).putLong(clock.millis())
+                .putInt(key.length).put(key)
+                .putInt(body.length).put(body);
+        write(payload);
+        unfinished.add(entrySequence);
+        appended.incrementAndGet();
+        return entrySequence;
+    }
+
+    /**
+     * Records that a webhook has been processed, so it isn't processed again after a restart.
+     *
+     * @param entrySequence the sequence number the webhook was appended with. Nothing is recorded if it is 0.
+     */
+    public synchronized void complete(long entrySequence) {
+        if (directory == null || entrySequence <= 0 || !unfinished.remove(entrySequence)) {
+            return;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(1 + 8 + 8);
+        payload.put(COMPLETED).putLong(entrySequence).putLong(clock.millis());
+        try {
+            write(payload);
+            completed.incrementAndGet();
+        } catch (IOException e) {
+            // The webhook is replayed after a restart, and so may trigger its jobs a second time
+            LOGGER.log(Level.WARNING, "Failed to record that webhook " + entrySequence + " has been processed", e);
+        }
+    }
+
+    /**
+     * Reads the webhooks received in a time range, whether they have been processed or not, oldest first.
+     *
+     * @param from   the earliest time a webhook was received, in ms since the epoch
+     * @param to     the latest time a webhook was received, in ms since the epoch
+     * @param action called with each webhook, as it is read
+     */
+    public void forEachEntry(long from, long to, Consumer<Entry> action) {
+        scan(record -> {
+            if (record.entry != null && record.entry.getReceivedAt() >= from && record.entry.getReceivedAt() <= to) {
+                action.accept(record.entry);
+            }
+        });
+    }
+
+    public Statistics getStatistics() {
+        File[] segments = listSegments();
+        return new Statistics(segments.length, unfinished.size(), appended.get(), completed.get());
+    }
+
+    /**
+     * Reads the webhooks that had been received but not processed when this is called, oldest first.
+     *
+     * @param action called with each webhook, as it is read
+     */
+    public void forEachUnfinished(Consumer<Entry> action) {
+        Set<Long> sequences = new HashSet<>(unfinished);
+        if (sequences.isEmpty()) {
+            return;
+        }
+        scan(record -> {
+            if (record.entry != null && sequences.contains(record.sequence)) {
+                action.accept(record.entry);
+            }
+        });
+    }
+
+    public boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * Closes the current segment. The next webhook appended starts a new one.
+     */
+    public synchronized void close() {
+        if (segment != null) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to close the webhook journal", e);
+            }
+            segment = null;
+        }
+    }
+
+    @CheckForNull
+    private static File getDefaultDirectory() {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        return jenkins == null ? null : new File(jenkins.getRootDir(), JOURNAL_DIRECTORY);
+    }
+
+    private static long getFirstSequence(File segment) {
+        String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private File[] listSegments() {
+        File[] segments = directory == null ? null : directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (segments == null) {
+            return new File[0];
+        }
+        // Named by their first sequence number, padded so they sort in order
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Lists the segments with how much has been written to each of them. This is done while nothing is being
+     * appended, so each length ends with a whole record and the segments can be read up to it without holding the lock.
+     */
+    private synchronized Map<File, Long> snapshotSegments() {
+        Map<File, Long> segments = new LinkedHashMap<>();
+        for (File file : listSegments()) {
+            segments.put(file, file.length());
+        }
+        return segments;
+    }
+
+    /**
+     * Reads every record in the segments, oldest first, without holding up webhooks being appended.
+     */
+    private void scan(Consumer<Record> action) {
+        snapshotSegments().forEach((file, length) -> {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new BoundedInputStream(new FileInputStream(file), length)))) {
+                while (true) {
+                    Record record = Record.read(in, file, length);
+                    if (record == null) {
+                        break;
+                    }
+                    action.accept(record);
+                }
+            } catch (FileNotFoundException e) {
+                // Deleted as it expired since the segments were listed
+                LOGGER.log(Level.FINE, "The webhook journal segment " + file + " has been deleted", e);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to read the webhook journal segment " + file, e);
+            }
+        });
+    }
+
+    private void rotate() throws IOException {
+        close();
+        long expiry = clock.millis() - retention;
+        // The records in a segment come before those in the next one, which is named by its first sequence number
+        long oldestKept = sequence;
+        for (File old : listSegments()) {
+            if (old.lastModified() < expiry) {
+                LOGGER.fine(() -> "Deleting the expired webhook journal segment " + old);
+                Files.deleteIfExists(old.toPath());
+            } else {
+                oldestKept = Math.min(oldestKept, getFirstSequence(old));
+            }
+        }
+        Set<Long> expired = unfinished.headSet(oldestKept);
+        if (!expired.isEmpty()) {
+            LOGGER.warning("Discarding " + expired.size() + " webhooks from the journal that were never processed, " +
+                           "as they are older than the retention period");
+            expired.clear();
+        }
+        requireNonNull(directory, "directory");
+        Files.createDirectories(directory.toPath());
+        File file = new File(directory, String.format("%019d%s", sequence, SEGMENT_SUFFIX));
+        segment = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private void write(ByteBuffer payload) throws IOException {
+        if (segment == null || segment.size() >= segmentSize) {
+            rotate();
+        }
+        payload.flip();
+        CRC32 crc = new CRC32();
+        crc.update(payload.array(), 0, payload.limit());
+        ByteBuffer record = ByteBuffer.allocate(4 + payload.limit() + 4);
+        record.putInt(payload.limit()).put(payload).putInt((int) crc.getValue());
+        record.flip();
+        try {
+            while (record.hasRemaining()) {
+                segment.write(record);
+            }
+            if (sync) {
+                segment.force(false);
+            }
+        } catch (IOException e) {
+            // Start a new segment next time, rather than appending after a partly written record
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * A webhook in the journal.
+     */
+    public static final class Entry {
+
+        private final byte[] body;
+        private final String eventKey;
+        private final long receivedAt;
+        private final long sequence;
+
+        Entry(long sequence, long receivedAt, String eventKey, byte[] body) {
+            this.body = body;
+            this.eventKey = eventKey;
+            this.receivedAt = receivedAt;
+            this.sequence = sequence;
+        }
+
+        public byte[] getBody() {
+            return body.clone();
+        }
+
+        public String getEventKey() {
+            return eventKey;
+        }
+
+        /**
+         * @return when the webhook was received, in ms since the epoch
+         */
+        public long getReceivedAt() {
+            return receivedAt;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+    }
+
+    public static final class Statistics {
+
+        private final long appended;
+        private final long completed;
+        private final int segments;
+        private final int unfinished;
+
+        Statistics(int segments, int unfinished, long appended, long completed) {
+            this.appended = appended;
+            this.completed = completed;
+            this.segments = segments;
+            this.unfinished = unfinished;
+        }
+
+        /**
+         * @return the number of webhooks appended since Jenkins started
+         */
+        public long getAppended() {
+            return appended;
+        }
+
+        /**
+         * @return the number of webhooks completed since Jenkins started
+         */
+        public long getCompleted() {
+            return completed;
+        }
+
+        public int getSegments() {
+            return segments;
+        }
+
+        /**
+         * @return the number of webhooks that haven't been processed yet, including ones from before a restart
+         */
+        public int getUnfinished() {
+            return unfinished;
+        }
+    }
+
+    private static final class Record {
+
+        @CheckForNull
+        private final Entry entry;
+        private final long sequence;
+
+        private Record(long sequence, @CheckForNull Entry entry) {
+            this.entry = entry;
+            this.sequence = sequence;
+        }
+
+        /**
+         * @param segmentLength how much of the segment is being read
+         * @return the next record, or {@code null} at the end of the segment or a torn or corrupt record
+         */
+        @CheckForNull
+        private static Record read(DataInputStream in, File file, long segmentLength) throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            byte[] payload = new byte[Math.max(0, Math.min(length, (int) Math.min(Integer.MAX_VALUE, segmentLength)))];
+            int checksum;
+            try {
+                if (length != payload.length || length < 1 + 8 + 8) {
+                    throw new EOFException("Invalid record length " + length);
+                }
+                in.readFully(payload);
+                checksum = in.readInt();
+            } catch (EOFException e) {
+                LOGGER.warning("Ignoring the torn record at the end of the webhook journal segment " + file);
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, payload.length);
+            if ((int) crc.getValue() != checksum) {
+                LOGGER.warning("Ignoring the rest of the webhook journal segment " + file +
+                               " as it has a corrupt record");
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            byte type = buffer.get();
+            long recordSequence = buffer.getLong();
+            long timestamp = buffer.getLong();
+            if (type != RECEIVED) {
+                return new Record(recordSequence, null);
+            }
+            byte[] key = new byte[buffer.getInt()];
+            buffer.get(key);
+            byte[] body = new byte[buffer.getInt()];
+            buffer.get(body);
+            return new Record(recordSequence,
+                    new Entry(recordSequence, timestamp, new String(key, StandardCharsets.UTF_8), body));
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import com.atlassian.bitbucket.jenkins.internal.trigger.events.AbstractWebhookEvent;
+import hudson.ExtensionPoint;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Receives the webhook events from Bitbucket, such as for auditing or notifying a chat room, without another webhook
+ * having to be registered in Bitbucket. Listeners are registered with {@link hudson.Extension @Extension}.
+ * <p>
+ * Each listener is given events on its own thread, after the jobs for the event have been found, so a slow listener
+ * can't hold up triggering jobs or other listeners. Events wait for the listener in a buffer of
+ * {@link #getBufferSize()} events, and events received while the buffer is full are dropped for that listener.
+ *
+ * @param <T> the type of events the listener receives. It receives events of subtypes as well.
+ * @since 3.2.0
+ */
+public abstract class BitbucketWebhookListener<T extends AbstractWebhookEvent> implements ExtensionPoint {
+
+    private final Class<T> eventType;
+
+    protected BitbucketWebhookListener(Class<T> eventType) {
+        this.eventType = requireNonNull(eventType, "eventType");
+    }
+
+    /**
+     * @return the number of events that can wait for this listener before events are dropped. Defaults to 1000.
+     */
+    public int getBufferSize() {
+        return 1000;
+    }
+
+    public final Class<T> getEventType() {
+        return eventType;
+    }
+
+    /**
+     * Called with each event of the {@link #getEventType() type} the listener is for, in the order they were
+     * received. Any exception thrown is logged and doesn't stop later events being delivered.
+     *
+     * @param event the event
+     */
+    public abstract void onEvent(T event);
+}
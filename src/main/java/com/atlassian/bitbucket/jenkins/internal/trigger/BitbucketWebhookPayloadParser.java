@@ -0,0 +1,341 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import com.atlassian.bitbucket.jenkins.internal.model.*;
+import com.atlassian.bitbucket.jenkins.internal.trigger.events.*;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.IOUtils;
+
+import javax.annotation.CheckForNull;
+import javax.inject.Singleton;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parseBooleanFromSystemProperty;
+import static com.atlassian.bitbucket.jenkins.internal.util.SystemPropertyUtils.parsePositiveLongFromSystemProperty;
+
+/**
+ * Parses webhook bodies into events, rejecting bodies larger than {@link #MAX_PAYLOAD_SIZE} bytes.
+ * <p>
+ * By default the whole body is bound to the event. If the {@code bitbucket.webhook.lean.parsing} system property is
+ * {@code true}, the body is instead read as a stream of tokens and only the fields needed to find and trigger the jobs
+ * for the event are kept: the event key, date and actor, the repository, the ref changes and the refs of a pull
+ * request. Everything else, such as the reviewers and participants of a pull request, is skipped without being
+ * parsed, and the ref of each ref change is worked out from its ID rather than read, which matters for pushes with
+ * thousands of ref changes such as tag imports and mirror synchronizations.
+ *
+ * @since 3.2.0
+ */
+@Singleton
+public class BitbucketWebhookPayloadParser {
+
+    public static final boolean LEAN = parseBooleanFromSystemProperty("bitbucket.webhook.lean.parsing", false);
+    /**
+     * The largest webhook body accepted, in bytes. Defaults to 10 MB.
+     */
+    public static final long MAX_PAYLOAD_SIZE =
+            parsePositiveLongFromSystemProperty("bitbucket.webhook.max.payload.size", 10L * 1024 * 1024);
+    private static final String BRANCH_PREFIX = "refs/heads/";
+    private static final String TAG_PREFIX = "refs/tags/";
+
+    private final boolean lean;
+    private final long maxPayloadSize;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    public BitbucketWebhookPayloadParser() {
+        this(LEAN, MAX_PAYLOAD_SIZE);
+    }
+
+    BitbucketWebhookPayloadParser(boolean lean, long maxPayloadSize) {
+        this.lean = lean;
+        this.maxPayloadSize = maxPayloadSize;
+    }
+
+    public long getMaxPayloadSize() {
+        return maxPayloadSize;
+    }
+
+    /**
+     * Parses a webhook body.
+     *
+     * @param in   the body
+     * @param type the type of event
+     * @param <T>  the type of event
+     * @return the event
+     * @throws PayloadTooLargeException if the body is larger than the maximum payload size
+     * @throws IOException              if the body could not be read or parsed
+     */
+    public <T extends AbstractWebhookEvent> T parse(InputStream in, Class<T> type) throws IOException {
+        try (JsonParser parser = objectMapper.getFactory().createParser(new LimitedInputStream(in, maxPayloadSize))) {
+            if (!lean) {
+                return parser.readValueAs(type);
+            }
+            return type.cast(parseLean(parser, type));
+        }
+    }
+
+    /**
+     * Reads a webhook body into memory, so it can be kept as it is as well as parsed.
+     *
+     * @param in the body
+     * @return the body
+     * @throws PayloadTooLargeException if the body is larger than the maximum payload size
+     * @throws IOException              if the body could not be read
+     */
+    public byte[] read(InputStream in) throws IOException {
+        return IOUtils.toByteArray(new LimitedInputStream(in, maxPayloadSize));
+    }
+
+    private static BitbucketRefChange parseChange(JsonParser parser) throws IOException {
+        expect(parser, parser.currentToken(), JsonToken.START_OBJECT);
+        String refId = null;
+        String fromHash = null;
+        String toHash = null;
+        BitbucketRefChangeType type = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "refId":
+                    refId = parser.getValueAsString();
+                    break;
+                case "fromHash":
+                    fromHash = parser.getValueAsString();
+                    break;
+                case "toHash":
+                    toHash = parser.getValueAsString();
+                    break;
+                case "type":
+                    type = parser.readValueAs(BitbucketRefChangeType.class);
+                    break;
+                default:
+                    // Including the ref, which is worked out from the ref ID instead
+                    parser.skipChildren();
+            }
+        }
+        return new BitbucketRefChange(toRef(parser, refId), refId, required(parser, fromHash, "fromHash"),
+                required(parser, toHash, "toHash"), required(parser, type, "type"));
+    }
+
+    private static List<BitbucketRefChange> parseChanges(JsonParser parser) throws IOException {
+        expect(parser, parser.currentToken(), JsonToken.START_ARRAY);
+        List<BitbucketRefChange> changes = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            changes.add(parseChange(parser));
+        }
+        return changes;
+    }
+
+    private static BitbucketPullRequest parsePullRequest(JsonParser parser) throws IOException {
+        expect(parser, parser.currentToken(), JsonToken.START_OBJECT);
+        long id = 0;
+        BitbucketPullRequestState state = null;
+        BitbucketPullRequestRef fromRef = null;
+        BitbucketPullRequestRef toRef = null;
+        long updatedDate = 0;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "id":
+                    id = parser.getValueAsLong();
+                    break;
+                case "state":
+                    state = parser.readValueAs(BitbucketPullRequestState.class);
+                    break;
+                case "fromRef":
+                    fromRef = parser.readValueAs(BitbucketPullRequestRef.class);
+                    break;
+                case "toRef":
+                    toRef = parser.readValueAs(BitbucketPullRequestRef.class);
+                    break;
+                case "updatedDate":
+                    updatedDate = parser.getValueAsLong();
+                    break;
+                default:
+                    // Such as the reviewers and participants, which can be large and are never used
+                    parser.skipChildren();
+            }
+        }
+        return new BitbucketPullRequest(id, required(parser, state, "state"), required(parser, fromRef, "fromRef"),
+                required(parser, toRef, "toRef"), updatedDate);
+    }
+
+    private static void expect(JsonParser parser, @CheckForNull JsonToken actual, JsonToken expected)
+            throws JsonMappingException {
+        if (actual != expected) {
+            throw JsonMappingException.from(parser, "Expected " + expected + " but was " + actual);
+        }
+    }
+
+    private static <T> T required(JsonParser parser, @CheckForNull T value, String field)
+            throws JsonMappingException {
+        if (value == null) {
+            throw JsonMappingException.from(parser, "Missing required property '" + field + "'");
+        }
+        return value;
+    }
+
+    private static BitbucketRef toRef(JsonParser parser, @CheckForNull String refId) throws JsonMappingException {
+        String id = required(parser, refId, "refId");
+        if (id.startsWith(TAG_PREFIX)) {
+            return new BitbucketRef(id, id.substring(TAG_PREFIX.length()), BitbucketRefType.TAG);
+        }
+        String displayId = id.startsWith(BRANCH_PREFIX) ? id.substring(BRANCH_PREFIX.length()) : id;
+        return new BitbucketRef(id, displayId, BitbucketRefType.BRANCH);
+    }
+
+    private AbstractWebhookEvent parseLean(JsonParser parser, Class<? extends AbstractWebhookEvent> type)
+            throws IOException {
+        boolean refsChanged = RefsChangedWebhookEvent.class.isAssignableFrom(type);
+        boolean pullRequestEvent = PullRequestWebhookEvent.class.isAssignableFrom(type);
+        if (!refsChanged && !pullRequestEvent) {
+            return parser.readValueAs(type);
+        }
+        expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+        BitbucketUser actor = null;
+        String eventKey = null;
+        Date date = null;
+        List<BitbucketRefChange> changes = null;
+        BitbucketRepository repository = null;
+        BitbucketMirrorServer mirrorServer = null;
+        BitbucketRepositorySynchronizationType syncType = null;
+        BitbucketPullRequest pullRequest = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (value == JsonToken.VALUE_NULL) {
+                continue;
+            }
+            switch (field) {
+                case "actor":
+                    actor = parser.readValueAs(BitbucketUser.class);
+                    break;
+                case "eventKey":
+                    eventKey = parser.getValueAsString();
+                    break;
+                case "date":
+                    date = parser.readValueAs(Date.class);
+                    break;
+                case "changes":
+                    if (refsChanged) {
+                        changes = parseChanges(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                    break;
+                case "repository":
+                    if (refsChanged) {
+                        repository = parser.readValueAs(BitbucketRepository.class);
+                    } else {
+                        parser.skipChildren();
+                    }
+                    break;
+                case "mirrorServer":
+                    mirrorServer = parser.readValueAs(BitbucketMirrorServer.class);
+                    break;
+                case "syncType":
+                    syncType = parser.readValueAs(BitbucketRepositorySynchronizationType.class);
+                    break;
+                case "pullRequest":
+                    if (pullRequestEvent) {
+                        pullRequest = parsePullRequest(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        required(parser, eventKey, "eventKey");
+        required(parser, date, "date");
+        if (type == MirrorSynchronizedWebhookEvent.class) {
+            return new MirrorSynchronizedWebhookEvent(actor, mirrorServer, eventKey, date,
+                    required(parser, changes, "changes"), required(parser, repository, "repository"), syncType);
+        }
+        if (type == RefsChangedWebhookEvent.class) {
+            return new RefsChangedWebhookEvent(actor, eventKey, date,
+                    required(parser, changes, "changes"), required(parser, repository, "repository"));
+        }
+        required(parser, pullRequest, "pullRequest");
+        if (type == PullRequestDeclinedWebhookEvent.class) {
+            return new PullRequestDeclinedWebhookEvent(actor, eventKey, date, pullRequest);
+        } else if (type == PullRequestDeletedWebhookEvent.class) {
+            return new PullRequestDeletedWebhookEvent(actor, eventKey, date, pullRequest);
+        } else if (type == PullRequestFromRefUpdatedWebhookEvent.class) {
+            return new PullRequestFromRefUpdatedWebhookEvent(actor, eventKey, date, pullRequest);
+        } else if (type == PullRequestMergedWebhookEvent.class) {
+            return new PullRequestMergedWebhookEvent(actor, eventKey, date, pullRequest);
+        } else if (type == PullRequestOpenedWebhookEvent.class) {
+            return new PullRequestOpenedWebhookEvent(actor, eventKey, date, pullRequest);
+        }
+        throw JsonMappingException.from(parser, "Unsupported event type " + type.getName());
+    }
+
+    /**
+     * Thrown when a webhook body is larger than the maximum payload size.
+     */
+    public static class PayloadTooLargeException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public PayloadTooLargeException(long maxPayloadSize) {
+            super("The body is larger than the maximum of " + maxPayloadSize + " bytes");
+        }
+    }
+
+    private static final class LimitedInputStream extends FilterInputStream {
+
+        private final long limit;
+        private long count;
+
+        private LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void count(long read) throws PayloadTooLargeException {
+            count += read;
+            if (count > limit) {
+                throw new PayloadTooLargeException(limit);
+            }
+        }
+    }
+}
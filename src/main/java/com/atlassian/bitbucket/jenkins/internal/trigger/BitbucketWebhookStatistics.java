@@ -0,0 +1,265 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketRemoteHeads;
+import com.atlassian.bitbucket.jenkins.internal.trigger.BitbucketTriggerLatency.Histogram;
+import com.atlassian.bitbucket.jenkins.internal.trigger.BitbucketTriggerLatency.Stage;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonUnwrapped;
+
+import javax.annotation.CheckForNull;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * A snapshot of how webhooks, and the triggers they start, are being processed. It is serialized to JSON as it is
+ * shown on the {@link BitbucketWebhookStatisticsLink statistics page}.
+ *
+ * @since 3.2.0
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public final class BitbucketWebhookStatistics {
+
+    private final DebouncerStatistics debouncer;
+    private final DirectTriggerStatistics directTrigger;
+    private final long duplicates;
+    private final Subsystem<BitbucketWebhookIntakeQueue.Statistics> intakeQueue;
+    private final Subsystem<BitbucketWebhookJournal.Statistics> journal;
+    private final Map<Stage, Histogram> latency;
+    private final Map<String, BitbucketWebhookEventBus.Statistics> listeners;
+    private final RemoteHeadsStatistics remoteHeads;
+    private final TriggerExecutorStatistics triggerExecutor;
+    private final TriggerFilterStatistics triggerFilter;
+
+    BitbucketWebhookStatistics(BitbucketWebhookIntakeQueue intakeQueue, BitbucketWebhookDeduplicator deduplicator,
+                               BitbucketWebhookJournal journal, BitbucketTriggerDebouncer debouncer,
+                               BitbucketDirectTrigger directTrigger, BitbucketRemoteHeads remoteHeads,
+                               BitbucketTriggerFilter triggerFilter, BitbucketWebhookEventBus eventBus,
+                               BitbucketTriggerLatency latency,
+                               @CheckForNull BitbucketTriggerExecutor.Statistics executorStatistics,
+                               int pendingJobs) {
+        this.intakeQueue = new Subsystem<>(intakeQueue.isEnabled(), intakeQueue.getStatistics());
+        duplicates = deduplicator.getDuplicates();
+        this.journal = new Subsystem<>(journal.isEnabled(), journal.getStatistics());
+        this.debouncer = new DebouncerStatistics(debouncer);
+        this.directTrigger = new DirectTriggerStatistics(directTrigger);
+        this.remoteHeads = new RemoteHeadsStatistics(remoteHeads);
+        this.triggerFilter = new TriggerFilterStatistics(triggerFilter);
+        listeners = eventBus.getStatistics();
+        this.latency = latency.getHistograms();
+        triggerExecutor = executorStatistics == null ? null :
+                new TriggerExecutorStatistics(executorStatistics, pendingJobs);
+    }
+
+    public DebouncerStatistics getDebouncer() {
+        return debouncer;
+    }
+
+    public DirectTriggerStatistics getDirectTrigger() {
+        return directTrigger;
+    }
+
+    /**
+     * @return how many webhooks were dropped as they had already been received
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    public Subsystem<BitbucketWebhookIntakeQueue.Statistics> getIntakeQueue() {
+        return intakeQueue;
+    }
+
+    public Subsystem<BitbucketWebhookJournal.Statistics> getJournal() {
+        return journal;
+    }
+
+    public Map<Stage, Histogram> getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return the statistics of each listener on the event bus, by the name of the listener
+     */
+    public Map<String, BitbucketWebhookEventBus.Statistics> getListeners() {
+        return listeners;
+    }
+
+    public RemoteHeadsStatistics getRemoteHeads() {
+        return remoteHeads;
+    }
+
+    /**
+     * @return how the trigger executor is doing, or {@code null} if the triggers aren't run by it
+     */
+    @CheckForNull
+    public TriggerExecutorStatistics getTriggerExecutor() {
+        return triggerExecutor;
+    }
+
+    public TriggerFilterStatistics getTriggerFilter() {
+        return triggerFilter;
+    }
+
+    /**
+     * The statistics of a subsystem that can be turned off, along with whether it is turned on.
+     */
+    public static final class Subsystem<T> {
+
+        private final boolean enabled;
+        private final T statistics;
+
+        Subsystem(boolean enabled, T statistics) {
+            this.enabled = enabled;
+            this.statistics = statistics;
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        @JsonUnwrapped
+        public T getStatistics() {
+            return statistics;
+        }
+    }
+
+    public static final class DebouncerStatistics {
+
+        private final long coalesced;
+        private final Map<String, List<String>> pending = new LinkedHashMap<>();
+
+        DebouncerStatistics(BitbucketTriggerDebouncer debouncer) {
+            coalesced = debouncer.getCoalesced();
+            debouncer.getPending().forEach((key, requests) -> pending.put(key, requests.stream()
+                    .map(request -> request.getCommit().orElse(""))
+                    .collect(toList())));
+        }
+
+        /**
+         * @return how many triggers were coalesced into a trigger that was already waiting
+         */
+        public long getCoalesced() {
+            return coalesced;
+        }
+
+        /**
+         * @return the commits of the triggers waiting to be run, by the job they are for
+         */
+        public Map<String, List<String>> getPending() {
+            return pending;
+        }
+    }
+
+    public static final class DirectTriggerStatistics {
+
+        private final long built;
+        private final boolean enabled;
+        private final long polled;
+        private final long skipped;
+
+        DirectTriggerStatistics(BitbucketDirectTrigger directTrigger) {
+            built = directTrigger.getBuilt();
+            enabled = directTrigger.isEnabled();
+            polled = directTrigger.getPolled();
+            skipped = directTrigger.getSkipped();
+        }
+
+        public long getBuilt() {
+            return built;
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public long getPolled() {
+            return polled;
+        }
+
+        public long getSkipped() {
+            return skipped;
+        }
+    }
+
+    public static final class RemoteHeadsStatistics {
+
+        private final boolean enabled;
+        private final long fetched;
+        private final long shared;
+
+        RemoteHeadsStatistics(BitbucketRemoteHeads remoteHeads) {
+            enabled = remoteHeads.isEnabled();
+            fetched = remoteHeads.getFetched();
+            shared = remoteHeads.getShared();
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public long getFetched() {
+            return fetched;
+        }
+
+        public long getShared() {
+            return shared;
+        }
+    }
+
+    public static final class TriggerExecutorStatistics {
+
+        private final int pendingJobs;
+        private final BitbucketTriggerExecutor.Statistics statistics;
+
+        TriggerExecutorStatistics(BitbucketTriggerExecutor.Statistics statistics, int pendingJobs) {
+            this.pendingJobs = pendingJobs;
+            this.statistics = statistics;
+        }
+
+        /**
+         * @return how many jobs have a trigger running or waiting to run
+         */
+        public int getPendingJobs() {
+            return pendingJobs;
+        }
+
+        @JsonUnwrapped
+        public BitbucketTriggerExecutor.Statistics getStatistics() {
+            return statistics;
+        }
+    }
+
+    public static final class TriggerFilterStatistics {
+
+        private final boolean enabled;
+        private final List<BitbucketTriggerFilter.Skip> recentSkips;
+        private final long skippedForBranches;
+        private final long skippedForPaths;
+
+        TriggerFilterStatistics(BitbucketTriggerFilter triggerFilter) {
+            enabled = triggerFilter.isEnabled();
+            recentSkips = triggerFilter.getRecentSkips();
+            skippedForBranches = triggerFilter.getSkippedForBranches();
+            skippedForPaths = triggerFilter.getSkippedForPaths();
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public List<BitbucketTriggerFilter.Skip> getRecentSkips() {
+            return recentSkips;
+        }
+
+        public long getSkippedForBranches() {
+            return skippedForBranches;
+        }
+
+        public long getSkippedForPaths() {
+            return skippedForPaths;
+        }
+    }
+}
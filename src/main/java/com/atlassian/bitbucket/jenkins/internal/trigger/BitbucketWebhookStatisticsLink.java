@@ -0,0 +1,102 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketRemoteHeads;
+import com.atlassian.bitbucket.jenkins.internal.trigger.BitbucketWebhookTriggerImpl.BitbucketWebhookTriggerDescriptor;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import hudson.security.Permission;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.annotation.CheckForNull;
+import javax.inject.Inject;
+import java.io.IOException;
+
+/**
+ * Shows administrators how the webhook queue is doing when webhooks are processed in the background, and how the
+ * triggers they start are doing, as JSON.
+ *
+ * @since 3.2.0
+ */
+@Extension
+public class BitbucketWebhookStatisticsLink extends ManagementLink {
+
+    public static final String RELATIVE_PATH = "bitbucket-webhook-statistics";
+
+    private static final String APPLICATION_JSON = "application/json;charset=UTF-8";
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    @Inject
+    private BitbucketTriggerDebouncer debouncer;
+    @Inject
+    private BitbucketWebhookDeduplicator deduplicator;
+    @Inject
+    private BitbucketDirectTrigger directTrigger;
+    @Inject
+    private BitbucketWebhookEventBus eventBus;
+    @Inject
+    private BitbucketWebhookIntakeQueue intakeQueue;
+    @Inject
+    private BitbucketWebhookJournal journal;
+    @Inject
+    private BitbucketTriggerLatency latency;
+    @Inject
+    private BitbucketRemoteHeads remoteHeads;
+    @Inject
+    private BitbucketTriggerFilter triggerFilter;
+
+    @SuppressWarnings("unused") // Stapler
+    public void doIndex(StaplerRequest request, StaplerResponse response) throws IOException {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        response.setContentType(APPLICATION_JSON);
+        objectMapper.writeValue(response.getWriter(), getStatistics());
+    }
+
+    @NonNull
+    @Override
+    public Category getCategory() {
+        return Category.STATUS;
+    }
+
+    @Override
+    public String getDescription() {
+        return Messages.BitbucketWebhookStatisticsLink_description();
+    }
+
+    @CheckForNull
+    @Override
+    public String getDisplayName() {
+        return Messages.BitbucketWebhookStatisticsLink_displayname();
+    }
+
+    @CheckForNull
+    @Override
+    public String getIconFileName() {
+        return "monitor.png";
+    }
+
+    @NonNull
+    @Override
+    public Permission getRequiredPermission() {
+        return Jenkins.ADMINISTER;
+    }
+
+    public BitbucketWebhookStatistics getStatistics() {
+        BitbucketWebhookTriggerDescriptor triggerDescriptor =
+                Jenkins.get().getDescriptorByType(BitbucketWebhookTriggerDescriptor.class);
+        BitbucketTriggerExecutor.Statistics executorStatistics =
+                triggerDescriptor == null ? null : triggerDescriptor.getExecutorStatistics();
+        int pendingJobs = triggerDescriptor == null ? 0 : triggerDescriptor.getPendingJobs();
+        return new BitbucketWebhookStatistics(intakeQueue, deduplicator, journal, debouncer, directTrigger,
+                remoteHeads, triggerFilter, eventBus, latency, executorStatistics, pendingJobs);
+    }
+
+    @CheckForNull
+    @Override
+    public String getUrlName() {
+        return RELATIVE_PATH;
+    }
+}
@@ -1,17 +1,59 @@
 package com.atlassian.bitbucket.jenkins.internal.trigger;
 
+import com.atlassian.bitbucket.jenkins.internal.trigger.BitbucketTriggerLatency.Stage;
 import hudson.model.Cause;
 
-import java.util.Objects;
+import javax.annotation.CheckForNull;
+import java.util.*;
 
 import static com.atlassian.bitbucket.jenkins.internal.trigger.Messages.BitbucketWebhookTriggerCause_withAuthor;
+import static com.atlassian.bitbucket.jenkins.internal.trigger.Messages.BitbucketWebhookTriggerCause_withAuthorCoalesced;
+import static com.atlassian.bitbucket.jenkins.internal.trigger.Messages.BitbucketWebhookTriggerCause_withoutAuthorCoalesced;
 
 public class BitbucketWebhookTriggerCause extends Cause {
 
     private final BitbucketWebhookTriggerRequest triggerRequest;
+    /**
+     * The webhooks received before {@link #triggerRequest} that were combined into the same build, oldest first.
+     * This is {@code null} for builds triggered by a single webhook, including those from before webhooks were
+     * combined.
+     */
+    @CheckForNull
+    private final List<BitbucketWebhookTriggerRequest> earlierRequests;
+    /**
+     * When the build got to each stage after the job was triggered, in ms since the epoch, or 0 if it hasn't yet
+     * (or the build is from before they were recorded). These are left out of {@link #equals}. Only the build queue
+     * changes them once the cause is attached to a build; the worker triggering the job sets the rest on a copy.
+     */
+    private volatile long leftQueueAt;
+    private volatile long pollFinishedAt;
+    private volatile long pollStartedAt;
+    private volatile long scheduledAt;
 
     public BitbucketWebhookTriggerCause(BitbucketWebhookTriggerRequest triggerRequest) {
         this.triggerRequest = triggerRequest;
+        earlierRequests = null;
+    }
+
+    /**
+     * Creates a cause for a build triggered by several webhooks received in quick succession.
+     *
+     * @param triggerRequests the webhooks, oldest first
+     * @since 3.2.0
+     */
+    public BitbucketWebhookTriggerCause(List<BitbucketWebhookTriggerRequest> triggerRequests) {
+        if (triggerRequests.isEmpty()) {
+            throw new IllegalArgumentException("At least one trigger request is required");
+        }
+        triggerRequest = triggerRequests.get(triggerRequests.size() - 1);
+        earlierRequests = triggerRequests.size() == 1 ? null :
+                new ArrayList<>(triggerRequests.subList(0, triggerRequests.size() - 1));
+    }
+
+    private BitbucketWebhookTriggerCause(BitbucketWebhookTriggerRequest triggerRequest,
+                                         @CheckForNull List<BitbucketWebhookTriggerRequest> earlierRequests) {
+        this.triggerRequest = triggerRequest;
+        this.earlierRequests = earlierRequests;
     }
 
     @Override
@@ -23,11 +65,50 @@ public class BitbucketWebhookTriggerCause extends Cause {
             return false;
         }
         BitbucketWebhookTriggerCause that = (BitbucketWebhookTriggerCause) o;
-        return Objects.equals(triggerRequest, that.triggerRequest);
+        return Objects.equals(triggerRequest, that.triggerRequest) &&
+               Objects.equals(earlierRequests, that.earlierRequests);
+    }
+
+    /**
+     * @return every webhook that triggered the build, oldest first
+     * @since 3.2.0
+     */
+    public List<BitbucketWebhookTriggerRequest> getTriggerRequests() {
+        if (earlierRequests == null) {
+            return Collections.singletonList(triggerRequest);
+        }
+        List<BitbucketWebhookTriggerRequest> triggerRequests = new ArrayList<>(earlierRequests);
+        triggerRequests.add(triggerRequest);
+        return Collections.unmodifiableList(triggerRequests);
+    }
+
+    /**
+     * Returns how long each stage from the push to the build leaving the queue took, for the stages whose start and
+     * end are both known. For a build triggered by several webhooks, the stages are for the latest of them.
+     *
+     * @return how long each stage took, in ms
+     * @since 3.2.0
+     */
+    public Map<Stage, Long> getStageDurations() {
+        Map<Stage, Long> durations = new EnumMap<>(Stage.class);
+        putDuration(durations, Stage.DELIVERY, triggerRequest.getEventDate(), triggerRequest.getReceivedAt());
+        putDuration(durations, Stage.DISPATCH, triggerRequest.getReceivedAt(), triggerRequest.getDispatchedAt());
+        putDuration(durations, Stage.POLL_WAIT, triggerRequest.getDispatchedAt(), pollStartedAt);
+        putDuration(durations, Stage.POLL, pollStartedAt, pollFinishedAt);
+        putDuration(durations, Stage.BUILD_QUEUE, scheduledAt, leftQueueAt);
+        putDuration(durations, Stage.TOTAL, triggerRequest.getEventDate(), leftQueueAt);
+        return durations;
     }
 
     @Override
     public String getShortDescription() {
+        if (earlierRequests != null) {
+            int count = earlierRequests.size() + 1;
+            return triggerRequest
+                    .getActor()
+                    .map(actor -> BitbucketWebhookTriggerCause_withAuthorCoalesced(count, actor.getDisplayName()))
+                    .orElseGet(() -> BitbucketWebhookTriggerCause_withoutAuthorCoalesced(count));
+        }
         return triggerRequest
                 .getActor()
                 .map(actor -> BitbucketWebhookTriggerCause_withAuthor(actor.getDisplayName()))
@@ -36,6 +117,31 @@ public class BitbucketWebhookTriggerCause extends Cause {
 
     @Override
     public int hashCode() {
-        return Objects.hash(triggerRequest);
+        return Objects.hash(triggerRequest, earlierRequests);
+    }
+
+    void setLeftQueueAt(long value) {
+        leftQueueAt = value;
+    }
+
+    /**
+     * Returns a copy of this cause for a build scheduled when the job was triggered, so a cause that is already
+     * attached to a build is left as it is when the same webhooks trigger the job again.
+     *
+     * @return a copy of this cause with when the job was polled and the build scheduled
+     */
+    BitbucketWebhookTriggerCause withTriggerTimes(long pollStartedAt, long pollFinishedAt, long scheduledAt) {
+        BitbucketWebhookTriggerCause copy = new BitbucketWebhookTriggerCause(triggerRequest, earlierRequests);
+        copy.pollStartedAt = pollStartedAt;
+        copy.pollFinishedAt = pollFinishedAt;
+        copy.scheduledAt = scheduledAt;
+        return copy;
+    }
+
+    private static void putDuration(Map<Stage, Long> durations, Stage stage, long start, long end) {
+        if (start > 0 && end > 0) {
+            // The clocks of Bitbucket and Jenkins may not quite agree
+            durations.put(stage, Math.max(0, end - start));
+        }
     }
 }
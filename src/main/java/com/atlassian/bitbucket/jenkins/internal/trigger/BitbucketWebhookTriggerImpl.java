@@ -20,7 +20,6 @@ import hudson.security.ACL;
 import hudson.security.ACLContext;
 import hudson.triggers.Trigger;
 import hudson.triggers.TriggerDescriptor;
-import hudson.util.NamingThreadFactory;
 import hudson.util.SequentialExecutionQueue;
 import jenkins.model.ParameterizedJobMixIn;
 import jenkins.triggers.SCMTriggerItem;
@@ -31,12 +30,16 @@ import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nullable;
 import javax.inject.Inject;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -113,8 +116,11 @@ public class BitbucketWebhookTriggerImpl extends Trigger<Job<?, ?>>
             Optional<SCM> maybeScm = fetchWorkflowSCM(triggerItem);
             maybeScm.ifPresent(scm -> {
                 if (scm instanceof BitbucketSCM) {
-                    boolean isAdded = descriptor.addTrigger(project, (BitbucketSCM) scm, pullRequestTrigger, refTrigger);
-                    ((BitbucketSCM) scm).setWebhookRegistered(isAdded);
+                    BitbucketSCM bitbucketSCM = (BitbucketSCM) scm;
+                    whenRepositoryResolved(bitbucketSCM, () -> {
+                        boolean isAdded = descriptor.addTrigger(project, bitbucketSCM, pullRequestTrigger, refTrigger);
+                        bitbucketSCM.setWebhookRegistered(isAdded);
+                    });
                 }
             });
         } else if (triggerItem != null) {
@@ -124,11 +130,12 @@ public class BitbucketWebhookTriggerImpl extends Trigger<Job<?, ?>>
                     .filter(scm -> scm instanceof BitbucketSCM)
                     .map(scm -> (BitbucketSCM) scm)
                     .filter(scm -> !scm.isWebhookRegistered())
-                    .filter(scm -> !checkTriggerExists(descriptor, scm))
-                    .forEach(scm -> {
-                        boolean isAdded = descriptor.addTrigger(project, scm, pullRequestTrigger, refTrigger);
-                        scm.setWebhookRegistered(isAdded);
-                    });
+                    .forEach(scm -> whenRepositoryResolved(scm, () -> {
+                        if (!checkTriggerExists(descriptor, scm)) {
+                            boolean isAdded = descriptor.addTrigger(project, scm, pullRequestTrigger, refTrigger);
+                            scm.setWebhookRegistered(isAdded);
+                        }
+                    }));
         }
     }
 
@@ -180,6 +187,18 @@ public class BitbucketWebhookTriggerImpl extends Trigger<Job<?, ?>>
         return !newInstance && !(project instanceof WorkflowJob);
     }
 
+    /**
+     * Registering the webhook needs the repository details, so for a job that has just been saved it is left until
+     * the repository has been looked up in Bitbucket in the background rather than making the save wait for it.
+     */
+    private static void whenRepositoryResolved(BitbucketSCM scm, Runnable registration) {
+        if (scm.isRepositoryResolutionPending()) {
+            scm.whenRepositoryResolved(registration);
+        } else {
+            registration.run();
+        }
+    }
+
     private boolean checkTriggerExists(BitbucketWebhookTriggerDescriptor descriptor,
                                        BitbucketSCM scm) {
         boolean isExists = descriptor.webhookExists(job, scm);
@@ -193,15 +212,30 @@ public class BitbucketWebhookTriggerImpl extends Trigger<Job<?, ?>>
     @Extension
     public static class BitbucketWebhookTriggerDescriptor extends TriggerDescriptor {
 
-        // For now, the max threads is just a constant. In the future this may become configurable.
-        private static final int MAX_THREADS = 10;
         @SuppressWarnings("TransientFieldInNonSerializableClass")
         private final transient SequentialExecutionQueue queue;
         @Inject
         private BitbucketPluginConfiguration bitbucketPluginConfiguration;
+        /**
+         * Not set when created without injection, in which case jobs are triggered straight away.
+         */
+        private transient BitbucketTriggerDebouncer debouncer;
+        /**
+         * Not set when created without injection, in which case jobs are always polled.
+         */
+        private transient BitbucketDirectTrigger directTrigger;
+        /**
+         * Not set when created without injection, in which case every job is looked at instead.
+         */
+        @Inject
+        private transient BitbucketJobIndex jobIndex;
         private transient JenkinsProvider jenkinsProvider;
         @Inject
         private RetryingWebhookHandler retryingWebhookHandler;
+        /**
+         * Not set when created without injection, in which case jobs are polled whatever files were pushed.
+         */
+        private transient BitbucketTriggerFilter triggerFilter;
 
         @SuppressWarnings("unused")
         public BitbucketWebhookTriggerDescriptor() {
@@ -218,6 +252,15 @@ public class BitbucketWebhookTriggerImpl extends Trigger<Job<?, ?>>
             this.bitbucketPluginConfiguration = bitbucketPluginConfiguration;
         }
 
+        public BitbucketWebhookTriggerDescriptor(SequentialExecutionQueue queue,
+                                                 RetryingWebhookHandler webhookHandler,
+                                                 JenkinsProvider jenkinsProvider,
+                                                 BitbucketPluginConfiguration bitbucketPluginConfiguration,
+                                                 BitbucketJobIndex jobIndex) {
+            this(queue, webhookHandler, jenkinsProvider, bitbucketPluginConfiguration);
+            this.jobIndex = jobIndex;
+        }
+
         @Override
         public String getDisplayName() {
             return Messages.BitbucketWebhookTrigger_displayname();
@@ -237,8 +280,79 @@ public class BitbucketWebhookTriggerImpl extends Trigger<Job<?, ?>>
                 @Nullable Job<?, ?> job,
                 SCMTriggerItem triggerItem,
                 BitbucketWebhookTriggerRequest triggerRequest) {
-            CauseAction causeAction = new CauseAction(new BitbucketWebhookTriggerCause(triggerRequest));
-            queue.execute(new BitbucketTriggerWorker(job, triggerItem, causeAction, triggerRequest.getAdditionalActions()));
+            if (job == null || debouncer == null || !debouncer.isEnabled()) {
+                CauseAction causeAction = new CauseAction(new BitbucketWebhookTriggerCause(triggerRequest));
+                execute(new BitbucketTriggerWorker(job, triggerItem, causeAction,
+                        triggerRequest.getAdditionalActions(), directTrigger, triggerFilter),
+                        triggerRequest.getPriority());
+                return;
+            }
+            debouncer.debounce(job.getFullName(), triggerRequest, triggerRequests -> {
+                // The build is for the latest commit, so it gets the actions for the latest request
+                BitbucketWebhookTriggerRequest latest = triggerRequests.get(triggerRequests.size() - 1);
+                CauseAction causeAction = new CauseAction(new BitbucketWebhookTriggerCause(triggerRequests));
+                // The job is as urgent as the most urgent of the combined requests
+                BitbucketTriggerPriority priority = triggerRequests.stream()
+                        .map(BitbucketWebhookTriggerRequest::getPriority)
+                        .min(Comparator.naturalOrder())
+                        .orElse(BitbucketTriggerPriority.NORMAL);
+                execute(new BitbucketTriggerWorker(job, triggerItem, causeAction, latest.getAdditionalActions(),
+                        directTrigger, triggerFilter), priority);
+            });
+        }
+
+        /**
+         * Sets the debouncer used to combine triggers for the same job and ref.
+         *
+         * @param debouncer the debouncer
+         * @since 3.2.0
+         */
+        @Inject
+        public void setDebouncer(BitbucketTriggerDebouncer debouncer) {
+            this.debouncer = debouncer;
+        }
+
+        /**
+         * Sets what decides whether to build jobs from webhooks without polling them.
+         *
+         * @param directTrigger the direct trigger
+         * @since 3.2.0
+         */
+        @Inject
+        public void setDirectTrigger(BitbucketDirectTrigger directTrigger) {
+            this.directTrigger = directTrigger;
+        }
+
+        /**
+         * Sets what checks whether the files pushed can affect jobs before they are polled.
+         *
+         * @param triggerFilter the trigger filter
+         * @since 3.2.0
+         */
+        @Inject
+        public void setTriggerFilter(BitbucketTriggerFilter triggerFilter) {
+            this.triggerFilter = triggerFilter;
+        }
+
+        /**
+         * @return statistics about the triggers waiting to poll, or {@code null} if they aren't being recorded
+         * @since 3.2.0
+         */
+        @CheckForNull
+        public BitbucketTriggerExecutor.Statistics getExecutorStatistics() {
+            ExecutorService executor = queue.getExecutors();
+            if (executor instanceof BitbucketTriggerExecutor) {
+                return ((BitbucketTriggerExecutor) executor).getStatistics();
+            }
+            return null;
+        }
+
+        /**
+         * @return the number of jobs being polled, or waiting for a thread to poll them
+         * @since 3.2.0
+         */
+        public int getPendingJobs() {
+            return queue.getInProgress().size();
         }
 
         @Inject
@@ -247,10 +361,7 @@ public class BitbucketWebhookTriggerImpl extends Trigger<Job<?, ?>>
         }
 
         private static SequentialExecutionQueue createSequentialQueue() {
-            return new SequentialExecutionQueue(
-                    Executors.newFixedThreadPool(
-                            MAX_THREADS,
-                            new NamingThreadFactory(Executors.defaultThreadFactory(), "BitbucketWebhookTrigger")));
+            return new SequentialExecutionQueue(new BitbucketTriggerExecutor());
         }
 
         private static boolean isTriggerEnabled(ParameterizedJobMixIn.ParameterizedJob job) {
@@ -270,6 +381,22 @@ public class BitbucketWebhookTriggerImpl extends Trigger<Job<?, ?>>
             }
         }
 
+        private void execute(BitbucketTriggerWorker worker, BitbucketTriggerPriority priority) {
+            Job<?, ?> job = worker.getJob();
+            BitbucketTriggerPriority jobPriority =
+                    job == null ? priority : BitbucketTriggerPriority.forJob(job.getFullName(), priority);
+            BitbucketTriggerExecutor.executeWithPriority(jobPriority, () -> {
+                if (directTrigger != null && directTrigger.isEnabled()) {
+                    // A worker already waiting for or running for the job is run again instead of this one, with the
+                    // request it was created for, so it has to poll rather than build the commit in that request
+                    queue.getInProgress().stream()
+                            .filter(worker::equals)
+                            .forEach(inProgress -> ((BitbucketTriggerWorker) inProgress).requirePolling());
+                }
+                queue.execute(worker);
+            });
+        }
+
         private BitbucketServerConfiguration getServer(String serverId) {
             return bitbucketPluginConfiguration
                     .getServerById(serverId)
@@ -302,13 +429,24 @@ public class BitbucketWebhookTriggerImpl extends Trigger<Job<?, ?>>
         }
 
         @SuppressFBWarnings(value = "NP_NULL_ON_SOME_PATH", justification = "If jenkinsProvider is null we inject one, this is a false positive")
+        private Collection<ParameterizedJobMixIn.ParameterizedJob> getJobsUsing(BitbucketSCM input) {
+            if (jobIndex != null) {
+                // Only the jobs using the same repositories can have registered the webhook, and there may be
+                // thousands of others
+                Set<ParameterizedJobMixIn.ParameterizedJob> jobs = new LinkedHashSet<>();
+                input.getRepositories().forEach(repository ->
+                        jobs.addAll(jobIndex.getJobs(repository.getProjectKey(), repository.getRepositorySlug())));
+                return jobs;
+            }
+            if (jenkinsProvider == null) {
+                Guice.createInjector(new JenkinsProviderModule()).injectMembers(this);
+            }
+            return jenkinsProvider.get().getAllItems(ParameterizedJobMixIn.ParameterizedJob.class);
+        }
+
         private boolean webhookExists(Job<?, ?> project, BitbucketSCM input) {
             try (ACLContext ctx = ACL.as(ACL.SYSTEM)) {
-                if (jenkinsProvider == null) {
-                    Guice.createInjector(new JenkinsProviderModule()).injectMembers(this);
-                }
-                return jenkinsProvider
-                        .get().getAllItems(ParameterizedJobMixIn.ParameterizedJob.class)
+                return getJobsUsing(input)
                         .stream()
                         .filter(item -> !item.equals(project))
                         .filter(BitbucketWebhookTriggerDescriptor::isTriggerEnabled)
@@ -317,7 +455,11 @@ public class BitbucketWebhookTriggerImpl extends Trigger<Job<?, ?>>
                         .map(scmItem -> scmItem.getSCMs())
                         .flatMap(Collection::stream)
                         .filter(scm -> scm instanceof BitbucketSCM)
-                        .map(scm -> ((BitbucketSCM) scm).getRepositories())
+                        .map(scm -> (BitbucketSCM) scm)
+                        // Looking up the repositories of other jobs could make this wait for Bitbucket, and their
+                        // webhooks are registered once they have been
+                        .filter(scm -> !scm.isRepositoryResolutionPending())
+                        .map(BitbucketSCM::getRepositories)
                         .flatMap(Collection::stream)
                         .anyMatch(scm -> isExistingWebhookOnRepo(input, scm));
             }
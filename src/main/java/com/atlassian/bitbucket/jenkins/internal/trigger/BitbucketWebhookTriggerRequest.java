@@ -1,5 +1,6 @@
 package com.atlassian.bitbucket.jenkins.internal.trigger;
 
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRefChange;
 import com.atlassian.bitbucket.jenkins.internal.model.BitbucketUser;
 import hudson.model.Action;
 
@@ -12,10 +13,29 @@ public final class BitbucketWebhookTriggerRequest {
 
     private final BitbucketUser actor;
     private final List<Action> additionalActions;
+    private final String commit;
+    private final long dispatchedAt;
+    private final long eventDate;
+    private final BitbucketTriggerPriority priority;
+    private final boolean pullRequest;
+    private final long receivedAt;
+    /**
+     * Only needed until the job has been triggered, so not kept in the causes of builds.
+     */
+    private final transient List<BitbucketRefChange> refChanges;
+    private final String refId;
 
     private BitbucketWebhookTriggerRequest(Builder builder) {
         actor = builder.actor;
         additionalActions = builder.additionalActions;
+        commit = builder.commit;
+        dispatchedAt = builder.dispatchedAt;
+        eventDate = builder.eventDate;
+        priority = builder.priority;
+        pullRequest = builder.pullRequest;
+        receivedAt = builder.receivedAt;
+        refChanges = Collections.unmodifiableList(new ArrayList<>(builder.refChanges));
+        refId = builder.refId;
     }
 
     public static Builder builder() {
@@ -31,7 +51,11 @@ public final class BitbucketWebhookTriggerRequest {
             return false;
         }
         BitbucketWebhookTriggerRequest that = (BitbucketWebhookTriggerRequest) o;
-        return Objects.equals(actor, that.actor) && Objects.equals(additionalActions, that.additionalActions);
+        // The times and ref changes are left out, as they differ for every webhook even when it asks for the same
+        // thing
+        return Objects.equals(actor, that.actor) && Objects.equals(additionalActions, that.additionalActions) &&
+               Objects.equals(commit, that.commit) && priority == that.priority &&
+               pullRequest == that.pullRequest && Objects.equals(refId, that.refId);
     }
 
     public Optional<BitbucketUser> getActor() {
@@ -42,15 +66,92 @@ public final class BitbucketWebhookTriggerRequest {
         return additionalActions;
     }
 
+    /**
+     * @return the commit the ref was changed to, if the webhook was for a ref change or pull request
+     * @since 3.2.0
+     */
+    public Optional<String> getCommit() {
+        return ofNullable(commit);
+    }
+
+    /**
+     * @return when the job was found for the webhook and triggered, in ms since the epoch, or 0 if it isn't known
+     * @since 3.2.0
+     */
+    public long getDispatchedAt() {
+        return dispatchedAt;
+    }
+
+    /**
+     * @return when the event happened in Bitbucket according to the webhook, in ms since the epoch, or 0 if it isn't
+     * known
+     * @since 3.2.0
+     */
+    public long getEventDate() {
+        return eventDate;
+    }
+
+    /**
+     * @return how urgently the job should be polled
+     * @since 3.2.0
+     */
+    public BitbucketTriggerPriority getPriority() {
+        // Requests in the causes of builds from before there were priorities don't have one
+        return priority == null ? BitbucketTriggerPriority.NORMAL : priority;
+    }
+
+    /**
+     * @return when Jenkins received the webhook, in ms since the epoch, or 0 if it isn't known
+     * @since 3.2.0
+     */
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+
+    /**
+     * @return the changes to the refs that were added or updated, if the webhook was for a ref change. These are
+     * not kept in the causes of builds, so they are empty for requests read back from a build.
+     * @since 3.2.0
+     */
+    public List<BitbucketRefChange> getRefChanges() {
+        return refChanges == null ? Collections.emptyList() : refChanges;
+    }
+
+    /**
+     * @return the ID of the ref that was changed, such as {@code refs/heads/master}, if the webhook was for a ref
+     * change or pull request. If several refs were changed, their IDs separated by commas.
+     * @since 3.2.0
+     */
+    public Optional<String> getRefId() {
+        return ofNullable(refId);
+    }
+
+    /**
+     * @return {@code true} if the webhook was for a pull request, in which case the ref may be in a fork of the
+     * repository
+     * @since 3.2.0
+     */
+    public boolean isPullRequest() {
+        return pullRequest;
+    }
+
     @Override
     public int hashCode() {
-        return Objects.hash(actor, additionalActions);
+        return Objects.hash(actor, additionalActions, commit, priority, pullRequest, refId);
     }
 
     public static final class Builder {
 
         private final List<Action> additionalActions = new ArrayList<>();
+        private final List<BitbucketRefChange> refChanges = new ArrayList<>();
         private BitbucketUser actor;
+        private String commit;
+        private long dispatchedAt;
+        private long eventDate;
+        private BitbucketTriggerPriority priority = BitbucketTriggerPriority.NORMAL;
+        private boolean pullRequest;
+        private long receivedAt;
+        private String refId;
 
         public Builder actor(@Nullable BitbucketUser value) {
             actor = value;
@@ -62,6 +163,47 @@ public final class BitbucketWebhookTriggerRequest {
             return this;
         }
 
+        public Builder commit(@Nullable String value) {
+            commit = value;
+            return this;
+        }
+
+        public Builder dispatchedAt(long value) {
+            dispatchedAt = value;
+            return this;
+        }
+
+        public Builder eventDate(@Nullable Date value) {
+            eventDate = value == null ? 0 : value.getTime();
+            return this;
+        }
+
+        public Builder priority(BitbucketTriggerPriority value) {
+            priority = Objects.requireNonNull(value, "priority");
+            return this;
+        }
+
+        public Builder pullRequest(boolean value) {
+            pullRequest = value;
+            return this;
+        }
+
+        public Builder receivedAt(long value) {
+            receivedAt = value;
+            return this;
+        }
+
+        public Builder refChanges(Collection<BitbucketRefChange> value) {
+            refChanges.clear();
+            refChanges.addAll(value);
+            return this;
+        }
+
+        public Builder refId(@Nullable String value) {
+            refId = value;
+            return this;
+        }
+
         public BitbucketWebhookTriggerRequest build() {
             return new BitbucketWebhookTriggerRequest(this);
         }
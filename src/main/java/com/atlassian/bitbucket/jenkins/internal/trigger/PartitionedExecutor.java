@@ -0,0 +1,84 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks in a fixed number of lanes, each with a single thread and its own bounded queue. Tasks are assigned to a
+ * lane by hashing their partition key, so tasks with the same key run one at a time in the order they were submitted,
+ * while tasks with different keys can run in parallel. A busy partition can only fill up its own lane, and can't hold
+ * up partitions in the other lanes.
+ *
+ * @since 3.2.0
+ */
+public class PartitionedExecutor {
+
+    private final ThreadPoolExecutor[] lanes;
+
+    /**
+     * @param laneCount    the number of lanes (and threads)
+     * @param laneCapacity the number of tasks that can wait in each lane
+     * @param name         the name of the threads, which is suffixed with the number of the lane
+     */
+    public PartitionedExecutor(int laneCount, int laneCapacity, String name) {
+        if (laneCount < 1 || laneCapacity < 1) {
+            throw new IllegalArgumentException("At least one lane with a capacity of at least one is required");
+        }
+        lanes = new ThreadPoolExecutor[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(laneCapacity),
+                    new NamingThreadFactory(new DaemonThreadFactory(), name + "-" + i));
+        }
+    }
+
+    /**
+     * Runs the task in the lane for its partition, after any tasks already waiting in the lane.
+     *
+     * @param partitionKey the key of the partition the task is for
+     * @param task         the task
+     * @throws RejectedExecutionException if the lane is full
+     */
+    public void execute(String partitionKey, Runnable task) {
+        lanes[getLane(partitionKey)].execute(task);
+    }
+
+    /**
+     * @return the number of tasks waiting in all of the lanes, not including the tasks running
+     */
+    public int getBacklog() {
+        return Arrays.stream(lanes).mapToInt(lane -> lane.getQueue().size()).sum();
+    }
+
+    /**
+     * @return the number of tasks waiting in each lane, not including the tasks running
+     */
+    public int[] getBacklogs() {
+        return Arrays.stream(lanes).mapToInt(lane -> lane.getQueue().size()).toArray();
+    }
+
+    public int getLane(String partitionKey) {
+        return Math.floorMod(partitionKey.hashCode(), lanes.length);
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * @return {@code true} if there is no room left in any of the lanes
+     */
+    public boolean isFull() {
+        return Arrays.stream(lanes).allMatch(lane -> lane.getQueue().remainingCapacity() == 0);
+    }
+
+    public void shutdown() {
+        Arrays.stream(lanes).forEach(ThreadPoolExecutor::shutdown);
+    }
+}
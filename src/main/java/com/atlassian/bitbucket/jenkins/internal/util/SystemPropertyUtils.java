@@ -33,4 +33,19 @@ public class SystemPropertyUtils {
         }
         return defaultValue;
     }
+
+    /**
+     * @param propertyName a JVM system property
+     * @param defaultValue the value to return if the propertyName is not defined
+     * @return {@code true} if the system property is set to "true" (ignoring case), {@code false} if it is set to
+     *         anything else, or the defaultValue if it is undefined
+     * @since 3.2.0
+     */
+    public static boolean parseBooleanFromSystemProperty(String propertyName, boolean defaultValue) {
+        final String propertyValue = System.getProperty(propertyName);
+        if (propertyValue == null || propertyValue.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(propertyValue.trim());
+    }
 }
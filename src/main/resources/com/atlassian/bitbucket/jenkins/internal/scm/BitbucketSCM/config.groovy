@@ -5,6 +5,12 @@ def c = namespace(lib.CredentialsTagLib)
 
 f.section() {
 
+    if (instance != null && instance.repositoryResolutionPending) {
+        f.block() {
+            div(class: "info", _("bitbucket.scm.resolving"))
+        }
+    }
+
     f.entry(title: _("bitbucket.scm.credentials"), field: "credentialsId") {
         c.select(context: app, includeUser: false, expressionAllowed: false, checkMethod: "post")
     }
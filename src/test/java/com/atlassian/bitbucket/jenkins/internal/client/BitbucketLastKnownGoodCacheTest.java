@@ -0,0 +1,193 @@
+package com.atlassian.bitbucket.jenkins.internal.client;
+
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketLastKnownGoodCache.LastKnownGood;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.AuthorizationException;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.BitbucketClientException;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.ConnectionFailureException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Clock;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import static com.atlassian.bitbucket.jenkins.internal.client.BitbucketLastKnownGoodCache.MAX_STALENESS;
+import static com.atlassian.bitbucket.jenkins.internal.client.BitbucketLastKnownGoodCache.REVALIDATE_AFTER;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BitbucketLastKnownGoodCacheTest {
+
+    private static final String BASE_URL = "http://bitbucket.example.com";
+    private static final String CREDENTIALS_KEY = "credentials-key";
+    private static final UnaryOperator<String> MAC = key -> Integer.toHexString(key.hashCode());
+    private static final String OTHER_CREDENTIALS_KEY = "other-credentials-key";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    private BitbucketLastKnownGoodCache cache;
+    @Mock
+    private Clock clock;
+    @Mock
+    private Supplier<String> loader;
+
+    @Before
+    public void setup() {
+        when(clock.millis()).thenReturn(0L);
+        cache = new BitbucketLastKnownGoodCache(clock, Runnable::run, null);
+    }
+
+    @Test
+    public void testGetFresh() {
+        when(loader.get()).thenReturn("master");
+        cache.get("default-branch", BASE_URL, CREDENTIALS_KEY, "PROJ/repo", loader);
+        when(clock.millis()).thenReturn(REVALIDATE_AFTER - 1);
+
+        LastKnownGood<String> value =
+                cache.get("default-branch", BASE_URL.toUpperCase(), CREDENTIALS_KEY, "PROJ/repo", loader);
+
+        assertThat(value.getValue(), equalTo("master"));
+        assertThat(value.isStale(), is(false));
+        verify(loader).get();
+    }
+
+    @Test
+    public void testGetStaleRevalidates() {
+        when(loader.get()).thenReturn("master", "main");
+        cache.get("default-branch", BASE_URL, CREDENTIALS_KEY, "PROJ/repo", loader);
+        when(clock.millis()).thenReturn(REVALIDATE_AFTER);
+
+        LastKnownGood<String> value = cache.get("default-branch", BASE_URL, CREDENTIALS_KEY, "PROJ/repo", loader);
+
+        assertThat(value.getValue(), equalTo("master"));
+        assertThat(value.isStale(), is(true));
+        assertThat(value.getLoadedAt(), equalTo(0L));
+        LastKnownGood<String> revalidated = cache.get("default-branch", BASE_URL, CREDENTIALS_KEY, "PROJ/repo", loader);
+        assertThat(revalidated.getValue(), equalTo("main"));
+        assertThat(revalidated.isStale(), is(false));
+        verify(loader, times(2)).get();
+    }
+
+    @Test
+    public void testGetStaleWhenBitbucketUnavailable() {
+        when(loader.get())
+                .thenReturn("master")
+                .thenThrow(new ConnectionFailureException(new IOException("timeout")));
+        cache.get("default-branch", BASE_URL, CREDENTIALS_KEY, "PROJ/repo", loader);
+        when(clock.millis()).thenReturn(REVALIDATE_AFTER);
+        cache.get("default-branch", BASE_URL, CREDENTIALS_KEY, "PROJ/repo", loader);
+
+        LastKnownGood<String> value = cache.get("default-branch", BASE_URL, CREDENTIALS_KEY, "PROJ/repo", loader);
+
+        assertThat(value.getValue(), equalTo("master"));
+        assertThat(value.isStale(), is(true));
+    }
+
+    @Test
+    public void testGetTooStale() {
+        when(loader.get()).thenReturn("master", "main");
+        cache.get("default-branch", BASE_URL, CREDENTIALS_KEY, "PROJ/repo", loader);
+        when(clock.millis()).thenReturn(MAX_STALENESS);
+
+        LastKnownGood<String> value = cache.get("default-branch", BASE_URL, CREDENTIALS_KEY, "PROJ/repo", loader);
+
+        assertThat(value.getValue(), equalTo("main"));
+        assertThat(value.isStale(), is(false));
+    }
+
+    @Test
+    public void testGetDropsValueWhenRevalidationFails() {
+        AuthorizationException error = new AuthorizationException("Forbidden", 403, "");
+        when(loader.get()).thenReturn("master").thenThrow(error);
+        cache.get("default-branch", BASE_URL, CREDENTIALS_KEY, "PROJ/repo", loader);
+        when(clock.millis()).thenReturn(REVALIDATE_AFTER);
+        cache.get("default-branch", BASE_URL, CREDENTIALS_KEY, "PROJ/repo", loader);
+
+        try {
+            cache.get("default-branch", BASE_URL, CREDENTIALS_KEY, "PROJ/repo", loader);
+            fail("Expected the failure to be thrown");
+        } catch (BitbucketClientException e) {
+            assertThat(e, is(error));
+        }
+    }
+
+    @Test(expected = ConnectionFailureException.class)
+    public void testGetWithoutValueWhenBitbucketUnavailable() {
+        when(loader.get()).thenThrow(new ConnectionFailureException(new IOException("timeout")));
+
+        cache.get("default-branch", BASE_URL, CREDENTIALS_KEY, "PROJ/repo", loader);
+    }
+
+    @Test
+    public void testPutAndGetIfPresent() {
+        cache.put("file", BASE_URL, CREDENTIALS_KEY, "PROJ/repo/Jenkinsfile@refs/heads/master", "pipeline {}");
+
+        LastKnownGood<String> value = cache.<String>getIfPresent("file", BASE_URL, CREDENTIALS_KEY,
+                "PROJ/repo/Jenkinsfile@refs/heads/master").get();
+
+        assertThat(value.getValue(), equalTo("pipeline {}"));
+        assertThat(cache.getIfPresent("file", BASE_URL, CREDENTIALS_KEY,
+                "PROJ/repo/Jenkinsfile@refs/heads/main").isPresent(), is(false));
+    }
+
+    @Test
+    public void testGetIfPresentKeptApartByCredentials() {
+        cache.put("file", BASE_URL, CREDENTIALS_KEY, "PROJ/repo/Jenkinsfile@refs/heads/master", "pipeline {}");
+
+        assertThat(cache.getIfPresent("file", BASE_URL, OTHER_CREDENTIALS_KEY,
+                "PROJ/repo/Jenkinsfile@refs/heads/master").isPresent(), is(false));
+    }
+
+    @Test
+    public void testSavedOneFilePerValue() throws IOException {
+        File directory = temporaryFolder.newFolder();
+        BitbucketLastKnownGoodCache savingCache = new BitbucketLastKnownGoodCache(clock, Runnable::run, directory, MAC);
+        savingCache.put("file", BASE_URL, CREDENTIALS_KEY, "PROJ/repo/Jenkinsfile@refs/heads/master", "pipeline {}");
+        savingCache.put("file", BASE_URL, CREDENTIALS_KEY, "PROJ/repo/Jenkinsfile@refs/heads/main", "node {}");
+
+        assertThat(directory.listFiles(), arrayWithSize(2));
+        BitbucketLastKnownGoodCache loadedCache = new BitbucketLastKnownGoodCache(clock, Runnable::run, directory, MAC);
+        assertThat(loadedCache.<String>getIfPresent("file", BASE_URL, CREDENTIALS_KEY,
+                "PROJ/repo/Jenkinsfile@refs/heads/main").get().getValue(), equalTo("node {}"));
+    }
+
+    @Test
+    public void testSavedValuesDoNotContainCredentialsKey() throws IOException {
+        File directory = temporaryFolder.newFolder();
+        BitbucketLastKnownGoodCache savingCache =
+                new BitbucketLastKnownGoodCache(clock, Runnable::run, directory, MAC);
+        savingCache.put("file", BASE_URL, CREDENTIALS_KEY, "PROJ/repo/Jenkinsfile@refs/heads/master", "pipeline {}");
+
+        File[] files = directory.listFiles();
+        assertThat(files, arrayWithSize(1));
+        assertThat(new String(Files.readAllBytes(files[0].toPath()), StandardCharsets.UTF_8),
+                not(containsString(CREDENTIALS_KEY)));
+    }
+
+    @Test
+    public void testInvalidateAllDeletesSavedValues() throws IOException {
+        File directory = temporaryFolder.newFolder();
+        BitbucketLastKnownGoodCache savingCache = new BitbucketLastKnownGoodCache(clock, Runnable::run, directory, MAC);
+        savingCache.put("file", BASE_URL, CREDENTIALS_KEY, "PROJ/repo/Jenkinsfile@refs/heads/master", "pipeline {}");
+
+        savingCache.invalidateAll();
+
+        assertThat(directory.listFiles(), arrayWithSize(0));
+    }
+}
@@ -29,10 +29,13 @@ import static com.atlassian.bitbucket.jenkins.internal.credentials.BitbucketCred
 import static com.atlassian.bitbucket.jenkins.internal.util.TestUtils.*;
 import static java.lang.String.format;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toSet;
 import static okhttp3.HttpUrl.parse;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsIterableContaining.hasItems;
 import static org.junit.Assert.*;
@@ -42,6 +45,9 @@ import static org.mockito.Mockito.when;
 @RunWith(MockitoJUnitRunner.class)
 public class BitbucketRepositoryClientImplTest {
 
+    private static final String BRANCHES_URL = "%s/rest/api/1.0/projects/%s/repos/%s/branches?details=false";
+    private static final String CHANGES_URL = "%s/rest/api/1.0/projects/%s/repos/%s/changes?since=%s&until=%s";
+    private static final String COMMITS_URL = "%s/rest/api/1.0/projects/%s/repos/%s/commits?since=%s&until=%s";
     private static final String DEFAULT_BRANCH_URL = "%s/rest/api/1.0/projects/%s/repos/%s/default-branch";
     private static final String PROJECT_KEY = "PROJECT_1";
     private static final String REPO_SLUG = "rep_1";
@@ -132,6 +138,50 @@ public class BitbucketRepositoryClientImplTest {
         assertNotNull(defaultBranch);
     }
   
+    @Test
+    public void testFetchBranches() {
+        String response = readFileToString("/branches.json");
+        String url = format(BRANCHES_URL, BITBUCKET_BASE_URL, PROJECT_KEY, REPO_SLUG);
+        fakeRemoteHttpServer.mapUrlToResult(url, response);
+
+        List<BitbucketDefaultBranch> branches = client.getBranches().collect(toList());
+
+        assertThat(branches.stream().map(BitbucketDefaultBranch::getDisplayId).collect(toList()),
+                equalTo(asList("master", "feature/login")));
+        assertThat(branches.get(1).getLatestCommit(), equalTo(REVISION));
+    }
+
+    @Test
+    public void testFetchChanges() {
+        String since = "1c4c3f92b4f8078e04b7f5a64ce7476a2d4276e0";
+        String response = readFileToString("/changes.json");
+        String url = format(CHANGES_URL, BITBUCKET_BASE_URL, PROJECT_KEY, REPO_SLUG, since, REVISION);
+        fakeRemoteHttpServer.mapUrlToResult(url, response);
+
+        List<BitbucketChange> changes = client.getChanges(since, REVISION).collect(toList());
+
+        assertThat(changes.stream().map(change -> change.getPath().getToString()).collect(toList()),
+                equalTo(asList("src/main/App.java", "docs/guide.md")));
+        assertThat(changes.get(0).getSrcPath(), nullValue());
+        assertThat(changes.get(1).getSrcPath().getToString(), equalTo("guide.md"));
+    }
+
+    @Test
+    public void testFetchCommits() {
+        String since = "1c4c3f92b4f8078e04b7f5a64ce7476a2d4276e0";
+        String response = readFileToString("/commits.json");
+        String url = format(COMMITS_URL, BITBUCKET_BASE_URL, PROJECT_KEY, REPO_SLUG, since, REVISION);
+        fakeRemoteHttpServer.mapUrlToResult(url, response);
+
+        List<BitbucketCommit> commits = client.getCommits(since, REVISION).collect(toList());
+
+        assertThat(commits.stream().map(BitbucketCommit::getId).collect(toList()),
+                equalTo(asList(REVISION, "7549846524f8aed2bd1c0249993ae1bf9d3c9998")));
+        assertThat(commits.get(1).getParents().stream().map(BitbucketCommit::getId).collect(toList()),
+                equalTo(asList(since)));
+        assertThat(commits.get(1).getParents().get(0).getParents(), equalTo(emptyList()));
+    }
+
     @Test
     public void testPostBuildStatus() throws IOException {
         String postURL = "http://localhost:8080/jenkins/job/Local%20BBS%20Project/15/display/redirect";
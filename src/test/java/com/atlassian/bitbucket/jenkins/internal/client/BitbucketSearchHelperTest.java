@@ -0,0 +1,129 @@
+package com.atlassian.bitbucket.jenkins.internal.client;
+
+import com.atlassian.bitbucket.jenkins.internal.client.exception.BitbucketClientException;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.NotFoundException;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketPage;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketProject;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.atlassian.bitbucket.jenkins.internal.client.BitbucketSearchHelper.getRepositoryByNameOrSlugSpeculatively;
+import static com.atlassian.bitbucket.jenkins.internal.model.RepositoryState.AVAILABLE;
+import static java.util.Collections.singletonList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class BitbucketSearchHelperTest {
+
+    @Mock
+    private BitbucketClientFactory clientFactory;
+    private BitbucketProject project;
+    @Mock
+    private BitbucketProjectClient projectClient;
+    private BitbucketRepository repository;
+    @Mock
+    private BitbucketRepositoryClient repositoryClient;
+    @Mock
+    private BitbucketSearchClient searchClient;
+
+    @Before
+    public void setup() {
+        project = new BitbucketProject("PROJ", null, "My Project");
+        repository = new BitbucketRepository(1, "My Repo", null, project, "my-repo", AVAILABLE);
+        when(clientFactory.getSearchClient(any())).thenReturn(searchClient);
+        when(searchClient.findProjects()).thenReturn(new BitbucketPage<>());
+        when(searchClient.findRepositories(any())).thenReturn(new BitbucketPage<>());
+        when(clientFactory.getProjectClient(any())).thenReturn(projectClient);
+        when(projectClient.getProject()).thenThrow(new NotFoundException("Not found", null));
+        when(projectClient.getRepositoryClient(any())).thenReturn(repositoryClient);
+        when(repositoryClient.getRepository()).thenThrow(new NotFoundException("Not found", null));
+    }
+
+    @Test
+    public void testGetRepositoryByName() {
+        BitbucketPage<BitbucketRepository> repositoryPage = new BitbucketPage<>();
+        repositoryPage.setValues(singletonList(repository));
+        when(searchClient.findRepositories("my repo")).thenReturn(repositoryPage);
+
+        assertThat(getRepositoryByNameOrSlugSpeculatively("my project", "my repo", clientFactory),
+                equalTo(repository));
+    }
+
+    @Test
+    public void testGetRepositoryByKeyAndSlug() {
+        BitbucketProjectClient keyProjectClient = mock(BitbucketProjectClient.class);
+        BitbucketRepositoryClient slugRepositoryClient = mock(BitbucketRepositoryClient.class);
+        when(clientFactory.getProjectClient("PROJ")).thenReturn(keyProjectClient);
+        when(keyProjectClient.getProject()).thenReturn(project);
+        when(keyProjectClient.getRepositoryClient("my-repo")).thenReturn(slugRepositoryClient);
+        when(slugRepositoryClient.getRepository()).thenReturn(repository);
+
+        assertThat(getRepositoryByNameOrSlugSpeculatively("PROJ", "my-repo", clientFactory), equalTo(repository));
+    }
+
+    @Test
+    public void testGetRepositoryByProjectNameAndSlug() {
+        BitbucketPage<BitbucketProject> projectPage = new BitbucketPage<>();
+        projectPage.setValues(singletonList(project));
+        when(searchClient.findProjects()).thenReturn(projectPage);
+        BitbucketProjectClient keyProjectClient = mock(BitbucketProjectClient.class);
+        BitbucketRepositoryClient slugRepositoryClient = mock(BitbucketRepositoryClient.class);
+        when(clientFactory.getProjectClient("PROJ")).thenReturn(keyProjectClient);
+        when(keyProjectClient.getRepositoryClient("my-repo")).thenReturn(slugRepositoryClient);
+        when(slugRepositoryClient.getRepository()).thenReturn(repository);
+
+        assertThat(getRepositoryByNameOrSlugSpeculatively("My Project", "my-repo", clientFactory),
+                equalTo(repository));
+    }
+
+    @Test
+    public void testGetRepositoryPrefersNameOverKeyAndSlug() {
+        // The repository named "other" in the project named "OTHER" is found by name, while the project with the key
+        // "OTHER" has a different repository with the slug "other"
+        BitbucketProject namedProject = new BitbucketProject("NAMED", null, "OTHER");
+        BitbucketRepository namedRepository =
+                new BitbucketRepository(2, "other", null, namedProject, "named-repo", AVAILABLE);
+        BitbucketPage<BitbucketRepository> repositoryPage = new BitbucketPage<>();
+        repositoryPage.setValues(singletonList(namedRepository));
+        CountDownLatch keyLookupDone = new CountDownLatch(1);
+        when(searchClient.findRepositories("other")).thenAnswer(invocation -> {
+            // Answer after the key and slug lookup, which would have won if the first result was used
+            keyLookupDone.await(5, TimeUnit.SECONDS);
+            return repositoryPage;
+        });
+        BitbucketProjectClient keyProjectClient = mock(BitbucketProjectClient.class);
+        BitbucketRepositoryClient slugRepositoryClient = mock(BitbucketRepositoryClient.class);
+        when(clientFactory.getProjectClient("OTHER")).thenReturn(keyProjectClient);
+        when(keyProjectClient.getRepositoryClient("other")).thenReturn(slugRepositoryClient);
+        when(slugRepositoryClient.getRepository()).thenAnswer(invocation -> {
+            keyLookupDone.countDown();
+            return repository;
+        });
+
+        assertThat(getRepositoryByNameOrSlugSpeculatively("OTHER", "other", clientFactory),
+                equalTo(namedRepository));
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void testGetRepositoryNotFound() {
+        getRepositoryByNameOrSlugSpeculatively("My Project", "missing", clientFactory);
+    }
+
+    @Test(expected = BitbucketClientException.class)
+    public void testGetRepositorySearchFails() {
+        when(searchClient.findRepositories("my repo")).thenThrow(new BitbucketClientException("error", 500, null));
+
+        getRepositoryByNameOrSlugSpeculatively("my project", "my repo", clientFactory);
+    }
+}
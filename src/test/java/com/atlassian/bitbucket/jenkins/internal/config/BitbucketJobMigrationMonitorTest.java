@@ -0,0 +1,87 @@
+package com.atlassian.bitbucket.jenkins.internal.config;
+
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCM;
+import hudson.model.FreeStyleProject;
+import org.apache.commons.io.FileUtils;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Collections.singleton;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class BitbucketJobMigrationMonitorTest {
+
+    @ClassRule
+    public static final JenkinsRule jenkins = new JenkinsRule();
+
+    @Test
+    public void testStartReportsFailuresPerJob() throws Exception {
+        FreeStyleProject migratedProject = createProject("migrated", "server-1");
+        BitbucketSCM brokenScm = mockScm("server-1");
+        when(brokenScm.getGitTool()).thenThrow(new IllegalStateException("Broken SCM"));
+        FreeStyleProject brokenProject = jenkins.createFreeStyleProject("broken");
+        brokenProject.setScm(brokenScm);
+        BitbucketSCM initialScm = (BitbucketSCM) migratedProject.getScm();
+        BitbucketJobMigrationMonitor monitor = new BitbucketJobMigrationMonitor();
+
+        monitor.start(singleton("server-1"));
+
+        assertTrue(monitor.awaitCompletion(30, TimeUnit.SECONDS));
+        assertThat(migratedProject.getScm(), not(sameInstance(initialScm)));
+        assertThat(monitor.getFailures(), contains("broken: Broken SCM"));
+        assertThat(monitor.getProcessed(), equalTo(2));
+        assertThat(monitor.getTotal(), equalTo(2));
+        assertThat(monitor.isActivated(), is(true));
+        assertThat(monitor.getPendingServerIds(), empty());
+    }
+
+    @Test
+    public void testResumeCarriesOnFromSavedProgress() throws Exception {
+        FreeStyleProject alreadyMigrated = createProject("already-migrated", "server-2");
+        FreeStyleProject notYetMigrated = createProject("not-yet-migrated", "server-2");
+        BitbucketSCM alreadyMigratedScm = (BitbucketSCM) alreadyMigrated.getScm();
+        BitbucketSCM notYetMigratedScm = (BitbucketSCM) notYetMigrated.getScm();
+        // What is saved when Jenkins is restarted part way through a migration
+        FileUtils.write(new File(jenkins.jenkins.getRootDir(), BitbucketJobMigrationMonitor.class.getName() + ".xml"),
+                "<" + BitbucketJobMigrationMonitor.class.getName() + ">" +
+                "<failures/>" +
+                "<migratedJobs><string>already-migrated</string></migratedJobs>" +
+                "<pendingServerIds><string>server-2</string></pendingServerIds>" +
+                "</" + BitbucketJobMigrationMonitor.class.getName() + ">",
+                StandardCharsets.UTF_8);
+        BitbucketJobMigrationMonitor monitor = new BitbucketJobMigrationMonitor();
+
+        monitor.resume();
+
+        assertTrue(monitor.awaitCompletion(30, TimeUnit.SECONDS));
+        assertThat(alreadyMigrated.getScm(), sameInstance(alreadyMigratedScm));
+        assertThat(notYetMigrated.getScm(), not(sameInstance(notYetMigratedScm)));
+        assertThat(monitor.getProcessed(), equalTo(1));
+        assertThat(monitor.getTotal(), equalTo(1));
+        assertThat(monitor.getPendingServerIds(), empty());
+        assertThat(new BitbucketJobMigrationMonitor().getPendingServerIds(), empty());
+    }
+
+    private static FreeStyleProject createProject(String name, String serverId) throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject(name);
+        project.setScm(mockScm(serverId));
+        return project;
+    }
+
+    private static BitbucketSCM mockScm(String serverId) {
+        BitbucketSCM scm = mock(BitbucketSCM.class);
+        when(scm.getServerId()).thenReturn(serverId);
+        when(scm.getProjectName()).thenReturn("Project");
+        when(scm.getRepositoryName()).thenReturn("repo");
+        return scm;
+    }
+}
@@ -24,6 +24,7 @@ import org.mockito.stubbing.Answer;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static java.util.Collections.singletonList;
 import static org.hamcrest.Matchers.not;
@@ -94,6 +95,7 @@ public class BitbucketPluginConfigurationTest {
         }).when(request).bindJSON(pluginConfiguration, formData);
 
         assertTrue(pluginConfiguration.configure(request, formData));
+        assertTrue(BitbucketJobMigrationMonitor.get().awaitCompletion(30, TimeUnit.SECONDS));
 
         SCM newScm = jenkins.getInstance().getAllItems(FreeStyleProject.class).get(0).getScm();
         assertThat(newScm, not(equalTo(bitbucketSCMInitial)));
@@ -0,0 +1,147 @@
+package com.atlassian.bitbucket.jenkins.internal.scm;
+
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactory;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketProjectClient;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketSearchClient;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.ConnectionFailureException;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.NotFoundException;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketPage;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketProject;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRepository;
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketBulkRepositoryResolver.RepositoryReference;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static com.atlassian.bitbucket.jenkins.internal.model.RepositoryState.AVAILABLE;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BitbucketBulkRepositoryResolverTest {
+
+    private static final String BASE_URL = "http://bitbucket.example.com";
+    private static final String CREDENTIALS = "credentials";
+
+    @Mock
+    private Clock clock;
+    @Mock
+    private BitbucketClientFactory clientFactory;
+    @Mock
+    private BitbucketProjectClient projectClient;
+    private BitbucketProject project;
+    private BitbucketRepositoryMetadataCache repositoryMetadataCache;
+    private BitbucketBulkRepositoryResolver resolver;
+    @Mock
+    private BitbucketSearchClient searchClient;
+
+    @Before
+    public void setup() {
+        project = new BitbucketProject("PROJ", null, "My Project");
+        repositoryMetadataCache = new BitbucketRepositoryMetadataCache(clock);
+        resolver = new BitbucketBulkRepositoryResolver(BASE_URL, CREDENTIALS, clientFactory, repositoryMetadataCache);
+    }
+
+    @Test
+    public void testResolveListsEachProjectOnce() {
+        BitbucketRepository repositoryOne = new BitbucketRepository(1, "Repo One", null, project, "repo-one", AVAILABLE);
+        BitbucketRepository repositoryTwo = new BitbucketRepository(2, "Repo Two", null, project, "repo-two", AVAILABLE);
+        when(clientFactory.getSearchClient("My Project")).thenReturn(searchClient);
+        BitbucketPage<BitbucketProject> projectPage = new BitbucketPage<>();
+        projectPage.setValues(singletonList(project));
+        when(searchClient.findProjects()).thenReturn(projectPage);
+        when(clientFactory.getProjectClient("PROJ")).thenReturn(projectClient);
+        when(projectClient.getRepositories()).thenReturn(Stream.of(repositoryOne, repositoryTwo));
+        RepositoryReference byName = new RepositoryReference("My Project", "repo one");
+        RepositoryReference bySlug = new RepositoryReference("my project", "repo-two");
+        RepositoryReference missing = new RepositoryReference("My Project", "missing");
+
+        Map<RepositoryReference, BitbucketRepository> result = resolver.resolve(asList(byName, bySlug, missing));
+
+        assertThat(result.get(byName), equalTo(repositoryOne));
+        assertThat(result.get(bySlug), equalTo(repositoryTwo));
+        assertThat(result.get(missing).getId(), equalTo(-1));
+        assertThat(result.get(missing).getProject(), equalTo(project));
+        verify(projectClient).getRepositories();
+        assertThat(repositoryMetadataCache.getIfFresh(BASE_URL, CREDENTIALS, "My Project", "repo one").get(),
+                equalTo(repositoryOne));
+    }
+
+    @Test
+    public void testResolveUsesCache() {
+        BitbucketRepository repository = new BitbucketRepository(1, "Repo One", null, project, "repo-one", AVAILABLE);
+        repositoryMetadataCache.put(BASE_URL, CREDENTIALS, "My Project", "Repo One", repository);
+        RepositoryReference reference = new RepositoryReference("My Project", "Repo One");
+
+        Map<RepositoryReference, BitbucketRepository> result = resolver.resolve(singletonList(reference));
+
+        assertThat(result.get(reference), equalTo(repository));
+        verifyZeroInteractions(clientFactory);
+    }
+
+    @Test
+    public void testResolveIgnoresCacheForOtherCredentials() {
+        BitbucketRepository repository = new BitbucketRepository(1, "Repo One", null, project, "repo-one", AVAILABLE);
+        repositoryMetadataCache.put(BASE_URL, "other credentials", "My Project", "Repo One", repository);
+        when(clientFactory.getSearchClient("My Project")).thenReturn(searchClient);
+        BitbucketPage<BitbucketProject> projectPage = new BitbucketPage<>();
+        projectPage.setValues(singletonList(project));
+        when(searchClient.findProjects()).thenReturn(projectPage);
+        when(clientFactory.getProjectClient("PROJ")).thenReturn(projectClient);
+        when(projectClient.getRepositories()).thenReturn(Stream.empty());
+        RepositoryReference reference = new RepositoryReference("My Project", "Repo One");
+
+        Map<RepositoryReference, BitbucketRepository> result = resolver.resolve(singletonList(reference));
+
+        assertThat(result.get(reference).getId(), equalTo(-1));
+    }
+
+    @Test
+    public void testResolveBlankReference() {
+        RepositoryReference reference = new RepositoryReference("My Project", "");
+
+        Map<RepositoryReference, BitbucketRepository> result = resolver.resolve(singletonList(reference));
+
+        assertThat(result.get(reference).getId(), equalTo(-1));
+        verifyZeroInteractions(clientFactory);
+    }
+
+    @Test
+    public void testResolveProjectNotFound() {
+        when(clientFactory.getSearchClient("Missing")).thenReturn(searchClient);
+        when(searchClient.findProjects()).thenReturn(new BitbucketPage<>());
+        when(clientFactory.getProjectClient("Missing")).thenReturn(projectClient);
+        when(projectClient.getProject()).thenThrow(new NotFoundException("Not found", null));
+        RepositoryReference reference = new RepositoryReference("Missing", "Repo One");
+
+        Map<RepositoryReference, BitbucketRepository> result = resolver.resolve(singletonList(reference));
+
+        assertThat(result.get(reference).getId(), equalTo(-1));
+        assertThat(result.get(reference).getProject().getKey(), equalTo("Missing"));
+    }
+
+    @Test
+    public void testResolveUsesStaleEntryWhenBitbucketUnavailable() {
+        BitbucketRepository repository = new BitbucketRepository(1, "Repo One", null, project, "repo-one", AVAILABLE);
+        when(clock.millis()).thenReturn(0L);
+        repositoryMetadataCache.put(BASE_URL, CREDENTIALS, "My Project", "Repo One", repository);
+        when(clock.millis()).thenReturn(BitbucketRepositoryMetadataCache.CACHE_TTL);
+        when(clientFactory.getSearchClient("My Project")).thenReturn(searchClient);
+        when(searchClient.findProjects()).thenThrow(new ConnectionFailureException(new IOException("timeout")));
+        RepositoryReference reference = new RepositoryReference("My Project", "Repo One");
+
+        Map<RepositoryReference, BitbucketRepository> result = resolver.resolve(singletonList(reference));
+
+        assertThat(result.get(reference), equalTo(repository));
+    }
+}
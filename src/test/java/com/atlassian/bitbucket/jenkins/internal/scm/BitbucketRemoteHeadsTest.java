@@ -0,0 +1,291 @@
+package com.atlassian.bitbucket.jenkins.internal.scm;
+
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactory;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactoryProvider;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketProjectClient;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketRepositoryClient;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.BitbucketClientException;
+import com.atlassian.bitbucket.jenkins.internal.config.BitbucketPluginConfiguration;
+import com.atlassian.bitbucket.jenkins.internal.config.BitbucketServerConfiguration;
+import com.atlassian.bitbucket.jenkins.internal.credentials.JenkinsToBitbucketCredentials;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketDefaultBranch;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRefType;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+import hudson.plugins.git.BranchSpec;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.UserRemoteConfig;
+import hudson.plugins.git.util.Build;
+import hudson.plugins.git.util.BuildData;
+import hudson.scm.PollingResult;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class BitbucketRemoteHeadsTest {
+
+    private static final String BASE_URL = "http://bitbucket.example.com";
+    private static final String KEY = "repository";
+    private static final String NEW_COMMIT = "2222222222222222222222222222222222222222";
+
+    private final AtomicLong now = new AtomicLong(10_000L);
+    private final BitbucketSCMRepository repository = new BitbucketSCMRepository("credentials", null, "Project",
+            "PROJ", "Repository", "repo", "server-id", "");
+    @Mock
+    private FreeStyleBuild build;
+    @Mock
+    private BuildData buildData;
+    @Mock
+    private BitbucketClientFactoryProvider clientFactoryProvider;
+    @Mock
+    private BitbucketClientFactory clientFactory;
+    @Mock
+    private GitSCM gitSCM;
+    @Mock
+    private JenkinsToBitbucketCredentials jenkinsToBitbucketCredentials;
+    @Mock
+    private TaskListener listener;
+    @Mock
+    private BitbucketPluginConfiguration pluginConfiguration;
+    @Mock
+    private FreeStyleProject project;
+    @Mock
+    private BitbucketProjectClient projectClient;
+    @InjectMocks
+    private BitbucketRemoteHeads remoteHeads = new BitbucketRemoteHeads(1000, now::get);
+    @Mock
+    private BitbucketRepositoryClient repositoryClient;
+    @Mock
+    private BitbucketSCM scm;
+    @Mock
+    private BitbucketServerConfiguration serverConfiguration;
+
+    @Before
+    public void setup() {
+        when(pluginConfiguration.getServerById("server-id")).thenReturn(Optional.of(serverConfiguration));
+        when(serverConfiguration.getBaseUrl()).thenReturn(BASE_URL);
+        when(clientFactoryProvider.getClient(eq(BASE_URL), any())).thenReturn(clientFactory);
+        when(clientFactory.getProjectClient("PROJ")).thenReturn(projectClient);
+        when(projectClient.getRepositoryClient("repo")).thenReturn(repositoryClient);
+        when(repositoryClient.getBranches()).thenAnswer(invocation -> Stream.of(branch("master", NEW_COMMIT)));
+        when(scm.getRepositories()).thenReturn(singletonList(repository));
+        when(gitSCM.getBranches()).thenReturn(singletonList(new BranchSpec("*/master")));
+        when(gitSCM.getUserRemoteConfigs())
+                .thenReturn(singletonList(new UserRemoteConfig("http://clone", "repo", null, "credentials")));
+        doReturn(build).when(project).getLastBuild();
+        when(gitSCM.getBuildData(build)).thenReturn(buildData);
+        buildData.lastBuild = mock(Build.class);
+        when(listener.getLogger()).thenReturn(mock(PrintStream.class));
+        when(jenkinsToBitbucketCredentials.toBitbucketCredentials("credentials", project))
+                .thenReturn(() -> "Bearer token");
+    }
+
+    @Test
+    public void testGetHeadsSharesSnapshot() {
+        AtomicInteger fetches = new AtomicInteger();
+
+        remoteHeads.getHeads(KEY, now.get(), () -> heads(fetches));
+        now.addAndGet(500);
+        Map<String, String> heads = remoteHeads.getHeads(KEY, now.get() - 500, () -> heads(fetches));
+
+        assertThat(heads, equalTo(singletonMap("master", NEW_COMMIT)));
+        assertThat(fetches.get(), equalTo(1));
+        assertThat(remoteHeads.getFetched(), equalTo(1L));
+        assertThat(remoteHeads.getShared(), equalTo(1L));
+    }
+
+    @Test
+    public void testGetHeadsDoesNotShareSnapshotFromBeforeWebhook() {
+        AtomicInteger fetches = new AtomicInteger();
+
+        remoteHeads.getHeads(KEY, now.get(), () -> heads(fetches));
+        now.addAndGet(100);
+        // Received after the first snapshot was fetched, so it may be missing the push
+        remoteHeads.getHeads(KEY, now.get(), () -> heads(fetches));
+
+        assertThat(fetches.get(), equalTo(2));
+    }
+
+    @Test
+    public void testGetHeadsDoesNotShareSnapshotAfterWindow() {
+        AtomicInteger fetches = new AtomicInteger();
+
+        remoteHeads.getHeads(KEY, now.get(), () -> heads(fetches));
+        now.addAndGet(1001);
+        remoteHeads.getHeads(KEY, 0, () -> heads(fetches));
+
+        assertThat(fetches.get(), equalTo(2));
+    }
+
+    @Test
+    public void testGetHeadsDoesNotShareFailures() {
+        AtomicInteger fetches = new AtomicInteger();
+        try {
+            remoteHeads.getHeads(KEY, now.get(), () -> {
+                throw new BitbucketClientException("Unavailable", 503, null);
+            });
+        } catch (BitbucketClientException e) {
+            // Expected
+        }
+
+        remoteHeads.getHeads(KEY, now.get(), () -> heads(fetches));
+
+        assertThat(fetches.get(), equalTo(1));
+    }
+
+    @Test
+    public void testGetHeadsWaitsForFetchInFlight() throws Exception {
+        CountDownLatch fetching = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger fetches = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Map<String, String>> first = executor.submit(() -> remoteHeads.getHeads(KEY, now.get(), () -> {
+                fetching.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return heads(fetches);
+            }));
+            assertThat(fetching.await(10, TimeUnit.SECONDS), is(true));
+            executor.submit(() -> {
+                Thread.sleep(100);
+                release.countDown();
+                return null;
+            });
+
+            // Waits for the first fetch to finish rather than fetching again
+            Map<String, String> second = remoteHeads.getHeads(KEY, now.get(), () -> heads(fetches));
+
+            assertThat(second, equalTo(first.get(10, TimeUnit.SECONDS)));
+            assertThat(fetches.get(), equalTo(1));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPollBuildsNewHead() {
+        PollingResult result = BitbucketRemoteHeads.pollForWebhook(now.get(),
+                () -> remoteHeads.poll(scm, gitSCM, project, listener));
+
+        assertThat(result, equalTo(PollingResult.BUILD_NOW));
+    }
+
+    @Test
+    public void testPollSharesHeadsBetweenJobs() {
+        when(buildData.getLastBuild(ObjectId.fromString(NEW_COMMIT))).thenReturn(mock(Build.class));
+
+        PollingResult first = BitbucketRemoteHeads.pollForWebhook(now.get(),
+                () -> remoteHeads.poll(scm, gitSCM, project, listener));
+        PollingResult second = BitbucketRemoteHeads.pollForWebhook(now.get(),
+                () -> remoteHeads.poll(scm, gitSCM, project, listener));
+
+        assertThat(first, equalTo(PollingResult.NO_CHANGES));
+        assertThat(second, equalTo(PollingResult.NO_CHANGES));
+        verify(repositoryClient).getBranches();
+    }
+
+    @Test
+    public void testPollDoesNotShareHeadsBetweenCredentials() {
+        // The same credentials ID, resolved to different credentials for a job in another folder
+        FreeStyleProject otherProject = mock(FreeStyleProject.class);
+        doReturn(build).when(otherProject).getLastBuild();
+        when(jenkinsToBitbucketCredentials.toBitbucketCredentials("credentials", otherProject))
+                .thenReturn(() -> "Bearer other-token");
+
+        BitbucketRemoteHeads.pollForWebhook(now.get(), () -> remoteHeads.poll(scm, gitSCM, project, listener));
+        BitbucketRemoteHeads.pollForWebhook(now.get(), () -> remoteHeads.poll(scm, gitSCM, otherProject, listener));
+
+        verify(repositoryClient, times(2)).getBranches();
+        assertThat(remoteHeads.getShared(), equalTo(0L));
+    }
+
+    @Test
+    public void testPollIgnoresUnmatchedBranches() {
+        when(gitSCM.getBranches()).thenReturn(singletonList(new BranchSpec("*/release")));
+
+        PollingResult result = BitbucketRemoteHeads.pollForWebhook(now.get(),
+                () -> remoteHeads.poll(scm, gitSCM, project, listener));
+
+        assertThat(result, equalTo(PollingResult.NO_CHANGES));
+    }
+
+    @Test
+    public void testPollWithGitWhenNotForWebhook() {
+        assertThat(remoteHeads.poll(scm, gitSCM, project, listener), nullValue());
+
+        verifyZeroInteractions(clientFactoryProvider);
+    }
+
+    @Test
+    public void testPollWithGitWhenWorkspaceNeeded() {
+        when(gitSCM.requiresWorkspaceForPolling()).thenReturn(true);
+
+        assertThat(BitbucketRemoteHeads.pollForWebhook(now.get(),
+                () -> remoteHeads.poll(scm, gitSCM, project, listener)), nullValue());
+    }
+
+    @Test
+    public void testPollWithGitForTags() {
+        when(gitSCM.getBranches()).thenReturn(singletonList(new BranchSpec("refs/tags/*")));
+
+        assertThat(BitbucketRemoteHeads.pollForWebhook(now.get(),
+                () -> remoteHeads.poll(scm, gitSCM, project, listener)), nullValue());
+    }
+
+    @Test
+    public void testPollWithGitWhenFetchFails() {
+        when(repositoryClient.getBranches()).thenThrow(new BitbucketClientException("Unavailable", 503, null));
+
+        assertThat(BitbucketRemoteHeads.pollForWebhook(now.get(),
+                () -> remoteHeads.poll(scm, gitSCM, project, listener)), nullValue());
+    }
+
+    @Test
+    public void testPollWithGitWhenDisabled() {
+        BitbucketRemoteHeads disabled = new BitbucketRemoteHeads(0, now::get);
+
+        assertThat(BitbucketRemoteHeads.pollForWebhook(now.get(),
+                () -> disabled.poll(scm, gitSCM, project, listener)), nullValue());
+        assertThat(disabled.isEnabled(), is(false));
+    }
+
+    private static BitbucketDefaultBranch branch(String name, String commit) {
+        return new BitbucketDefaultBranch("refs/heads/" + name, name, BitbucketRefType.BRANCH, commit, commit,
+                "master".equals(name));
+    }
+
+    private static Map<String, String> heads(AtomicInteger fetches) {
+        fetches.incrementAndGet();
+        return singletonMap("master", NEW_COMMIT);
+    }
+}
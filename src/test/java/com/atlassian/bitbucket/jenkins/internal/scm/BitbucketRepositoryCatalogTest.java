@@ -0,0 +1,134 @@
+package com.atlassian.bitbucket.jenkins.internal.scm;
+
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactory;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketSearchClient;
+import com.atlassian.bitbucket.jenkins.internal.credentials.BitbucketCredentials;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketProject;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.time.Clock;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static com.atlassian.bitbucket.jenkins.internal.model.RepositoryState.AVAILABLE;
+import static com.atlassian.bitbucket.jenkins.internal.scm.BitbucketRepositoryCatalog.REFRESH_INTERVAL;
+import static java.util.Collections.emptyList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BitbucketRepositoryCatalogTest {
+
+    private static final String BASE_URL = "http://bitbucket.example.com";
+    private static final BitbucketCredentials CREDENTIALS = () -> "Bearer token";
+    private static final BitbucketCredentials OTHER_CREDENTIALS = () -> "Bearer other-token";
+
+    private BitbucketRepositoryCatalog catalog;
+    @Mock
+    private Clock clock;
+    @Mock
+    private BitbucketClientFactory clientFactory;
+    private BitbucketProject projectOne;
+    private BitbucketProject projectTwo;
+    private BitbucketRepository repositoryOne;
+    private BitbucketRepository repositoryTwo;
+    @Mock
+    private BitbucketSearchClient searchClient;
+
+    @Before
+    public void setup() {
+        when(clock.millis()).thenReturn(0L);
+        projectOne = new BitbucketProject("ONE", null, "Project One");
+        projectTwo = new BitbucketProject("TWO", null, "Second-project");
+        repositoryOne = repository(1, "Frontend App", projectOne);
+        repositoryTwo = repository(2, "backend", projectOne);
+        when(clientFactory.getSearchClient("")).thenReturn(searchClient);
+        when(searchClient.findAllProjects()).thenAnswer(invocation -> Stream.of(projectOne, projectTwo));
+        when(searchClient.findAllRepositories())
+                .thenAnswer(invocation -> Stream.of(repositoryOne, repositoryTwo));
+        catalog = new BitbucketRepositoryCatalog(clock, true, Runnable::run);
+    }
+
+    @Test
+    public void testDisabled() {
+        catalog = new BitbucketRepositoryCatalog(clock, false, Runnable::run);
+
+        assertThat(catalog.findProjects(BASE_URL, CREDENTIALS, "pro", clientFactory), equalTo(Optional.empty()));
+        verifyZeroInteractions(clientFactory);
+    }
+
+    @Test
+    public void testFindProjectsByNameContaining() {
+        Collection<BitbucketProject> projects =
+                catalog.findProjects(BASE_URL, CREDENTIALS, "PRO", clientFactory).get();
+
+        assertThat(projects, containsInAnyOrder(projectOne, projectTwo));
+        assertThat(catalog.findProjects(BASE_URL, CREDENTIALS, "sec", clientFactory).get(), contains(projectTwo));
+        // Bitbucket matches anywhere in the name, not only at the start of a word
+        assertThat(catalog.findProjects(BASE_URL, CREDENTIALS, "ject", clientFactory).get(),
+                containsInAnyOrder(projectOne, projectTwo));
+        assertThat(catalog.findProjects(BASE_URL, CREDENTIALS, "d-p", clientFactory).get(), contains(projectTwo));
+        assertThat(catalog.findProjects(BASE_URL, CREDENTIALS, "three", clientFactory).get(), equalTo(emptyList()));
+    }
+
+    @Test
+    public void testFindRepositoriesInProject() {
+        assertThat(catalog.findRepositories(BASE_URL, CREDENTIALS, "project one", "app", clientFactory).get(),
+                contains(repositoryOne));
+        assertThat(catalog.findRepositories(BASE_URL, CREDENTIALS, "Second-project", "app", clientFactory).get(),
+                equalTo(emptyList()));
+        verify(searchClient).findAllRepositories();
+    }
+
+    @Test
+    public void testCatalogPerCredentials() {
+        catalog.findProjects(BASE_URL, CREDENTIALS, "pro", clientFactory);
+        catalog.findProjects(BASE_URL, OTHER_CREDENTIALS, "pro", clientFactory);
+
+        verify(searchClient, times(2)).findAllProjects();
+    }
+
+    @Test
+    public void testCatalogSharedBySameCredentials() {
+        catalog.findProjects(BASE_URL, CREDENTIALS, "pro", clientFactory);
+        catalog.findProjects(BASE_URL, () -> "Bearer token", "pro", clientFactory);
+
+        verify(searchClient).findAllProjects();
+    }
+
+    @Test
+    public void testRefreshedWhenStale() {
+        catalog.findProjects(BASE_URL, CREDENTIALS, "pro", clientFactory);
+        when(clock.millis()).thenReturn(REFRESH_INTERVAL);
+        catalog.findProjects(BASE_URL, CREDENTIALS, "pro", clientFactory);
+
+        verify(searchClient, times(2)).findAllProjects();
+    }
+
+    @Test
+    public void testOnRepositoryEventUpdatesRenamedRepository() {
+        catalog.findProjects(BASE_URL, CREDENTIALS, "pro", clientFactory);
+        BitbucketRepository renamed = repository(1, "Web App", projectOne);
+
+        catalog.onRepositoryEvent(renamed);
+
+        assertThat(catalog.findRepositories(BASE_URL, CREDENTIALS, "Project One", "web", clientFactory).get(),
+                contains(renamed));
+        assertThat(catalog.findRepositories(BASE_URL, CREDENTIALS, "Project One", "frontend", clientFactory).get(),
+                equalTo(emptyList()));
+    }
+
+    private static BitbucketRepository repository(int id, String name, BitbucketProject project) {
+        return new BitbucketRepository(id, name, project, name.toLowerCase().replace(' ', '-'), AVAILABLE,
+                emptyList(), BASE_URL + "/projects/" + project.getKey() + "/repos/" + id + "/browse");
+    }
+}
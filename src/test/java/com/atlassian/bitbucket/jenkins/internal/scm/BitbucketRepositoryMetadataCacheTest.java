@@ -0,0 +1,165 @@
+package com.atlassian.bitbucket.jenkins.internal.scm;
+
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketNamedLink;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketProject;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.time.Clock;
+import java.util.List;
+import java.util.Optional;
+
+import static com.atlassian.bitbucket.jenkins.internal.model.RepositoryState.AVAILABLE;
+import static com.atlassian.bitbucket.jenkins.internal.scm.BitbucketRepositoryMetadataCache.CACHE_TTL;
+import static com.atlassian.bitbucket.jenkins.internal.scm.BitbucketRepositoryMetadataCache.STALE_TTL;
+import static java.util.Collections.emptyList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BitbucketRepositoryMetadataCacheTest {
+
+    private static final String BASE_URL = "http://bitbucket.example.com";
+    private static final String CREDENTIALS = "credentials";
+
+    private BitbucketRepositoryMetadataCache cache;
+    @Mock
+    private Clock clock;
+    private BitbucketRepository repository;
+
+    @Before
+    public void setup() {
+        when(clock.millis()).thenReturn(0L);
+        cache = new BitbucketRepositoryMetadataCache(clock);
+        repository = repository("My Project", "repo name");
+    }
+
+    @Test
+    public void testGetIfFresh() {
+        cache.put(BASE_URL, CREDENTIALS, "My Project", "repo name", repository);
+
+        assertThat(cache.getIfFresh(BASE_URL, CREDENTIALS, "my project", "REPO NAME"), equalTo(Optional.of(repository)));
+    }
+
+    @Test
+    public void testGetIfFreshDifferentServer() {
+        cache.put(BASE_URL, CREDENTIALS, "My Project", "repo name", repository);
+
+        assertThat(cache.getIfFresh("http://other.example.com", CREDENTIALS, "My Project", "repo name"),
+                equalTo(Optional.empty()));
+    }
+
+    @Test
+    public void testGetIfFreshDifferentCredentials() {
+        cache.put(BASE_URL, CREDENTIALS, "My Project", "repo name", repository);
+
+        assertThat(cache.getIfFresh(BASE_URL, "other credentials", "My Project", "repo name"),
+                equalTo(Optional.empty()));
+        assertThat(cache.getIfPresent(BASE_URL, "other credentials", "My Project", "repo name"),
+                equalTo(Optional.empty()));
+    }
+
+    @Test
+    public void testGetIfFreshExpired() {
+        cache.put(BASE_URL, CREDENTIALS, "My Project", "repo name", repository);
+        when(clock.millis()).thenReturn(CACHE_TTL);
+
+        assertThat(cache.getIfFresh(BASE_URL, CREDENTIALS, "My Project", "repo name"), equalTo(Optional.empty()));
+        assertThat(cache.getIfPresent(BASE_URL, CREDENTIALS, "My Project", "repo name"), equalTo(Optional.of(repository)));
+    }
+
+    @Test
+    public void testGetIfPresentExpired() {
+        cache.put(BASE_URL, CREDENTIALS, "My Project", "repo name", repository);
+        when(clock.millis()).thenReturn(STALE_TTL);
+
+        assertThat(cache.getIfPresent(BASE_URL, CREDENTIALS, "My Project", "repo name"), equalTo(Optional.empty()));
+    }
+
+    @Test
+    public void testInvalidate() {
+        cache.put(BASE_URL, CREDENTIALS, "My Project", "repo name", repository);
+        cache.invalidate(BASE_URL, CREDENTIALS, "My Project", "repo name");
+
+        assertThat(cache.getIfPresent(BASE_URL, CREDENTIALS, "My Project", "repo name"), equalTo(Optional.empty()));
+    }
+
+    @Test
+    public void testOnRepositoryEventConfirmsEntry() {
+        cache.put(BASE_URL, CREDENTIALS, "My Project", "repo name", repository);
+        when(clock.millis()).thenReturn(CACHE_TTL);
+
+        cache.onRepositoryEvent(repository("My Project", "repo name"));
+
+        assertThat(cache.getIfFresh(BASE_URL, CREDENTIALS, "My Project", "repo name"), equalTo(Optional.of(repository)));
+    }
+
+    @Test
+    public void testOnRepositoryEventEvictsRenamedRepository() {
+        cache.put(BASE_URL, CREDENTIALS, "My Project", "repo name", repository);
+
+        cache.onRepositoryEvent(repository("My Project", "new repo name"));
+
+        assertThat(cache.getIfPresent(BASE_URL, CREDENTIALS, "My Project", "repo name"), equalTo(Optional.empty()));
+    }
+
+    @Test
+    public void testOnRepositoryEventIgnoresOtherServers() {
+        cache.put(BASE_URL, CREDENTIALS, "My Project", "repo name", repository);
+        BitbucketRepository otherServerRepository = new BitbucketRepository(1, "new repo name",
+                new BitbucketProject("PROJ", null, "My Project"), "repo_name", AVAILABLE, emptyList(),
+                "http://other.example.com/projects/PROJ/repos/repo_name/browse");
+
+        cache.onRepositoryEvent(otherServerRepository);
+
+        assertThat(cache.getIfPresent(BASE_URL, CREDENTIALS, "My Project", "repo name"), equalTo(Optional.of(repository)));
+    }
+
+    @Test
+    public void testPutEvictsLeastRecentlyUsed() {
+        BitbucketRepositoryMetadataCache smallCache = new BitbucketRepositoryMetadataCache(clock, 2);
+        smallCache.put(BASE_URL, CREDENTIALS, "My Project", "first", repository);
+        smallCache.put(BASE_URL, CREDENTIALS, "My Project", "second", repository);
+        smallCache.getIfFresh(BASE_URL, CREDENTIALS, "My Project", "first");
+
+        smallCache.put(BASE_URL, CREDENTIALS, "My Project", "third", repository);
+
+        assertThat(smallCache.size(), equalTo(2));
+        assertThat(smallCache.getIfPresent(BASE_URL, CREDENTIALS, "My Project", "first"),
+                equalTo(Optional.of(repository)));
+        assertThat(smallCache.getIfPresent(BASE_URL, CREDENTIALS, "My Project", "second"),
+                equalTo(Optional.empty()));
+    }
+
+    @Test
+    public void testOnRepositoryEventEvictsEveryEntryForRepository() {
+        cache.put(BASE_URL, CREDENTIALS, "My Project", "repo name", repository);
+        cache.put(BASE_URL, "other credentials", "PROJ", "repo_name", repository);
+
+        cache.onRepositoryEvent(repository("My Project", "new repo name"));
+
+        assertThat(cache.size(), equalTo(0));
+    }
+
+    @Test
+    public void testOnRepositoryEventIgnoresOtherRepositories() {
+        cache.put(BASE_URL, CREDENTIALS, "My Project", "repo name", repository);
+        BitbucketRepository otherRepository = new BitbucketRepository(2, "other", new BitbucketProject("PROJ", null,
+                "My Project"), "other", AVAILABLE, emptyList(), BASE_URL + "/projects/PROJ/repos/other/browse");
+
+        cache.onRepositoryEvent(otherRepository);
+
+        assertThat(cache.getIfPresent(BASE_URL, CREDENTIALS, "My Project", "repo name"), equalTo(Optional.of(repository)));
+    }
+
+    private static BitbucketRepository repository(String projectName, String repositoryName) {
+        List<BitbucketNamedLink> cloneUrls = emptyList();
+        return new BitbucketRepository(1, repositoryName, new BitbucketProject("PROJ", null, projectName),
+                "repo_name", AVAILABLE, cloneUrls, BASE_URL + "/projects/PROJ/repos/repo_name/browse");
+    }
+}
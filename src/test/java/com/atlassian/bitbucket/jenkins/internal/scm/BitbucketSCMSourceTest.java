@@ -1,5 +1,6 @@
 package com.atlassian.bitbucket.jenkins.internal.scm;
 
+import com.atlassian.bitbucket.jenkins.internal.client.exception.ConnectionFailureException;
 import com.atlassian.bitbucket.jenkins.internal.config.BitbucketServerConfiguration;
 import com.atlassian.bitbucket.jenkins.internal.config.BitbucketTokenCredentials;
 import com.atlassian.bitbucket.jenkins.internal.credentials.GlobalCredentialsProvider;
@@ -15,11 +16,14 @@ import com.atlassian.bitbucket.jenkins.internal.trigger.events.PullRequestClosed
 import com.atlassian.bitbucket.jenkins.internal.trigger.events.PullRequestOpenedWebhookEvent;
 import com.atlassian.bitbucket.jenkins.internal.trigger.events.RefsChangedWebhookEvent;
 
+import hudson.AbortException;
 import hudson.model.Action;
 import hudson.model.Actionable;
+import hudson.model.TaskListener;
 import jenkins.branch.MultiBranchProject;
 import jenkins.scm.api.SCMHead;
 import jenkins.scm.api.SCMHeadEvent;
+import jenkins.scm.api.SCMHeadObserver;
 import jenkins.scm.api.SCMSourceDescriptor;
 import jenkins.scm.api.SCMSourceEvent;
 import jenkins.scm.api.metadata.PrimaryInstanceMetadataAction;
@@ -37,8 +41,11 @@ import java.util.Optional;
 import static java.util.Collections.*;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.*;
 
@@ -57,6 +64,7 @@ public class BitbucketSCMSourceTest {
                 mock(BitbucketWebhookMultibranchTrigger.DescriptorImpl.class);
 
         bitbucketSCMsource.afterSave();
+        bitbucketSCMsource.resolveRepository();
 
         verifyZeroInteractions(triggerDesc);
     }
@@ -73,6 +81,7 @@ public class BitbucketSCMSourceTest {
                 mock(BitbucketWebhookMultibranchTrigger.DescriptorImpl.class);
 
         bitbucketSCMsource.afterSave();
+        bitbucketSCMsource.resolveRepository();
 
         verifyZeroInteractions(triggerDesc);
     }
@@ -90,6 +99,7 @@ public class BitbucketSCMSourceTest {
         doReturn(true).when(bitbucketSCMSource).isValid();
 
         bitbucketSCMSource.afterSave();
+        bitbucketSCMSource.resolveRepository();
 
         verify(descriptor.getRetryingWebhookHandler()).register(eq(baseUrl), any(), any(), eq(false), eq(false));
     }
@@ -113,6 +123,7 @@ public class BitbucketSCMSourceTest {
         doReturn(true).when(bitbucketSCMSource).isValid();
 
         bitbucketSCMSource.afterSave();
+        bitbucketSCMSource.resolveRepository();
 
         verify(descriptor.getRetryingWebhookHandler()).register(eq(baseUrl), any(), any(), eq(true), eq(false));
     }
@@ -136,10 +147,29 @@ public class BitbucketSCMSourceTest {
         doReturn(true).when(bitbucketSCMSource).isValid();
 
         bitbucketSCMSource.afterSave();
+        bitbucketSCMSource.resolveRepository();
 
         verify(descriptor.getRetryingWebhookHandler()).register(eq(baseUrl), any(), any(), eq(false), eq(true));
     }
 
+    @Test
+    public void testAfterSaveRegistersWebhookOnceRepositoryResolved() {
+        String serverId = "server-id";
+        String baseUrl = "http://example.com";
+        BitbucketSCMSource bitbucketSCMSource = spy(createInstance("valid-credentials", serverId));
+        MultiBranchProject<?, ?> owner = mock(MultiBranchProject.class);
+        bitbucketSCMSource.setOwner(owner);
+        doReturn(emptyMap()).when(owner).getTriggers();
+        BitbucketSCMSource.DescriptorImpl descriptor = setupDescriptor(bitbucketSCMSource, serverId, baseUrl, owner);
+        doReturn(true).when(bitbucketSCMSource).isValid();
+
+        bitbucketSCMSource.afterSave();
+
+        verifyZeroInteractions(descriptor.getRetryingWebhookHandler());
+        bitbucketSCMSource.resolveRepository();
+        verify(descriptor.getRetryingWebhookHandler()).register(eq(baseUrl), any(), any(), eq(false), eq(false));
+    }
+
     @Test
     public void testCredentialAndServerIdSaved() {
         String credentialsId = "valid-credentials";
@@ -172,6 +202,67 @@ public class BitbucketSCMSourceTest {
         assertThat(bitbucketSCMsource.getCredentialsId(), is(equalTo(credentialsId)));
     }
 
+    @Test
+    public void testGettersDoNotResolveRepository() {
+        BitbucketSCMSource bitbucketSCMSource = createInstance("valid-credentials", "serverId1", "proj1", "repo1");
+        BitbucketScmHelper scmHelper = getScmHelper(bitbucketSCMSource);
+
+        assertThat(bitbucketSCMSource.getCredentialsId(), is(equalTo("valid-credentials")));
+        assertThat(bitbucketSCMSource.getServerId(), is(equalTo("serverId1")));
+        assertThat(bitbucketSCMSource.getProjectName(), is(equalTo("proj1")));
+        assertThat(bitbucketSCMSource.getRepositoryName(), is(equalTo("repo1")));
+        assertThat(bitbucketSCMSource.getMirrorName(), is(equalTo("")));
+        assertThat(bitbucketSCMSource.isRepositoryResolutionPending(), is(true));
+        verifyZeroInteractions(scmHelper);
+    }
+
+    @Test
+    public void testRepositoryResolvedOnFirstUse() {
+        BitbucketSCMSource bitbucketSCMSource = createInstance("valid-credentials", "serverId1", "proj1", "repo1");
+        BitbucketScmHelper scmHelper = getScmHelper(bitbucketSCMSource);
+
+        bitbucketSCMSource.getBitbucketSCMRepository();
+
+        assertThat(bitbucketSCMSource.isRepositoryResolutionPending(), is(false));
+        assertThat(bitbucketSCMSource.getRemote(), is(equalTo(httpCloneLink)));
+        verify(scmHelper).resolveRepository("proj1", "repo1");
+    }
+
+    @Test
+    public void testRepositoryResolutionRetriedLaterWhenBitbucketUnavailable() {
+        BitbucketSCMSource bitbucketSCMSource = createInstance("valid-credentials", "serverId1", "proj1", "repo1");
+        BitbucketScmHelper scmHelper = getScmHelper(bitbucketSCMSource);
+        when(scmHelper.resolveRepository("proj1", "repo1"))
+                .thenThrow(new ConnectionFailureException(new IOException("Connection refused")));
+        Runnable action = mock(Runnable.class);
+        bitbucketSCMSource.whenRepositoryResolved(action);
+
+        bitbucketSCMSource.getBitbucketSCMRepository();
+        bitbucketSCMSource.getBitbucketSCMRepository();
+
+        assertThat(bitbucketSCMSource.isRepositoryResolutionPending(), is(true));
+        assertThat(bitbucketSCMSource.getNextResolutionAttempt(), greaterThan(System.currentTimeMillis()));
+        verify(scmHelper).resolveRepository("proj1", "repo1");
+        verifyZeroInteractions(action);
+    }
+
+    @Test
+    public void testRetrieveAbortsWhenRepositoryNotResolved() throws Exception {
+        BitbucketSCMSource bitbucketSCMSource = createInstance("valid-credentials", "serverId1", "proj1", "repo1");
+        BitbucketScmHelper scmHelper = getScmHelper(bitbucketSCMSource);
+        when(scmHelper.resolveRepository("proj1", "repo1"))
+                .thenThrow(new ConnectionFailureException(new IOException("Connection refused")));
+        SCMHeadObserver observer = mock(SCMHeadObserver.class);
+
+        try {
+            bitbucketSCMSource.retrieve(null, observer, null, mock(TaskListener.class));
+            fail("Expected retrieving the branches to be aborted");
+        } catch (AbortException e) {
+            assertThat(e.getMessage(), containsString("proj1/repo1"));
+        }
+        verifyZeroInteractions(observer);
+    }
+
     @Test
     public void testRetrieveApplicableEvent() {
         String credentialsId = "valid-credentials";
@@ -348,7 +439,11 @@ public class BitbucketSCMSourceTest {
                             nullable(BitbucketTokenCredentials.class)))
                             .thenReturn(scmHelper);
                     when(descriptor.getRetryingWebhookHandler()).thenReturn(mock(RetryingWebhookHandler.class));
-                    when(scmHelper.getRepository(nullable(String.class), nullable(String.class))).thenReturn(repository);
+                    doAnswer(invocation -> {
+                        ((Runnable) invocation.getArgument(0)).run();
+                        return null;
+                    }).when(descriptor).resolveInBackground(any(Runnable.class));
+                    when(scmHelper.resolveRepository(nullable(String.class), nullable(String.class))).thenReturn(repository);
                     when(scmHelper.getDefaultBranch(nullable(String.class), nullable(String.class)))
                             .thenReturn(Optional.of(new BitbucketDefaultBranch("ref/head/master", 
                                                                     "master", 
@@ -367,6 +462,10 @@ public class BitbucketSCMSourceTest {
         };
     }
 
+    private BitbucketScmHelper getScmHelper(BitbucketSCMSource bitbucketSCMSource) {
+        return ((BitbucketSCMSource.DescriptorImpl) bitbucketSCMSource.getDescriptor()).getBitbucketScmHelper(null, null);
+    }
+
     private BitbucketSCMSource.DescriptorImpl setupDescriptor(BitbucketSCMSource bitbucketSCMSource,
                                                               String serverId, String baseUrl,
                                                               MultiBranchProject<?, ?> owner) {
@@ -1,20 +1,29 @@
 package com.atlassian.bitbucket.jenkins.internal.scm;
 
+import com.atlassian.bitbucket.jenkins.internal.client.exception.ConnectionFailureException;
 import com.atlassian.bitbucket.jenkins.internal.config.BitbucketServerConfiguration;
 import com.atlassian.bitbucket.jenkins.internal.config.BitbucketTokenCredentials;
 import com.atlassian.bitbucket.jenkins.internal.credentials.GlobalCredentialsProvider;
+import hudson.AbortException;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.scm.SCMDescriptor;
 import org.apache.commons.lang3.StringUtils;
 import org.junit.Test;
 
+import java.io.IOException;
 import java.util.Collections;
 import java.util.Optional;
 
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsEqual.equalTo;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.nullable;
 import static org.mockito.Mockito.*;
@@ -53,6 +62,98 @@ public class BitbucketSCMTest {
         assertThat(bitbucketSCM.getProjectName(), is(equalTo(projectName)));
     }
 
+    @Test
+    public void testRepositoryResolvedOnFirstUse() {
+        BitbucketSCM bitbucketSCM = createInstance("valid-credentials");
+
+        assertThat(bitbucketSCM.isRepositoryResolutionPending(), is(true));
+        bitbucketSCM.getBitbucketSCMRepository();
+        assertThat(bitbucketSCM.isRepositoryResolutionPending(), is(false));
+    }
+
+    @Test
+    public void testGettersDoNotResolveRepository() {
+        BitbucketScmHelper scmHelper = mock(BitbucketScmHelper.class);
+        BitbucketSCM bitbucketSCM =
+                createInstance("valid-credentials", "serverId1", "proj1", "repo1", null, scmHelper);
+
+        assertThat(bitbucketSCM.getProjectName(), is(equalTo("proj1")));
+        assertThat(bitbucketSCM.getRepositoryName(), is(equalTo("repo1")));
+        assertThat(bitbucketSCM.getMirrorName(), is(equalTo("")));
+        assertThat(bitbucketSCM.isRepositoryResolutionPending(), is(true));
+        verifyZeroInteractions(scmHelper);
+    }
+
+    @Test
+    public void testRepositoryResolutionRetriedLaterWhenBitbucketUnavailable() {
+        BitbucketScmHelper scmHelper = mock(BitbucketScmHelper.class);
+        when(scmHelper.resolveRepository("proj1", "repo1"))
+                .thenThrow(new ConnectionFailureException(new IOException("Connection refused")));
+        BitbucketSCM bitbucketSCM =
+                createInstance("valid-credentials", "serverId1", "proj1", "repo1", null, scmHelper);
+        Runnable action = mock(Runnable.class);
+        bitbucketSCM.whenRepositoryResolved(action);
+
+        bitbucketSCM.getBitbucketSCMRepository();
+        bitbucketSCM.getBitbucketSCMRepository();
+
+        assertThat(bitbucketSCM.isRepositoryResolutionPending(), is(true));
+        assertThat(bitbucketSCM.getNextResolutionAttempt(), greaterThan(System.currentTimeMillis()));
+        verify(scmHelper).resolveRepository("proj1", "repo1");
+        verifyZeroInteractions(action);
+    }
+
+    @Test
+    public void testCheckoutAbortsWhenRepositoryNotResolved() throws Exception {
+        BitbucketScmHelper scmHelper = mock(BitbucketScmHelper.class);
+        when(scmHelper.resolveRepository("proj1", "repo1"))
+                .thenThrow(new ConnectionFailureException(new IOException("Connection refused")));
+        BitbucketSCM bitbucketSCM =
+                createInstance("valid-credentials", "serverId1", "proj1", "repo1", null, scmHelper);
+        bitbucketSCM.getBitbucketSCMRepository();
+
+        try {
+            bitbucketSCM.checkout(mock(Run.class), null, null, mock(TaskListener.class), null, null);
+            fail("Expected the checkout to be aborted");
+        } catch (AbortException e) {
+            assertThat(e.getMessage(), containsString("proj1/repo1"));
+        }
+        // Checking out tries again straight away rather than waiting for the retry delay
+        verify(scmHelper, times(2)).resolveRepository("proj1", "repo1");
+    }
+
+    @Test
+    public void testPollingAbortsWhenRepositoryNotResolved() throws Exception {
+        BitbucketScmHelper scmHelper = mock(BitbucketScmHelper.class);
+        when(scmHelper.resolveRepository("proj1", "repo1"))
+                .thenThrow(new ConnectionFailureException(new IOException("Connection refused")));
+        BitbucketSCM bitbucketSCM =
+                createInstance("valid-credentials", "serverId1", "proj1", "repo1", null, scmHelper);
+
+        try {
+            bitbucketSCM.compareRemoteRevisionWith(mock(Job.class), null, null, mock(TaskListener.class), null);
+            fail("Expected polling to be aborted");
+        } catch (AbortException e) {
+            assertThat(e.getMessage(), containsString("proj1/repo1"));
+        }
+        assertThat(bitbucketSCM.isRepositoryResolutionPending(), is(true));
+    }
+
+    @Test
+    public void testWhenRepositoryResolved() {
+        BitbucketSCM bitbucketSCM = createInstance("valid-credentials");
+        Runnable action = mock(Runnable.class);
+        bitbucketSCM.whenRepositoryResolved(action);
+        verifyZeroInteractions(action);
+
+        bitbucketSCM.getBitbucketSCMRepository();
+        verify(action).run();
+
+        Runnable laterAction = mock(Runnable.class);
+        bitbucketSCM.whenRepositoryResolved(laterAction);
+        verify(laterAction).run();
+    }
+
     @Test
     public void testPrivateProjectName() {
         String credentialsId = "valid-credentials";
@@ -63,6 +164,7 @@ public class BitbucketSCMTest {
         BitbucketSCMRepository scmRepository =
                 new BitbucketSCMRepository(credentialsId, null, projectName, projectKey, "", "", serverId, "");
         BitbucketSCM scm = spy(createInstance(credentialsId, serverId));
+        doReturn(false).when(scm).isRepositoryResolutionPending();
         doReturn(scmRepository).when(scm).getBitbucketSCMRepository();
 
         assertEquals(projectKey, scm.getProjectName());
@@ -78,6 +180,7 @@ public class BitbucketSCMTest {
         BitbucketSCMRepository scmRepository =
                 new BitbucketSCMRepository(credentialsId, null, projectName, projectKey, "", "", serverId, "");
         BitbucketSCM scm = spy(createInstance(credentialsId, serverId));
+        doReturn(false).when(scm).isRepositoryResolutionPending();
         doReturn(scmRepository).when(scm).getBitbucketSCMRepository();
 
         assertEquals(projectName, scm.getProjectName());
@@ -101,6 +204,11 @@ public class BitbucketSCMTest {
 
     private BitbucketSCM createInstance(String credentialsId, String serverId, String project, String repo,
                                         String mirror) {
+        return createInstance(credentialsId, serverId, project, repo, mirror, mock(BitbucketScmHelper.class));
+    }
+
+    private BitbucketSCM createInstance(String credentialsId, String serverId, String project, String repo,
+                                        String mirror, BitbucketScmHelper scmHelper) {
         return new BitbucketSCM(
                 "1",
                 Collections.emptyList(),
@@ -125,7 +233,11 @@ public class BitbucketSCMTest {
                 when(descriptor.getBitbucketScmHelper(
                         nullable(String.class),
                         nullable(BitbucketTokenCredentials.class)))
-                        .thenReturn(mock(BitbucketScmHelper.class));
+                        .thenReturn(scmHelper);
+                doAnswer(invocation -> {
+                    invocation.<Runnable>getArgument(0).run();
+                    return null;
+                }).when(descriptor).resolveInBackground(any(Runnable.class));
                 return descriptor;
             }
         };
@@ -33,15 +33,18 @@ import org.kohsuke.stapler.HttpResponses;
 import org.kohsuke.stapler.StaplerResponse;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.MockitoJUnitRunner;
 import org.mockito.stubbing.Answer;
 import wiremock.com.google.common.collect.ImmutableMap;
 
 import javax.servlet.ServletException;
 import java.io.IOException;
+import java.time.Clock;
 import java.util.*;
 import java.util.stream.Collectors;
 
+import static com.atlassian.bitbucket.jenkins.internal.credentials.BitbucketCredentials.ANONYMOUS_CREDENTIALS;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
 import static java.util.Collections.*;
 import static java.util.Optional.of;
@@ -85,6 +88,10 @@ public class BitbucketScmFormFillDelegateTest {
     @Mock
     private JenkinsProvider jenkinsProvider;
     @Mock
+    private BitbucketRepositoryCatalog repositoryCatalog;
+    @Spy
+    private BitbucketSearchResultCache searchResultCache = new BitbucketSearchResultCache(Clock.systemUTC());
+    @Mock
     private Jenkins jenkins;
     @Mock
     private Item parent;
@@ -99,9 +106,9 @@ public class BitbucketScmFormFillDelegateTest {
         when(serverConfigurationValid.getGlobalCredentialsProvider(anyString())).thenReturn(globalCredentialsProvider);
         when(serverConfigurationValid.validate()).thenReturn(FormValidation.ok());
         when(jenkinsToBitbucketCredentials.toBitbucketCredentials(nullable(String.class)))
-                .thenReturn(mock(BitbucketCredentials.class));
+                .thenReturn(ANONYMOUS_CREDENTIALS);
         when(jenkinsToBitbucketCredentials.toBitbucketCredentials(nullable(Credentials.class)))
-                .thenReturn(mock(BitbucketCredentials.class));
+                .thenReturn(ANONYMOUS_CREDENTIALS);
         when(pluginConfiguration.getServerById(SERVER_ID_VALID)).thenReturn(of(serverConfigurationValid));
         doReturn(jenkins).when(jenkinsProvider).get();
 
@@ -2,11 +2,13 @@ package com.atlassian.bitbucket.jenkins.internal.scm;
 
 import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactory;
 import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactoryProvider;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketLastKnownGoodCache;
 import com.atlassian.bitbucket.jenkins.internal.client.BitbucketProjectClient;
 import com.atlassian.bitbucket.jenkins.internal.client.BitbucketRepositoryClient;
 import com.atlassian.bitbucket.jenkins.internal.client.BitbucketSearchClient;
 import com.atlassian.bitbucket.jenkins.internal.client.BitbucketSearchHelper;
 import com.atlassian.bitbucket.jenkins.internal.client.exception.BitbucketClientException;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.ConnectionFailureException;
 import com.atlassian.bitbucket.jenkins.internal.client.exception.NotFoundException;
 import com.atlassian.bitbucket.jenkins.internal.credentials.BitbucketCredentials;
 import com.atlassian.bitbucket.jenkins.internal.credentials.JenkinsToBitbucketCredentials;
@@ -24,14 +26,18 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.io.IOException;
+import java.time.Clock;
 import java.util.Optional;
 
+import static com.atlassian.bitbucket.jenkins.internal.credentials.CredentialUtils.toCacheKey;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
 import static java.util.Collections.singletonList;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -40,6 +46,7 @@ public class BitbucketScmHelperTest {
     @ClassRule
     public static BitbucketMockJenkinsRule bbJenkins =
             new BitbucketMockJenkinsRule("token", wireMockConfig().dynamicPort());
+    private BitbucketClientFactoryProvider bitbucketClientFactoryProvider;
     private BitbucketScmHelper bitbucketScmHelper;
     @Mock
     private BitbucketClientFactory clientFactory;
@@ -62,7 +69,7 @@ public class BitbucketScmHelperTest {
         // Clear the latestProject & latestRepositories cache
         BitbucketSearchHelper.findRepositories("", "", clientFactory);
         BitbucketSearchHelper.findProjects("", clientFactory);
-        BitbucketClientFactoryProvider bitbucketClientFactoryProvider = mock(BitbucketClientFactoryProvider.class);
+        bitbucketClientFactoryProvider = mock(BitbucketClientFactoryProvider.class);
         when(bitbucketClientFactoryProvider.getClient(eq("myBaseUrl"), any(BitbucketCredentials.class)))
                 .thenReturn(clientFactory);
         when(jenkinsToBitbucketCredentials.toBitbucketCredentials(nullable(String.class)))
@@ -92,6 +99,69 @@ public class BitbucketScmHelperTest {
         assertThat(repo.getProject().getName(), equalTo("my project"));
     }
 
+    @Test
+    public void testGetRepositoryIsCached() {
+        BitbucketPage<BitbucketProject> projectPage = new BitbucketPage<>();
+        BitbucketProject expectedProject = new BitbucketProject("myProject", null, "my project");
+        projectPage.setValues(singletonList(expectedProject));
+        when(searchClient.findProjects()).thenReturn(projectPage);
+        BitbucketPage<BitbucketRepository> repositoryPage = new BitbucketPage<>();
+        BitbucketRepository expectedRepo =
+                new BitbucketRepository(0, "my repo", null, expectedProject, "myRepo", RepositoryState.AVAILABLE);
+        repositoryPage.setValues(singletonList(expectedRepo));
+        when(searchClient.findRepositories("my repo")).thenReturn(repositoryPage);
+
+        bitbucketScmHelper.getRepository("my project", "my repo");
+        BitbucketRepository repo = bitbucketScmHelper.getRepository("My Project", "My Repo");
+
+        assertThat(repo, equalTo(expectedRepo));
+        verify(searchClient).findRepositories("my repo");
+    }
+
+    @Test
+    public void testGetRepositoryUsesStaleEntryWhenBitbucketUnavailable() {
+        Clock clock = mock(Clock.class);
+        when(clock.millis()).thenReturn(0L);
+        BitbucketRepositoryMetadataCache cache = new BitbucketRepositoryMetadataCache(clock);
+        BitbucketRepository expectedRepo = new BitbucketRepository(1, "my repo", null,
+                new BitbucketProject("myProject", null, "my project"), "myRepo", RepositoryState.AVAILABLE);
+        cache.put("myBaseUrl", toCacheKey(BitbucketCredentials.ANONYMOUS_CREDENTIALS), "my project", "my repo",
+                expectedRepo);
+        when(clock.millis()).thenReturn(BitbucketRepositoryMetadataCache.CACHE_TTL);
+        when(searchClient.findProjects()).thenThrow(new ConnectionFailureException(new IOException("timeout")));
+        BitbucketScmHelper helper = new BitbucketScmHelper("myBaseUrl", bitbucketClientFactoryProvider,
+                BitbucketCredentials.ANONYMOUS_CREDENTIALS, cache);
+
+        BitbucketRepository repo = helper.getRepository("my project", "my repo");
+
+        assertThat(repo, equalTo(expectedRepo));
+    }
+
+    @Test
+    public void testGetRepositoryUsesLastKnownGoodAfterRestartWhenBitbucketUnavailable() {
+        BitbucketLastKnownGoodCache lastKnownGoodCache = new BitbucketLastKnownGoodCache(Clock.systemUTC());
+        BitbucketPage<BitbucketProject> projectPage = new BitbucketPage<>();
+        BitbucketProject expectedProject = new BitbucketProject("myProject", null, "my project");
+        projectPage.setValues(singletonList(expectedProject));
+        when(searchClient.findProjects()).thenReturn(projectPage);
+        BitbucketPage<BitbucketRepository> repositoryPage = new BitbucketPage<>();
+        BitbucketRepository expectedRepo =
+                new BitbucketRepository(1, "my repo", null, expectedProject, "myRepo", RepositoryState.AVAILABLE);
+        repositoryPage.setValues(singletonList(expectedRepo));
+        when(searchClient.findRepositories("my repo")).thenReturn(repositoryPage);
+        new BitbucketScmHelper("myBaseUrl", bitbucketClientFactoryProvider, BitbucketCredentials.ANONYMOUS_CREDENTIALS,
+                new BitbucketRepositoryMetadataCache(Clock.systemUTC()), lastKnownGoodCache)
+                .getRepository("my project", "my repo");
+        when(searchClient.findProjects()).thenThrow(new ConnectionFailureException(new IOException("timeout")));
+
+        // A new metadata cache, as there would be after a restart
+        BitbucketRepository repo = new BitbucketScmHelper("myBaseUrl", bitbucketClientFactoryProvider,
+                BitbucketCredentials.ANONYMOUS_CREDENTIALS, new BitbucketRepositoryMetadataCache(Clock.systemUTC()),
+                lastKnownGoodCache).getRepository("My Project", "My Repo");
+
+        assertThat(repo, equalTo(expectedRepo));
+    }
+
     @Test
     public void testGetRepositoryWhenProjectBitbucketClientException() {
         when(searchClient.findProjects()).thenThrow(new BitbucketClientException("some error", 500, "an error"));
@@ -102,6 +172,22 @@ public class BitbucketScmHelperTest {
         assertThat(repo.getProject().getName(), equalTo("my project"));
     }
 
+    @Test(expected = ConnectionFailureException.class)
+    public void testResolveRepositoryWhenBitbucketUnavailable() {
+        when(searchClient.findProjects()).thenThrow(new ConnectionFailureException(new IOException("timeout")));
+
+        bitbucketScmHelper.resolveRepository("my project", "my repo");
+    }
+
+    @Test
+    public void testResolveRepositoryWhenProjectNotFound() {
+        when(searchClient.findProjects()).thenThrow(new NotFoundException("my message", "my body"));
+
+        BitbucketRepository repo = bitbucketScmHelper.resolveRepository("my project", "my repo");
+        assertThat(repo.getId(), equalTo(-1));
+        assertThat(repo.getName(), equalTo("my repo"));
+    }
+
     @Test
     public void testGetRepositoryWhenProjectNameIsBlank() {
         BitbucketRepository repo = bitbucketScmHelper.getRepository("", "repo");
@@ -136,6 +222,43 @@ public class BitbucketScmHelperTest {
         assertThat(repo.getProject().getName(), equalTo("my project"));
     }
 
+    @Test
+    public void testGetRepositorySpeculativelyWhenBitbucketClientException() {
+        when(searchClient.findRepositories("my repo")).thenThrow(new BitbucketClientException("", 500, ""));
+
+        BitbucketRepository repo = createSpeculativeHelper().getRepository("my project", "my repo");
+        assertThat(repo.getId(), equalTo(-1));
+        // Bitbucket isn't asked again one request at a time when it has already failed
+        assertThat(repo.getProject().getKey(), equalTo("my project"));
+        verify(searchClient).findRepositories("my repo");
+    }
+
+    @Test
+    public void testGetRepositorySpeculativelyWhenProjectNotFound() {
+        when(projectClient.getProject()).thenThrow(new NotFoundException("my message", "my body"));
+
+        BitbucketRepository repo = createSpeculativeHelper().getRepository("my project", "my repo");
+        assertThat(repo.getId(), equalTo(-1));
+        assertThat(repo.getProject().getKey(), equalTo("my project"));
+        verify(searchClient).findProjects();
+    }
+
+    @Test
+    public void testGetRepositorySpeculativelyWhenRepositoryNotFound() {
+        BitbucketPage<BitbucketProject> projectPage = new BitbucketPage<>();
+        BitbucketProject expectedProject = new BitbucketProject("myProject", null, "my project");
+        projectPage.setValues(singletonList(expectedProject));
+        when(searchClient.findProjects()).thenReturn(projectPage);
+
+        BitbucketRepository repo = createSpeculativeHelper().getRepository("my project", "my repo");
+        assertThat(repo.getId(), equalTo(-1));
+        assertThat(repo.getSlug(), equalTo("my repo"));
+        assertThat(repo.getProject().getKey(), equalTo("myProject"));
+        // The speculative lookup already tried every way of finding the repository, so it isn't looked up again
+        verify(searchClient).findProjects();
+        verify(searchClient).findRepositories("my repo");
+    }
+
     @Test
     public void testGetRepositoryWhenRepositoryNameIsBlank() {
         BitbucketRepository repo = bitbucketScmHelper.getRepository("project", "");
@@ -184,6 +307,33 @@ public class BitbucketScmHelperTest {
         assertThat(branch.isDefault(), equalTo(true));
     }
     
+    @Test
+    public void testGetDefaultBranchUsesLastKnownGoodWhenBitbucketUnavailable() {
+        Clock clock = mock(Clock.class);
+        when(clock.millis()).thenReturn(0L);
+        BitbucketScmHelper helper = new BitbucketScmHelper("myBaseUrl", bitbucketClientFactoryProvider,
+                BitbucketCredentials.ANONYMOUS_CREDENTIALS, new BitbucketRepositoryMetadataCache(clock),
+                new BitbucketLastKnownGoodCache(clock));
+        BitbucketProject expectedProject = new BitbucketProject("myProject", null, "my project");
+        BitbucketPage<BitbucketRepository> repositoryPage = new BitbucketPage<>();
+        BitbucketRepository expectedRepo =
+                new BitbucketRepository(1, "my repo", null, expectedProject, "myRepo", RepositoryState.AVAILABLE);
+        repositoryPage.setValues(singletonList(expectedRepo));
+        when(searchClient.findRepositories("my repo")).thenReturn(repositoryPage);
+        BitbucketDefaultBranch expectedBranch = new BitbucketDefaultBranch("refs/heads/master", "master",
+                BitbucketRefType.BRANCH, "1c4c3f92b4f8078e04b7f5a64ce7476a2d4276e0",
+                "1c4c3f92b4f8078e04b7f5a64ce7476a2d4276e0", true);
+        when(repositoryClient.getDefaultBranch())
+                .thenReturn(expectedBranch)
+                .thenThrow(new ConnectionFailureException(new IOException("timeout")));
+        helper.getDefaultBranch("my project", "my repo");
+        when(clock.millis()).thenReturn(BitbucketLastKnownGoodCache.REVALIDATE_AFTER);
+
+        Optional<BitbucketDefaultBranch> branch = helper.getDefaultBranch("my project", "my repo");
+
+        assertThat(branch, equalTo(Optional.of(expectedBranch)));
+    }
+
     @Test
     public void testGetDefaultBranchWhenProjectBitbucketClientException() {
         when(searchClient.findProjects()).thenThrow(new BitbucketClientException("some error", 500, "an error"));
@@ -235,4 +385,10 @@ public class BitbucketScmHelperTest {
         Optional<BitbucketDefaultBranch> branch = bitbucketScmHelper.getDefaultBranch("my project", "my repo");
         assertThat(branch, equalTo(Optional.empty()));
     }
+
+    private BitbucketScmHelper createSpeculativeHelper() {
+        return new BitbucketScmHelper("myBaseUrl", bitbucketClientFactoryProvider,
+                BitbucketCredentials.ANONYMOUS_CREDENTIALS, new BitbucketRepositoryMetadataCache(Clock.systemUTC()),
+                null, true);
+    }
 }
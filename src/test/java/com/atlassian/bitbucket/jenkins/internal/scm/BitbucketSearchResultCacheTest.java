@@ -0,0 +1,140 @@
+package com.atlassian.bitbucket.jenkins.internal.scm;
+
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactory;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketSearchClient;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.BitbucketClientException;
+import com.atlassian.bitbucket.jenkins.internal.credentials.BitbucketCredentials;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketPage;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketProject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.time.Clock;
+import java.util.Collection;
+
+import static com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSearchResultCache.CACHE_TTL;
+import static java.util.Arrays.asList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BitbucketSearchResultCacheTest {
+
+    private static final String BASE_URL = "http://bitbucket.example.com";
+    private static final BitbucketCredentials CREDENTIALS = () -> "Bearer token";
+    private static final BitbucketCredentials OTHER_CREDENTIALS = () -> "Bearer other-token";
+
+    private BitbucketSearchResultCache cache;
+    @Mock
+    private Clock clock;
+    @Mock
+    private BitbucketClientFactory clientFactory;
+    private BitbucketProject projectOne;
+    private BitbucketProject projectTwo;
+    @Mock
+    private BitbucketSearchClient searchClient;
+
+    @Before
+    public void setup() {
+        when(clock.millis()).thenReturn(0L);
+        when(clientFactory.getSearchClient(anyString())).thenReturn(searchClient);
+        cache = new BitbucketSearchResultCache(clock);
+        projectOne = new BitbucketProject("ONE", null, "Project One");
+        projectTwo = new BitbucketProject("TWO", null, "Project Two");
+    }
+
+    @Test
+    public void testFindProjectsIsCached() {
+        when(searchClient.findProjects()).thenReturn(page(false, projectOne, projectTwo));
+
+        cache.findProjects(BASE_URL, CREDENTIALS, "project", clientFactory);
+        Collection<BitbucketProject> projects = cache.findProjects(BASE_URL, CREDENTIALS, "PROJECT", clientFactory);
+
+        assertThat(projects, contains(projectOne, projectTwo));
+        verify(searchClient).findProjects();
+    }
+
+    @Test
+    public void testFindProjectsExpires() {
+        when(searchClient.findProjects()).thenReturn(page(false, projectOne));
+
+        cache.findProjects(BASE_URL, CREDENTIALS, "project", clientFactory);
+        when(clock.millis()).thenReturn(CACHE_TTL);
+        cache.findProjects(BASE_URL, CREDENTIALS, "project", clientFactory);
+
+        verify(searchClient, times(2)).findProjects();
+    }
+
+    @Test
+    public void testFindProjectsFiltersCompleteShorterQuery() {
+        when(searchClient.findProjects()).thenReturn(page(true, projectOne, projectTwo));
+
+        cache.findProjects(BASE_URL, CREDENTIALS, "project", clientFactory);
+        Collection<BitbucketProject> projects =
+                cache.findProjects(BASE_URL, CREDENTIALS, "project t", clientFactory);
+
+        assertThat(projects, contains(projectTwo));
+        verify(searchClient).findProjects();
+    }
+
+    @Test
+    public void testFindProjectsDoesNotFilterIncompleteShorterQuery() {
+        when(searchClient.findProjects()).thenReturn(page(false, projectOne, projectTwo), page(true, projectTwo));
+
+        cache.findProjects(BASE_URL, CREDENTIALS, "project", clientFactory);
+        cache.findProjects(BASE_URL, CREDENTIALS, "project t", clientFactory);
+
+        verify(searchClient, times(2)).findProjects();
+    }
+
+    @Test
+    public void testFindProjectsDifferentCredentials() {
+        when(searchClient.findProjects()).thenReturn(page(true, projectOne));
+
+        cache.findProjects(BASE_URL, CREDENTIALS, "project", clientFactory);
+        cache.findProjects(BASE_URL, OTHER_CREDENTIALS, "project", clientFactory);
+
+        verify(searchClient, times(2)).findProjects();
+    }
+
+    @Test
+    public void testFindProjectsSameCredentialsSharedAcrossIds() {
+        // Credentials with different IDs, or from different stores, that send the same secret see the same results
+        when(searchClient.findProjects()).thenReturn(page(true, projectOne));
+
+        cache.findProjects(BASE_URL, CREDENTIALS, "project", clientFactory);
+        cache.findProjects(BASE_URL, () -> "Bearer token", "project", clientFactory);
+
+        verify(searchClient).findProjects();
+    }
+
+    @Test
+    public void testFindProjectsFailureIsNotCached() {
+        when(searchClient.findProjects())
+                .thenThrow(new BitbucketClientException("error", 500, null))
+                .thenReturn(page(true, projectOne));
+
+        try {
+            cache.findProjects(BASE_URL, CREDENTIALS, "project", clientFactory);
+            fail("Expected the search to fail");
+        } catch (BitbucketClientException e) {
+            // expected
+        }
+        Collection<BitbucketProject> projects = cache.findProjects(BASE_URL, CREDENTIALS, "project", clientFactory);
+
+        assertThat(projects, contains(projectOne));
+    }
+
+    private static BitbucketPage<BitbucketProject> page(boolean lastPage, BitbucketProject... projects) {
+        BitbucketPage<BitbucketProject> page = new BitbucketPage<>();
+        page.setValues(asList(projects));
+        page.setLastPage(lastPage);
+        return page;
+    }
+}
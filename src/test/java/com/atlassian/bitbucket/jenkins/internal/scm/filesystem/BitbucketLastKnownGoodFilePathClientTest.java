@@ -0,0 +1,83 @@
+package com.atlassian.bitbucket.jenkins.internal.scm.filesystem;
+
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketFilePathClient;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketLastKnownGoodCache;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.ConnectionFailureException;
+import hudson.model.TaskListener;
+import jenkins.scm.api.SCMFile;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.Clock;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class BitbucketLastKnownGoodFilePathClientTest {
+
+    private static final String BASE_URL = "http://bitbucket.example.com";
+
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    private BitbucketLastKnownGoodCache cache;
+    @Mock
+    private BitbucketFilePathClient delegate;
+    private BitbucketSCMFile jenkinsfile;
+    @Mock
+    private TaskListener listener;
+
+    @Before
+    public void setup() {
+        cache = new BitbucketLastKnownGoodCache(Clock.systemUTC());
+        jenkinsfile = new BitbucketSCMFile(new BitbucketSCMFile(delegate, "refs/heads/master"), "Jenkinsfile",
+                SCMFile.Type.REGULAR_FILE);
+        when(listener.getLogger()).thenReturn(new PrintStream(log, true));
+    }
+
+    @Test
+    public void testUsesContentsAtSameCommitWhenBitbucketUnavailable() {
+        when(delegate.getFileContent(jenkinsfile)).thenReturn("pipeline {}")
+                .thenThrow(new ConnectionFailureException(new IOException("Connection refused")));
+        BitbucketLastKnownGoodFilePathClient client = createClient("abc123");
+
+        assertThat(client.getFileContent(jenkinsfile), equalTo("pipeline {}"));
+        assertThat(client.getFileContent(jenkinsfile), equalTo("pipeline {}"));
+        assertThat(log.toString(), containsString("Bitbucket Server is unavailable"));
+        assertThat(log.toString(), not(containsString("out of date")));
+    }
+
+    @Test(expected = ConnectionFailureException.class)
+    public void testDoesNotUseContentsAtOtherCommit() {
+        when(delegate.getFileContent(jenkinsfile)).thenReturn("pipeline {}")
+                .thenThrow(new ConnectionFailureException(new IOException("Connection refused")));
+        createClient("abc123").getFileContent(jenkinsfile);
+
+        createClient("def456").getFileContent(jenkinsfile);
+    }
+
+    @Test
+    public void testWarnsContentsMayBeOutOfDateWhenCommitUnknown() {
+        when(delegate.getFileContent(jenkinsfile)).thenReturn("pipeline {}")
+                .thenThrow(new ConnectionFailureException(new IOException("Connection refused")));
+        BitbucketLastKnownGoodFilePathClient client = createClient(null);
+
+        client.getFileContent(jenkinsfile);
+
+        assertThat(client.getFileContent(jenkinsfile), equalTo("pipeline {}"));
+        assertThat(log.toString(), containsString("may be out of date"));
+    }
+
+    private BitbucketLastKnownGoodFilePathClient createClient(String commitId) {
+        return new BitbucketLastKnownGoodFilePathClient(delegate, cache, BASE_URL, "credentials-key", "PROJ", "repo",
+                commitId, () -> listener);
+    }
+}
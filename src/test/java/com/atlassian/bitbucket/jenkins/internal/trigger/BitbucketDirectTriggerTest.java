@@ -0,0 +1,176 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCM;
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCMRepository;
+import com.atlassian.bitbucket.jenkins.internal.status.BitbucketRevisionAction;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.plugins.git.BranchSpec;
+import hudson.plugins.git.extensions.impl.PathRestriction;
+import jenkins.triggers.SCMTriggerItem;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class BitbucketDirectTriggerTest {
+
+    private static final String NEW_COMMIT = "2222222222222222222222222222222222222222";
+    private static final String OLD_COMMIT = "1111111111111111111111111111111111111111";
+
+    private final BitbucketDirectTrigger directTrigger = new BitbucketDirectTrigger(true);
+    private final BitbucketSCMRepository repository = new BitbucketSCMRepository("credentials", null, "Project",
+            "PROJ", "Repository", "repo", "server-id", "");
+    @Mock
+    private FreeStyleBuild build;
+    @Mock
+    private FreeStyleProject job;
+    @Mock
+    private BitbucketSCM scm;
+    @Mock
+    private SCMTriggerItem triggerItem;
+
+    @Before
+    public void setup() {
+        doReturn(singletonList(scm)).when(triggerItem).getSCMs();
+        when(scm.getRepositories()).thenReturn(singletonList(repository));
+        when(scm.getBranches()).thenReturn(singletonList(new BranchSpec("*/master")));
+        when(scm.getExtensions()).thenReturn(emptyList());
+        when(build.getActions(BitbucketRevisionAction.class))
+                .thenReturn(singletonList(new BitbucketRevisionAction(repository, "master", OLD_COMMIT)));
+        doReturn(build).when(job).getLastBuild();
+    }
+
+    @Test
+    public void testDecideBuildsNewCommit() {
+        BitbucketDirectTrigger.Decision decision = directTrigger.decide(job, triggerItem, push("master", NEW_COMMIT));
+
+        assertThat(decision, notNullValue());
+        assertThat(decision.isBuild(), is(true));
+        assertThat(decision.getBranch(), equalTo("master"));
+        assertThat(decision.getRemoteBranch(), equalTo("repo/master"));
+        assertThat(decision.getCommit(), equalTo(NEW_COMMIT));
+        assertThat(directTrigger.getBuilt(), equalTo(1L));
+    }
+
+    @Test
+    public void testDecideBuildsNeverBuiltJob() {
+        doReturn(null).when(job).getLastBuild();
+
+        BitbucketDirectTrigger.Decision decision = directTrigger.decide(job, triggerItem, push("master", NEW_COMMIT));
+
+        assertThat(decision.isBuild(), is(true));
+    }
+
+    @Test
+    public void testDecideSkipsBuiltCommit() {
+        BitbucketDirectTrigger.Decision decision = directTrigger.decide(job, triggerItem, push("master", OLD_COMMIT));
+
+        assertThat(decision.isBuild(), is(false));
+        assertThat(directTrigger.getSkipped(), equalTo(1L));
+    }
+
+    @Test
+    public void testDecideSkipsUnmatchedBranch() {
+        BitbucketDirectTrigger.Decision decision =
+                directTrigger.decide(job, triggerItem, push("feature/login", NEW_COMMIT));
+
+        assertThat(decision.isBuild(), is(false));
+    }
+
+    @Test
+    public void testDecideMatchesFullRefName() {
+        when(scm.getBranches()).thenReturn(singletonList(new BranchSpec("refs/heads/feature/*")));
+
+        BitbucketDirectTrigger.Decision decision =
+                directTrigger.decide(job, triggerItem, push("feature/login", NEW_COMMIT));
+
+        assertThat(decision.isBuild(), is(true));
+    }
+
+    @Test
+    public void testDecidePollsWhenDisabled() {
+        assertThat(new BitbucketDirectTrigger(false).decide(job, triggerItem, push("master", NEW_COMMIT)),
+                nullValue());
+    }
+
+    @Test
+    public void testDecidePollsForPullRequests() {
+        BitbucketWebhookTriggerRequest request = BitbucketWebhookTriggerRequest.builder()
+                .pullRequest(true)
+                .refId("refs/heads/master")
+                .commit(NEW_COMMIT)
+                .build();
+
+        assertThat(directTrigger.decide(job, triggerItem, request), nullValue());
+        assertThat(directTrigger.getPolled(), equalTo(1L));
+    }
+
+    @Test
+    public void testDecidePollsForSeveralRefsOrTags() {
+        BitbucketWebhookTriggerRequest severalRefs = BitbucketWebhookTriggerRequest.builder()
+                .refId("refs/heads/master,refs/heads/release")
+                .commit(NEW_COMMIT)
+                .build();
+        BitbucketWebhookTriggerRequest tag = BitbucketWebhookTriggerRequest.builder()
+                .refId("refs/tags/v1.0")
+                .commit(NEW_COMMIT)
+                .build();
+
+        assertThat(directTrigger.decide(job, triggerItem, severalRefs), nullValue());
+        assertThat(directTrigger.decide(job, triggerItem, tag), nullValue());
+        assertThat(directTrigger.decide(job, triggerItem, BitbucketWebhookTriggerRequest.builder().build()),
+                nullValue());
+    }
+
+    @Test
+    public void testDecidePollsForSeveralRepositories() {
+        doReturn(asList(scm, mock(BitbucketSCM.class))).when(triggerItem).getSCMs();
+
+        assertThat(directTrigger.decide(job, triggerItem, push("master", NEW_COMMIT)), nullValue());
+    }
+
+    @Test
+    public void testDecidePollsForMirrors() {
+        when(scm.getMirrorName()).thenReturn("mirror");
+
+        assertThat(directTrigger.decide(job, triggerItem, push("master", NEW_COMMIT)), nullValue());
+        assertThat(directTrigger.getPolled(), equalTo(1L));
+    }
+
+    @Test
+    public void testDecidePollsForAbbreviatedCommit() {
+        assertThat(directTrigger.decide(job, triggerItem, push("master", "2222222")), nullValue());
+        assertThat(directTrigger.getPolled(), equalTo(1L));
+    }
+
+    @Test
+    public void testDecidePollsForBranchVariables() {
+        when(scm.getBranches()).thenReturn(singletonList(new BranchSpec("${BRANCH}")));
+
+        assertThat(directTrigger.decide(job, triggerItem, push("master", NEW_COMMIT)), nullValue());
+    }
+
+    @Test
+    public void testDecidePollsForPathRestrictions() {
+        when(scm.getExtensions()).thenReturn(singletonList(new PathRestriction("src/.*", null)));
+
+        assertThat(directTrigger.decide(job, triggerItem, push("master", NEW_COMMIT)), nullValue());
+    }
+
+    private static BitbucketWebhookTriggerRequest push(String branch, String commit) {
+        return BitbucketWebhookTriggerRequest.builder()
+                .refId("refs/heads/" + branch)
+                .commit(commit)
+                .build();
+    }
+}
@@ -0,0 +1,134 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketNamedLink;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketProject;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRepository;
+import com.atlassian.bitbucket.jenkins.internal.model.RepositoryState;
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCM;
+import hudson.model.FreeStyleProject;
+import hudson.plugins.git.GitSCM;
+import jenkins.model.ParameterizedJobMixIn.ParameterizedJob;
+import org.hamcrest.Matchers;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.mockito.Mockito.*;
+
+public class BitbucketJobIndexTest {
+
+    private static final String CLONE_URL = "http://bitbucket.example.com/scm/proj/repo.git";
+
+    @ClassRule
+    public static JenkinsRule jenkins = new JenkinsRule();
+    private BitbucketJobIndex jobIndex;
+
+    @Before
+    public void setup() {
+        jobIndex = jenkins.jenkins.getInjector().getInstance(BitbucketJobIndex.class);
+    }
+
+    @Test
+    public void testGetJobs() throws Exception {
+        FreeStyleProject project = createProject("get-jobs", CLONE_URL);
+        FreeStyleProject otherProject =
+                createProject("get-jobs-other", "http://bitbucket.example.com/scm/proj/other.git");
+
+        assertThat(jobIndex.getJobs(repository(CLONE_URL.toUpperCase())),
+                Matchers.<ParameterizedJob<?, ?>>contains(project));
+
+        project.delete();
+        otherProject.delete();
+    }
+
+    @Test
+    public void testGetJobsMatchesCloneUrlsAsTheConsumerDoes() throws Exception {
+        FreeStyleProject project = createProject("normalised", CLONE_URL);
+
+        assertThat(jobIndex.getJobs(repository("http://admin@bitbucket.example.com/scm/proj/repo")),
+                Matchers.<ParameterizedJob<?, ?>>contains(project));
+
+        project.delete();
+    }
+
+    @Test
+    public void testGetJobsWhenRepositoryResolutionPending() throws Exception {
+        FreeStyleProject project = createProject("pending", "http://bitbucket.example.com/scm/proj/other.git");
+        BitbucketSCM scm = mock(BitbucketSCM.class);
+        when(scm.isRepositoryResolutionPending()).thenReturn(true);
+        FreeStyleProject pending = mock(FreeStyleProject.class);
+        when(pending.getFullName()).thenReturn(project.getFullName());
+        doReturn(project.getTriggers()).when(pending).getTriggers();
+        doReturn(singletonList(scm)).when(pending).getSCMs();
+
+        jobIndex.update(pending);
+
+        // Not indexed by the repository it is for until that is known, so it is returned for every repository
+        assertThat(jobIndex.getJobs(repository(CLONE_URL)), Matchers.<ParameterizedJob<?, ?>>contains(project));
+        verify(scm, never()).getRepositories();
+        project.delete();
+    }
+
+    @Test
+    public void testGetJobsWithoutTrigger() throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject("without-trigger");
+        project.setScm(new GitSCM(CLONE_URL));
+
+        assertThat(jobIndex.getJobs(repository(CLONE_URL)), empty());
+
+        project.delete();
+    }
+
+    @Test
+    public void testGetJobsAfterDelete() throws Exception {
+        FreeStyleProject project = createProject("deleted", CLONE_URL);
+
+        project.delete();
+
+        assertThat(jobIndex.getJobs(repository(CLONE_URL)), empty());
+    }
+
+    @Test
+    public void testGetJobsAfterRename() throws Exception {
+        FreeStyleProject project = createProject("renamed", CLONE_URL);
+
+        project.renameTo("renamed-again");
+
+        assertThat(jobIndex.getJobs(repository(CLONE_URL)),
+                Matchers.<ParameterizedJob<?, ?>>contains(project));
+        project.delete();
+    }
+
+    @Test
+    public void testGetJobsAfterScmChange() throws Exception {
+        FreeStyleProject project = createProject("scm-change", CLONE_URL);
+
+        project.setScm(new GitSCM("http://bitbucket.example.com/scm/proj/other.git"));
+
+        assertThat(jobIndex.getJobs(repository(CLONE_URL)), empty());
+        project.delete();
+    }
+
+    private FreeStyleProject createProject(String name, String cloneUrl) throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject(name);
+        project.setScm(new GitSCM(cloneUrl));
+        project.addTrigger(new BitbucketWebhookTriggerImpl(false, true));
+        return project;
+    }
+
+    private static BitbucketRepository repository(String cloneUrl) {
+        Map<String, List<BitbucketNamedLink>> links =
+                singletonMap("clone", singletonList(new BitbucketNamedLink("http", cloneUrl)));
+        BitbucketProject project = new BitbucketProject("PROJ", emptyMap(), "Project");
+        return new BitbucketRepository(1, "repo", links, project, "repo", RepositoryState.AVAILABLE);
+    }
+}
@@ -0,0 +1,227 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactory;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactoryProvider;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketProjectClient;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketRepositoryClient;
+import com.atlassian.bitbucket.jenkins.internal.client.exception.BitbucketClientException;
+import com.atlassian.bitbucket.jenkins.internal.config.BitbucketPluginConfiguration;
+import com.atlassian.bitbucket.jenkins.internal.config.BitbucketServerConfiguration;
+import com.atlassian.bitbucket.jenkins.internal.credentials.BitbucketCredentials;
+import com.atlassian.bitbucket.jenkins.internal.credentials.JenkinsToBitbucketCredentials;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketDefaultBranch;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRefType;
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCM;
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCMRepository;
+import com.atlassian.bitbucket.jenkins.internal.status.BitbucketRevisionAction;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.plugins.git.Revision;
+import hudson.plugins.git.util.Build;
+import hudson.plugins.git.util.BuildData;
+import hudson.triggers.TriggerDescriptor;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.*;
+import java.util.stream.Stream;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class BitbucketStartupReconcilerTest {
+
+    private static final String BASE_URL = "http://bitbucket.example.com";
+    private static final BitbucketCredentials CREDENTIALS = () -> "Bearer token";
+    private static final String NEW_COMMIT = "2222222222222222222222222222222222222222";
+    private static final String OLD_COMMIT = "1111111111111111111111111111111111111111";
+    private static final String SERVER_ID = "server-id";
+
+    private final BitbucketSCMRepository repository = new BitbucketSCMRepository("credentials", null, "Project",
+            "PROJ", "Repository", "repo", SERVER_ID, "");
+    @Mock
+    private BitbucketClientFactoryProvider clientFactoryProvider;
+    @Mock
+    private BitbucketClientFactory clientFactory;
+    @Mock
+    private JenkinsToBitbucketCredentials jenkinsToBitbucketCredentials;
+    @Mock
+    private BitbucketPluginConfiguration pluginConfiguration;
+    @Mock
+    private BitbucketProjectClient projectClient;
+    @InjectMocks
+    private BitbucketStartupReconciler reconciler;
+    @Mock
+    private BitbucketRepositoryClient repositoryClient;
+    @Mock
+    private BitbucketServerConfiguration serverConfiguration;
+
+    @Before
+    public void setup() {
+        when(pluginConfiguration.getServerById(SERVER_ID)).thenReturn(Optional.of(serverConfiguration));
+        when(serverConfiguration.getBaseUrl()).thenReturn(BASE_URL);
+        when(jenkinsToBitbucketCredentials.toBitbucketCredentials(anyString(), any())).thenReturn(CREDENTIALS);
+        when(clientFactoryProvider.getClient(eq(BASE_URL), any())).thenReturn(clientFactory);
+        when(clientFactory.getProjectClient("PROJ")).thenReturn(projectClient);
+        when(projectClient.getRepositoryClient("repo")).thenReturn(repositoryClient);
+        when(repositoryClient.getBranches()).thenAnswer(invocation ->
+                Stream.of(branch("master", NEW_COMMIT), branch("feature/login", OLD_COMMIT)));
+    }
+
+    @Test
+    public void testReconcileTriggersJobThatMissedChanges() {
+        BitbucketWebhookTriggerImpl trigger = mock(BitbucketWebhookTriggerImpl.class);
+        FreeStyleProject job = job("stale", trigger, revisionAction("master", OLD_COMMIT));
+
+        assertThat(reconciler.reconcile(singletonList(job), 1, 0), equalTo(1));
+
+        ArgumentCaptor<BitbucketWebhookTriggerRequest> request =
+                ArgumentCaptor.forClass(BitbucketWebhookTriggerRequest.class);
+        verify(trigger).trigger(request.capture());
+        assertThat(request.getValue().getRefId(), equalTo(Optional.of("refs/heads/master")));
+        assertThat(request.getValue().getCommit(), equalTo(Optional.of(NEW_COMMIT)));
+        assertThat(request.getValue().getPriority(), equalTo(BitbucketTriggerPriority.LOW));
+    }
+
+    @Test
+    public void testReconcileSkipsUpToDateAndNeverBuiltJobs() {
+        BitbucketWebhookTriggerImpl upToDateTrigger = mock(BitbucketWebhookTriggerImpl.class);
+        BitbucketWebhookTriggerImpl neverBuiltTrigger = mock(BitbucketWebhookTriggerImpl.class);
+        FreeStyleProject upToDate = job("up-to-date", upToDateTrigger, revisionAction("feature/login", OLD_COMMIT));
+        FreeStyleProject neverBuilt = job("never-built", neverBuiltTrigger, null);
+
+        assertThat(reconciler.reconcile(asList(upToDate, neverBuilt), 2, 0), equalTo(0));
+
+        verifyZeroInteractions(upToDateTrigger, neverBuiltTrigger);
+    }
+
+    @Test
+    public void testReconcileFetchesBranchesOncePerRepository() {
+        BitbucketWebhookTriggerImpl firstTrigger = mock(BitbucketWebhookTriggerImpl.class);
+        BitbucketWebhookTriggerImpl secondTrigger = mock(BitbucketWebhookTriggerImpl.class);
+        FreeStyleProject first = job("first", firstTrigger, revisionAction("master", OLD_COMMIT));
+        FreeStyleProject second = job("second", secondTrigger, revisionAction("master", OLD_COMMIT));
+
+        assertThat(reconciler.reconcile(asList(first, second), 2, 0), equalTo(2));
+
+        verify(repositoryClient).getBranches();
+        verify(firstTrigger).trigger(any());
+        verify(secondTrigger).trigger(any());
+    }
+
+    @Test
+    public void testReconcileFetchesBranchesWithEachJobsCredentials() {
+        BitbucketCredentials otherCredentials = () -> "Bearer other-token";
+        BitbucketWebhookTriggerImpl firstTrigger = mock(BitbucketWebhookTriggerImpl.class);
+        BitbucketWebhookTriggerImpl secondTrigger = mock(BitbucketWebhookTriggerImpl.class);
+        FreeStyleProject first = job("first", firstTrigger, revisionAction("master", OLD_COMMIT));
+        FreeStyleProject second = job("second", secondTrigger, revisionAction("master", OLD_COMMIT));
+        when(jenkinsToBitbucketCredentials.toBitbucketCredentials("credentials", second)).thenReturn(otherCredentials);
+
+        assertThat(reconciler.reconcile(asList(first, second), 2, 0), equalTo(2));
+
+        verify(clientFactoryProvider).getClient(BASE_URL, CREDENTIALS);
+        verify(clientFactoryProvider).getClient(BASE_URL, otherCredentials);
+        verify(repositoryClient, times(2)).getBranches();
+    }
+
+    @Test
+    public void testReconcileWhenBranchesCannotBeFetched() {
+        when(repositoryClient.getBranches()).thenThrow(new BitbucketClientException("Unavailable", 503, null));
+        BitbucketWebhookTriggerImpl trigger = mock(BitbucketWebhookTriggerImpl.class);
+        FreeStyleProject job = job("stale", trigger, revisionAction("master", OLD_COMMIT));
+
+        assertThat(reconciler.reconcile(singletonList(job), 1, 0), equalTo(0));
+
+        verifyZeroInteractions(trigger);
+    }
+
+    @Test
+    public void testReconcileSkipsJobsWithoutTrigger() {
+        FreeStyleProject job = job("no-trigger", null, revisionAction("master", OLD_COMMIT));
+
+        assertThat(reconciler.reconcile(singletonList(job), 1, 0), equalTo(0));
+
+        verifyZeroInteractions(clientFactoryProvider);
+    }
+
+    @Test
+    public void testFindMissedChangeIgnoresDeletedBranches() {
+        Map<String, String> heads = singletonMap("master", OLD_COMMIT);
+
+        assertThat(BitbucketStartupReconciler.findMissedChange(singletonMap("deleted", OLD_COMMIT), heads),
+                equalTo(Optional.empty()));
+        assertThat(BitbucketStartupReconciler.findMissedChange(singletonMap("master", OLD_COMMIT), heads),
+                equalTo(Optional.empty()));
+        assertThat(BitbucketStartupReconciler.findMissedChange(singletonMap("master", NEW_COMMIT), heads),
+                equalTo(Optional.of("master")));
+    }
+
+    @Test
+    public void testGetLastBuiltRevisionsFromGitBuildData() {
+        FreeStyleBuild build = mock(FreeStyleBuild.class);
+        BuildData buildData = mock(BuildData.class);
+        Build gitBuild = mock(Build.class);
+        Revision revision = mock(Revision.class);
+        when(revision.getSha1String()).thenReturn(OLD_COMMIT);
+        when(gitBuild.getMarked()).thenReturn(revision);
+        when(buildData.getBuildsByBranchName()).thenReturn(singletonMap("origin/feature/login", gitBuild));
+        when(build.getActions(BitbucketRevisionAction.class)).thenReturn(emptyList());
+        when(build.getActions(BuildData.class)).thenReturn(singletonList(buildData));
+
+        assertThat(BitbucketStartupReconciler.getLastBuiltRevisions(build, repository),
+                equalTo(singletonMap("feature/login", OLD_COMMIT)));
+    }
+
+    @Test
+    public void testGetLastBuiltRevisionsIgnoresOtherRepositories() {
+        FreeStyleBuild build = mock(FreeStyleBuild.class);
+        BitbucketSCMRepository otherRepository = new BitbucketSCMRepository("credentials", null, "Project", "PROJ",
+                "Other", "other", SERVER_ID, "");
+        when(build.getActions(BitbucketRevisionAction.class)).thenReturn(asList(
+                new BitbucketRevisionAction(otherRepository, "master", NEW_COMMIT),
+                revisionAction("master", OLD_COMMIT)));
+
+        assertThat(BitbucketStartupReconciler.getLastBuiltRevisions(build, repository),
+                equalTo(singletonMap("master", OLD_COMMIT)));
+    }
+
+    private static BitbucketDefaultBranch branch(String name, String commit) {
+        return new BitbucketDefaultBranch("refs/heads/" + name, name, BitbucketRefType.BRANCH, commit, commit,
+                "master".equals(name));
+    }
+
+    private FreeStyleProject job(String name, BitbucketWebhookTriggerImpl trigger,
+                                 BitbucketRevisionAction revisionAction) {
+        FreeStyleProject job = mock(FreeStyleProject.class);
+        when(job.getFullName()).thenReturn(name);
+        doReturn(trigger == null ? Collections.emptyMap() : singletonMap(mock(TriggerDescriptor.class), trigger))
+                .when(job).getTriggers();
+        BitbucketSCM scm = mock(BitbucketSCM.class);
+        when(scm.getRepositories()).thenReturn(singletonList(repository));
+        doReturn(singletonList(scm)).when(job).getSCMs();
+        if (revisionAction != null) {
+            FreeStyleBuild build = mock(FreeStyleBuild.class);
+            when(build.getActions(BitbucketRevisionAction.class)).thenReturn(singletonList(revisionAction));
+            doReturn(build).when(job).getLastBuild();
+        }
+        return job;
+    }
+
+    private BitbucketRevisionAction revisionAction(String branch, String commit) {
+        return new BitbucketRevisionAction(repository, branch, commit);
+    }
+}
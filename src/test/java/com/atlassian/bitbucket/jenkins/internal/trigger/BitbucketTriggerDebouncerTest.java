@@ -0,0 +1,116 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BitbucketTriggerDebouncerTest {
+
+    private static final long WINDOW = 5000;
+
+    private BitbucketTriggerDebouncer debouncer;
+    @Mock
+    private ScheduledExecutorService executor;
+    private List<List<BitbucketWebhookTriggerRequest>> triggered;
+
+    @Before
+    public void setup() {
+        debouncer = new BitbucketTriggerDebouncer(WINDOW, executor);
+        triggered = new ArrayList<>();
+    }
+
+    @Test
+    public void testDebounceCombinesRequestsForSameJobAndRef() {
+        BitbucketWebhookTriggerRequest first = request("refs/heads/master", "first");
+        BitbucketWebhookTriggerRequest second = request("refs/heads/master", "second");
+
+        debouncer.debounce("job", first, triggered::add);
+        debouncer.debounce("job", second, triggered::add);
+
+        assertThat(triggered, empty());
+        assertThat(debouncer.getPending(), hasEntry("job@refs/heads/master", asList(first, second)));
+        assertThat(debouncer.getCoalesced(), equalTo(1L));
+
+        fireTimers(1);
+        assertThat(triggered, contains(asList(first, second)));
+        assertThat(debouncer.getPending().isEmpty(), is(true));
+    }
+
+    @Test
+    public void testDebounceSeparatesRefs() {
+        BitbucketWebhookTriggerRequest master = request("refs/heads/master", "first");
+        BitbucketWebhookTriggerRequest feature = request("refs/heads/feature", "second");
+
+        debouncer.debounce("job", master, triggered::add);
+        debouncer.debounce("job", feature, triggered::add);
+
+        fireTimers(2);
+        assertThat(triggered, containsInAnyOrder(singletonList(master), singletonList(feature)));
+        assertThat(debouncer.getCoalesced(), equalTo(0L));
+    }
+
+    @Test
+    public void testDebounceSeparatesJobs() {
+        BitbucketWebhookTriggerRequest request = request("refs/heads/master", "first");
+
+        debouncer.debounce("job", request, triggered::add);
+        debouncer.debounce("other-job", request, triggered::add);
+
+        fireTimers(2);
+        assertThat(triggered, contains(singletonList(request), singletonList(request)));
+    }
+
+    @Test
+    public void testDebounceAfterWindow() {
+        BitbucketWebhookTriggerRequest first = request("refs/heads/master", "first");
+        BitbucketWebhookTriggerRequest second = request("refs/heads/master", "second");
+
+        debouncer.debounce("job", first, triggered::add);
+        fireTimers(1);
+        debouncer.debounce("job", second, triggered::add);
+
+        assertThat(triggered, contains(singletonList(first)));
+        assertThat(debouncer.getPending(), hasEntry("job@refs/heads/master", singletonList(second)));
+    }
+
+    @Test
+    public void testDebounceWhenDisabled() {
+        debouncer = new BitbucketTriggerDebouncer(0, null);
+        BitbucketWebhookTriggerRequest request = request("refs/heads/master", "first");
+
+        debouncer.debounce("job", request, triggered::add);
+
+        assertThat(debouncer.isEnabled(), is(false));
+        assertThat(triggered, contains(singletonList(request)));
+    }
+
+    private void fireTimers(int count) {
+        ArgumentCaptor<Runnable> timers = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor, times(count)).schedule(timers.capture(), eq(WINDOW), eq(TimeUnit.MILLISECONDS));
+        timers.getAllValues().forEach(Runnable::run);
+        clearInvocations(executor);
+    }
+
+    private static BitbucketWebhookTriggerRequest request(String refId, String commit) {
+        return BitbucketWebhookTriggerRequest.builder()
+                .commit(commit)
+                .refId(refId)
+                .build();
+    }
+}
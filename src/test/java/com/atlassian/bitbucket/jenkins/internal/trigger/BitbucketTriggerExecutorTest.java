@@ -0,0 +1,192 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.atlassian.bitbucket.jenkins.internal.trigger.BitbucketTriggerPriority.*;
+import static com.atlassian.bitbucket.jenkins.internal.trigger.BitbucketTriggerExecutor.executeWithPriority;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class BitbucketTriggerExecutorTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final List<BitbucketTriggerPriority> ran = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch release = new CountDownLatch(1);
+    private BitbucketTriggerExecutor executor;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        release.countDown();
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testElasticGrowsOnBacklog() {
+        executor = new BitbucketTriggerExecutor(1, 3, 2, Executors.defaultThreadFactory(), Clock.systemUTC());
+
+        for (int i = 0; i < 6; i++) {
+            executor.execute(this::block);
+        }
+
+        assertThat(executor.getCorePoolSize(), equalTo(3));
+    }
+
+    @Test
+    public void testElasticShrinksWhenBacklogCleared() throws InterruptedException {
+        executor = new BitbucketTriggerExecutor(1, 3, 2, Executors.defaultThreadFactory(), Clock.systemUTC());
+        for (int i = 0; i < 6; i++) {
+            executor.execute(this::block);
+        }
+
+        release.countDown();
+        awaitCompleted(6);
+
+        // The core is shrunk after the last trigger has completed
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (executor.getCorePoolSize() > 1 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(executor.getCorePoolSize(), equalTo(1));
+    }
+
+    @Test
+    public void testFixedDoesNotGrow() {
+        executor = new BitbucketTriggerExecutor(2, 2, 1, Executors.defaultThreadFactory(), Clock.systemUTC());
+
+        for (int i = 0; i < 6; i++) {
+            executor.execute(this::block);
+        }
+
+        assertThat(executor.getCorePoolSize(), equalTo(2));
+    }
+
+    @Test
+    public void testPriorityOrder() throws InterruptedException {
+        executor = new BitbucketTriggerExecutor(1, 1, 1, Executors.defaultThreadFactory(), testClock());
+        executor.execute(this::block);
+
+        executeWithPriority(LOW, () -> executor.execute(() -> ran.add(LOW)));
+        executor.execute(() -> ran.add(NORMAL));
+        executeWithPriority(HIGH, () -> executor.execute(() -> ran.add(HIGH)));
+
+        BitbucketTriggerExecutor.Statistics statistics = executor.getStatistics();
+        assertThat(statistics.getQueueLengths().get(HIGH), equalTo(1));
+        assertThat(statistics.getQueueLengths().get(NORMAL), equalTo(1));
+        assertThat(statistics.getQueueLengths().get(LOW), equalTo(1));
+        release.countDown();
+        awaitCompleted(4);
+        assertThat(ran, contains(HIGH, NORMAL, LOW));
+    }
+
+    @Test
+    public void testPriorityStarvationProtection() throws InterruptedException {
+        executor = new BitbucketTriggerExecutor(1, 1, 1, Executors.defaultThreadFactory(), testClock());
+        executor.execute(this::block);
+
+        executeWithPriority(LOW, () -> executor.execute(() -> ran.add(LOW)));
+        // Once a low priority trigger has waited for longer than its delay, even urgent triggers can't overtake it
+        now.addAndGet(LOW.getDelay() + 1);
+        executeWithPriority(HIGH, () -> executor.execute(() -> ran.add(HIGH)));
+
+        release.countDown();
+        awaitCompleted(3);
+        assertThat(ran, contains(LOW, HIGH));
+    }
+
+    @Test
+    public void testPriorityInheritedWhenSubmittedByTask() throws InterruptedException {
+        executor = new BitbucketTriggerExecutor(1, 1, 1, Executors.defaultThreadFactory(), testClock());
+        executor.execute(this::block);
+
+        // A job triggered while being polled is submitted again by the thread polling it
+        executeWithPriority(HIGH, () -> executor.execute(() -> executor.execute(() -> ran.add(HIGH))));
+        executor.execute(() -> ran.add(NORMAL));
+
+        release.countDown();
+        awaitCompleted(4);
+        assertThat(ran, contains(HIGH, NORMAL));
+    }
+
+    @Test
+    public void testStatistics() throws InterruptedException {
+        executor = new BitbucketTriggerExecutor(1, 1, 1, Executors.defaultThreadFactory(), Clock.systemUTC());
+        executor.execute(this::block);
+        executor.execute(this::block);
+
+        BitbucketTriggerExecutor.Statistics statistics = executor.getStatistics();
+        assertThat(statistics.getQueueLength(), lessThanOrEqualTo(2));
+        assertThat(statistics.getCompleted(), equalTo(0L));
+
+        release.countDown();
+        awaitCompleted(2);
+        statistics = executor.getStatistics();
+        assertThat(statistics.getQueueLength(), equalTo(0));
+        assertThat(statistics.getOldestTaskAge(), equalTo(0L));
+        assertThat(statistics.getMaxWait(), greaterThanOrEqualTo(statistics.getAverageWait()));
+        assertThat(statistics.getMaxRunTime(), greaterThanOrEqualTo(statistics.getAverageRunTime()));
+    }
+
+    @Test
+    public void testCreateThreadFactory() throws InterruptedException {
+        // Virtual threads fall back to platform threads before Java 21
+        for (boolean virtualThreads : new boolean[]{false, true}) {
+            CountDownLatch ran = new CountDownLatch(1);
+            Thread thread = BitbucketTriggerExecutor.createThreadFactory(virtualThreads).newThread(ran::countDown);
+            thread.start();
+
+            assertThat(ran.await(10, TimeUnit.SECONDS), is(true));
+            assertThat(thread.getName(), startsWith("BitbucketWebhookTrigger"));
+        }
+    }
+
+    private void awaitCompleted(long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (executor.getStatistics().getCompleted() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(executor.getStatistics().getCompleted(), equalTo(count));
+    }
+
+    private Clock testClock() {
+        return new Clock() {
+            @Override
+            public ZoneId getZone() {
+                return ZoneOffset.UTC;
+            }
+
+            @Override
+            public Clock withZone(ZoneId zone) {
+                return this;
+            }
+
+            @Override
+            public Instant instant() {
+                return Instant.ofEpochMilli(now.get());
+            }
+        };
+    }
+
+    private void block() {
+        try {
+            release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
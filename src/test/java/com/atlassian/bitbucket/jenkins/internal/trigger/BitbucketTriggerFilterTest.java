@@ -0,0 +1,298 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactory;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketClientFactoryProvider;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketProjectClient;
+import com.atlassian.bitbucket.jenkins.internal.client.BitbucketRepositoryClient;
+import com.atlassian.bitbucket.jenkins.internal.config.BitbucketPluginConfiguration;
+import com.atlassian.bitbucket.jenkins.internal.config.BitbucketServerConfiguration;
+import com.atlassian.bitbucket.jenkins.internal.credentials.JenkinsToBitbucketCredentials;
+import com.atlassian.bitbucket.jenkins.internal.model.*;
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCM;
+import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCMRepository;
+import com.atlassian.bitbucket.jenkins.internal.trigger.events.RefsChangedWebhookEvent;
+import hudson.model.FreeStyleProject;
+import hudson.plugins.git.BranchSpec;
+import hudson.plugins.git.extensions.impl.PathRestriction;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class BitbucketTriggerFilterTest {
+
+    private static final String BASE_URL = "http://bitbucket.example.com";
+    private static final String MIDDLE_COMMIT = "3333333333333333333333333333333333333333";
+    private static final String NEW_COMMIT = "2222222222222222222222222222222222222222";
+    private static final String OLD_COMMIT = "1111111111111111111111111111111111111111";
+    private static final String ZERO_COMMIT = "0000000000000000000000000000000000000000";
+
+    private final BitbucketSCMRepository repository = new BitbucketSCMRepository("credentials", null, "Project",
+            "PROJ", "Repository", "repo", "server-id", "");
+    @Mock
+    private BitbucketClientFactory clientFactory;
+    @Mock
+    private BitbucketClientFactoryProvider clientFactoryProvider;
+    @Mock
+    private JenkinsToBitbucketCredentials jenkinsToBitbucketCredentials;
+    @Mock
+    private FreeStyleProject job;
+    @Mock
+    private BitbucketPluginConfiguration pluginConfiguration;
+    @Mock
+    private BitbucketProjectClient projectClient;
+    @Mock
+    private BitbucketRepositoryClient repositoryClient;
+    @Mock
+    private BitbucketSCM scm;
+    @Mock
+    private BitbucketServerConfiguration serverConfiguration;
+    @InjectMocks
+    private BitbucketTriggerFilter triggerFilter = new BitbucketTriggerFilter(true, true);
+
+    @Before
+    public void setup() {
+        when(pluginConfiguration.getServerById("server-id")).thenReturn(Optional.of(serverConfiguration));
+        when(serverConfiguration.getBaseUrl()).thenReturn(BASE_URL);
+        when(clientFactoryProvider.getClient(eq(BASE_URL), any())).thenReturn(clientFactory);
+        when(clientFactory.getProjectClient("PROJ")).thenReturn(projectClient);
+        when(projectClient.getRepositoryClient("repo")).thenReturn(repositoryClient);
+        when(repositoryClient.getCommits(OLD_COMMIT, NEW_COMMIT))
+                .thenAnswer(invocation -> Stream.of(commit(NEW_COMMIT, OLD_COMMIT)));
+        when(repositoryClient.getChanges(OLD_COMMIT, NEW_COMMIT))
+                .thenAnswer(invocation -> Stream.of(change("docs/guide.md")));
+        when(job.getFullName()).thenReturn("folder/job");
+        doReturn(singletonList(scm)).when(job).getSCMs();
+        when(scm.getRepositories()).thenReturn(singletonList(repository));
+        when(scm.getBranches()).thenReturn(singletonList(new BranchSpec("*/master")));
+        when(scm.getExtensions()).thenReturn(emptyList());
+    }
+
+    @Test
+    public void testGetSkipReasonWhenBranchDoesNotMatch() {
+        String reason = triggerFilter.getSkipReason(job, push(update("feature")));
+
+        assertThat(reason, containsString("refs/heads/feature"));
+        assertThat(triggerFilter.getSkippedForBranches(), equalTo(1L));
+        assertThat(triggerFilter.getRecentSkips(), hasSize(1));
+        assertThat(triggerFilter.getRecentSkips().get(0).getJobName(), equalTo("folder/job"));
+        assertThat(triggerFilter.getRecentSkips().get(0).getReason(), equalTo(reason));
+    }
+
+    @Test
+    public void testGetSkipReasonWhenBranchMatches() {
+        assertThat(triggerFilter.getSkipReason(job, push(update("master"))), nullValue());
+        assertThat(triggerFilter.getRecentSkips(), empty());
+    }
+
+    @Test
+    public void testGetSkipReasonWhenAnyBranchMatches() {
+        assertThat(triggerFilter.getSkipReason(job, push(update("feature"), update("master"))), nullValue());
+    }
+
+    @Test
+    public void testGetSkipReasonWhenDisabled() {
+        BitbucketTriggerFilter disabled = new BitbucketTriggerFilter(false, false);
+
+        assertThat(disabled.getSkipReason(job, push(update("feature"))), nullValue());
+        assertThat(disabled.isEnabled(), is(false));
+    }
+
+    @Test
+    public void testGetSkipReasonIgnoresDeletedBranches() {
+        BitbucketRef ref = new BitbucketRef("refs/heads/feature", "feature", BitbucketRefType.BRANCH);
+        BitbucketRefChange deleted = new BitbucketRefChange(ref, ref.getId(), OLD_COMMIT, ZERO_COMMIT,
+                BitbucketRefChangeType.DELETE);
+
+        assertThat(triggerFilter.getSkipReason(job, push(deleted)), nullValue());
+    }
+
+    @Test
+    public void testGetSkipReasonWithVariableBranchSpec() {
+        when(scm.getBranches()).thenReturn(singletonList(new BranchSpec("${BRANCH}")));
+
+        assertThat(triggerFilter.getSkipReason(job, push(update("feature"))), nullValue());
+    }
+
+    @Test
+    public void testGetSkipReasonWithoutSCMs() {
+        doReturn(emptyList()).when(job).getSCMs();
+
+        assertThat(triggerFilter.getSkipReason(job, push(update("feature"))), nullValue());
+    }
+
+    @Test
+    public void testGetPathSkipReasonWhenPathsAreExcluded() {
+        when(scm.getExtensions()).thenReturn(singletonList(new PathRestriction("src/.*", null)));
+
+        String reason = triggerFilter.getPathSkipReason(job, requests(update("master")));
+
+        assertThat(reason, notNullValue());
+        assertThat(triggerFilter.getSkippedForPaths(), equalTo(1L));
+    }
+
+    @Test
+    public void testGetPathSkipReasonWhenAnyRequestMayAffectJob() {
+        when(scm.getExtensions()).thenReturn(singletonList(new PathRestriction("src/.*", null)));
+        List<BitbucketWebhookTriggerRequest> requests = asList(request(update("master")),
+                BitbucketWebhookTriggerRequest.builder().refId("refs/heads/master").build());
+
+        assertThat(triggerFilter.getPathSkipReason(job, requests), nullValue());
+    }
+
+    @Test
+    public void testGetSkipReasonDoesNotCheckPaths() {
+        when(scm.getExtensions()).thenReturn(singletonList(new PathRestriction("src/.*", null)));
+
+        assertThat(triggerFilter.getSkipReason(job, push(update("master"))), nullValue());
+        verifyZeroInteractions(repositoryClient);
+    }
+
+    @Test
+    public void testGetPathSkipReasonWhenPathsAreIncluded() {
+        when(scm.getExtensions()).thenReturn(singletonList(new PathRestriction("docs/.*", null)));
+
+        assertThat(triggerFilter.getPathSkipReason(job, requests(update("master"))), nullValue());
+    }
+
+    @Test
+    public void testGetPathSkipReasonFetchesChangesOnce() {
+        when(scm.getExtensions()).thenReturn(singletonList(new PathRestriction("src/.*", null)));
+        List<BitbucketWebhookTriggerRequest> requests = requests(update("master"));
+
+        triggerFilter.getPathSkipReason(job, requests);
+        triggerFilter.getPathSkipReason(job, requests);
+
+        verify(repositoryClient).getChanges(OLD_COMMIT, NEW_COMMIT);
+        assertThat(triggerFilter.getSkippedForPaths(), equalTo(2L));
+    }
+
+    @Test
+    public void testGetPathSkipReasonChecksEachCommit() {
+        // The second commit reverts the first, so the files differ in neither of them between the old and new commit
+        when(scm.getExtensions()).thenReturn(singletonList(new PathRestriction("src/.*", null)));
+        when(repositoryClient.getCommits(OLD_COMMIT, NEW_COMMIT)).thenAnswer(invocation ->
+                Stream.of(commit(NEW_COMMIT, MIDDLE_COMMIT), commit(MIDDLE_COMMIT, OLD_COMMIT)));
+        when(repositoryClient.getChanges(OLD_COMMIT, MIDDLE_COMMIT))
+                .thenAnswer(invocation -> Stream.of(change("src/App.java")));
+        when(repositoryClient.getChanges(MIDDLE_COMMIT, NEW_COMMIT))
+                .thenAnswer(invocation -> Stream.of(change("src/App.java")));
+
+        assertThat(triggerFilter.getPathSkipReason(job, requests(update("master"))), nullValue());
+        verify(repositoryClient, never()).getChanges(OLD_COMMIT, NEW_COMMIT);
+    }
+
+    @Test
+    public void testGetPathSkipReasonForMergeCommits() {
+        when(scm.getExtensions()).thenReturn(singletonList(new PathRestriction("src/.*", null)));
+        when(repositoryClient.getCommits(OLD_COMMIT, NEW_COMMIT))
+                .thenAnswer(invocation -> Stream.of(commit(NEW_COMMIT, OLD_COMMIT, MIDDLE_COMMIT)));
+
+        assertThat(triggerFilter.getPathSkipReason(job, requests(update("master"))), nullValue());
+        verify(repositoryClient, never()).getChanges(any(), any());
+    }
+
+    @Test
+    public void testGetPathSkipReasonForCommitsWithoutChanges() {
+        when(scm.getExtensions()).thenReturn(singletonList(new PathRestriction("src/.*", null)));
+        when(repositoryClient.getChanges(OLD_COMMIT, NEW_COMMIT)).thenAnswer(invocation -> Stream.empty());
+
+        assertThat(triggerFilter.getPathSkipReason(job, requests(update("master"))), nullValue());
+    }
+
+    @Test
+    public void testGetPathSkipReasonForTooManyCommits() {
+        when(scm.getExtensions()).thenReturn(singletonList(new PathRestriction("src/.*", null)));
+        when(repositoryClient.getCommits(OLD_COMMIT, NEW_COMMIT)).thenAnswer(invocation ->
+                IntStream.rangeClosed(0, BitbucketTriggerFilter.MAX_COMMITS)
+                        .mapToObj(i -> commit(NEW_COMMIT, OLD_COMMIT)));
+
+        assertThat(triggerFilter.getPathSkipReason(job, requests(update("master"))), nullValue());
+        verify(repositoryClient, never()).getChanges(any(), any());
+    }
+
+    @Test
+    public void testGetPathSkipReasonForNewBranchWithPaths() {
+        when(scm.getExtensions()).thenReturn(singletonList(new PathRestriction("src/.*", null)));
+        BitbucketRef ref = new BitbucketRef("refs/heads/master", "master", BitbucketRefType.BRANCH);
+        BitbucketRefChange added = new BitbucketRefChange(ref, ref.getId(), ZERO_COMMIT, NEW_COMMIT,
+                BitbucketRefChangeType.ADD);
+
+        assertThat(triggerFilter.getPathSkipReason(job, requests(added)), nullValue());
+        verifyZeroInteractions(repositoryClient);
+    }
+
+    @Test
+    public void testGetPathSkipReasonWhenPathsDisabled() {
+        BitbucketTriggerFilter branchesOnly = new BitbucketTriggerFilter(true, false);
+        when(scm.getExtensions()).thenReturn(singletonList(new PathRestriction("src/.*", null)));
+
+        assertThat(branchesOnly.getPathSkipReason(job, requests(update("master"))), nullValue());
+    }
+
+    @Test
+    public void testIsExcluded() {
+        String[] included = {"src/.*"};
+        String[] excluded = {".*\\.md"};
+
+        assertThat(BitbucketTriggerFilter.isExcluded(asList("docs/guide.md"), included, null), is(true));
+        assertThat(BitbucketTriggerFilter.isExcluded(asList("src/App.java"), included, null), is(false));
+        assertThat(BitbucketTriggerFilter.isExcluded(asList("docs/guide.md"), null, excluded), is(true));
+        assertThat(BitbucketTriggerFilter.isExcluded(asList("docs/guide.md", "pom.xml"), null, excluded),
+                is(false));
+        assertThat(BitbucketTriggerFilter.isExcluded(asList("src/README.md"), included, excluded), is(true));
+        assertThat(BitbucketTriggerFilter.isExcluded(asList("docs/guide.md"), null, null), is(false));
+    }
+
+    private static BitbucketChange change(String path) {
+        return new BitbucketChange(new BitbucketDirectoryPath(asList(path.split("/")), null, null, path), null,
+                "MODIFY");
+    }
+
+    private static BitbucketCommit commit(String id, String... parents) {
+        return new BitbucketCommit(id, Arrays.stream(parents)
+                .map(parent -> new BitbucketCommit(parent, null))
+                .collect(Collectors.toList()));
+    }
+
+    private static RefsChangedWebhookEvent push(BitbucketRefChange... changes) {
+        BitbucketProject project = new BitbucketProject("PROJ", emptyMap(), "Project");
+        BitbucketRepository repository = new BitbucketRepository(1, "repo", null, project, "repo",
+                RepositoryState.AVAILABLE);
+        return new RefsChangedWebhookEvent(null, "repo:refs_changed", new Date(), asList(changes), repository);
+    }
+
+    private static BitbucketWebhookTriggerRequest request(BitbucketRefChange... changes) {
+        return BitbucketWebhookTriggerRequest.builder().refChanges(asList(changes)).build();
+    }
+
+    private static List<BitbucketWebhookTriggerRequest> requests(BitbucketRefChange... changes) {
+        return singletonList(request(changes));
+    }
+
+    private static BitbucketRefChange update(String branch) {
+        BitbucketRef ref = new BitbucketRef("refs/heads/" + branch, branch, BitbucketRefType.BRANCH);
+        return new BitbucketRefChange(ref, ref.getId(), OLD_COMMIT, NEW_COMMIT, BitbucketRefChangeType.UPDATE);
+    }
+}
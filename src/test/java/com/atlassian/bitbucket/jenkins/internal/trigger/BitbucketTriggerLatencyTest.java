@@ -0,0 +1,52 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import com.atlassian.bitbucket.jenkins.internal.trigger.BitbucketTriggerLatency.Histogram;
+import com.atlassian.bitbucket.jenkins.internal.trigger.BitbucketTriggerLatency.Stage;
+import org.junit.Test;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class BitbucketTriggerLatencyTest {
+
+    private final BitbucketTriggerLatency latency = new BitbucketTriggerLatency();
+
+    @Test
+    public void testRecord() {
+        Map<Stage, Long> durations = new EnumMap<>(Stage.class);
+        durations.put(Stage.POLL, 200L);
+        durations.put(Stage.TOTAL, 1000L);
+        latency.record(durations);
+        durations.put(Stage.POLL, 400L);
+        durations.put(Stage.TOTAL, 600000L);
+        latency.record(durations);
+
+        Histogram poll = latency.getHistograms().get(Stage.POLL);
+        assertThat(poll.getCount(), equalTo(2L));
+        assertThat(poll.getAverage(), equalTo(300L));
+        assertThat(poll.getMax(), equalTo(400L));
+        assertThat(poll.getBuckets().get(250L), equalTo(1L));
+        assertThat(poll.getBuckets().get(500L), equalTo(1L));
+        Histogram total = latency.getHistograms().get(Stage.TOTAL);
+        assertThat(total.getBuckets().get(1000L), equalTo(1L));
+        assertThat(total.getBuckets().get(Long.MAX_VALUE), equalTo(1L));
+        assertThat(latency.getHistograms().get(Stage.DELIVERY).getCount(), equalTo(0L));
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        Histogram histogram = new Histogram();
+
+        histogram.record(0);
+        histogram.record(100);
+        histogram.record(101);
+
+        assertThat(histogram.getBuckets().size(), equalTo(Histogram.BOUNDS.length + 1));
+        assertThat(histogram.getBuckets().get(100L), equalTo(2L));
+        assertThat(histogram.getBuckets().get(250L), equalTo(1L));
+        assertThat(histogram.getAverage(), equalTo(67L));
+    }
+}
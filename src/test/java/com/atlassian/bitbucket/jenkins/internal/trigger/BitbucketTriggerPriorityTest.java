@@ -0,0 +1,121 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import com.atlassian.bitbucket.jenkins.internal.model.*;
+import com.atlassian.bitbucket.jenkins.internal.trigger.events.*;
+import org.junit.Test;
+
+import java.util.*;
+
+import static com.atlassian.bitbucket.jenkins.internal.trigger.BitbucketTriggerPriority.*;
+import static com.atlassian.bitbucket.jenkins.internal.trigger.events.BitbucketWebhookEvent.*;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.mock;
+
+public class BitbucketTriggerPriorityTest {
+
+    private static final Set<String> BRANCHES = new HashSet<>(asList("master", "main"));
+
+    private final BitbucketPullRequest pullRequest = mock(BitbucketPullRequest.class);
+    private final BitbucketRepository repository = mock(BitbucketRepository.class);
+
+    @Test
+    public void testForEventBranchPush() {
+        assertThat(forEvent(refsChanged(branch("feature/x")), emptyMap(), BRANCHES), equalTo(NORMAL));
+        assertThat(forEvent(refsChanged(branch("feature/x"), branch("main")), emptyMap(), BRANCHES),
+                equalTo(HIGH));
+    }
+
+    @Test
+    public void testForEventConfigured() {
+        Map<String, BitbucketTriggerPriority> events = new HashMap<>();
+        events.put(PULL_REQUEST_OPENED.getEventId(), LOW);
+        events.put(REPO_REF_CHANGE.getEventId(), LOW);
+
+        assertThat(forEvent(pullRequestOpened(), events, BRANCHES), equalTo(LOW));
+        assertThat(forEvent(refsChanged(branch("master")), events, BRANCHES), equalTo(LOW));
+    }
+
+    @Test
+    public void testForEventDeletedDefaultBranchIsNotUrgent() {
+        BitbucketRef ref = new BitbucketRef("refs/heads/master", "master", BitbucketRefType.BRANCH);
+        BitbucketRefChange delete =
+                new BitbucketRefChange(ref, ref.getId(), "from", "0000", BitbucketRefChangeType.DELETE);
+
+        assertThat(forEvent(refsChanged(delete, branch("feature/x")), emptyMap(), BRANCHES), equalTo(NORMAL));
+    }
+
+    @Test
+    public void testForEventMirrorSynchronized() {
+        MirrorSynchronizedWebhookEvent event = new MirrorSynchronizedWebhookEvent(null,
+                new BitbucketMirrorServer("1", "mirror"), MIRROR_SYNCHRONIZED.getEventId(), new Date(),
+                singletonList(branch("master")), repository, BitbucketRepositorySynchronizationType.INCREMENTAL);
+
+        assertThat(forEvent(event, emptyMap(), BRANCHES), equalTo(LOW));
+    }
+
+    @Test
+    public void testForEventPullRequest() {
+        assertThat(forEvent(pullRequestOpened(), emptyMap(), BRANCHES), equalTo(HIGH));
+        assertThat(forEvent(new PullRequestFromRefUpdatedWebhookEvent(null,
+                PULL_REQUEST_FROM_REF_UPDATED.getEventId(), new Date(), pullRequest), emptyMap(), BRANCHES),
+                equalTo(NORMAL));
+    }
+
+    @Test
+    public void testForEventTagsOnly() {
+        assertThat(forEvent(refsChanged(tag("v1.0"), tag("v1.1")), emptyMap(), BRANCHES), equalTo(LOW));
+    }
+
+    @Test
+    public void testForJobInnermostFolderWins() {
+        Map<String, BitbucketTriggerPriority> folders = new HashMap<>();
+        folders.put("team", LOW);
+        folders.put("team/release", HIGH);
+
+        assertThat(forJob("team/release/build", NORMAL, folders), equalTo(HIGH));
+        assertThat(forJob("team/feature/build", NORMAL, folders), equalTo(LOW));
+        assertThat(forJob("team", NORMAL, folders), equalTo(NORMAL));
+        assertThat(forJob("teamwork/build", NORMAL, folders), equalTo(NORMAL));
+    }
+
+    @Test
+    public void testForJobWithoutFolders() {
+        assertThat(forJob("team/build", HIGH, emptyMap()), equalTo(HIGH));
+    }
+
+    @Test
+    public void testParse() {
+        Map<String, BitbucketTriggerPriority> expected = new HashMap<>();
+        expected.put("pr:opened", HIGH);
+        expected.put("mirror:repo_synchronized", NORMAL);
+
+        assertThat(parse(" pr:opened = high,mirror:repo_synchronized=NORMAL, invalid=URGENT,missing "),
+                equalTo(expected));
+        assertThat(parse(null).isEmpty(), is(true));
+        assertThat(parse("a/b=LOW"), equalTo(singletonMap("a/b", LOW)));
+    }
+
+    private static BitbucketRefChange branch(String name) {
+        BitbucketRef ref = new BitbucketRef("refs/heads/" + name, name, BitbucketRefType.BRANCH);
+        return new BitbucketRefChange(ref, ref.getId(), "from", "to", BitbucketRefChangeType.UPDATE);
+    }
+
+    private static BitbucketRefChange tag(String name) {
+        BitbucketRef ref = new BitbucketRef("refs/tags/" + name, name, BitbucketRefType.TAG);
+        return new BitbucketRefChange(ref, ref.getId(), "0000", "to", BitbucketRefChangeType.ADD);
+    }
+
+    private PullRequestOpenedWebhookEvent pullRequestOpened() {
+        return new PullRequestOpenedWebhookEvent(null, PULL_REQUEST_OPENED.getEventId(), new Date(), pullRequest);
+    }
+
+    private RefsChangedWebhookEvent refsChanged(BitbucketRefChange... changes) {
+        return new RefsChangedWebhookEvent(null, REPO_REF_CHANGE.getEventId(), new Date(), asList(changes),
+                repository);
+    }
+}
@@ -1,16 +1,23 @@
 package com.atlassian.bitbucket.jenkins.internal.trigger;
 
+import com.atlassian.bitbucket.jenkins.internal.trigger.BitbucketTriggerLatency.Stage;
+import hudson.model.Action;
 import hudson.model.CauseAction;
 import hudson.model.Job;
+import hudson.plugins.git.Branch;
+import hudson.plugins.git.Revision;
+import hudson.plugins.git.RevisionParameterAction;
 import hudson.scm.PollingResult;
 import hudson.util.StreamTaskListener;
 import jenkins.model.RunAction2;
 import jenkins.triggers.SCMTriggerItem;
 import org.apache.commons.io.FileUtils;
+import org.jenkinsci.plugins.gitclient.GitClient;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
@@ -19,13 +26,19 @@ import java.nio.file.Files;
 
 import static java.util.Collections.emptyList;
 import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 @RunWith(MockitoJUnitRunner.class)
 public class BitbucketTriggerWorkerTest {
 
+    private static final String COMMIT = "2222222222222222222222222222222222222222";
+
     @Mock
     private CauseAction causeAction;
     @Mock
@@ -56,6 +69,150 @@ public class BitbucketTriggerWorkerTest {
         verify(triggerItem).scheduleBuild2(eq(0), eq(causeAction));
     }
 
+    @Test
+    public void testTriggerRecordsStageTimes() {
+        when(triggerItem.poll(any(StreamTaskListener.class))).thenReturn(PollingResult.BUILD_NOW);
+        BitbucketWebhookTriggerCause cause = new BitbucketWebhookTriggerCause(BitbucketWebhookTriggerRequest.builder()
+                .dispatchedAt(1)
+                .build());
+        CauseAction webhookCauseAction = new CauseAction(cause);
+        BitbucketTriggerWorker worker = new BitbucketTriggerWorker(job, triggerItem, webhookCauseAction, emptyList());
+
+        worker.run();
+
+        ArgumentCaptor<CauseAction> scheduled = ArgumentCaptor.forClass(CauseAction.class);
+        verify(triggerItem).scheduleBuild2(eq(0), scheduled.capture());
+        BitbucketWebhookTriggerCause scheduledCause =
+                scheduled.getValue().findCause(BitbucketWebhookTriggerCause.class);
+        assertThat(scheduledCause, equalTo(cause));
+        assertThat(scheduledCause.getStageDurations().keySet(), contains(Stage.POLL_WAIT, Stage.POLL));
+    }
+
+    @Test
+    public void testTriggerLeavesCausesOfEarlierBuildsUnchanged() {
+        when(triggerItem.poll(any(StreamTaskListener.class))).thenReturn(PollingResult.BUILD_NOW);
+        BitbucketWebhookTriggerCause cause = new BitbucketWebhookTriggerCause(BitbucketWebhookTriggerRequest.builder()
+                .dispatchedAt(1)
+                .build());
+        BitbucketTriggerWorker worker =
+                new BitbucketTriggerWorker(job, triggerItem, new CauseAction(cause), emptyList());
+
+        worker.run();
+        worker.run();
+
+        ArgumentCaptor<CauseAction> scheduled = ArgumentCaptor.forClass(CauseAction.class);
+        verify(triggerItem, times(2)).scheduleBuild2(eq(0), scheduled.capture());
+        assertThat(scheduled.getAllValues().get(0).findCause(BitbucketWebhookTriggerCause.class),
+                not(sameInstance(scheduled.getAllValues().get(1).findCause(BitbucketWebhookTriggerCause.class))));
+        assertThat(cause.getStageDurations().keySet(), empty());
+    }
+
+    @Test
+    public void testTriggerDirectlyBuildsWithoutPolling() throws Exception {
+        BitbucketWebhookTriggerRequest request = BitbucketWebhookTriggerRequest.builder()
+                .refId("refs/heads/master")
+                .commit(COMMIT)
+                .build();
+        CauseAction webhookCauseAction = new CauseAction(new BitbucketWebhookTriggerCause(request));
+        BitbucketDirectTrigger directTrigger = mock(BitbucketDirectTrigger.class);
+        when(directTrigger.decide(job, triggerItem, request))
+                .thenReturn(new BitbucketDirectTrigger.Decision("repo", "master", COMMIT, true));
+        BitbucketTriggerWorker worker =
+                new BitbucketTriggerWorker(job, triggerItem, webhookCauseAction, emptyList(), directTrigger);
+
+        worker.run();
+
+        verify(triggerItem, never()).poll(any(StreamTaskListener.class));
+        ArgumentCaptor<Action> actions = ArgumentCaptor.forClass(Action.class);
+        verify(triggerItem).scheduleBuild2(eq(0), actions.capture());
+        assertThat(actions.getAllValues(), hasItem(instanceOf(CauseAction.class)));
+        assertThat(actions.getAllValues(), hasItem(instanceOf(RevisionParameterAction.class)));
+        RevisionParameterAction revisionAction = (RevisionParameterAction) actions.getAllValues().get(1);
+        Revision revision = revisionAction.toRevision((GitClient) null);
+        assertThat(revision.getSha1String(), equalTo(COMMIT));
+        assertThat(revision.getBranches().stream().map(Branch::getName).collect(toList()), contains("repo/master"));
+        CauseAction scheduled = (CauseAction) actions.getAllValues().get(0);
+        assertThat(scheduled.findCause(BitbucketWebhookTriggerCause.class).getTriggerRequests(), contains(request));
+    }
+
+    @Test
+    public void testTriggerDirectlySkipsWithoutPolling() {
+        BitbucketWebhookTriggerRequest request = BitbucketWebhookTriggerRequest.builder()
+                .refId("refs/heads/master")
+                .commit(COMMIT)
+                .build();
+        CauseAction webhookCauseAction = new CauseAction(new BitbucketWebhookTriggerCause(request));
+        BitbucketDirectTrigger directTrigger = mock(BitbucketDirectTrigger.class);
+        when(directTrigger.decide(job, triggerItem, request))
+                .thenReturn(new BitbucketDirectTrigger.Decision("repo", "master", COMMIT, false));
+        BitbucketTriggerWorker worker =
+                new BitbucketTriggerWorker(job, triggerItem, webhookCauseAction, emptyList(), directTrigger);
+
+        worker.run();
+
+        verify(triggerItem, never()).poll(any(StreamTaskListener.class));
+        verify(triggerItem, never()).scheduleBuild2(anyInt(), any(CauseAction.class));
+    }
+
+    @Test
+    public void testTriggerSkipsWhenPushedFilesCannotAffectJob() {
+        BitbucketWebhookTriggerRequest request = BitbucketWebhookTriggerRequest.builder()
+                .refId("refs/heads/master")
+                .commit(COMMIT)
+                .build();
+        CauseAction webhookCauseAction = new CauseAction(new BitbucketWebhookTriggerCause(request));
+        BitbucketDirectTrigger directTrigger = mock(BitbucketDirectTrigger.class);
+        BitbucketTriggerFilter triggerFilter = mock(BitbucketTriggerFilter.class);
+        when(triggerFilter.getPathSkipReason(job, singletonList(request))).thenReturn("none of the files match");
+        BitbucketTriggerWorker worker = new BitbucketTriggerWorker(job, triggerItem, webhookCauseAction,
+                emptyList(), directTrigger, triggerFilter);
+
+        worker.run();
+
+        verify(triggerItem, never()).poll(any(StreamTaskListener.class));
+        verify(triggerItem, never()).scheduleBuild2(anyInt(), any(CauseAction.class));
+        verifyZeroInteractions(directTrigger);
+    }
+
+    @Test
+    public void testTriggerPollsWhenPushedFilesMayAffectJob() {
+        when(triggerItem.poll(any(StreamTaskListener.class))).thenReturn(PollingResult.BUILD_NOW);
+        BitbucketTriggerFilter triggerFilter = mock(BitbucketTriggerFilter.class);
+        BitbucketTriggerWorker worker =
+                new BitbucketTriggerWorker(job, triggerItem, causeAction, emptyList(), null, triggerFilter);
+
+        worker.run();
+
+        verify(triggerItem).poll(any(StreamTaskListener.class));
+    }
+
+    @Test
+    public void testTriggerPollsWhenPollingRequired() {
+        when(triggerItem.poll(any(StreamTaskListener.class))).thenReturn(PollingResult.BUILD_NOW);
+        BitbucketDirectTrigger directTrigger = mock(BitbucketDirectTrigger.class);
+        BitbucketTriggerWorker worker =
+                new BitbucketTriggerWorker(job, triggerItem, causeAction, emptyList(), directTrigger);
+
+        worker.requirePolling();
+        worker.run();
+
+        verify(triggerItem).poll(any(StreamTaskListener.class));
+        verifyZeroInteractions(directTrigger);
+    }
+
+    @Test
+    public void testTriggerPollsWhenDirectTriggerCannotDecide() {
+        when(triggerItem.poll(any(StreamTaskListener.class))).thenReturn(PollingResult.BUILD_NOW);
+        BitbucketDirectTrigger directTrigger = mock(BitbucketDirectTrigger.class);
+        BitbucketTriggerWorker worker =
+                new BitbucketTriggerWorker(job, triggerItem, causeAction, emptyList(), directTrigger);
+
+        worker.run();
+
+        verify(triggerItem).poll(any(StreamTaskListener.class));
+        verify(triggerItem).scheduleBuild2(eq(0), eq(causeAction));
+    }
+
     @Test
     public void testTriggerNoChanges() {
         when(triggerItem.poll(any(StreamTaskListener.class))).thenReturn(PollingResult.NO_CHANGES);
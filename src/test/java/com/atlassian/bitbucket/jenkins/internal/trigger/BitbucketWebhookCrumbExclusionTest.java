@@ -45,10 +45,19 @@ public class BitbucketWebhookCrumbExclusionTest {
 
     @Test
     public void testShouldExcludeWebhookEndpoint() throws IOException, ServletException {
-        when(request.getPathInfo()).thenReturn('/' + BIBUCKET_WEBHOOK_URL + "/push");
+        when(request.getPathInfo()).thenReturn('/' + BIBUCKET_WEBHOOK_URL + "/trigger");
 
         assertTrue(crumbExclusion.process(request, response, chain));
 
         verify(chain).doFilter(request, response);
     }
+
+    @Test
+    public void testShouldBlockOtherWebhookEndpointActions() throws IOException, ServletException {
+        when(request.getPathInfo()).thenReturn('/' + BIBUCKET_WEBHOOK_URL + "/replay");
+
+        assertFalse(crumbExclusion.process(request, response, chain));
+
+        verifyZeroInteractions(chain);
+    }
 }
@@ -0,0 +1,107 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import com.atlassian.bitbucket.jenkins.internal.model.*;
+import com.atlassian.bitbucket.jenkins.internal.trigger.events.RefsChangedWebhookEvent;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.time.Clock;
+import java.util.Date;
+
+import static com.atlassian.bitbucket.jenkins.internal.trigger.events.BitbucketWebhookEvent.REPO_REF_CHANGE;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BitbucketWebhookDeduplicatorTest {
+
+    private static final long WINDOW = 60000;
+
+    @Mock
+    private Clock clock;
+    private BitbucketWebhookDeduplicator deduplicator;
+
+    @Before
+    public void setup() {
+        deduplicator = new BitbucketWebhookDeduplicator(clock, true, WINDOW, 3);
+    }
+
+    @Test
+    public void testIsDuplicateWithSameRequestId() {
+        assertThat(deduplicator.isDuplicate("request-1", refsChanged(1000, "toHash")), is(false));
+
+        assertThat(deduplicator.isDuplicate("request-1", refsChanged(2000, "otherHash")), is(true));
+        assertThat(deduplicator.getDuplicates(), equalTo(1L));
+    }
+
+    @Test
+    public void testIsDuplicateWithSameContents() {
+        // Such as when there is both a repository and a project webhook
+        assertThat(deduplicator.isDuplicate("request-1", refsChanged(1000, "toHash")), is(false));
+
+        assertThat(deduplicator.isDuplicate("request-2", refsChanged(1000, "toHash")), is(true));
+        assertThat(deduplicator.isDuplicate(null, refsChanged(1000, "toHash")), is(true));
+    }
+
+    @Test
+    public void testIsDuplicateWithDifferentContents() {
+        assertThat(deduplicator.isDuplicate(null, refsChanged(1000, "toHash")), is(false));
+
+        assertThat(deduplicator.isDuplicate(null, refsChanged(1000, "otherHash")), is(false));
+        assertThat(deduplicator.isDuplicate(null, refsChanged(2000, "toHash")), is(false));
+        assertThat(deduplicator.getDuplicates(), equalTo(0L));
+    }
+
+    @Test
+    public void testIsDuplicateAfterWindow() {
+        deduplicator.isDuplicate("request-1", refsChanged(1000, "toHash"));
+        when(clock.millis()).thenReturn(WINDOW);
+
+        assertThat(deduplicator.isDuplicate("request-1", refsChanged(1000, "toHash")), is(false));
+    }
+
+    @Test
+    public void testIsDuplicateAfterEviction() {
+        deduplicator.isDuplicate(null, refsChanged(1000, "toHash"));
+        deduplicator.isDuplicate(null, refsChanged(2000, "toHash"));
+        deduplicator.isDuplicate(null, refsChanged(3000, "toHash"));
+        deduplicator.isDuplicate(null, refsChanged(4000, "toHash"));
+
+        assertThat(deduplicator.isDuplicate(null, refsChanged(1000, "toHash")), is(false));
+    }
+
+    @Test
+    public void testIsDuplicateAfterForget() {
+        deduplicator.isDuplicate("request-1", refsChanged(1000, "toHash"));
+
+        deduplicator.forget("request-1", refsChanged(1000, "toHash"));
+
+        assertThat(deduplicator.isDuplicate("request-1", refsChanged(1000, "toHash")), is(false));
+    }
+
+    @Test
+    public void testIsDuplicateWhenDisabled() {
+        deduplicator = new BitbucketWebhookDeduplicator(clock, false, WINDOW, 3);
+        deduplicator.isDuplicate("request-1", refsChanged(1000, "toHash"));
+
+        assertThat(deduplicator.isDuplicate("request-1", refsChanged(1000, "toHash")), is(false));
+    }
+
+    private static RefsChangedWebhookEvent refsChanged(long date, String toHash) {
+        BitbucketRef ref = new BitbucketRef("refs/heads/master", "master", BitbucketRefType.BRANCH);
+        BitbucketRefChange change =
+                new BitbucketRefChange(ref, "refs/heads/master", "fromHash", toHash, BitbucketRefChangeType.UPDATE);
+        BitbucketProject project = new BitbucketProject("PROJ", emptyMap(), "Project");
+        BitbucketRepository repository =
+                new BitbucketRepository(1, "repo", emptyMap(), project, "repo", RepositoryState.AVAILABLE);
+        return new RefsChangedWebhookEvent(null, REPO_REF_CHANGE.getEventId(), new Date(date),
+                singletonList(change), repository);
+    }
+}
@@ -0,0 +1,134 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import com.atlassian.bitbucket.jenkins.internal.trigger.events.AbstractWebhookEvent;
+import com.atlassian.bitbucket.jenkins.internal.trigger.events.PullRequestOpenedWebhookEvent;
+import com.atlassian.bitbucket.jenkins.internal.trigger.events.RefsChangedWebhookEvent;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.mock;
+
+public class BitbucketWebhookEventBusTest {
+
+    private final RefsChangedWebhookEvent refsChangedEvent = mock(RefsChangedWebhookEvent.class);
+    private final PullRequestOpenedWebhookEvent pullRequestEvent = mock(PullRequestOpenedWebhookEvent.class);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private BitbucketWebhookEventBus eventBus;
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (eventBus != null) {
+            eventBus.shutdown();
+        }
+    }
+
+    @Test
+    public void testPublishToListenersForType() throws InterruptedException {
+        RecordingListener<RefsChangedWebhookEvent> refsChangedListener =
+                new RecordingListener<>(RefsChangedWebhookEvent.class);
+        RecordingListener<AbstractWebhookEvent> allListener = new RecordingListener<>(AbstractWebhookEvent.class);
+        eventBus = new BitbucketWebhookEventBus(() -> Arrays.asList(refsChangedListener, allListener));
+
+        eventBus.publish(refsChangedEvent);
+        eventBus.publish(pullRequestEvent);
+
+        await(() -> allListener.events.size() == 2 && refsChangedListener.events.size() == 1);
+        assertThat(refsChangedListener.events, contains(refsChangedEvent));
+        assertThat(allListener.events, contains(refsChangedEvent, pullRequestEvent));
+    }
+
+    @Test
+    public void testPublishSlowListenerDoesNotHoldUpOthers() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        BitbucketWebhookListener<AbstractWebhookEvent> slowListener =
+                new BitbucketWebhookListener<AbstractWebhookEvent>(AbstractWebhookEvent.class) {
+                    @Override
+                    public int getBufferSize() {
+                        return 1;
+                    }
+
+                    @Override
+                    public void onEvent(AbstractWebhookEvent event) {
+                        started.countDown();
+                        try {
+                            release.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                };
+        RecordingListener<AbstractWebhookEvent> fastListener = new RecordingListener<>(AbstractWebhookEvent.class);
+        eventBus = new BitbucketWebhookEventBus(() -> Arrays.asList(slowListener, fastListener));
+
+        eventBus.publish(refsChangedEvent);
+        assertThat(started.await(10, TimeUnit.SECONDS), is(true));
+        // One event waits in the slow listener's buffer, and the other is dropped
+        eventBus.publish(refsChangedEvent);
+        eventBus.publish(refsChangedEvent);
+
+        await(() -> fastListener.events.size() == 3);
+        BitbucketWebhookEventBus.Statistics statistics =
+                eventBus.getStatistics().get(slowListener.getClass().getName());
+        assertThat(statistics.getBacklog(), equalTo(1));
+        assertThat(statistics.getDropped(), equalTo(1L));
+        assertThat(eventBus.getStatistics().get(RecordingListener.class.getName()).getDropped(), equalTo(0L));
+    }
+
+    @Test
+    public void testPublishFailingListenerKeepsReceivingEvents() throws InterruptedException {
+        RecordingListener<AbstractWebhookEvent> failingListener =
+                new RecordingListener<AbstractWebhookEvent>(AbstractWebhookEvent.class) {
+                    @Override
+                    public void onEvent(AbstractWebhookEvent event) {
+                        super.onEvent(event);
+                        if (event == refsChangedEvent) {
+                            throw new IllegalStateException("Failed to handle event");
+                        }
+                    }
+                };
+        eventBus = new BitbucketWebhookEventBus(() -> Collections.singletonList(failingListener));
+
+        eventBus.publish(refsChangedEvent);
+        eventBus.publish(pullRequestEvent);
+
+        await(() -> failingListener.events.size() == 2 &&
+                    eventBus.getStatistics().get(failingListener.getClass().getName()).getDelivered() == 2);
+        BitbucketWebhookEventBus.Statistics statistics =
+                eventBus.getStatistics().get(failingListener.getClass().getName());
+        assertThat(statistics.getFailed(), equalTo(1L));
+        assertThat(failingListener.events, contains(refsChangedEvent, pullRequestEvent));
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(condition.getAsBoolean(), is(true));
+    }
+
+    private static class RecordingListener<T extends AbstractWebhookEvent> extends BitbucketWebhookListener<T> {
+
+        private final List<T> events = Collections.synchronizedList(new ArrayList<>());
+
+        private RecordingListener(Class<T> eventType) {
+            super(eventType);
+        }
+
+        @Override
+        public void onEvent(T event) {
+            events.add(event);
+        }
+    }
+}
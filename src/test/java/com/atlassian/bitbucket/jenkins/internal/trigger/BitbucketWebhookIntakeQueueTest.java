@@ -0,0 +1,255 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketProject;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRepository;
+import com.atlassian.bitbucket.jenkins.internal.model.RepositoryState;
+import com.atlassian.bitbucket.jenkins.internal.trigger.BitbucketWebhookIntakeQueue.OverflowPolicy;
+import com.atlassian.bitbucket.jenkins.internal.trigger.BitbucketWebhookIntakeQueue.Statistics;
+import com.atlassian.bitbucket.jenkins.internal.trigger.events.AbstractWebhookEvent;
+import com.atlassian.bitbucket.jenkins.internal.trigger.events.RefsChangedWebhookEvent;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.atlassian.bitbucket.jenkins.internal.trigger.events.BitbucketWebhookEvent.REPO_REF_CHANGE;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.isA;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BitbucketWebhookIntakeQueueTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    @Mock
+    private BitbucketWebhookJournal journal;
+    @Mock
+    private BitbucketWebhookConsumer webhookConsumer;
+
+    @After
+    public void tearDown() {
+        release.countDown();
+    }
+
+    @Test
+    public void testSubmit() throws InterruptedException {
+        BitbucketWebhookIntakeQueue queue = createQueue(OverflowPolicy.REJECT, null);
+        AbstractWebhookEvent event = mock(AbstractWebhookEvent.class);
+
+        assertThat(queue.submit(REPO_REF_CHANGE.getEventId(), new byte[0], event), is(true));
+
+        awaitProcessed(queue, 1);
+        verify(webhookConsumer).process(event);
+        Statistics statistics = queue.getStatistics();
+        assertThat(statistics.getAccepted(), equalTo(1L));
+        assertThat(statistics.getProcessed(), equalTo(1L));
+        assertThat(statistics.getDepth(), equalTo(0));
+    }
+
+    @Test
+    public void testSubmitCompletesJournalEntry() throws InterruptedException {
+        BitbucketWebhookIntakeQueue queue = createQueue(OverflowPolicy.REJECT, null);
+        AbstractWebhookEvent event = mock(AbstractWebhookEvent.class);
+
+        assertThat(queue.submit(REPO_REF_CHANGE.getEventId(), new byte[0], event, 1L), is(true));
+
+        awaitProcessed(queue, 1);
+        InOrder inOrder = inOrder(webhookConsumer, journal);
+        inOrder.verify(webhookConsumer).process(event);
+        inOrder.verify(journal).complete(1L);
+    }
+
+    @Test
+    public void testSubmitDoesNotCompleteJournalEntryWhenProcessingFails() throws InterruptedException {
+        BitbucketWebhookIntakeQueue queue = createQueue(OverflowPolicy.REJECT, null);
+        AbstractWebhookEvent event = mock(AbstractWebhookEvent.class);
+        doThrow(new IllegalStateException("Failed to process")).when(webhookConsumer).process(event);
+
+        assertThat(queue.submit(REPO_REF_CHANGE.getEventId(), new byte[0], event, 1L), is(true));
+
+        awaitProcessed(queue, 1);
+        verify(journal, never()).complete(1L);
+    }
+
+    @Test
+    public void testSubmitWhenFullRejects() throws InterruptedException {
+        BitbucketWebhookIntakeQueue queue = createQueue(OverflowPolicy.REJECT, null);
+        fillQueue(queue);
+
+        boolean accepted = queue.submit(REPO_REF_CHANGE.getEventId(), new byte[0], mock(AbstractWebhookEvent.class));
+
+        assertThat(accepted, is(false));
+        Statistics statistics = queue.getStatistics();
+        assertThat(statistics.getRejected(), equalTo(1L));
+        assertThat(statistics.getDepth(), equalTo(1));
+    }
+
+    @Test
+    public void testSubmitWhenFullSpills() throws Exception {
+        File spillDirectory = temporaryFolder.newFolder();
+        BitbucketWebhookIntakeQueue queue = createQueue(OverflowPolicy.SPILL, spillDirectory);
+        fillQueue(queue);
+
+        boolean accepted = queue.submit(REPO_REF_CHANGE.getEventId(), readBody(), mock(AbstractWebhookEvent.class));
+
+        assertThat(accepted, is(true));
+        assertThat(spillDirectory.listFiles(), arrayWithSize(1));
+        assertThat(queue.getStatistics().getSpilledDepth(), equalTo(1));
+        release.countDown();
+        // The spilled webhook is read back from disk once there is room for it
+        verify(webhookConsumer, timeout(10000)).process(isA(RefsChangedWebhookEvent.class));
+        // The two webhooks filling the queue, and the spilled one
+        awaitProcessed(queue, 3);
+        assertThat(spillDirectory.listFiles(), arrayWithSize(0));
+        assertThat(queue.getStatistics().getSpilled(), equalTo(1L));
+    }
+
+    @Test
+    public void testSubmitWhenFullRejectsWithoutSpillDirectory() throws InterruptedException {
+        BitbucketWebhookIntakeQueue queue = createQueue(OverflowPolicy.SPILL, null);
+        fillQueue(queue);
+
+        boolean accepted = queue.submit(REPO_REF_CHANGE.getEventId(), new byte[0], mock(AbstractWebhookEvent.class));
+
+        assertThat(accepted, is(false));
+        Statistics statistics = queue.getStatistics();
+        assertThat(statistics.getRejected(), equalTo(1L));
+        assertThat(statistics.getSpilledDepth(), equalTo(0));
+    }
+
+    @Test
+    public void testSpilledWebhooksAreProcessedAfterRestart() throws Exception {
+        File spillDirectory = temporaryFolder.newFolder();
+        BitbucketWebhookIntakeQueue queue = createQueue(OverflowPolicy.SPILL, spillDirectory);
+        fillQueue(queue);
+        queue.submit(REPO_REF_CHANGE.getEventId(), readBody(), mock(AbstractWebhookEvent.class));
+
+        BitbucketWebhookIntakeQueue restarted = new BitbucketWebhookIntakeQueue(webhookConsumer, journal,
+                Clock.systemUTC(), true, OverflowPolicy.SPILL, 1, 1, spillDirectory);
+        assertThat(restarted.getStatistics().getSpilledDepth(), equalTo(0));
+
+        restarted.requeueSpilledOnStartup();
+
+        verify(webhookConsumer, timeout(10000)).process(isA(RefsChangedWebhookEvent.class));
+        release.countDown();
+        awaitProcessed(restarted, 1);
+        assertThat(spillDirectory.listFiles(), arrayWithSize(0));
+    }
+
+    @Test
+    public void testSpilledWebhookCompletesJournalEntry() throws Exception {
+        File spillDirectory = temporaryFolder.newFolder();
+        BitbucketWebhookIntakeQueue queue = createQueue(OverflowPolicy.SPILL, spillDirectory);
+        fillQueue(queue);
+
+        queue.submit(REPO_REF_CHANGE.getEventId(), readBody(), mock(AbstractWebhookEvent.class), 3L);
+        release.countDown();
+
+        verify(webhookConsumer, timeout(10000)).process(isA(RefsChangedWebhookEvent.class));
+        verify(journal, timeout(10000)).complete(3L);
+    }
+
+    @Test
+    public void testSpilledJournalWebhooksAreLeftToJournalAfterRestart() throws Exception {
+        File spillDirectory = temporaryFolder.newFolder();
+        BitbucketWebhookIntakeQueue queue = createQueue(OverflowPolicy.SPILL, spillDirectory);
+        fillQueue(queue);
+        queue.submit(REPO_REF_CHANGE.getEventId(), readBody(), mock(AbstractWebhookEvent.class), 3L);
+        when(journal.isEnabled()).thenReturn(true);
+        BitbucketWebhookIntakeQueue restarted = new BitbucketWebhookIntakeQueue(webhookConsumer, journal,
+                Clock.systemUTC(), true, OverflowPolicy.SPILL, 1, 1, spillDirectory);
+
+        restarted.requeueSpilledOnStartup();
+
+        assertThat(spillDirectory.listFiles(), arrayWithSize(0));
+        assertThat(restarted.getStatistics().getSpilledDepth(), equalTo(0));
+        verify(webhookConsumer, never()).process(isA(RefsChangedWebhookEvent.class));
+    }
+
+    @Test
+    public void testGetPartitionKey() {
+        BitbucketProject project = new BitbucketProject("PROJ", emptyMap(), "Project");
+        BitbucketRepository repository =
+                new BitbucketRepository(1, "Repo", emptyMap(), project, "Repo", RepositoryState.AVAILABLE);
+        RefsChangedWebhookEvent refsChanged = new RefsChangedWebhookEvent(null, REPO_REF_CHANGE.getEventId(),
+                new Date(), emptyList(), repository);
+
+        assertThat(BitbucketWebhookIntakeQueue.getPartitionKey(refsChanged), equalTo("proj/repo"));
+        assertThat(BitbucketWebhookIntakeQueue.getPartitionKey(mock(AbstractWebhookEvent.class)), equalTo(""));
+    }
+
+    @Test
+    public void testSubmitProcessesRepositoryInOrder() throws InterruptedException {
+        BitbucketWebhookIntakeQueue queue = new BitbucketWebhookIntakeQueue(webhookConsumer, journal,
+                Clock.systemUTC(), true, OverflowPolicy.REJECT, 100, 4, null);
+        List<AbstractWebhookEvent> events = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            AbstractWebhookEvent event = mock(AbstractWebhookEvent.class);
+            events.add(event);
+            queue.submit(REPO_REF_CHANGE.getEventId(), new byte[0], event);
+        }
+
+        InOrder inOrder = inOrder(webhookConsumer);
+        for (AbstractWebhookEvent event : events) {
+            inOrder.verify(webhookConsumer, timeout(10000)).process(event);
+        }
+        awaitProcessed(queue, 20);
+    }
+
+    /**
+     * Waits for the given number of webhooks to have been processed, and for no more to be waiting in memory.
+     */
+    private static void awaitProcessed(BitbucketWebhookIntakeQueue queue, long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (queue.getStatistics().getProcessed() < count || queue.getDepth() > 0) {
+            assertThat("Timed out waiting for the webhooks to be processed", System.nanoTime() < deadline, is(true));
+            Thread.sleep(10);
+        }
+    }
+
+    private BitbucketWebhookIntakeQueue createQueue(OverflowPolicy overflowPolicy, File spillDirectory) {
+        return new BitbucketWebhookIntakeQueue(webhookConsumer, journal, Clock.systemUTC(), true, overflowPolicy, 1,
+                1, spillDirectory);
+    }
+
+    /**
+     * Blocks the only worker on one webhook, and fills the queue (of one) with another.
+     */
+    private void fillQueue(BitbucketWebhookIntakeQueue queue) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            started.countDown();
+            release.await();
+            return null;
+        }).when(webhookConsumer).process(any());
+        queue.submit(REPO_REF_CHANGE.getEventId(), new byte[0], mock(AbstractWebhookEvent.class));
+        assertThat(started.await(10, TimeUnit.SECONDS), is(true));
+        queue.submit(REPO_REF_CHANGE.getEventId(), new byte[0], mock(AbstractWebhookEvent.class));
+    }
+
+    private byte[] readBody() throws IOException {
+        return IOUtils.toByteArray(getClass().getResourceAsStream("/webhook/refs_changed_body.json"));
+    }
+}
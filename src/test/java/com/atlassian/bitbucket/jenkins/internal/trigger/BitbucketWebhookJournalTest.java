@@ -0,0 +1,244 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.atlassian.bitbucket.jenkins.internal.trigger.events.BitbucketWebhookEvent.REPO_REF_CHANGE;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class BitbucketWebhookJournalTest {
+
+    private static final String EVENT_KEY = REPO_REF_CHANGE.getEventId();
+
+    private final AtomicLong now = new AtomicLong(1_000_000L);
+    private final Clock clock = new Clock() {
+        @Override
+        public ZoneOffset getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(java.time.ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(now.get());
+        }
+    };
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    private BitbucketWebhookJournal journal;
+
+    @After
+    public void tearDown() {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void testAppendAndComplete() throws IOException {
+        journal = createJournal(temporaryFolder.newFolder(), 1024 * 1024);
+
+        long first = journal.append(EVENT_KEY, body("first"));
+        long second = journal.append(EVENT_KEY, body("second"));
+        journal.complete(first);
+
+        List<BitbucketWebhookJournal.Entry> unfinished = unfinished();
+        assertThat(unfinished, hasSize(1));
+        assertThat(unfinished.get(0).getSequence(), equalTo(second));
+        assertThat(unfinished.get(0).getEventKey(), equalTo(EVENT_KEY));
+        assertThat(new String(unfinished.get(0).getBody(), StandardCharsets.UTF_8), equalTo("second"));
+        BitbucketWebhookJournal.Statistics statistics = journal.getStatistics();
+        assertThat(statistics.getAppended(), equalTo(2L));
+        assertThat(statistics.getCompleted(), equalTo(1L));
+        assertThat(statistics.getUnfinished(), equalTo(1));
+    }
+
+    @Test
+    public void testAppendWhenDisabled() throws IOException {
+        journal = new BitbucketWebhookJournal(null, 1024, 1000, false, clock);
+
+        assertThat(journal.isEnabled(), is(false));
+        assertThat(journal.append(EVENT_KEY, body("ignored")), equalTo(0L));
+        assertThat(unfinished(), empty());
+    }
+
+    @Test
+    public void testUnfinishedAfterRestart() throws IOException {
+        File directory = temporaryFolder.newFolder();
+        journal = createJournal(directory, 1024 * 1024);
+        long first = journal.append(EVENT_KEY, body("first"));
+        long second = journal.append(EVENT_KEY, body("second"));
+        journal.complete(second);
+        journal.close();
+
+        journal = createJournal(directory, 1024 * 1024);
+
+        assertThat(sequences(unfinished()), contains(first));
+        // Sequence numbers carry on from where they got to
+        assertThat(journal.append(EVENT_KEY, body("third")), equalTo(second + 1));
+        assertThat(journal.getStatistics().getSegments(), equalTo(2));
+    }
+
+    @Test
+    public void testCorruptRecordIsIgnored() throws IOException {
+        File directory = temporaryFolder.newFolder();
+        journal = createJournal(directory, 1024 * 1024);
+        long first = journal.append(EVENT_KEY, body("first"));
+        journal.append(EVENT_KEY, body("second"));
+        journal.close();
+        File[] segments = directory.listFiles();
+        assertThat(segments, arrayWithSize(1));
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+            // Flip a byte in the body of the last record
+            long position = file.length() - 6;
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0xFF);
+        }
+
+        journal = createJournal(directory, 1024 * 1024);
+
+        assertThat(sequences(unfinished()), contains(first));
+    }
+
+    @Test
+    public void testTornRecordIsIgnored() throws IOException {
+        File directory = temporaryFolder.newFolder();
+        journal = createJournal(directory, 1024 * 1024);
+        long first = journal.append(EVENT_KEY, body("first"));
+        journal.append(EVENT_KEY, body("second"));
+        journal.close();
+        File[] segments = directory.listFiles();
+        assertThat(segments, arrayWithSize(1));
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        journal = createJournal(directory, 1024 * 1024);
+
+        assertThat(sequences(unfinished()), contains(first));
+        long third = journal.append(EVENT_KEY, body("third"));
+        assertThat(sequences(unfinished()), contains(first, third));
+    }
+
+    @Test
+    public void testSegmentsRotate() throws IOException {
+        File directory = temporaryFolder.newFolder();
+        journal = createJournal(directory, 10);
+
+        for (int i = 0; i < 5; i++) {
+            journal.append(EVENT_KEY, body("webhook " + i));
+        }
+
+        assertThat(journal.getStatistics().getSegments(), equalTo(5));
+        assertThat(unfinished(), hasSize(5));
+    }
+
+    @Test
+    public void testExpiredSegmentsAreDeleted() throws IOException {
+        File directory = temporaryFolder.newFolder();
+        journal = new BitbucketWebhookJournal(directory, 10, 1000, false, clock);
+        long first = journal.append(EVENT_KEY, body("first"));
+        File[] segments = directory.listFiles();
+        assertThat(segments, arrayWithSize(1));
+        assertThat(segments[0].setLastModified(now.get() - 5000), is(true));
+
+        long second = journal.append(EVENT_KEY, body("second"));
+
+        assertThat(journal.getStatistics().getSegments(), equalTo(1));
+        assertThat(sequences(unfinished()), contains(second));
+        assertThat(sequences(unfinished()), not(hasItem(first)));
+        assertThat(journal.getStatistics().getUnfinished(), equalTo(1));
+    }
+
+    @Test
+    public void testReadingDoesNotBlockAppending() throws Exception {
+        journal = createJournal(temporaryFolder.newFolder(), 1024 * 1024);
+        long first = journal.append(EVENT_KEY, body("first"));
+        AtomicLong appended = new AtomicLong();
+        List<BitbucketWebhookJournal.Entry> read = new ArrayList<>();
+
+        journal.forEachUnfinished(entry -> {
+            read.add(entry);
+            Thread appender = new Thread(() -> {
+                try {
+                    appended.set(journal.append(EVENT_KEY, body("second")));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            appender.start();
+            try {
+                appender.join(10000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        assertThat(appended.get(), equalTo(first + 1));
+        // Only what was unfinished when reading started is read
+        assertThat(sequences(read), contains(first));
+        assertThat(sequences(unfinished()), contains(first, first + 1));
+    }
+
+    @Test
+    public void testForEachEntry() throws IOException {
+        journal = createJournal(temporaryFolder.newFolder(), 1024 * 1024);
+        long first = journal.append(EVENT_KEY, body("first"));
+        journal.complete(first);
+        now.addAndGet(1000);
+        long second = journal.append(EVENT_KEY, body("second"));
+        journal.complete(second);
+        now.addAndGet(1000);
+        journal.append(EVENT_KEY, body("third"));
+
+        // Completed webhooks are included
+        assertThat(sequences(entries(now.get() - 2000, now.get() - 1000)), contains(first, second));
+        assertThat(entries(now.get() + 1, Long.MAX_VALUE), empty());
+    }
+
+    private static byte[] body(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private List<BitbucketWebhookJournal.Entry> entries(long from, long to) {
+        List<BitbucketWebhookJournal.Entry> entries = new ArrayList<>();
+        journal.forEachEntry(from, to, entries::add);
+        return entries;
+    }
+
+    private List<BitbucketWebhookJournal.Entry> unfinished() {
+        List<BitbucketWebhookJournal.Entry> entries = new ArrayList<>();
+        journal.forEachUnfinished(entries::add);
+        return entries;
+    }
+
+    private static List<Long> sequences(List<BitbucketWebhookJournal.Entry> entries) {
+        return entries.stream().map(BitbucketWebhookJournal.Entry::getSequence).collect(Collectors.toList());
+    }
+
+    private BitbucketWebhookJournal createJournal(File directory, long segmentSize) {
+        return new BitbucketWebhookJournal(directory, segmentSize, Long.MAX_VALUE / 2, false, clock);
+    }
+}
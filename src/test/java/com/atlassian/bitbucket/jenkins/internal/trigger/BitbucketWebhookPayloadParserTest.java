@@ -0,0 +1,121 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRef;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRefChange;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketRefType;
+import com.atlassian.bitbucket.jenkins.internal.model.BitbucketUser;
+import com.atlassian.bitbucket.jenkins.internal.trigger.BitbucketWebhookPayloadParser.PayloadTooLargeException;
+import com.atlassian.bitbucket.jenkins.internal.trigger.events.*;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class BitbucketWebhookPayloadParserTest {
+
+    private static final long MAX_PAYLOAD_SIZE = 1024 * 1024;
+
+    private final BitbucketWebhookPayloadParser fullParser = new BitbucketWebhookPayloadParser(false, MAX_PAYLOAD_SIZE);
+    private final BitbucketWebhookPayloadParser leanParser = new BitbucketWebhookPayloadParser(true, MAX_PAYLOAD_SIZE);
+
+    @Test
+    public void testLeanParseMirrorSynchronized() throws IOException {
+        MirrorSynchronizedWebhookEvent event = assertSameAsFull("/webhook/mirrors_synchronized_body.json",
+                MirrorSynchronizedWebhookEvent.class);
+
+        assertThat(event.getMirrorServer().isPresent(), is(true));
+        assertThat(event.getSyncType().isPresent(), is(true));
+    }
+
+    @Test
+    public void testLeanParsePullRequests() throws IOException {
+        assertSameAsFull("/webhook/pull_request_declined_body.json", PullRequestDeclinedWebhookEvent.class);
+        assertSameAsFull("/webhook/pull_request_deleted_body.json", PullRequestDeletedWebhookEvent.class);
+        assertSameAsFull("/webhook/pull_request_body.json", PullRequestFromRefUpdatedWebhookEvent.class);
+        assertSameAsFull("/webhook/pull_request_merged_body.json", PullRequestMergedWebhookEvent.class);
+        PullRequestOpenedWebhookEvent event =
+                assertSameAsFull("/webhook/pull_request_opened_body.json", PullRequestOpenedWebhookEvent.class);
+
+        assertThat(event.getPullRequest().getFromRef().getRepository(),
+                equalTo(parse(fullParser, "/webhook/pull_request_opened_body.json", PullRequestOpenedWebhookEvent.class)
+                        .getPullRequest().getFromRef().getRepository()));
+    }
+
+    @Test
+    public void testLeanParseRefsChanged() throws IOException {
+        RefsChangedWebhookEvent event =
+                assertSameAsFull("/webhook/refs_changed_body.json", RefsChangedWebhookEvent.class);
+        RefsChangedWebhookEvent fullEvent =
+                parse(fullParser, "/webhook/refs_changed_body.json", RefsChangedWebhookEvent.class);
+
+        assertThat(event.getRepository(), equalTo(fullEvent.getRepository()));
+        BitbucketRef ref = event.getChanges().get(0).getRef();
+        BitbucketRef fullRef = fullEvent.getChanges().get(0).getRef();
+        assertThat(ref.getId(), equalTo(fullRef.getId()));
+        assertThat(ref.getDisplayId(), equalTo(fullRef.getDisplayId()));
+        assertThat(ref.getType(), equalTo(fullRef.getType()));
+    }
+
+    @Test
+    public void testLeanParseTagRefChange() throws IOException {
+        String body = "{\"eventKey\":\"repo:refs_changed\",\"date\":\"2017-09-19T09:58:11+1000\"," +
+                      "\"repository\":{\"id\":1,\"slug\":\"repo\",\"name\":\"repo\",\"state\":\"AVAILABLE\"," +
+                      "\"project\":{\"key\":\"PROJ\",\"name\":\"Project\"}}," +
+                      "\"changes\":[{\"refId\":\"refs/tags/v1.0\",\"fromHash\":\"0000\",\"toHash\":\"abcd\"," +
+                      "\"type\":\"ADD\",\"ref\":{\"ignored\":[1,2,{\"nested\":true}]}}]}";
+
+        RefsChangedWebhookEvent event = leanParser.parse(toStream(body), RefsChangedWebhookEvent.class);
+
+        BitbucketRefChange change = event.getChanges().get(0);
+        assertThat(change.getRef().getDisplayId(), equalTo("v1.0"));
+        assertThat(change.getRef().getType(), equalTo(BitbucketRefType.TAG));
+        assertThat(change.getToHash(), equalTo("abcd"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testLeanParseMissingRequiredField() throws IOException {
+        leanParser.parse(toStream("{\"eventKey\":\"repo:refs_changed\",\"changes\":[]}"),
+                RefsChangedWebhookEvent.class);
+    }
+
+    @Test(expected = PayloadTooLargeException.class)
+    public void testParseTooLarge() throws IOException {
+        new BitbucketWebhookPayloadParser(false, 100)
+                .parse(getClass().getResourceAsStream("/webhook/refs_changed_body.json"),
+                        RefsChangedWebhookEvent.class);
+    }
+
+    @Test(expected = PayloadTooLargeException.class)
+    public void testReadTooLarge() throws IOException {
+        new BitbucketWebhookPayloadParser(true, 100)
+                .read(getClass().getResourceAsStream("/webhook/refs_changed_body.json"));
+    }
+
+    private <T extends AbstractWebhookEvent> T assertSameAsFull(String resource, Class<T> type) throws IOException {
+        T fullEvent = parse(fullParser, resource, type);
+        T leanEvent = parse(leanParser, resource, type);
+
+        assertThat(leanEvent, instanceOf(type));
+        assertThat(BitbucketWebhookDeduplicator.toKey(leanEvent),
+                equalTo(BitbucketWebhookDeduplicator.toKey(fullEvent)));
+        assertThat(leanEvent.getActor().map(BitbucketUser::getName),
+                equalTo(fullEvent.getActor().map(BitbucketUser::getName)));
+        return leanEvent;
+    }
+
+    private <T extends AbstractWebhookEvent> T parse(BitbucketWebhookPayloadParser parser, String resource,
+                                                      Class<T> type) throws IOException {
+        try (InputStream in = getClass().getResourceAsStream(resource)) {
+            return parser.parse(in, type);
+        }
+    }
+
+    private static InputStream toStream(String body) {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+}
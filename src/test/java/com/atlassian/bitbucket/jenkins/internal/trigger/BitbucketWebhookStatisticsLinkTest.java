@@ -0,0 +1,49 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jenkins.model.Jenkins;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockAuthorizationStrategy;
+
+import javax.servlet.http.HttpServletResponse;
+
+import static com.atlassian.bitbucket.jenkins.internal.trigger.BitbucketWebhookStatisticsLink.RELATIVE_PATH;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class BitbucketWebhookStatisticsLinkTest {
+
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Test
+    public void testStatisticsAreServedAsJson() throws Exception {
+        String content = jenkins.createWebClient()
+                .goTo(RELATIVE_PATH, "application/json")
+                .getWebResponse()
+                .getContentAsString();
+
+        JsonNode statistics = new ObjectMapper().readTree(content);
+        assertThat(statistics.path("intakeQueue").path("enabled").isBoolean(), is(true));
+        assertThat(statistics.path("intakeQueue").path("laneDepths").isArray(), is(true));
+        assertThat(statistics.path("journal").has("unfinished"), is(true));
+        assertThat(statistics.path("debouncer").path("pending").isObject(), is(true));
+        assertThat(statistics.path("triggerFilter").path("recentSkips").isArray(), is(true));
+        assertThat(statistics.path("duplicates").asLong(), equalTo(0L));
+    }
+
+    @Test
+    public void testStatisticsRequireAdminister() throws Exception {
+        jenkins.jenkins.setSecurityRealm(jenkins.createDummySecurityRealm());
+        jenkins.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy()
+                .grant(Jenkins.READ).everywhere().to("user")
+                .grant(Jenkins.ADMINISTER).everywhere().to("admin"));
+
+        jenkins.createWebClient().login("user").assertFails(RELATIVE_PATH, HttpServletResponse.SC_FORBIDDEN);
+        assertThat(jenkins.createWebClient().login("admin").goTo(RELATIVE_PATH, "application/json")
+                .getWebResponse().getStatusCode(), equalTo(HttpServletResponse.SC_OK));
+    }
+}
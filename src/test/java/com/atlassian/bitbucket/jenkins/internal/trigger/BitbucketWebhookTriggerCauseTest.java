@@ -1,8 +1,15 @@
 package com.atlassian.bitbucket.jenkins.internal.trigger;
 
 import com.atlassian.bitbucket.jenkins.internal.model.BitbucketUser;
+import com.atlassian.bitbucket.jenkins.internal.trigger.BitbucketTriggerLatency.Stage;
 import org.junit.Test;
 
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyMap;
 import static org.junit.Assert.assertEquals;
 
 public class BitbucketWebhookTriggerCauseTest {
@@ -21,4 +28,94 @@ public class BitbucketWebhookTriggerCauseTest {
         String shortDescription = new BitbucketWebhookTriggerCause(BitbucketWebhookTriggerRequest.builder().build()).getShortDescription();
         assertEquals(Messages.BitbucketWebhookTriggerCause_withoutAuthor(), shortDescription);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testTriggerWithCoalescedRequests() {
+        BitbucketUser user = new BitbucketUser("me", "me@test.atlassian", "Me");
+        BitbucketWebhookTriggerRequest first = BitbucketWebhookTriggerRequest.builder().commit("first").build();
+        BitbucketWebhookTriggerRequest second = BitbucketWebhookTriggerRequest.builder()
+                .actor(user)
+                .commit("second")
+                .build();
+        BitbucketWebhookTriggerCause cause = new BitbucketWebhookTriggerCause(asList(first, second));
+
+        assertEquals(Messages.BitbucketWebhookTriggerCause_withAuthorCoalesced(2, user.getDisplayName()),
+                cause.getShortDescription());
+        assertEquals(asList(first, second), cause.getTriggerRequests());
+    }
+
+    @Test
+    public void testStageDurations() {
+        BitbucketWebhookTriggerCause cause = new BitbucketWebhookTriggerCause(BitbucketWebhookTriggerRequest.builder()
+                .eventDate(new Date(1000))
+                .receivedAt(1500)
+                .dispatchedAt(1600)
+                .build())
+                .withTriggerTimes(2000, 5000, 5000);
+        cause.setLeftQueueAt(9000);
+
+        Map<Stage, Long> expected = new EnumMap<>(Stage.class);
+        expected.put(Stage.DELIVERY, 500L);
+        expected.put(Stage.DISPATCH, 100L);
+        expected.put(Stage.POLL_WAIT, 400L);
+        expected.put(Stage.POLL, 3000L);
+        expected.put(Stage.BUILD_QUEUE, 4000L);
+        expected.put(Stage.TOTAL, 8000L);
+        assertEquals(expected, cause.getStageDurations());
+    }
+
+    @Test
+    public void testStageDurationsLeavesOutUnknownStages() {
+        // Such as a build from before the stages were recorded, which still has a cause with a request
+        BitbucketWebhookTriggerCause cause = new BitbucketWebhookTriggerCause(BitbucketWebhookTriggerRequest.builder()
+                .receivedAt(1500)
+                .dispatchedAt(1600)
+                .build());
+        cause.setLeftQueueAt(9000);
+
+        Map<Stage, Long> expected = new EnumMap<>(Stage.class);
+        expected.put(Stage.DISPATCH, 100L);
+        assertEquals(expected, cause.getStageDurations());
+    }
+
+    @Test
+    public void testStageDurationsWhenClocksDisagree() {
+        BitbucketWebhookTriggerCause cause = new BitbucketWebhookTriggerCause(BitbucketWebhookTriggerRequest.builder()
+                .eventDate(new Date(2000))
+                .receivedAt(1500)
+                .build());
+
+        assertEquals(Long.valueOf(0), cause.getStageDurations().get(Stage.DELIVERY));
+    }
+
+    @Test
+    public void testWithTriggerTimesLeavesCauseUnchanged() {
+        BitbucketWebhookTriggerCause cause = new BitbucketWebhookTriggerCause(BitbucketWebhookTriggerRequest.builder()
+                .dispatchedAt(1000)
+                .build());
+
+        BitbucketWebhookTriggerCause copy = cause.withTriggerTimes(2000, 5000, 5000);
+
+        assertEquals(cause, copy);
+        assertEquals(Long.valueOf(1000), copy.getStageDurations().get(Stage.POLL_WAIT));
+        assertEquals(emptyMap(), cause.getStageDurations());
+    }
+
+    @Test
+    public void testTimesAreLeftOutOfEquals() {
+        BitbucketWebhookTriggerRequest first = BitbucketWebhookTriggerRequest.builder()
+                .commit("commit")
+                .receivedAt(1000)
+                .dispatchedAt(1100)
+                .build();
+        BitbucketWebhookTriggerRequest second = BitbucketWebhookTriggerRequest.builder()
+                .commit("commit")
+                .receivedAt(2000)
+                .dispatchedAt(2100)
+                .build();
+        BitbucketWebhookTriggerCause cause = new BitbucketWebhookTriggerCause(first).withTriggerTimes(3000, 0, 0);
+
+        assertEquals(first, second);
+        assertEquals(cause, new BitbucketWebhookTriggerCause(second));
+    }
+}
@@ -9,20 +9,26 @@ import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCM;
 import com.atlassian.bitbucket.jenkins.internal.scm.BitbucketSCMRepository;
 import com.atlassian.bitbucket.jenkins.internal.trigger.BitbucketWebhookTriggerImpl.BitbucketWebhookTriggerDescriptor;
 import hudson.model.*;
+import hudson.scm.PollingResult;
 import hudson.scm.SCM;
 import hudson.util.SequentialExecutionQueue;
 import jenkins.model.Jenkins;
 import jenkins.triggers.SCMTriggerItem;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatcher;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
 import javax.annotation.Nullable;
 import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static com.atlassian.bitbucket.jenkins.internal.util.TestUtils.*;
 import static java.util.Arrays.asList;
@@ -34,6 +40,9 @@ import static org.mockito.Mockito.*;
 @RunWith(MockitoJUnitRunner.class)
 public class BitbucketWebhookTriggerImplTest {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Mock
     private BitbucketPluginConfiguration bitbucketPluginConfiguration;
     private BitbucketWebhookTriggerDescriptor descriptor;
@@ -84,6 +93,64 @@ public class BitbucketWebhookTriggerImplTest {
         verify(queue).execute(argThat((ArgumentMatcher<BitbucketTriggerWorker>) argument -> deepEqual(expectedValue, argument)));
     }
 
+    @Test
+    public void testDescriptorScheduleRequiresPollingWhenJobAlreadyQueued() {
+        BitbucketDirectTrigger directTrigger = mock(BitbucketDirectTrigger.class);
+        when(directTrigger.isEnabled()).thenReturn(true);
+        descriptor.setDirectTrigger(directTrigger);
+        Job job = mock(Job.class);
+        when(job.getFullName()).thenReturn("job");
+        when(job.getRootDir()).thenReturn(temporaryFolder.getRoot());
+        SCMTriggerItem triggerItem = mock(SCMTriggerItem.class);
+        when(triggerItem.poll(any(TaskListener.class))).thenReturn(PollingResult.NO_CHANGES);
+        BitbucketWebhookTriggerRequest first = BitbucketWebhookTriggerRequest.builder()
+                .commit("first")
+                .refId("refs/heads/master")
+                .build();
+        BitbucketTriggerWorker queued = new BitbucketTriggerWorker(job, triggerItem,
+                new CauseAction(new BitbucketWebhookTriggerCause(first)), first.getAdditionalActions(), directTrigger);
+        when(queue.getInProgress()).thenReturn(Collections.singleton(queued));
+
+        descriptor.schedule(job, triggerItem, BitbucketWebhookTriggerRequest.builder()
+                .commit("second")
+                .refId("refs/heads/master")
+                .build());
+        // The queue runs the worker already queued for the job again, which has to poll for the second commit
+        queued.run();
+
+        verify(triggerItem).poll(any(TaskListener.class));
+        verify(directTrigger, never()).decide(any(), any(), any());
+    }
+
+    @Test
+    public void testDescriptorScheduleDebounced() {
+        ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+        descriptor.setDebouncer(new BitbucketTriggerDebouncer(1000, executor));
+        Job job = mock(Job.class);
+        when(job.getFullName()).thenReturn("job");
+        SCMTriggerItem triggerItem = mock(SCMTriggerItem.class);
+        BitbucketWebhookTriggerRequest first = BitbucketWebhookTriggerRequest.builder()
+                .commit("first")
+                .refId("refs/heads/master")
+                .build();
+        BitbucketWebhookTriggerRequest second = BitbucketWebhookTriggerRequest.builder()
+                .commit("second")
+                .refId("refs/heads/master")
+                .build();
+        CauseAction causeAction = new CauseAction(new BitbucketWebhookTriggerCause(asList(first, second)));
+        BitbucketTriggerWorker expectedValue = new BitbucketTriggerWorker(job, triggerItem,
+                causeAction, second.getAdditionalActions());
+
+        descriptor.schedule(job, triggerItem, first);
+        descriptor.schedule(job, triggerItem, second);
+        verifyZeroInteractions(queue);
+
+        ArgumentCaptor<Runnable> timer = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor).schedule(timer.capture(), eq(1000L), eq(TimeUnit.MILLISECONDS));
+        timer.getValue().run();
+        verify(queue).execute(argThat((ArgumentMatcher<BitbucketTriggerWorker>) argument -> deepEqual(expectedValue, argument)));
+    }
+
     @Test
     public void testDoNotSkipRegistrationForNewInstances() {
         BitbucketWebhookTriggerImpl t = new BitbucketWebhookTriggerImpl(false, true);
@@ -225,6 +292,30 @@ public class BitbucketWebhookTriggerImplTest {
                         argThat(arg -> arg.equals(actualRepo)), eq(false), eq(true));
     }
 
+    @Test
+    public void testWebhookRegistrationUsesJobIndex() {
+        BitbucketJobIndex jobIndex = mock(BitbucketJobIndex.class);
+        BitbucketWebhookTriggerDescriptor indexedDescriptor = new BitbucketWebhookTriggerDescriptor(queue,
+                webhookHandler, jenkinsProvider, bitbucketPluginConfiguration, jobIndex);
+        BitbucketSCMRepository repo = createSCMRepo();
+        FreeStyleProject project = createFreestyleProjectWithSCM(createSCM(repo));
+        FreeStyleProject existingProject = createFreestyleProjectWithSCM(createSCM(createSCMRepo()));
+        when(existingProject.getTriggers())
+                .thenReturn(Collections.singletonMap(descriptor, new BitbucketWebhookTriggerImpl(false, true)));
+        doReturn(asList(existingProject, project)).when(jobIndex).getJobs(PROJECT, REPO);
+
+        BitbucketWebhookTriggerImpl trigger = createInstance(indexedDescriptor, false);
+
+        trigger.start(project, true);
+
+        verify(jenkins, never()).getAllItems(any(Class.class));
+        verify(webhookHandler)
+                .register(
+                        argThat(args -> args.equals(BITBUCKET_BASE_URL)),
+                        any(GlobalCredentialsProvider.class),
+                        argThat(arg -> arg.equals(repo)), eq(false), eq(true));
+    }
+
     @Test
     public void testWorkflowJobAreWebhookEligible() {
         BitbucketWebhookTriggerImpl t = new BitbucketWebhookTriggerImpl(false, true);
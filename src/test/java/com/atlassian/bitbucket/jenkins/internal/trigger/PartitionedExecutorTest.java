@@ -0,0 +1,100 @@
+package com.atlassian.bitbucket.jenkins.internal.trigger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class PartitionedExecutorTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private PartitionedExecutor executor;
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testExecutePreservesOrderWithinPartition() throws InterruptedException {
+        executor = new PartitionedExecutor(4, 100, "test");
+        List<Integer> processed = Collections.synchronizedList(new ArrayList<>());
+
+        for (int i = 0; i < 50; i++) {
+            int task = i;
+            executor.execute("proj/repo", () -> processed.add(task));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (processed.size() < 50 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(processed, equalTo(IntStream.range(0, 50).boxed().collect(Collectors.toList())));
+    }
+
+    @Test
+    public void testExecuteBusyPartitionDoesNotBlockOtherLanes() throws InterruptedException {
+        executor = new PartitionedExecutor(2, 1, "test");
+        String busy = "busy";
+        String other = partitionInOtherLane(busy);
+        executor.execute(busy, this::block);
+        executor.execute(busy, this::block);
+
+        CountDownLatch ran = new CountDownLatch(1);
+        executor.execute(other, ran::countDown);
+
+        assertThat(ran.await(10, TimeUnit.SECONDS), is(true));
+        int[] backlogs = executor.getBacklogs();
+        assertThat(backlogs[executor.getLane(busy)], equalTo(1));
+        assertThat(executor.getBacklog(), equalTo(1));
+        assertThat(executor.isFull(), is(false));
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void testExecuteWhenLaneFull() {
+        executor = new PartitionedExecutor(2, 1, "test");
+        executor.execute("busy", this::block);
+        executor.execute("busy", this::block);
+
+        executor.execute("busy", this::block);
+    }
+
+    @Test
+    public void testGetLaneIsStable() {
+        executor = new PartitionedExecutor(8, 1, "test");
+
+        assertThat(executor.getLane("proj/repo"), equalTo(executor.getLane("proj/repo")));
+        assertThat(executor.getLane("proj/repo"), allOf(greaterThanOrEqualTo(0), lessThan(8)));
+    }
+
+    private void block() {
+        try {
+            release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String partitionInOtherLane(String partitionKey) {
+        int lane = executor.getLane(partitionKey);
+        for (int i = 0; ; i++) {
+            String candidate = "other-" + i;
+            if (executor.getLane(candidate) != lane) {
+                return candidate;
+            }
+        }
+    }
+}